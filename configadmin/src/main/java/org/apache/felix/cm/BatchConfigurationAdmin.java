@@ -16,23 +16,23 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-package org.apache.felix.eventadmin.impl.tasks;
+package org.apache.felix.cm;
+
+
+import org.osgi.service.cm.ConfigurationAdmin;
+
 
 /**
- * This thread class is used for sending the events
- * synchronously.
- * It acts like a marker.
- *
- * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ * The <code>BatchConfigurationAdmin</code> extends the
+ * <code>ConfigurationAdmin</code> service with support for changing a
+ * number of configurations at once. The Apache Felix Configuration Admin
+ * Service registers its service under both interfaces.
  */
-public class SyncThread extends Thread
+public interface BatchConfigurationAdmin extends ConfigurationAdmin
 {
 
     /**
-     * Constructor used by the thread pool.
+     * Returns a new and empty {@link ConfigurationBatch}.
      */
-    public SyncThread(Runnable target)
-    {
-        super(target);
-    }
+    ConfigurationBatch createBatch();
 }
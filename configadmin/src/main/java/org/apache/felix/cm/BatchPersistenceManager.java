@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm;
+
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Map;
+
+
+/**
+ * The <code>BatchPersistenceManager</code> interface may be implemented by
+ * a {@link PersistenceManager} which is able to store and delete a number
+ * of dictionaries atomically.
+ * <p>
+ * The Configuration Admin Service uses this interface to persist the
+ * changes of a {@link ConfigurationBatch} with a single call. Persistence
+ * managers not implementing this interface are called with
+ * {@link #store(String, Dictionary)} and {@link #delete(String)} for each
+ * changed dictionary instead, in which case the changes are not persisted
+ * atomically.
+ */
+public interface BatchPersistenceManager extends PersistenceManager
+{
+
+    /**
+     * Stores and deletes the given dictionaries atomically: If this method
+     * returns normally all dictionaries have been stored and deleted. If
+     * this method throws an exception none of the dictionaries have been
+     * stored or deleted.
+     * <p>
+     * Like with the {@link #store(String, Dictionary)} method, modifying the
+     * dictionaries after this method returns must not affect the persisted
+     * data.
+     *
+     * @param stored The dictionaries to store mapped by their identifiers.
+     * @param deleted The identifiers of the dictionaries to delete. Deleting
+     *      an identifier for which no dictionary exists has no effect.
+     *
+     * @throws IOException If an error occurrs storing or deleting the
+     *      dictionaries.
+     */
+    void apply( Map<String, Dictionary> stored, Collection<String> deleted ) throws IOException;
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm;
+
+
+import java.io.IOException;
+import java.util.Dictionary;
+
+
+/**
+ * The <code>ConfigurationBatch</code> collects changes to a number of
+ * configurations which are then applied at once by the {@link #commit()}
+ * method. Instances are created by
+ * {@link BatchConfigurationAdmin#createBatch()}.
+ * <p>
+ * Compared to updating and deleting the configurations one by one through
+ * the <code>ConfigurationAdmin</code> service a batch has the following
+ * properties:
+ * <ul>
+ * <li>The changes are persisted with a single call to the persistence
+ * manager of the changed configurations. If the persistence manager
+ * implements the {@link BatchPersistenceManager} interface, either all or
+ * none of the changes are persisted. A batch changing configurations held
+ * by different persistence managers cannot be committed, since the changes
+ * could not be persisted atomically.</li>
+ * <li>Nothing is changed or delivered before the changes are persisted. If
+ * persisting fails, the configurations remain unchanged.</li>
+ * <li>Changing the same configuration more than once in a batch only results
+ * in the last change being applied. Hence each configuration causes at most
+ * one <code>ConfigurationEvent</code> and one update of the
+ * <code>ManagedService</code> or <code>ManagedServiceFactory</code>
+ * services.</li>
+ * </ul>
+ * <p>
+ * Configurations created by a batch are not bound to a bundle location, as
+ * if created by the <code>ConfigurationAdmin.getConfiguration(String,
+ * String)</code> or <code>ConfigurationAdmin.createFactoryConfiguration(String,
+ * String)</code> methods with a <code>null</code> location. The caller needs
+ * the same permissions as for these methods.
+ * <p>
+ * Instances of this interface are not thread safe.
+ */
+public interface ConfigurationBatch
+{
+
+    /**
+     * Sets the properties of the configuration with the given PID,
+     * creating the configuration if it does not exist yet.
+     *
+     * @param pid The PID of the configuration
+     * @param properties The new properties of the configuration
+     *
+     * @throws IllegalArgumentException If the properties contain invalid
+     *      keys or values as for <code>Configuration.update(Dictionary)</code>.
+     * @throws IllegalStateException If the batch has already been committed.
+     */
+    void update( String pid, Dictionary properties );
+
+
+    /**
+     * Creates a new factory configuration with the given properties.
+     *
+     * @param factoryPid The factory PID of the new configuration
+     * @param properties The properties of the new configuration
+     *
+     * @return The PID of the new configuration, which only exists after the
+     *      batch has been committed.
+     *
+     * @throws IllegalArgumentException If the properties contain invalid
+     *      keys or values as for <code>Configuration.update(Dictionary)</code>.
+     * @throws IllegalStateException If the batch has already been committed.
+     */
+    String createFactoryConfiguration( String factoryPid, Dictionary properties );
+
+
+    /**
+     * Deletes the configuration with the given PID. If no such configuration
+     * exists when the batch is committed, this has no effect.
+     *
+     * @param pid The PID of the configuration
+     *
+     * @throws IllegalStateException If the batch has already been committed.
+     */
+    void delete( String pid );
+
+
+    /**
+     * Persists and applies the changes of this batch. After the changes have
+     * been persisted, the batch cannot be used any longer. If this method
+     * fails before, the batch is left unchanged and may be committed again.
+     * <p>
+     * The changes are persisted before any configuration is changed. Only
+     * afterwards the configuration events are fired and the services are
+     * updated.
+     *
+     * @throws IOException If an error occurrs persisting the changes or if
+     *      the changes would have to be persisted by more than one
+     *      persistence manager. In this case no configuration has been
+     *      changed.
+     * @throws SecurityException If the caller does not have the permission
+     *      to change one of the configurations. In this case no
+     *      configuration has been changed.
+     * @throws IllegalStateException If the batch has already been committed
+     *      or the Configuration Admin Service is not active any more.
+     */
+    void commit() throws IOException;
+}
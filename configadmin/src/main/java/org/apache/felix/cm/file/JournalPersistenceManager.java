@@ -0,0 +1,1484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.felix.cm.BatchPersistenceManager;
+import org.apache.felix.cm.impl.DynamicBindings;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+
+
+/**
+ * The <code>JournalPersistenceManager</code> class stores configuration data
+ * in a single append-only journal file instead of one file per configuration.
+ * <p>
+ * The journal is the file <code>config.journal</code> in the configuration
+ * directory, which is resolved exactly as by the
+ * {@link FilePersistenceManager#FilePersistenceManager(BundleContext, String)}
+ * constructor. When this persistence manager is used by the Configuration
+ * Admin Service, it is selected by setting the
+ * {@link org.apache.felix.cm.impl.ConfigurationManager#CM_PERSISTENCE_MANAGER}
+ * bundle context property to <code>journal</code>.
+ * <p>
+ * Each {@link #store(String, Dictionary)} and {@link #delete(String)} call
+ * appends a record to the journal. A stored configuration is written in the
+ * same format as the configuration files of the
+ * {@link FilePersistenceManager}. Each record is protected by a checksum; an
+ * incompletely written record at the end of the journal is removed when the
+ * journal is opened. A record is considered incompletely written if no valid
+ * record follows it. A damaged record followed by valid records is
+ * corruption instead: the journal is copied to
+ * <code>config.journal.corrupt</code> for inspection and the persistence
+ * manager fails to open, leaving the journal unchanged.
+ * <p>
+ * When the journal is opened it is read once to build an in-memory index
+ * of the position of the current record of each configuration. The
+ * configurations are only parsed when they are actually loaded.
+ * <p>
+ * <b>Group Commit</b>
+ * <p>
+ * Records are not written by the calling thread directly. They are queued
+ * and the first thread getting hold of the journal writes all queued records
+ * at once and synchronizes the journal with the storage device. Threads
+ * concurrently storing configurations thus share a single write and sync.
+ * The store and delete methods only return after their record has been
+ * written.
+ * <p>
+ * <b>Batches</b>
+ * <p>
+ * The records of a {@link #apply(Map, Collection)} call are written
+ * together, preceded by a batch record holding their number. When the
+ * journal is opened, a batch whose records have not all been completely
+ * written is removed, so either all or none of the changes of a batch are
+ * persisted.
+ * <p>
+ * <b>Compaction</b>
+ * <p>
+ * Records replaced by later records or deleted configurations are garbage.
+ * Once the garbage exceeds both {@link #COMPACTION_THRESHOLD} bytes and the
+ * size of the current records, the journal is rewritten to the file
+ * <code>config.journal.compact.tmp</code> with the current records only,
+ * which then replaces the journal. The journal is replaced atomically where
+ * the platform supports it. Otherwise it is first renamed to
+ * <code>config.journal.old.tmp</code>, so there always is a complete journal
+ * to recover from if the process stops while the journal is replaced. This
+ * recovery is done when the journal is opened.
+ * <p>
+ * If the compaction fails, the current journal is kept and compaction is
+ * only tried again after another {@link #COMPACTION_THRESHOLD} bytes of
+ * garbage. If the current journal cannot be reopened afterwards, all further
+ * operations fail with an <code>IOException</code> caused by the failure.
+ * <p>
+ * <b>Migration</b>
+ * <p>
+ * If no journal exists when this persistence manager is created, all
+ * configuration files found in the configuration directory are imported
+ * into a new journal. The configuration files are not removed but they are
+ * ignored as long as the journal exists. Once imported, the empty file
+ * <code>config.journal.migrated</code> is created. If it exists but the
+ * journal does not, this persistence manager fails to open instead of
+ * importing the then outdated configuration files again. Remove this file
+ * to import the configuration files again.
+ */
+public class JournalPersistenceManager implements BatchPersistenceManager
+{
+
+    /**
+     * The name of the journal file in the configuration directory (value is
+     * "config.journal").
+     */
+    public static final String JOURNAL_FILE = "config.journal";
+
+    /**
+     * The minimum number of garbage bytes in the journal before the journal
+     * is compacted (value is 1MB).
+     */
+    public static final int COMPACTION_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The extension of the journal file while it is being migrated (value is
+     * ".tmp"). The {@link FilePersistenceManager} ignores files with this
+     * extension.
+     */
+    static final String TMP_EXT = ".tmp";
+
+    /**
+     * The extension of the journal file while it is being compacted (value
+     * is ".compact.tmp").
+     */
+    static final String COMPACT_EXT = ".compact" + TMP_EXT;
+
+    /**
+     * The extension of the previous journal file while it is being replaced
+     * by the compacted journal (value is ".old.tmp").
+     */
+    static final String BACKUP_EXT = ".old" + TMP_EXT;
+
+    /**
+     * The extension of the file marking the configuration files as imported
+     * into the journal (value is ".migrated").
+     */
+    static final String MIGRATED_EXT = ".migrated";
+
+    /**
+     * The extension of the copy of a journal found to be corrupt when it
+     * is opened (value is ".corrupt").
+     */
+    static final String CORRUPT_EXT = ".corrupt";
+
+    /** The magic number at the start of the journal: "FCMJ" */
+    private static final int MAGIC = 0x46434d4a;
+
+    /** The version of the journal format */
+    private static final int VERSION = 1;
+
+    /** The size of the journal header: magic number and version */
+    private static final int HEADER_SIZE = 8;
+
+    /** The record type of a stored configuration */
+    private static final byte TYPE_STORE = 1;
+
+    /** The record type of a deleted configuration */
+    private static final byte TYPE_DELETE = 2;
+
+    /** The record type starting a batch, its data is the number of records */
+    private static final byte TYPE_BATCH = 3;
+
+    /**
+     * The access control context we use in the presence of a security manager.
+     */
+    private final AccessControlContext acc;
+
+    /**
+     * The journal file
+     */
+    private final File journalFile;
+
+    /**
+     * The records of the commits queued for the next write. Access is
+     * synchronized on the list.
+     */
+    private final List<Record[]> pending = new ArrayList<Record[]>();
+
+    /**
+     * The lock guarding the journal file, the index and the statistics below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The index of the current records: maps PIDs to {@link Entry} objects
+     */
+    private final Map index = new HashMap();
+
+    /**
+     * The open journal file or <code>null</code> after {@link #close()}
+     */
+    private RandomAccessFile journal;
+
+    /**
+     * The size of the journal in bytes
+     */
+    private long length;
+
+    /**
+     * The number of bytes in the journal not used by current records
+     */
+    private long garbage;
+
+    /**
+     * The number of garbage bytes above which the journal is compacted
+     */
+    private long compactionThreshold = COMPACTION_THRESHOLD;
+
+    /**
+     * The failure compacting the journal which left the journal closed or
+     * <code>null</code> if the journal is open or has been closed by
+     * {@link #close()}
+     */
+    private IOException failure;
+
+
+    /**
+     * Creates an instance of this persistence manager storing the journal in
+     * the configuration directory resolved by
+     * {@link FilePersistenceManager#FilePersistenceManager(BundleContext, String)}.
+     * If no journal exists yet, the configuration files in this directory are
+     * imported unless they have been imported before.
+     *
+     * @param bundleContext The <code>BundleContext</code> to optionally get
+     *      the data location for the configuration directory. This may be
+     *      <code>null</code>.
+     * @param location The configuration directory. If this is
+     *      <code>null</code> the default configuration directory is used.
+     *
+     * @throws IllegalArgumentException If the location exists but is not a
+     *      directory or does not exist and cannot be created.
+     * @throws IOException If the journal cannot be opened or recovered, the
+     *      configuration files cannot be imported, the journal is missing
+     *      although the configuration files have already been imported or the
+     *      journal is corrupt.
+     */
+    public JournalPersistenceManager( final BundleContext bundleContext, final String location ) throws IOException
+    {
+        // setup the access control context from the calling setup
+        if ( System.getSecurityManager() != null )
+        {
+            acc = AccessController.getContext();
+        }
+        else
+        {
+            acc = null;
+        }
+
+        final FilePersistenceManager fpm = new FilePersistenceManager( bundleContext, location );
+        this.journalFile = new File( fpm.getLocation(), JOURNAL_FILE );
+
+        doPrivileged( new PrivilegedExceptionAction()
+        {
+            public Object run() throws IOException
+            {
+                recover();
+                final File migratedFile = new File( journalFile.getPath() + MIGRATED_EXT );
+                if ( !journalFile.exists() )
+                {
+                    if ( migratedFile.exists() )
+                    {
+                        throw new IOException( "Journal " + journalFile
+                            + " is missing but the configuration files have already been imported; remove "
+                            + migratedFile + " to import them again" );
+                    }
+                    migrate( fpm );
+                }
+                open();
+
+                // mark the configuration files as imported, also for journals
+                // migrated before the marker was introduced
+                if ( !migratedFile.exists() && !migratedFile.createNewFile() )
+                {
+                    throw new IOException( "Failed to create " + migratedFile );
+                }
+                return null;
+            }
+        } );
+    }
+
+
+    /**
+     * Returns the journal file.
+     *
+     * @return The journal file
+     */
+    public File getJournalFile()
+    {
+        return journalFile;
+    }
+
+
+    /**
+     * Closes the journal. Afterwards all methods of this instance fail.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            if ( journal != null )
+            {
+                try
+                {
+                    journal.close();
+                }
+                catch ( IOException ioe )
+                {
+                    // ignore
+                }
+                journal = null;
+            }
+            failure = null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if a configuration is stored for the given
+     * identifier.
+     *
+     * @param pid The identifier of the configuration to check.
+     *
+     * @return <code>true</code> if the configuration exists
+     */
+    public boolean exists( final String pid )
+    {
+        lock.lock();
+        try
+        {
+            return index.containsKey( pid );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Reads the configuration for the given identifier into a
+     * <code>Dictionary</code> object.
+     *
+     * @param pid The identifier of the configuration to load.
+     *
+     * @return The configuration.
+     *
+     * @throws IOException If no configuration is stored for the identifier or
+     *      the configuration cannot be read.
+     */
+    public Dictionary load( final String pid ) throws IOException
+    {
+        final byte[] data = ( byte[] ) doPrivileged( new PrivilegedExceptionAction()
+        {
+            public Object run() throws IOException
+            {
+                lock.lock();
+                try
+                {
+                    final Entry entry = ( Entry ) index.get( pid );
+                    if ( entry == null )
+                    {
+                        throw new IOException( "No such configuration: " + pid );
+                    }
+                    return read( entry );
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        } );
+
+        return ConfigurationHandler.read( new ByteArrayInputStream( data ) );
+    }
+
+
+    /**
+     * Returns an enumeration of all stored configurations. The current
+     * records are read from the journal when this method is called but they
+     * are only parsed while enumerating them.
+     *
+     * @return an enumeration of configuration data returned as instances of
+     *      the <code>Dictionary</code> class.
+     *
+     * @throws IOException If the journal cannot be read.
+     */
+    public Enumeration getDictionaries() throws IOException
+    {
+        final List data = ( List ) doPrivileged( new PrivilegedExceptionAction()
+        {
+            public Object run() throws IOException
+            {
+                lock.lock();
+                try
+                {
+                    // read the records in the order of the journal
+                    final List entries = new ArrayList( index.values() );
+                    Collections.sort( entries );
+
+                    final List data = new ArrayList( entries.size() );
+                    for ( Iterator ei = entries.iterator(); ei.hasNext(); )
+                    {
+                        data.add( read( ( Entry ) ei.next() ) );
+                    }
+                    return data;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        } );
+
+        return new Enumeration()
+        {
+            private int idx;
+            private Dictionary next = seek();
+
+
+            public boolean hasMoreElements()
+            {
+                return next != null;
+            }
+
+
+            public Object nextElement()
+            {
+                if ( next == null )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                Dictionary toReturn = next;
+                next = seek();
+                return toReturn;
+            }
+
+
+            private Dictionary seek()
+            {
+                while ( idx < data.size() )
+                {
+                    final byte[] config = ( byte[] ) data.set( idx++, null );
+                    try
+                    {
+                        return ConfigurationHandler.read( new ByteArrayInputStream( config ) );
+                    }
+                    catch ( IOException ioe )
+                    {
+                        // ignore, check next configuration
+                    }
+                }
+
+                // exhausted
+                return null;
+            }
+        };
+    }
+
+
+    /**
+     * Stores the configuration for the given identifier. This method returns
+     * once the configuration has been written to the journal.
+     *
+     * @param pid The identifier of the configuration.
+     * @param props The configuration data to write.
+     *
+     * @throws IOException If an error occurrs writing the configuration data.
+     */
+    public void store( final String pid, final Dictionary props ) throws IOException
+    {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ConfigurationHandler.write( data, props );
+        commit( new Record[]
+            { new Record( TYPE_STORE, pid, data.toByteArray() ) } );
+    }
+
+
+    /**
+     * Deletes the configuration for the given identifier. This method returns
+     * once the deletion has been written to the journal.
+     *
+     * @param pid The identifier of the configuration to delete.
+     *
+     * @throws IOException If an error occurrs writing the journal.
+     */
+    public void delete( final String pid ) throws IOException
+    {
+        commit( new Record[]
+            { new Record( TYPE_DELETE, pid, null ) } );
+    }
+
+
+    /**
+     * Stores and deletes the given configurations atomically. This method
+     * returns once all records have been written to the journal.
+     *
+     * @param stored The configuration data to write mapped by the
+     *      identifiers of the configurations.
+     * @param deleted The identifiers of the configurations to delete.
+     *
+     * @throws IOException If an error occurrs writing the journal.
+     */
+    public void apply( final Map<String, Dictionary> stored, final Collection<String> deleted ) throws IOException
+    {
+        final List<Record> records = new ArrayList<Record>( stored.size() + deleted.size() + 1 );
+        records.add( null );
+        for ( Iterator<Map.Entry<String, Dictionary>> si = stored.entrySet().iterator(); si.hasNext(); )
+        {
+            final Map.Entry<String, Dictionary> entry = si.next();
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ConfigurationHandler.write( data, entry.getValue() );
+            records.add( new Record( TYPE_STORE, entry.getKey(), data.toByteArray() ) );
+        }
+        for ( Iterator<String> di = deleted.iterator(); di.hasNext(); )
+        {
+            records.add( new Record( TYPE_DELETE, di.next(), null ) );
+        }
+
+        if ( records.size() == 1 )
+        {
+            return;
+        }
+
+        // start the batch with a record holding the number of records
+        records.set( 0, Record.batch( records.size() - 1 ) );
+        commit( records.toArray( new Record[records.size()] ) );
+    }
+
+
+    /**
+     * Queues the records and waits until they have been written, writing all
+     * queued records if no other thread is currently writing. The records
+     * are written together in the given order. Records deleting a
+     * configuration which does not exist when the records are written are
+     * skipped.
+     */
+    private void commit( final Record[] records ) throws IOException
+    {
+        final Record record = records[records.length - 1];
+        synchronized ( pending )
+        {
+            pending.add( records );
+        }
+
+        doPrivileged( new PrivilegedExceptionAction()
+        {
+            public Object run() throws IOException
+            {
+                lock.lock();
+                try
+                {
+                    // another thread might have written our record while we waited
+                    if ( !record.done )
+                    {
+                        flush();
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                return null;
+            }
+        } );
+
+        if ( record.failure != null )
+        {
+            final IOException ioe = new IOException( "Failed to write configuration " + record.pid + ": "
+                + record.failure.getMessage() );
+            ioe.initCause( record.failure );
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * Writes all queued records with a single write and sync. Must be called
+     * with the lock held.
+     */
+    private void flush()
+    {
+        final Record[][] commits;
+        synchronized ( pending )
+        {
+            commits = pending.toArray( new Record[pending.size()][] );
+            pending.clear();
+        }
+
+        final Record[] batch = select( commits );
+        try
+        {
+            final RandomAccessFile file = getJournal();
+
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            final long[] offsets = new long[batch.length];
+            for ( int i = 0; i < batch.length; i++ )
+            {
+                offsets[i] = length + buf.size();
+                batch[i].writeTo( buf );
+            }
+
+            try
+            {
+                file.seek( length );
+                file.write( buf.toByteArray() );
+                file.getFD().sync();
+            }
+            catch ( IOException ioe )
+            {
+                // remove what might have been written of this batch
+                try
+                {
+                    file.setLength( length );
+                }
+                catch ( IOException ignore )
+                {
+                    // ignore
+                }
+                throw ioe;
+            }
+
+            for ( int i = 0; i < batch.length; i++ )
+            {
+                updateIndex( batch[i], offsets[i] );
+            }
+            length += buf.size();
+        }
+        catch ( IOException ioe )
+        {
+            for ( int i = 0; i < commits.length; i++ )
+            {
+                for ( int j = 0; j < commits[i].length; j++ )
+                {
+                    commits[i][j].failure = ioe;
+                }
+            }
+        }
+        finally
+        {
+            for ( int i = 0; i < commits.length; i++ )
+            {
+                for ( int j = 0; j < commits[i].length; j++ )
+                {
+                    commits[i][j].done = true;
+                }
+            }
+        }
+
+        if ( journal != null && garbage > compactionThreshold && garbage > length - garbage )
+        {
+            try
+            {
+                compact();
+                compactionThreshold = COMPACTION_THRESHOLD;
+            }
+            catch ( IOException ioe )
+            {
+                // do not try again on each write but only once another
+                // threshold of garbage has accumulated
+                compactionThreshold = garbage + COMPACTION_THRESHOLD;
+
+                if ( journal == null )
+                {
+                    // the records have been written but the journal is not
+                    // usable anymore, report to the callers
+                    failure = ioe;
+                    for ( int i = 0; i < commits.length; i++ )
+                    {
+                        for ( int j = 0; j < commits[i].length; j++ )
+                        {
+                            if ( commits[i][j].failure == null )
+                            {
+                                commits[i][j].failure = ioe;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the records of the commits to write, skipping the records
+     * deleting configurations which do not exist at that point. The number
+     * of records of a batch is adjusted accordingly and a batch left without
+     * records is skipped entirely. Must be called with the lock held, so the
+     * index cannot change.
+     */
+    private Record[] select( final Record[][] commits )
+    {
+        // whether configurations exist after the records selected so far
+        final Map<String, Boolean> exists = new HashMap<String, Boolean>();
+
+        final List<Record> selected = new ArrayList<Record>();
+        for ( int i = 0; i < commits.length; i++ )
+        {
+            final int start = selected.size();
+            for ( int j = 0; j < commits[i].length; j++ )
+            {
+                final Record record = commits[i][j];
+                if ( record.type == TYPE_DELETE )
+                {
+                    final Boolean known = exists.get( record.pid );
+                    if ( known != null ? !known.booleanValue() : !index.containsKey( record.pid ) )
+                    {
+                        continue;
+                    }
+                    exists.put( record.pid, Boolean.FALSE );
+                }
+                else if ( record.type == TYPE_STORE )
+                {
+                    exists.put( record.pid, Boolean.TRUE );
+                }
+                selected.add( record );
+            }
+
+            if ( commits[i][0].type == TYPE_BATCH )
+            {
+                final int count = selected.size() - start - 1;
+                if ( count == 0 )
+                {
+                    selected.remove( start );
+                }
+                else if ( count != commits[i][0].getCount() )
+                {
+                    selected.set( start, Record.batch( count ) );
+                }
+            }
+        }
+        return selected.toArray( new Record[selected.size()] );
+    }
+
+
+    /**
+     * Returns the open journal. Must be called with the lock held.
+     *
+     * @throws IOException If the journal has been closed or could not be
+     *      reopened after failing to compact it.
+     */
+    private RandomAccessFile getJournal() throws IOException
+    {
+        if ( journal == null )
+        {
+            if ( failure != null )
+            {
+                final IOException ioe = new IOException( "Journal " + journalFile
+                    + " is closed after failing to compact it: " + failure.getMessage() );
+                ioe.initCause( failure );
+                throw ioe;
+            }
+            throw new IOException( "Journal " + journalFile + " is closed" );
+        }
+        return journal;
+    }
+
+
+    /**
+     * Updates the index with the record written at the given offset. Must be
+     * called with the lock held.
+     */
+    private void updateIndex( final Record record, final long offset )
+    {
+        final Entry old;
+        if ( record.type == TYPE_STORE )
+        {
+            old = ( Entry ) index.put( record.pid, new Entry( offset, offset + record.getDataOffset(), record.data.length,
+                record.getSize() ) );
+        }
+        else if ( record.type == TYPE_BATCH )
+        {
+            old = null;
+            garbage += record.getSize();
+        }
+        else
+        {
+            old = ( Entry ) index.remove( record.pid );
+            garbage += record.getSize();
+        }
+
+        if ( old != null )
+        {
+            garbage += old.size;
+        }
+    }
+
+
+    /**
+     * Reads the configuration data of the entry. Must be called with the lock
+     * held.
+     */
+    private byte[] read( final Entry entry ) throws IOException
+    {
+        final RandomAccessFile file = getJournal();
+        final byte[] data = new byte[entry.dataLength];
+        file.seek( entry.dataOffset );
+        file.readFully( data );
+        return data;
+    }
+
+
+    /**
+     * Opens the journal, creating it if it does not exist, and builds the
+     * index. An incompletely written record or batch at the end is removed.
+     *
+     * @throws IOException If the journal cannot be read or is corrupt. A
+     *      corrupt journal is copied to a file with the {@link #CORRUPT_EXT}
+     *      extension.
+     */
+    private void open() throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile( journalFile, "rw" );
+        try
+        {
+            if ( file.length() == 0 )
+            {
+                file.writeInt( MAGIC );
+                file.writeInt( VERSION );
+                file.getFD().sync();
+            }
+
+            index.clear();
+            garbage = 0;
+
+            final long fileLength = file.length();
+            long offset = HEADER_SIZE;
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(
+                journalFile ) ) );
+            try
+            {
+                if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+                {
+                    throw new IOException( journalFile + " is not a configuration journal" );
+                }
+
+                // the records of the current batch are only indexed once
+                // the batch has been read completely
+                final List<Record> batch = new ArrayList<Record>();
+                final List<Long> batchOffsets = new ArrayList<Long>();
+                long batchOffset = offset;
+                int batchRemaining = 0;
+
+                Record record;
+                while ( ( record = Record.readFrom( in, fileLength - offset ) ) != null )
+                {
+                    if ( batchRemaining > 0 )
+                    {
+                        batch.add( record );
+                        batchOffsets.add( new Long( offset ) );
+                        if ( --batchRemaining == 0 )
+                        {
+                            for ( int i = 0; i < batch.size(); i++ )
+                            {
+                                updateIndex( batch.get( i ), batchOffsets.get( i ).longValue() );
+                            }
+                        }
+                    }
+                    else if ( record.type == TYPE_BATCH )
+                    {
+                        batch.clear();
+                        batchOffsets.clear();
+                        batch.add( record );
+                        batchOffsets.add( new Long( offset ) );
+                        batchOffset = offset;
+                        batchRemaining = record.getCount();
+                    }
+                    else
+                    {
+                        updateIndex( record, offset );
+                    }
+                    offset += record.getSize();
+                }
+
+                // a damaged record is only expected at the end of the journal,
+                // where a write might have been interrupted; do not drop the
+                // valid records following a damaged record
+                if ( offset < fileLength && hasRecordAfter( file, offset, fileLength ) )
+                {
+                    final File corruptFile = new File( journalFile.getPath() + CORRUPT_EXT );
+                    copy( journalFile, corruptFile );
+                    throw new IOException( "Journal " + journalFile + " has a corrupt record at offset " + offset
+                        + " followed by valid records; the journal is left unchanged and has been copied to "
+                        + corruptFile );
+                }
+
+                // ignore an incomplete batch at the end
+                if ( batchRemaining > 0 )
+                {
+                    offset = batchOffset;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            // remove an incomplete record at the end
+            if ( offset < file.length() )
+            {
+                file.setLength( offset );
+            }
+
+            this.length = offset;
+            this.journal = file;
+            this.failure = null;
+        }
+        finally
+        {
+            if ( this.journal != file )
+            {
+                file.close();
+            }
+        }
+    }
+
+
+    /**
+     * Returns whether a valid record starts anywhere after the given offset,
+     * in which case the damaged record at this offset has not just been
+     * incompletely written at the end of the journal.
+     */
+    private static boolean hasRecordAfter( final RandomAccessFile file, final long offset, final long fileLength )
+        throws IOException
+    {
+        if ( fileLength - offset > Integer.MAX_VALUE )
+        {
+            return true;
+        }
+
+        final byte[] tail = new byte[( int ) ( fileLength - offset )];
+        file.seek( offset );
+        file.readFully( tail );
+        for ( int pos = 1; pos < tail.length; pos++ )
+        {
+            final DataInputStream in = new DataInputStream( new ByteArrayInputStream( tail, pos, tail.length - pos ) );
+            try
+            {
+                if ( Record.readFrom( in, tail.length - pos ) != null )
+                {
+                    return true;
+                }
+            }
+            catch ( IOException ioe )
+            {
+                // a record with a valid checksum but unknown type
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Copies the source file to the target file, replacing the target file.
+     */
+    private static void copy( final File source, final File target ) throws IOException
+    {
+        final FileInputStream in = new FileInputStream( source );
+        try
+        {
+            final FileOutputStream out = new FileOutputStream( target );
+            try
+            {
+                final byte[] buf = new byte[8192];
+                int len;
+                while ( ( len = in.read( buf ) ) >= 0 )
+                {
+                    out.write( buf, 0, len );
+                }
+                out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Rewrites the journal with the current records only. Must be called with
+     * the lock held. If the compacted journal cannot replace the journal,
+     * the journal is reopened unless it cannot be restored either, in which
+     * case the journal is left closed.
+     */
+    private void compact() throws IOException
+    {
+        final File compactFile = new File( journalFile.getPath() + COMPACT_EXT );
+        try
+        {
+            final RandomAccessFile out = new RandomAccessFile( compactFile, "rw" );
+            try
+            {
+                out.setLength( 0 );
+
+                final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                final DataOutputStream dos = new DataOutputStream( buf );
+                dos.writeInt( MAGIC );
+                dos.writeInt( VERSION );
+
+                final List entries = new ArrayList( index.entrySet() );
+                for ( Iterator ei = entries.iterator(); ei.hasNext(); )
+                {
+                    final Map.Entry entry = ( Map.Entry ) ei.next();
+                    new Record( TYPE_STORE, ( String ) entry.getKey(), read( ( Entry ) entry.getValue() ) )
+                        .writeTo( buf );
+                }
+
+                out.write( buf.toByteArray() );
+                out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            compactFile.delete();
+            throw ioe;
+        }
+
+        journal.close();
+        journal = null;
+        try
+        {
+            replace( compactFile );
+        }
+        finally
+        {
+            // rebuild the index from the compacted or the restored journal
+            open();
+        }
+    }
+
+
+    /**
+     * Replaces the journal with the given file, atomically if supported by
+     * the platform. Otherwise the journal is moved to a backup file first,
+     * which is moved back if the journal cannot be replaced. Either the
+     * journal, the given file or the backup file is complete at any time and
+     * is recovered by {@link #recover()} after a crash.
+     *
+     * @throws IOException If the journal cannot be replaced. If the journal
+     *      cannot be restored either, the given file and the backup file are
+     *      kept for recovery.
+     */
+    private void replace( final File file ) throws IOException
+    {
+        if ( moveAtomically( file, journalFile ) || file.renameTo( journalFile ) )
+        {
+            return;
+        }
+
+        // the journal has to be moved away first on some platforms
+        final File backupFile = new File( journalFile.getPath() + BACKUP_EXT );
+        backupFile.delete();
+        if ( !journalFile.renameTo( backupFile ) )
+        {
+            file.delete();
+            throw new IOException( "Failed to replace journal " + journalFile );
+        }
+
+        if ( !file.renameTo( journalFile ) )
+        {
+            if ( !backupFile.renameTo( journalFile ) )
+            {
+                throw new IOException( "Failed to rename journal from '" + file + "' to '" + journalFile
+                    + "' and to restore it from '" + backupFile + "'" );
+            }
+            file.delete();
+            throw new IOException( "Failed to rename journal from '" + file + "' to '" + journalFile + "'" );
+        }
+
+        backupFile.delete();
+    }
+
+
+    /**
+     * Recovers the journal if the process stopped while replacing it by the
+     * compacted journal and removes files left over from an interrupted
+     * compaction.
+     *
+     * @throws IOException If the journal is missing and cannot be recovered.
+     */
+    private void recover() throws IOException
+    {
+        final File compactFile = new File( journalFile.getPath() + COMPACT_EXT );
+        final File backupFile = new File( journalFile.getPath() + BACKUP_EXT );
+
+        if ( !journalFile.exists() )
+        {
+            // the compacted journal is complete once the journal is moved
+            // away, else the journal has been moved away but not replaced
+            final File file = compactFile.exists() ? compactFile : backupFile;
+            if ( file.exists() && !file.renameTo( journalFile ) )
+            {
+                throw new IOException( "Failed to recover journal " + journalFile + " from '" + file + "'" );
+            }
+        }
+
+        if ( journalFile.exists() )
+        {
+            compactFile.delete();
+            backupFile.delete();
+        }
+    }
+
+
+    /**
+     * Moves the file using <code>java.nio.file.Files.move</code> with the
+     * <code>ATOMIC_MOVE</code> option if available, replacing the target.
+     * Reflection is used as this bundle supports older platforms.
+     *
+     * @return <code>true</code> if the file has been moved, <code>false</code>
+     *      if atomic moves are not available or the file could not be moved.
+     */
+    private static boolean moveAtomically( final File source, final File target )
+    {
+        try
+        {
+            final Class pathClass = Class.forName( "java.nio.file.Path" );
+            final Class optionClass = Class.forName( "java.nio.file.CopyOption" );
+            final Class standardOptionClass = Class.forName( "java.nio.file.StandardCopyOption" );
+            final Object options = Array.newInstance( optionClass, 2 );
+            Array.set( options, 0, standardOptionClass.getField( "ATOMIC_MOVE" ).get( null ) );
+            Array.set( options, 1, standardOptionClass.getField( "REPLACE_EXISTING" ).get( null ) );
+
+            final Method toPath = File.class.getMethod( "toPath", new Class[0] );
+            final Method move = Class.forName( "java.nio.file.Files" ).getMethod( "move", new Class[]
+                { pathClass, pathClass, options.getClass() } );
+            move.invoke( null, new Object[]
+                { toPath.invoke( source, new Object[0] ), toPath.invoke( target, new Object[0] ), options } );
+            return true;
+        }
+        catch ( Exception e )
+        {
+            // not available or failed, fall back to renaming
+            return false;
+        }
+    }
+
+
+    /**
+     * Imports the configuration files of the file persistence manager into
+     * a new journal, which only replaces the (non-existing) journal once all
+     * configurations have been imported.
+     */
+    private void migrate( final FilePersistenceManager fpm ) throws IOException
+    {
+        final File tmpFile = new File( journalFile.getPath() + TMP_EXT );
+        final RandomAccessFile out = new RandomAccessFile( tmpFile, "rw" );
+        try
+        {
+            out.setLength( 0 );
+
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream( buf );
+            dos.writeInt( MAGIC );
+            dos.writeInt( VERSION );
+
+            final Enumeration configs = fpm.getDictionaries();
+            while ( configs.hasMoreElements() )
+            {
+                final Dictionary config = ( Dictionary ) configs.nextElement();
+                final String pid = ( String ) config.get( Constants.SERVICE_PID );
+                if ( pid != null )
+                {
+                    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    ConfigurationHandler.write( data, config );
+                    new Record( TYPE_STORE, pid, data.toByteArray() ).writeTo( buf );
+                }
+            }
+
+            // the dynamic bindings are not found by the enumeration as their
+            // name does not match their (missing) service.pid
+            final String bindings = DynamicBindings.BINDINGS_FILE_NAME;
+            if ( fpm.exists( bindings ) )
+            {
+                final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                ConfigurationHandler.write( data, fpm.load( bindings ) );
+                new Record( TYPE_STORE, bindings, data.toByteArray() ).writeTo( buf );
+            }
+
+            out.write( buf.toByteArray() );
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ( !tmpFile.renameTo( journalFile ) )
+        {
+            tmpFile.delete();
+            throw new IOException( "Failed to rename journal from '" + tmpFile + "' to '" + journalFile + "'" );
+        }
+    }
+
+
+    private Object doPrivileged( final PrivilegedExceptionAction action ) throws IOException
+    {
+        if ( System.getSecurityManager() == null )
+        {
+            try
+            {
+                return action.run();
+            }
+            catch ( IOException ioe )
+            {
+                throw ioe;
+            }
+            catch ( RuntimeException re )
+            {
+                throw re;
+            }
+            catch ( Exception e )
+            {
+                // cannot happen, the actions only throw IOException
+                throw new IllegalStateException( e.toString() );
+            }
+        }
+
+        try
+        {
+            return AccessController.doPrivileged( action, acc );
+        }
+        catch ( PrivilegedActionException pae )
+        {
+            // FELIX-2771: getCause() is not available in Foundation
+            throw ( IOException ) pae.getException();
+        }
+    }
+
+    /**
+     * The position of the current record of a configuration in the journal.
+     * Entries are ordered by their position.
+     */
+    private static final class Entry implements Comparable
+    {
+        /** The position of the record */
+        final long offset;
+
+        /** The position of the configuration data */
+        final long dataOffset;
+
+        /** The size of the configuration data */
+        final int dataLength;
+
+        /** The size of the record */
+        final int size;
+
+
+        Entry( final long offset, final long dataOffset, final int dataLength, final int size )
+        {
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.size = size;
+        }
+
+
+        public int compareTo( final Object obj )
+        {
+            final long other = ( ( Entry ) obj ).offset;
+            return ( offset < other ) ? -1 : ( ( offset == other ) ? 0 : 1 );
+        }
+    }
+
+    /**
+     * A record of the journal. The record is written as follows:
+     * <pre>
+     * int    the size of the record body
+     * byte   the record type
+     * UTF    the PID
+     * byte[] the configuration data (stored configurations only) or
+     *        the number of records of a batch as an int (batch records only)
+     * int    the CRC32 checksum of the record body
+     * </pre>
+     */
+    private static final class Record
+    {
+        final byte type;
+
+        final String pid;
+
+        final byte[] data;
+
+        /** The record body, encoded lazily */
+        private byte[] body;
+
+        /** Whether the record has been processed by a flush */
+        volatile boolean done;
+
+        /** The failure writing the record */
+        volatile IOException failure;
+
+
+        Record( final byte type, final String pid, final byte[] data )
+        {
+            this.type = type;
+            this.pid = pid;
+            this.data = data;
+        }
+
+
+        /**
+         * Returns a record starting a batch of the given number of records.
+         */
+        static Record batch( final int count )
+        {
+            return new Record( TYPE_BATCH, "", new byte[]
+                { ( byte ) ( count >>> 24 ), ( byte ) ( count >>> 16 ), ( byte ) ( count >>> 8 ), ( byte ) count } );
+        }
+
+
+        /**
+         * Returns the size of the record in the journal.
+         */
+        int getSize()
+        {
+            return 4 + getBody().length + 4;
+        }
+
+
+        /**
+         * Returns the number of records of a batch record.
+         */
+        int getCount()
+        {
+            return ( ( data[0] & 0xff ) << 24 ) | ( ( data[1] & 0xff ) << 16 ) | ( ( data[2] & 0xff ) << 8 )
+                | ( data[3] & 0xff );
+        }
+
+
+        /**
+         * Returns the position of the configuration data within the record.
+         */
+        int getDataOffset()
+        {
+            return 4 + getBody().length - data.length;
+        }
+
+
+        void writeTo( final ByteArrayOutputStream out ) throws IOException
+        {
+            final byte[] body = getBody();
+            final CRC32 crc = new CRC32();
+            crc.update( body );
+
+            final DataOutputStream dos = new DataOutputStream( out );
+            dos.writeInt( body.length );
+            dos.write( body );
+            dos.writeInt( ( int ) crc.getValue() );
+            dos.flush();
+        }
+
+
+        private byte[] getBody()
+        {
+            if ( body == null )
+            {
+                try
+                {
+                    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    final DataOutputStream dos = new DataOutputStream( buf );
+                    dos.writeByte( type );
+                    dos.writeUTF( pid );
+                    if ( data != null )
+                    {
+                        dos.write( data );
+                    }
+                    dos.flush();
+                    body = buf.toByteArray();
+                }
+                catch ( IOException ioe )
+                {
+                    // cannot happen writing to a byte array
+                    throw new IllegalStateException( ioe.toString() );
+                }
+            }
+            return body;
+        }
+
+
+        /**
+         * Reads the next record or returns <code>null</code> at the end of the
+         * journal or if the next record is incomplete or its checksum does
+         * not match.
+         *
+         * @param remaining The number of bytes left in the journal
+         * @throws IOException If the record has a valid checksum but an
+         *      unknown type.
+         */
+        static Record readFrom( final DataInputStream in, final long remaining ) throws IOException
+        {
+            try
+            {
+                final int size = in.readInt();
+                if ( size < 3 || size > remaining - 8 )
+                {
+                    return null;
+                }
+                final byte[] body = new byte[size];
+                in.readFully( body );
+                final int checksum = in.readInt();
+
+                final CRC32 crc = new CRC32();
+                crc.update( body );
+                if ( checksum != ( int ) crc.getValue() )
+                {
+                    return null;
+                }
+
+                final DataInputStream bin = new DataInputStream( new ByteArrayInputStream( body ) );
+                final byte type = bin.readByte();
+                final String pid = bin.readUTF();
+                final byte[] data;
+                if ( type == TYPE_STORE || ( type == TYPE_BATCH && bin.available() == 4 ) )
+                {
+                    data = new byte[bin.available()];
+                    bin.readFully( data );
+                }
+                else if ( type == TYPE_DELETE )
+                {
+                    data = null;
+                }
+                else
+                {
+                    throw new IOException( "Unknown journal record type " + type );
+                }
+
+                final Record record = new Record( type, pid, data );
+                record.body = body;
+                return record;
+            }
+            catch ( EOFException eofe )
+            {
+                return null;
+            }
+        }
+    }
+}
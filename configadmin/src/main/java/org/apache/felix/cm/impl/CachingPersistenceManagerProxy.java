@@ -20,13 +20,25 @@ package org.apache.felix.cm.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.felix.cm.BatchPersistenceManager;
 import org.apache.felix.cm.PersistenceManager;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.service.cm.ConfigurationAdmin;
 
 
 /**
@@ -34,15 +46,47 @@ import org.osgi.framework.Constants;
  * underlying actual {@link PersistenceManager} implementation. All API calls
  * are also (or primarily) routed through a local cache of dictionaries indexed
  * by the <code>service.pid</code>.
+ * <p>
+ * The cached dictionaries are additionally indexed by the values of the
+ * <code>service.pid</code>, <code>service.factoryPid</code> and
+ * <code>service.bundleLocation</code> properties and of any configured
+ * additional properties. {@link #getDictionaries(Filter)} uses this index
+ * to only match filters requiring one of these properties to be equal to a
+ * value against the dictionaries having this value.
+ * <p>
+ * The cached dictionaries are {@link CopyOnWriteDictionary} instances, which
+ * are never modified. Callers get dictionaries sharing the entries of the
+ * cached dictionaries, which are only copied if a caller modifies its
+ * dictionary. The cache itself is a concurrent map such that loading a
+ * cached dictionary does not lock.
  */
-class CachingPersistenceManagerProxy implements PersistenceManager
+class CachingPersistenceManagerProxy implements BatchPersistenceManager
 {
 
     /** the actual PersistenceManager */
     private final PersistenceManager pm;
 
+    /** the properties always indexed */
+    private static final String[] DEFAULT_INDEXED_PROPERTIES =
+        { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID, ConfigurationAdmin.SERVICE_BUNDLELOCATION };
+
     /** cached dictionaries */
-    private final Hashtable cache;
+    private final ConcurrentHashMap<String, CopyOnWriteDictionary> cache;
+
+    /**
+     * The index of the cached dictionaries: maps the lower case names of the
+     * indexed properties to maps of the string values of the property to the
+     * PIDs of the dictionaries having this value.
+     */
+    private final Map<String, Map<String, Set<String>>> index = new HashMap<String, Map<String, Set<String>>>();
+
+    /**
+     * Maps the lower case names of the indexed properties to the PIDs of the
+     * dictionaries with non-string values of the property. These cannot be
+     * indexed because a filter might match them with a value given in a
+     * different string representation.
+     */
+    private final Map<String, Set<String>> unindexed = new HashMap<String, Set<String>>();
 
     /**
      * Indicates whether the getDictionaries method has already been called
@@ -57,9 +101,44 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      * @param pm The actual {@link PersistenceManager}
      */
     public CachingPersistenceManagerProxy( final PersistenceManager pm )
+    {
+        this( pm, null );
+    }
+
+
+    /**
+     * Creates a new caching layer for the given actual {@link PersistenceManager}
+     * indexing the cached dictionaries by the given properties in addition to
+     * the <code>service.pid</code>, <code>service.factoryPid</code> and
+     * <code>service.bundleLocation</code> properties.
+     * @param pm The actual {@link PersistenceManager}
+     * @param indexedProperties The names of the additional properties to
+     *      index, may be <code>null</code>
+     */
+    public CachingPersistenceManagerProxy( final PersistenceManager pm, final String[] indexedProperties )
     {
         this.pm = pm;
-        this.cache = new Hashtable();
+        this.cache = new ConcurrentHashMap<String, CopyOnWriteDictionary>();
+
+        addIndex( DEFAULT_INDEXED_PROPERTIES );
+        if ( indexedProperties != null )
+        {
+            addIndex( indexedProperties );
+        }
+    }
+
+
+    private void addIndex( final String[] properties )
+    {
+        for ( int i = 0; i < properties.length; i++ )
+        {
+            final String key = properties[i].toLowerCase();
+            if ( !index.containsKey( key ) )
+            {
+                index.put( key, new HashMap<String, Set<String>>() );
+                unindexed.put( key, new HashSet<String>() );
+            }
+        }
     }
 
 
@@ -70,7 +149,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public void delete( String pid ) throws IOException
     {
-        cache.remove( pid );
+        uncache( pid );
         pm.delete( pid );
     }
 
@@ -94,46 +173,73 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      * <p>
      * Note, that each call to this method will return new dictionary objects.
      * That is modifying the contents of a dictionary returned from this method
-     * has no influence on the dictionaries stored in the cache.
+     * has no influence on the dictionaries stored in the cache. The entries
+     * of the dictionaries are only copied when they are modified.
      */
     public Enumeration getDictionaries() throws IOException
     {
-        // if not fully loaded, call back to the underlying persistence
-        // manager and cach all dictionaries whose service.pid is set
-        if ( !fullyLoaded )
-        {
-            Enumeration fromPm = pm.getDictionaries();
-            while ( fromPm.hasMoreElements() )
-            {
-                Dictionary next = ( Dictionary ) fromPm.nextElement();
-                String pid = ( String ) next.get( Constants.SERVICE_PID );
-                if ( pid != null )
-                {
-                    cache.put( pid, next );
-                }
-            }
-            fullyLoaded = true;
-        }
+        loadAll();
 
         return new Enumeration()
         {
-            final Enumeration base = cache.elements();
+            final Iterator<CopyOnWriteDictionary> base = cache.values().iterator();
 
 
             public boolean hasMoreElements()
             {
-                return base.hasMoreElements();
+                return base.hasNext();
             }
 
 
             public Object nextElement()
             {
-                return copy( ( Dictionary ) base.nextElement() );
+                return base.next().share();
             }
         };
     }
 
 
+    /**
+     * Returns an <code>Enumeration</code> of copies of the
+     * <code>Dictionary</code> objects matching the given filter. If the filter
+     * is <code>null</code> all dictionaries are returned like
+     * {@link #getDictionaries()} does.
+     * <p>
+     * If the filter requires an indexed property to be equal to a value, only
+     * the dictionaries with this value are matched against the filter. Like
+     * with {@link #getDictionaries()} the returned dictionaries share their
+     * entries with the cached dictionaries until they are modified.
+     */
+    public Enumeration getDictionaries( final Filter filter ) throws IOException
+    {
+        if ( filter == null )
+        {
+            return getDictionaries();
+        }
+
+        loadAll();
+
+        final List result = new ArrayList();
+        synchronized ( this )
+        {
+            final Collection pids = getCandidates( filter.toString() );
+            final Iterator candidates = ( pids == null ) ? cache.values().iterator() : pids.iterator();
+            while ( candidates.hasNext() )
+            {
+                final Object candidate = candidates.next();
+                final CopyOnWriteDictionary dict = ( CopyOnWriteDictionary ) ( ( pids == null ) ? candidate : cache
+                    .get( candidate ) );
+                if ( dict != null && filter.match( dict ) )
+                {
+                    result.add( dict.share() );
+                }
+            }
+        }
+
+        return Collections.enumeration( result );
+    }
+
+
     /**
      * Returns the dictionary for the given PID or <code>null</code> if no
      * such dictionary is stored by the underyling persistence manager. This
@@ -142,20 +248,22 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      * <p>
      * Note, that each call to this method will return new dictionary instance.
      * That is modifying the contents of a dictionary returned from this method
-     * has no influence on the dictionaries stored in the cache.
+     * has no influence on the dictionaries stored in the cache. The entries
+     * of the dictionary are only copied when it is modified.
      */
     public Dictionary load( String pid ) throws IOException
     {
-        Dictionary loaded = ( Dictionary ) cache.get( pid );
+        CopyOnWriteDictionary loaded = cache.get( pid );
         if ( loaded == null )
         {
-            loaded = pm.load( pid );
-            if ( loaded != null )
+            final Dictionary props = pm.load( pid );
+            if ( props == null )
             {
-                cache.put( pid, loaded );
+                return null;
             }
+            loaded = cache( pid, props );
         }
-        return copy( loaded );
+        return loaded.share();
     }
 
 
@@ -166,36 +274,335 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      * <p>
      * Note, that actually a copy of the dictionary is stored in the cache. That
      * is subsequent modification to the given dictionary has no influence on
-     * the cached data.
+     * the cached data. If the dictionary has been returned by this proxy and
+     * not been modified, its entries are not copied but shared.
      */
     public void store( String pid, Dictionary properties ) throws IOException
     {
         pm.store( pid, properties );
-        cache.put( pid, copy( properties ) );
+        cache( pid, properties );
     }
 
 
     /**
-     * Creates and returns a copy of the given dictionary. This method simply
-     * copies all entries from the source dictionary to the newly created
-     * target.
+     * Stores and deletes the dictionaries in the underlying persistence
+     * manager and then updates the cache. If the underlying persistence
+     * manager is a {@link BatchPersistenceManager} the changes are persisted
+     * atomically. Otherwise the dictionaries are stored and deleted one by
+     * one.
      */
-    Dictionary copy( final Dictionary source )
+    public void apply( final Map<String, Dictionary> stored, final Collection<String> deleted ) throws IOException
     {
-        Hashtable copy = new Hashtable();
-        if ( source instanceof Map )
+        if ( pm instanceof BatchPersistenceManager )
         {
-            copy.putAll( ( Map ) source );
+            ( ( BatchPersistenceManager ) pm ).apply( stored, deleted );
         }
         else
         {
-            Enumeration keys = source.keys();
-            while ( keys.hasMoreElements() )
+            for ( Iterator<Map.Entry<String, Dictionary>> si = stored.entrySet().iterator(); si.hasNext(); )
+            {
+                final Map.Entry<String, Dictionary> entry = si.next();
+                pm.store( entry.getKey(), entry.getValue() );
+            }
+            for ( Iterator<String> di = deleted.iterator(); di.hasNext(); )
+            {
+                pm.delete( di.next() );
+            }
+        }
+
+        for ( Iterator<Map.Entry<String, Dictionary>> si = stored.entrySet().iterator(); si.hasNext(); )
+        {
+            final Map.Entry<String, Dictionary> entry = si.next();
+            cache( entry.getKey(), entry.getValue() );
+        }
+        for ( Iterator<String> di = deleted.iterator(); di.hasNext(); )
+        {
+            uncache( di.next() );
+        }
+    }
+
+
+    /**
+     * Loads all dictionaries from the underlying persistence manager into the
+     * cache unless this has already been done.
+     */
+    private void loadAll() throws IOException
+    {
+        // if not fully loaded, call back to the underlying persistence
+        // manager and cach all dictionaries whose service.pid is set
+        if ( !fullyLoaded )
+        {
+            Enumeration fromPm = pm.getDictionaries();
+            while ( fromPm.hasMoreElements() )
             {
-                Object key = keys.nextElement();
-                copy.put( key, source.get( key ) );
+                Dictionary next = ( Dictionary ) fromPm.nextElement();
+                String pid = ( String ) next.get( Constants.SERVICE_PID );
+                if ( pid != null )
+                {
+                    cache( pid, next );
+                }
             }
+            fullyLoaded = true;
+        }
+    }
+
+
+    /**
+     * Puts a copy of the dictionary into the cache, updates the index and
+     * returns the cached copy.
+     */
+    private synchronized CopyOnWriteDictionary cache( final String pid, final Dictionary props )
+    {
+        // the cached dictionary is shared from the start: it is never modified
+        final CopyOnWriteDictionary dict = new CopyOnWriteDictionary( props ).share();
+        final Dictionary old = cache.put( pid, dict );
+        if ( old != null )
+        {
+            updateIndex( pid, old, false );
         }
-        return copy;
+        updateIndex( pid, dict, true );
+        return dict;
+    }
+
+
+    /**
+     * Removes the dictionary from the cache and the index.
+     */
+    private synchronized void uncache( final String pid )
+    {
+        final Dictionary old = cache.remove( pid );
+        if ( old != null )
+        {
+            updateIndex( pid, old, false );
+        }
+    }
+
+
+    private void updateIndex( final String pid, final Dictionary dict, final boolean add )
+    {
+        for ( Iterator<Map.Entry<String, Map<String, Set<String>>>> ei = index.entrySet().iterator(); ei.hasNext(); )
+        {
+            final Map.Entry<String, Map<String, Set<String>>> entry = ei.next();
+            final Object value = getProperty( dict, entry.getKey() );
+            if ( value == null )
+            {
+                continue;
+            }
+
+            final Collection values;
+            if ( value instanceof Object[] )
+            {
+                values = Arrays.asList( ( Object[] ) value );
+            }
+            else if ( value instanceof Collection )
+            {
+                values = ( Collection ) value;
+            }
+            else
+            {
+                values = Collections.singleton( value );
+            }
+
+            for ( Iterator vi = values.iterator(); vi.hasNext(); )
+            {
+                final Object v = vi.next();
+                final Set<String> pids;
+                if ( v instanceof String )
+                {
+                    Set<String> valuePids = entry.getValue().get( v );
+                    if ( valuePids == null )
+                    {
+                        if ( !add )
+                        {
+                            continue;
+                        }
+                        valuePids = new HashSet<String>();
+                        entry.getValue().put( ( String ) v, valuePids );
+                    }
+                    pids = valuePids;
+                }
+                else
+                {
+                    pids = unindexed.get( entry.getKey() );
+                }
+
+                if ( add )
+                {
+                    pids.add( pid );
+                }
+                else
+                {
+                    pids.remove( pid );
+                    if ( pids.isEmpty() && v instanceof String )
+                    {
+                        entry.getValue().remove( v );
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the value of the property whose name equals the given lower
+     * case name ignoring case.
+     */
+    private static Object getProperty( final Dictionary dict, final String lowerCaseName )
+    {
+        final Object value = dict.get( lowerCaseName );
+        if ( value != null )
+        {
+            return value;
+        }
+
+        for ( Enumeration keys = dict.keys(); keys.hasMoreElements(); )
+        {
+            final Object key = keys.nextElement();
+            if ( key instanceof String && lowerCaseName.equalsIgnoreCase( ( String ) key ) )
+            {
+                return dict.get( key );
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Returns the PIDs of the dictionaries which may match the filter or
+     * <code>null</code> if the filter does not require any indexed property
+     * to be equal to a value. Only equality terms of the filter itself or
+     * of a top level <code>&amp;</code> filter are considered; of these the
+     * one with the least dictionaries is used.
+     */
+    private Collection getCandidates( final String filter )
+    {
+        final List<String[]> terms = new ArrayList<String[]>();
+        if ( filter.startsWith( "(&" ) && filter.endsWith( ")" ) )
+        {
+            int pos = 2;
+            while ( pos < filter.length() - 1 && filter.charAt( pos ) == '(' )
+            {
+                final int end = getEnd( filter, pos );
+                if ( end < 0 )
+                {
+                    return null;
+                }
+                addEqualityTerm( filter.substring( pos, end + 1 ), terms );
+                pos = end + 1;
+            }
+        }
+        else
+        {
+            addEqualityTerm( filter, terms );
+        }
+
+        Set<String> candidates = null;
+        Set<String> unindexedCandidates = null;
+        for ( int i = 0; i < terms.size(); i++ )
+        {
+            final String[] term = terms.get( i );
+            final Map<String, Set<String>> values = index.get( term[0] );
+            if ( values != null )
+            {
+                Set<String> pids = values.get( term[1] );
+                if ( pids == null )
+                {
+                    pids = Collections.emptySet();
+                }
+                final Set<String> others = unindexed.get( term[0] );
+                if ( candidates == null || pids.size() + others.size() < candidates.size() + unindexedCandidates.size() )
+                {
+                    candidates = pids;
+                    unindexedCandidates = others;
+                }
+            }
+        }
+
+        if ( candidates == null )
+        {
+            return null;
+        }
+        if ( unindexedCandidates.isEmpty() )
+        {
+            return candidates;
+        }
+        final Set<String> result = new HashSet<String>( candidates );
+        result.addAll( unindexedCandidates );
+        return result;
+    }
+
+
+    /**
+     * Returns the index of the parenthesis closing the filter component
+     * starting at the given index or -1 if the filter is malformed.
+     */
+    private static int getEnd( final String filter, final int start )
+    {
+        int depth = 0;
+        for ( int i = start; i < filter.length(); i++ )
+        {
+            final char c = filter.charAt( i );
+            if ( c == '\\' )
+            {
+                i++;
+            }
+            else if ( c == '(' )
+            {
+                depth++;
+            }
+            else if ( c == ')' && --depth == 0 )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Adds the lower case attribute name and the unescaped value of the
+     * filter component to the terms if the component is an equality
+     * comparison of an attribute with a value without wildcards.
+     */
+    private static void addEqualityTerm( final String component, final List<String[]> terms )
+    {
+        if ( component.length() < 4 || component.charAt( 0 ) != '(' || component.charAt( component.length() - 1 ) != ')' )
+        {
+            return;
+        }
+
+        final int eq = component.indexOf( '=' );
+        if ( eq < 2 || "~<>&|!(".indexOf( component.charAt( 1 ) ) >= 0
+            || "~<>".indexOf( component.charAt( eq - 1 ) ) >= 0 )
+        {
+            return;
+        }
+
+        final String attr = component.substring( 1, eq ).trim();
+        final StringBuffer value = new StringBuffer();
+        for ( int i = eq + 1; i < component.length() - 1; i++ )
+        {
+            char c = component.charAt( i );
+            if ( c == '*' || c == '(' || c == ')' )
+            {
+                // substring or presence filter
+                return;
+            }
+            if ( c == '\\' )
+            {
+                c = component.charAt( ++i );
+            }
+            value.append( c );
+        }
+
+        // whitespace might be ignored when matching
+        if ( value.length() == 0 || Character.isWhitespace( value.charAt( 0 ) )
+            || Character.isWhitespace( value.charAt( value.length() - 1 ) ) )
+        {
+            return;
+        }
+
+        terms.add( new String[]
+            { attr.toLowerCase(), value.toString() } );
     }
 }
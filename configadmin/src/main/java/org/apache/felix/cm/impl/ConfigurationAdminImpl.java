@@ -20,10 +20,12 @@ package org.apache.felix.cm.impl;
 
 
 import java.io.IOException;
+
+import org.apache.felix.cm.BatchConfigurationAdmin;
+import org.apache.felix.cm.ConfigurationBatch;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.Configuration;
-import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.cm.ConfigurationPermission;
 import org.osgi.service.log.LogService;
 
@@ -34,7 +36,7 @@ import org.osgi.service.log.LogService;
  * each bundle trying to get hold of the <code>ConfigurationAdmin</code>
  * service.
  */
-public class ConfigurationAdminImpl implements ConfigurationAdmin
+public class ConfigurationAdminImpl implements BatchConfigurationAdmin
 {
 
     // The configuration manager to which most of the tasks are delegated
@@ -182,6 +184,19 @@ public class ConfigurationAdminImpl implements ConfigurationAdmin
     }
 
 
+    //---------- BatchConfigurationAdmin interface ----------------------------
+
+    /* (non-Javadoc)
+     * @see org.apache.felix.cm.BatchConfigurationAdmin#createBatch()
+     */
+    public ConfigurationBatch createBatch()
+    {
+        configurationManager.log( LogService.LOG_DEBUG, "createBatch()", ( Throwable ) null );
+
+        return new ConfigurationBatchImpl( this, configurationManager );
+    }
+
+
     //---------- Security checks ----------------------------------------------
 
     private Configuration wrap( ConfigurationImpl configuration )
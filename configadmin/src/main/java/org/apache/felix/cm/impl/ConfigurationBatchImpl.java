@@ -0,0 +1,391 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.cm.BatchPersistenceManager;
+import org.apache.felix.cm.ConfigurationBatch;
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>ConfigurationBatchImpl</code> collects the changes of a
+ * {@link ConfigurationBatch} and commits them in three steps: first the
+ * permissions are checked and the dictionaries to persist are prepared
+ * without changing anything, then the changes are persisted with one call
+ * to the single persistence manager involved and finally the configurations
+ * and factories are changed and the events and updates are scheduled.
+ */
+class ConfigurationBatchImpl implements ConfigurationBatch
+{
+
+    // The configuration admin on whose behalf the batch is committed
+    private final ConfigurationAdminImpl configurationAdmin;
+
+    // The configuration manager to which the changes are applied
+    private final ConfigurationManager configurationManager;
+
+    // The changes by PID in the order of their first change
+    private final Map<String, Change> changes = new LinkedHashMap<String, Change>();
+
+    // Whether the batch has been committed already
+    private boolean committed;
+
+
+    ConfigurationBatchImpl( ConfigurationAdminImpl configurationAdmin, ConfigurationManager configurationManager )
+    {
+        this.configurationAdmin = configurationAdmin;
+        this.configurationManager = configurationManager;
+    }
+
+
+    //---------- ConfigurationBatch interface ---------------------------------
+
+    public void update( String pid, Dictionary properties )
+    {
+        checkCommitted();
+
+        // keep the factory PID of a configuration created in this batch
+        final Change previous = changes.get( pid );
+        final String factoryPid = ( previous == null ) ? null : previous.factoryPid;
+        changes.put( pid, new Change( factoryPid, new CaseInsensitiveDictionary( properties ) ) );
+    }
+
+
+    public String createFactoryConfiguration( String factoryPid, Dictionary properties )
+    {
+        checkCommitted();
+
+        final String pid = ConfigurationManager.createPid( factoryPid );
+        changes.put( pid, new Change( factoryPid, new CaseInsensitiveDictionary( properties ) ) );
+        return pid;
+    }
+
+
+    public void delete( String pid )
+    {
+        checkCommitted();
+
+        final Change previous = changes.get( pid );
+        if ( previous != null && previous.factoryPid != null )
+        {
+            // created in this batch, so there is nothing to delete
+            changes.remove( pid );
+        }
+        else
+        {
+            changes.put( pid, Change.DELETE );
+        }
+    }
+
+
+    public void commit() throws IOException
+    {
+        checkCommitted();
+
+        if ( !configurationManager.isActive() )
+        {
+            throw new IllegalStateException( "Configuration Admin Service is not active" );
+        }
+
+        configurationManager.log( LogService.LOG_DEBUG, "Committing batch with {0} changes", new Object[]
+            { new Integer( changes.size() ) } );
+
+        // prepare the changes without modifying anything
+        final List<Prepared> updates = new ArrayList<Prepared>();
+        final List<ConfigurationImpl> deletes = new ArrayList<ConfigurationImpl>();
+        final Map<String, FactoryChange> factoryChanges = new LinkedHashMap<String, FactoryChange>();
+        final Map<PersistenceManager, Map<String, Dictionary>> stored = new IdentityHashMap<PersistenceManager, Map<String, Dictionary>>();
+        final Map<PersistenceManager, Collection<String>> deleted = new IdentityHashMap<PersistenceManager, Collection<String>>();
+
+        for ( Map.Entry<String, Change> entry : changes.entrySet() )
+        {
+            final String pid = entry.getKey();
+            final Change change = entry.getValue();
+
+            ConfigurationImpl config = ( change.factoryPid == null ) ? configurationManager.getConfiguration( pid )
+                : null;
+            if ( change.properties == null )
+            {
+                if ( config != null )
+                {
+                    checkPermission( config );
+                    getDeleted( deleted, config.getPersistenceManager() ).add( pid );
+                    addFactoryChange( factoryChanges, config.getFactoryPidString(), pid, false );
+                    deletes.add( config );
+                }
+                continue;
+            }
+
+            final boolean created = ( config == null );
+            if ( created )
+            {
+                // CM 1.4 / 104.13.2.3
+                configurationAdmin.checkPermission( "*" );
+                config = configurationManager.createBatchConfiguration( pid, change.factoryPid );
+            }
+            else
+            {
+                checkPermission( config );
+            }
+
+            // each configuration gets its own copy as the auto properties
+            // are removed again when the configuration is assigned
+            final CaseInsensitiveDictionary properties = new CaseInsensitiveDictionary( change.properties, false );
+            config.setAutoProperties( properties, true );
+            getStored( stored, config.getPersistenceManager() ).put( pid, properties );
+            addFactoryChange( factoryChanges, config.getFactoryPidString(), pid, true );
+            updates.add( new Prepared( config, properties, created ) );
+        }
+
+        // prepare the factories whose set of PIDs changes; new factories
+        // are only cached once the batch has been persisted
+        final List<Factory> factories = new ArrayList<Factory>();
+        final Set<Factory> createdFactories = new HashSet<Factory>();
+        for ( Map.Entry<String, FactoryChange> entry : factoryChanges.entrySet() )
+        {
+            Factory factory = configurationManager.getFactory( entry.getKey() );
+            if ( factory == null )
+            {
+                factory = configurationManager.createBatchFactory( entry.getKey() );
+                createdFactories.add( factory );
+            }
+            final FactoryChange change = entry.getValue();
+            final Set pids = factory.getPIDs();
+            if ( pids.addAll( change.added ) | pids.removeAll( change.removed ) )
+            {
+                final Dictionary props = factory.getProperties( pids );
+                if ( props == null )
+                {
+                    getDeleted( deleted, factory.getPersistenceManager() ).add( factory.getIdentifier() );
+                }
+                else
+                {
+                    getStored( stored, factory.getPersistenceManager() ).put( factory.getIdentifier(), props );
+                }
+                factories.add( factory );
+            }
+        }
+
+        // persist the changes; this is only atomic if a single persistence
+        // manager is involved, as otherwise a failure of a later persistence
+        // manager would leave the changes of the earlier ones persisted
+        final Set<PersistenceManager> persistenceManagers = new HashSet<PersistenceManager>( stored.keySet() );
+        persistenceManagers.addAll( deleted.keySet() );
+        if ( persistenceManagers.size() > 1 )
+        {
+            throw new IOException( "Batch changes configurations of " + persistenceManagers.size()
+                + " persistence managers; only changes of a single persistence manager can be committed atomically" );
+        }
+        for ( PersistenceManager pm : persistenceManagers )
+        {
+            apply( pm, getStored( stored, pm ), getDeleted( deleted, pm ) );
+        }
+
+        // the batch may be committed again until it has been persisted
+        committed = true;
+
+        // finally apply the persisted changes
+        for ( Factory factory : factories )
+        {
+            if ( createdFactories.contains( factory ) )
+            {
+                factory = configurationManager.cacheBatchFactory( factory );
+            }
+            final FactoryChange change = factoryChanges.get( factory.getFactoryPidString() );
+            for ( String pid : change.added )
+            {
+                factory.addPID( pid );
+            }
+            for ( String pid : change.removed )
+            {
+                factory.removePID( pid );
+            }
+        }
+
+        for ( Prepared update : updates )
+        {
+            // assign the properties before caching a new configuration
+            // such that it is never visible without properties
+            update.config.committed( update.properties );
+            if ( update.created )
+            {
+                configurationManager.cacheConfiguration( update.config );
+            }
+            configurationManager.updated( update.config, true );
+        }
+
+        for ( ConfigurationImpl config : deletes )
+        {
+            config.deleteCommitted();
+        }
+    }
+
+
+    //---------- internal ------------------------------------------------------
+
+    private void checkCommitted()
+    {
+        if ( committed )
+        {
+            throw new IllegalStateException( "Batch has already been committed" );
+        }
+    }
+
+
+    private void checkPermission( ConfigurationImpl config )
+    {
+        // CM 1.4 / 104.13.2.3
+        final String location = config.getBundleLocation();
+        configurationAdmin.checkPermission( ( location == null ) ? "*" : location );
+    }
+
+
+    private static void apply( PersistenceManager pm, Map<String, Dictionary> stored, Collection<String> deleted )
+        throws IOException
+    {
+        if ( pm instanceof BatchPersistenceManager )
+        {
+            ( ( BatchPersistenceManager ) pm ).apply( stored, deleted );
+        }
+        else
+        {
+            for ( Map.Entry<String, Dictionary> entry : stored.entrySet() )
+            {
+                pm.store( entry.getKey(), entry.getValue() );
+            }
+            for ( Iterator<String> pi = deleted.iterator(); pi.hasNext(); )
+            {
+                pm.delete( pi.next() );
+            }
+        }
+    }
+
+
+    private static Map<String, Dictionary> getStored( Map<PersistenceManager, Map<String, Dictionary>> stored,
+        PersistenceManager pm )
+    {
+        Map<String, Dictionary> pmStored = stored.get( pm );
+        if ( pmStored == null )
+        {
+            pmStored = new LinkedHashMap<String, Dictionary>();
+            stored.put( pm, pmStored );
+        }
+        return pmStored;
+    }
+
+
+    private static Collection<String> getDeleted( Map<PersistenceManager, Collection<String>> deleted,
+        PersistenceManager pm )
+    {
+        Collection<String> pmDeleted = deleted.get( pm );
+        if ( pmDeleted == null )
+        {
+            pmDeleted = new ArrayList<String>();
+            deleted.put( pm, pmDeleted );
+        }
+        return pmDeleted;
+    }
+
+
+    private static void addFactoryChange( Map<String, FactoryChange> factoryChanges, String factoryPid, String pid,
+        boolean added )
+    {
+        // plain configurations do not change any factory
+        if ( factoryPid == null )
+        {
+            return;
+        }
+
+        FactoryChange change = factoryChanges.get( factoryPid );
+        if ( change == null )
+        {
+            change = new FactoryChange();
+            factoryChanges.put( factoryPid, change );
+        }
+        ( added ? change.added : change.removed ).add( pid );
+    }
+
+    /**
+     * The <code>Change</code> class holds the pending change of a single
+     * configuration: either new properties or a deletion.
+     */
+    private static class Change
+    {
+        static final Change DELETE = new Change( null, null );
+
+        // the factory PID if the configuration is created by this batch
+        final String factoryPid;
+
+        // the new properties or null to delete the configuration
+        final CaseInsensitiveDictionary properties;
+
+
+        Change( String factoryPid, CaseInsensitiveDictionary properties )
+        {
+            this.factoryPid = factoryPid;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * The <code>Prepared</code> class holds a configuration update which
+     * is applied after the batch has been persisted.
+     */
+    private static class Prepared
+    {
+        final ConfigurationImpl config;
+
+        final CaseInsensitiveDictionary properties;
+
+        final boolean created;
+
+
+        Prepared( ConfigurationImpl config, CaseInsensitiveDictionary properties, boolean created )
+        {
+            this.config = config;
+            this.properties = properties;
+            this.created = created;
+        }
+    }
+
+    /**
+     * The <code>FactoryChange</code> class holds the PIDs added to and
+     * removed from a factory by the batch.
+     */
+    private static class FactoryChange
+    {
+        final Set<String> added = new HashSet<String>();
+
+        final Set<String> removed = new HashSet<String>();
+    }
+}
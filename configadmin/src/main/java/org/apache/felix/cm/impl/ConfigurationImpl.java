@@ -161,6 +161,13 @@ public class ConfigurationImpl extends ConfigurationBase
 
     ConfigurationImpl( ConfigurationManager configurationManager, PersistenceManager persistenceManager, String pid,
         String factoryPid, String bundleLocation ) throws IOException
+    {
+        this( configurationManager, persistenceManager, pid, factoryPid, bundleLocation, factoryPid == null );
+    }
+
+
+    ConfigurationImpl( ConfigurationManager configurationManager, PersistenceManager persistenceManager, String pid,
+        String factoryPid, String bundleLocation, boolean storeNew ) throws IOException
     {
         super( configurationManager, persistenceManager, pid );
 
@@ -176,9 +183,10 @@ public class ConfigurationImpl extends ConfigurationBase
         this.revision = 1;
 
         // this is a new configuration object, store immediately unless
-        // the new configuration object is created from a factory, in which
-        // case the configuration is only stored when first updated
-        if ( factoryPid == null )
+        // the new configuration object is created from a factory or for
+        // a batch, in which case the configuration is only stored when
+        // first updated
+        if ( storeNew )
         {
             storeNewConfiguration();
         }
@@ -401,6 +409,35 @@ public class ConfigurationImpl extends ConfigurationBase
     }
 
 
+    /**
+     * Assigns the properties of a committed {@link ConfigurationBatchImpl
+     * batch} to this configuration. The properties have already been
+     * persisted and the factory has already been updated by the batch,
+     * which also takes care of scheduling the update.
+     */
+    void committed( CaseInsensitiveDictionary properties )
+    {
+        getConfigurationManager().log( LogService.LOG_DEBUG, "Committing config {0} with {1}", new Object[]
+            { getPidString(), properties } );
+
+        configure( properties );
+    }
+
+
+    /**
+     * Marks this configuration deleted after its deletion has been
+     * committed by a {@link ConfigurationBatchImpl batch}. The
+     * configuration has already been removed from persistence and from
+     * the factory by the batch.
+     */
+    void deleteCommitted()
+    {
+        this.isDeleted = true;
+        getConfigurationManager().setDynamicBundleLocation( this.getPidString(), null );
+        getConfigurationManager().deleted( this );
+    }
+
+
     //---------- Object overwrites --------------------------------------------
 
     public boolean equals( Object obj )
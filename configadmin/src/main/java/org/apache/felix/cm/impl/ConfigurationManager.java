@@ -32,9 +32,12 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.StringTokenizer;
 
+import org.apache.felix.cm.BatchConfigurationAdmin;
 import org.apache.felix.cm.PersistenceManager;
 import org.apache.felix.cm.file.FilePersistenceManager;
+import org.apache.felix.cm.file.JournalPersistenceManager;
 import org.apache.felix.cm.impl.helper.BaseTracker;
 import org.apache.felix.cm.impl.helper.ConfigurationMap;
 import org.apache.felix.cm.impl.helper.ManagedServiceFactoryTracker;
@@ -90,6 +93,30 @@ import org.osgi.util.tracker.ServiceTracker;
  * this property is not set the <code>config</code> directory in the current
  * working directory as specified in the <code>user.dir</code> system property
  * is used.
+ * <p>
+ * The following framework properties are supported:
+ * <dl>
+ * <dt><code>felix.cm.dir</code></dt>
+ * <dd>The configuration directory, see {@link #CM_CONFIG_DIR}.</dd>
+ * <dt><code>felix.cm.pm</code></dt>
+ * <dd>The persistence manager registered by this bundle, see
+ * {@link #CM_PERSISTENCE_MANAGER}.</dd>
+ * <dt><code>felix.cm.loglevel</code></dt>
+ * <dd>The log level used in the absence of a LogService, see
+ * {@link #CM_LOG_LEVEL}.</dd>
+ * <dt><code>felix.cm.index</code></dt>
+ * <dd>Additional properties by which configurations are indexed, see
+ * {@link #CM_INDEXED_PROPERTIES}.</dd>
+ * <dt><code>felix.cm.update.threads</code></dt>
+ * <dd>The number of threads updating managed services, see
+ * {@link #CM_UPDATE_THREADS}. The default is 1, which delivers all updates
+ * one after the other; it must be raised for updates of different PIDs to
+ * be delivered concurrently.</dd>
+ * </dl>
+ * <p>
+ * The statistics of the update threads are published by a
+ * {@link StatusPrinter} registered as an Apache Felix Web Console
+ * configuration printer.
  */
 public class ConfigurationManager implements BundleActivator, BundleListener
 {
@@ -102,6 +129,24 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_CONFIG_DIR = "felix.cm.dir";
 
+    /**
+     * The name of the bundle context property selecting the persistence
+     * manager registered by the Configuration Admin Service (value is
+     * "felix.cm.pm"). If the value is {@link #CM_PERSISTENCE_MANAGER_JOURNAL}
+     * a {@link JournalPersistenceManager} is used, which imports the
+     * configuration files of the configuration directory when it is used
+     * for the first time. Otherwise a {@link FilePersistenceManager} is used.
+     * Both use the configuration directory set by the {@link #CM_CONFIG_DIR}
+     * property.
+     */
+    public static final String CM_PERSISTENCE_MANAGER = "felix.cm.pm";
+
+    /**
+     * The value of the {@link #CM_PERSISTENCE_MANAGER} property selecting the
+     * {@link JournalPersistenceManager} (value is "journal").
+     */
+    public static final String CM_PERSISTENCE_MANAGER_JOURNAL = "journal";
+
     /**
      * The name of the bundle context property defining the maximum log level
      * (value is "felix.cm.loglevel"). The log level setting is only used if
@@ -115,11 +160,44 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_LOG_LEVEL = "felix.cm.loglevel";
 
+    /**
+     * The name of the bundle context property defining additional
+     * configuration properties by which the configurations are indexed
+     * (value is "felix.cm.index"). The value is a comma separated list of
+     * property names.
+     * <p>
+     * The configurations are always indexed by the <code>service.pid</code>,
+     * <code>service.factoryPid</code> and <code>service.bundleLocation</code>
+     * properties. Listing configurations with a filter requiring an indexed
+     * property to be equal to a value only considers the configurations
+     * having this value instead of all configurations.
+     */
+    public static final String CM_INDEXED_PROPERTIES = "felix.cm.index";
+
+    /**
+     * The name of the bundle context property defining the number of threads
+     * updating <code>ManagedService</code> and
+     * <code>ManagedServiceFactory</code> services (value is
+     * "felix.cm.update.threads"). The default value is 1, such that all
+     * updates are provided one after the other by a single thread and a slow
+     * service delays the updates of all other services. Set this property to
+     * a higher number to provide updates for different PIDs concurrently.
+     * <p>
+     * Updates for the same service PID or factory PID are always provided in
+     * the order they have been scheduled, while updates for different PIDs
+     * may be provided concurrently if more than one thread is configured.
+     * Hence a <code>ManagedService</code> registered with more than one PID
+     * may be called concurrently for its different PIDs.
+     */
+    public static final String CM_UPDATE_THREADS = "felix.cm.update.threads";
+
     // The name of the LogService (not using the class, which might be missing)
     private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
 
     private static final int CM_LOG_LEVEL_DEFAULT = 2;
 
+    private static final int CM_UPDATE_THREADS_DEFAULT = 1;
+
     // random number generator to create configuration PIDs for factory
     // configurations
     private static Random numberGenerator;
@@ -130,9 +208,15 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // the service registration of the default file persistence manager
     private volatile ServiceRegistration filepmRegistration;
 
+    // the journal persistence manager if selected instead of the file persistence manager
+    private volatile JournalPersistenceManager journalPm;
+
     // the service registration of the configuration admin
     private volatile ServiceRegistration configurationAdminRegistration;
 
+    // the web console configuration printer publishing the update statistics
+    private volatile ServiceRegistration statusPrinterRegistration;
+
     // the ServiceTracker to emit log services (see log(int, String, Throwable))
     private ServiceTracker logTracker;
 
@@ -151,8 +235,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // PersistenceManager services
     private ServiceTracker persistenceManagerTracker;
 
-    // the thread used to schedule tasks required to run asynchronously
-    private UpdateThread updateThread;
+    // the threads used to schedule tasks required to run asynchronously
+    private UpdateDispatcher updateDispatcher;
 
     // the thread used to schedule events to be dispatched asynchronously
     private UpdateThread eventThread;
@@ -192,6 +276,9 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // the maximum log level when no LogService is available
     private int logLevel = CM_LOG_LEVEL_DEFAULT;
 
+    // the additional properties by which configurations are indexed
+    private String[] indexedProperties;
+
     // flag indicating whether BundleChange events should be consumed (FELIX-979)
     private volatile boolean handleBundleEvents;
 
@@ -222,6 +309,38 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             }
         }
 
+        // the additional indexed properties
+        String indexProp = bundleContext.getProperty( CM_INDEXED_PROPERTIES );
+        if ( indexProp != null )
+        {
+            List indexList = new ArrayList();
+            StringTokenizer tokener = new StringTokenizer( indexProp, "," );
+            while ( tokener.hasMoreTokens() )
+            {
+                String property = tokener.nextToken().trim();
+                if ( property.length() > 0 )
+                {
+                    indexList.add( property );
+                }
+            }
+            indexedProperties = ( String[] ) indexList.toArray( new String[indexList.size()] );
+        }
+
+        // the number of threads updating services
+        int updateThreads = CM_UPDATE_THREADS_DEFAULT;
+        String updateThreadsProp = bundleContext.getProperty( CM_UPDATE_THREADS );
+        if ( updateThreadsProp != null )
+        {
+            try
+            {
+                updateThreads = Integer.parseInt( updateThreadsProp );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // the property value is invalid - ignore
+            }
+        }
+
         // set up some fields
         this.bundleContext = bundleContext;
 
@@ -232,20 +351,41 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             SynchronousConfigurationListener.class.getName(), null );
         syncConfigurationListenerTracker.open();
 
-        // initialize the asynchonous updater thread
+        // initialize the asynchonous updater threads
         ThreadGroup tg = new ThreadGroup( "Configuration Admin Service" );
         tg.setDaemon( true );
-        this.updateThread = new UpdateThread( this, tg, "CM Configuration Updater" );
+        this.updateDispatcher = new UpdateDispatcher( this, tg, "CM Configuration Updater", updateThreads );
         this.eventThread = new UpdateThread( this, tg, "CM Event Dispatcher" );
 
         // set up the location (might throw IllegalArgumentException)
         try
         {
-            FilePersistenceManager fpm = new FilePersistenceManager( bundleContext, bundleContext
-                .getProperty( CM_CONFIG_DIR ) );
+            final PersistenceManager fpm;
+            final String description;
+            if ( CM_PERSISTENCE_MANAGER_JOURNAL.equals( bundleContext.getProperty( CM_PERSISTENCE_MANAGER ) ) )
+            {
+                try
+                {
+                    journalPm = new JournalPersistenceManager( bundleContext, bundleContext
+                        .getProperty( CM_CONFIG_DIR ) );
+                }
+                catch ( IOException ioe )
+                {
+                    IllegalArgumentException iae = new IllegalArgumentException( "Cannot open the journal: " + ioe );
+                    iae.initCause( ioe );
+                    throw iae;
+                }
+                fpm = journalPm;
+                description = "Platform Filesystem Journal Persistence Manager";
+            }
+            else
+            {
+                fpm = new FilePersistenceManager( bundleContext, bundleContext.getProperty( CM_CONFIG_DIR ) );
+                description = "Platform Filesystem Persistence Manager";
+            }
             Hashtable props = new Hashtable();
             props.put( Constants.SERVICE_PID, fpm.getClass().getName() );
-            props.put( Constants.SERVICE_DESCRIPTION, "Platform Filesystem Persistence Manager" );
+            props.put( Constants.SERVICE_DESCRIPTION, description );
             props.put( Constants.SERVICE_VENDOR, "Apache Software Foundation" );
             props.put( Constants.SERVICE_RANKING, new Integer( Integer.MIN_VALUE ) );
             filepmRegistration = bundleContext.registerService( PersistenceManager.class.getName(), fpm, props );
@@ -259,7 +399,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         }
         catch ( IllegalArgumentException iae )
         {
-            log( LogService.LOG_ERROR, "Cannot create the FilePersistenceManager", iae );
+            log( LogService.LOG_ERROR, "Cannot create the persistence manager", iae );
         }
 
         // register as bundle and service listener
@@ -281,7 +421,18 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         props.put( Constants.SERVICE_PID, "org.apache.felix.cm.ConfigurationAdmin" );
         props.put( Constants.SERVICE_DESCRIPTION, "Configuration Admin Service Specification 1.2 Implementation" );
         props.put( Constants.SERVICE_VENDOR, "Apache Software Foundation" );
-        configurationAdminRegistration = bundleContext.registerService( ConfigurationAdmin.class.getName(), caf, props );
+        configurationAdminRegistration = bundleContext.registerService( new String[]
+            { ConfigurationAdmin.class.getName(), BatchConfigurationAdmin.class.getName() }, caf, props );
+
+        // publish the update statistics
+        props = new Hashtable();
+        props.put( Constants.SERVICE_DESCRIPTION, "Configuration Admin Service Update Statistics" );
+        props.put( Constants.SERVICE_VENDOR, "Apache Software Foundation" );
+        props.put( "felix.webconsole.label", StatusPrinter.LABEL );
+        props.put( "felix.webconsole.title", StatusPrinter.TITLE );
+        props.put( "felix.webconsole.configprinter.modes", StatusPrinter.MODES );
+        statusPrinterRegistration = bundleContext.registerService( StatusPrinter.class.getName(),
+            new StatusPrinter( updateDispatcher ), props );
 
         // start handling ManagedService[Factory] services
         managedServiceTracker = new ManagedServiceTracker(this);
@@ -289,7 +440,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
         // start processing the event queues only after registering the service
         // see FELIX-2813 for details
-        this.updateThread.start();
+        this.updateDispatcher.start();
         this.eventThread.start();
     }
 
@@ -304,11 +455,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         managedServiceFactoryTracker.close();
         managedServiceTracker.close();
 
+        // stop publishing the update statistics
+        final ServiceRegistration spReg = statusPrinterRegistration;
+        statusPrinterRegistration = null;
+        if ( spReg != null )
+        {
+            spReg.unregister();
+        }
+
         // stop queue processing before unregistering the service
         // see FELIX-2813 for details
-        if ( updateThread != null )
+        if ( updateDispatcher != null )
         {
-            updateThread.terminate();
+            updateDispatcher.terminate();
         }
         if ( eventThread != null )
         {
@@ -340,6 +499,12 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         {
             filePmReg.unregister();
         }
+        final JournalPersistenceManager jpm = journalPm;
+        journalPm = null;
+        if ( jpm != null )
+        {
+            jpm.close();
+        }
 
         // stop listening for events
         bundleContext.removeBundleListener( this );
@@ -656,7 +821,16 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         PersistenceManager[] pmList = getPersistenceManagers();
         for ( int i = 0; i < pmList.length; i++ )
         {
-            Enumeration configs = pmList[i].getDictionaries();
+            // the caching proxy only returns (copies of) the matching dictionaries
+            Enumeration configs;
+            if ( pmList[i] instanceof CachingPersistenceManagerProxy )
+            {
+                configs = ( ( CachingPersistenceManagerProxy ) pmList[i] ).getDictionaries( filter );
+            }
+            else
+            {
+                configs = pmList[i].getDictionaries();
+            }
             while ( configs.hasMoreElements() )
             {
                 final Dictionary config = ( Dictionary ) configs.nextElement();
@@ -720,7 +894,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         // remove the configuration from the cache
         removeConfiguration( config );
         fireConfigurationEvent( ConfigurationEvent.CM_DELETED, config.getPidString(), config.getFactoryPidString() );
-        updateThread.schedule( new DeleteConfiguration( config ) );
+        updateDispatcher.schedule( getUpdateKey( config ), config.getPidString(), false,
+            new DeleteConfiguration( config ) );
         log( LogService.LOG_DEBUG, "DeleteConfiguration({0}) scheduled", new Object[]
             { config.getPid() } );
     }
@@ -732,7 +907,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         {
             fireConfigurationEvent( ConfigurationEvent.CM_UPDATED, config.getPidString(), config.getFactoryPidString() );
         }
-        updateThread.schedule( new UpdateConfiguration( config ) );
+        updateDispatcher.schedule( getUpdateKey( config ), config.getPidString(), true,
+            new UpdateConfiguration( config ) );
         log( LogService.LOG_DEBUG, "UpdateConfiguration({0}) scheduled", new Object[]
             { config.getPid() } );
     }
@@ -743,7 +919,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         fireConfigurationEvent( ConfigurationEvent.CM_LOCATION_CHANGED, config.getPidString(), config.getFactoryPidString() );
         if ( oldLocation != null && !config.isNew() )
         {
-            updateThread.schedule( new LocationChanged( config, oldLocation ) );
+            updateDispatcher.schedule( getUpdateKey( config ), config.getPidString(), false, new LocationChanged(
+                config, oldLocation ) );
             log( LogService.LOG_DEBUG, "LocationChanged({0}, {1}=>{2}) scheduled", new Object[]
                 { config.getPid(), oldLocation, config.getBundleLocation() } );
         }
@@ -841,7 +1018,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     Object service = persistenceManagerTracker.getService( refs[i] );
                     if ( service != null )
                     {
-                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service ) );
+                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service,
+                            indexedProperties ) );
                     }
                 }
 
@@ -924,18 +1102,41 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                 { toString( sr ) } );
         }
 
-        Runnable r;
-        if ( factory )
+        // schedule an update per PID to keep the order with the updates
+        // of the configurations for this PID
+        for ( String servicePid : pid )
         {
-            r = new ManagedServiceFactoryUpdate( pid, sr, configs );
+            Runnable r;
+            if ( factory )
+            {
+                r = new ManagedServiceFactoryUpdate( new String[]
+                    { servicePid }, sr, configs );
+            }
+            else
+            {
+                r = new ManagedServiceUpdate( new String[]
+                    { servicePid }, sr, configs );
+            }
+            updateDispatcher.schedule( servicePid, r );
+            log( LogService.LOG_DEBUG, "[{0}] scheduled", new Object[]
+                { r } );
         }
-        else
+    }
+
+
+    /**
+     * Returns the key by which the updates of the configuration are ordered:
+     * The factory PID of a factory configuration or the PID of a
+     * configuration, without any targeting information.
+     */
+    private static String getUpdateKey( final ConfigurationImpl config )
+    {
+        final TargetedPID factoryPid = config.getFactoryPid();
+        if ( factoryPid != null )
         {
-            r = new ManagedServiceUpdate( pid, sr, configs );
+            return factoryPid.getServicePid();
         }
-        updateThread.schedule( r );
-        log( LogService.LOG_DEBUG, "[{0}] scheduled", new Object[]
-            { r } );
+        return config.getPid().getServicePid();
     }
 
 
@@ -969,6 +1170,28 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     }
 
 
+    /**
+     * Creates a configuration for a {@link ConfigurationBatchImpl batch}.
+     * The configuration is neither persisted nor cached; this is done
+     * when the batch is committed. As with
+     * {@link #createConfiguration(String, String, String)}, the
+     * configuration is stored with the highest ranked persistence manager.
+     *
+     * @param pid The PID of the new configuration
+     * @param factoryPid The factory PID of the new configuration or
+     *      <code>null</code> for a plain configuration.
+     * @return The new configuration object
+     * @throws IOException Declared by the configuration constructor; not
+     *      actually thrown as nothing is persisted.
+     */
+    ConfigurationImpl createBatchConfiguration( String pid, String factoryPid ) throws IOException
+    {
+        log( LogService.LOG_DEBUG, "createBatchConfiguration({0}, {1})", new Object[]
+            { pid, factoryPid } );
+        return new ConfigurationImpl( this, getPersistenceManagers()[0], pid, factoryPid, null, false );
+    }
+
+
     /**
      * Returns a list of {@link Factory} instances according to the
      * Configuration Admin 1.5 specification for targeted PIDs (Section
@@ -1090,6 +1313,40 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     }
 
 
+    /**
+     * Creates a new factory for a {@link ConfigurationBatchImpl batch}. As
+     * opposed to {@link #createFactory(String)} the factory is not cached;
+     * this is done by {@link #cacheBatchFactory(Factory)} once the batch
+     * has been persisted, so a failed batch does not leave it behind.
+     */
+    Factory createBatchFactory( String factoryPid )
+    {
+        return new Factory( this, getPersistenceManagers()[0], factoryPid );
+    }
+
+
+    /**
+     * Caches a factory created by {@link #createBatchFactory(String)}
+     * unless a factory with the same PID has been cached in the meantime.
+     *
+     * @return The cached factory
+     */
+    Factory cacheBatchFactory( Factory factory )
+    {
+        synchronized ( factories )
+        {
+            final Factory existing = factories.get( factory.getFactoryPidString() );
+            if ( existing != null )
+            {
+                return existing;
+            }
+
+            factories.put( factory.getFactoryPidString(), factory );
+            return factory;
+        }
+    }
+
+
     /**
      * Calls the registered configuration plugins on the given configuration
      * properties from the given configuration object.
@@ -1171,7 +1428,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      * @param factoryPid
      * @return
      */
-    private static String createPid( String factoryPid )
+    static String createPid( String factoryPid )
     {
         Random ng = numberGenerator;
         if ( ng == null )
@@ -1836,9 +2093,13 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                 final String pid = config.getPidString();
                 try
                 {
+                    // the factory has already been stored if the
+                    // configuration has been deleted by a batch
                     Factory factory = getOrCreateFactory( factoryPid.toString() );
-                    factory.removePID( pid );
-                    factory.store();
+                    if ( factory.removePID( pid ) )
+                    {
+                        factory.store();
+                    }
                 }
                 catch ( IOException ioe )
                 {
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The <code>CopyOnWriteDictionary</code> is a <code>Dictionary</code> whose
+ * entries may be shared with other instances. The shared entries are never
+ * modified: the first modification of a dictionary copies its entries, so
+ * the other dictionaries sharing them are not affected.
+ * <p>
+ * Reading from the dictionary does not create any objects apart from the
+ * enumerations returned by {@link #keys()} and {@link #elements()}. Like a
+ * <code>Hashtable</code> the dictionary does not accept <code>null</code>
+ * keys or values. Instances are not thread safe unless they are not
+ * modified any more once they have been made available to other threads.
+ */
+class CopyOnWriteDictionary extends Dictionary
+{
+
+    /** the entries, shared with other instances if {@link #shared} is set */
+    private Map map;
+
+    /** whether the entries must be copied before they are modified */
+    private boolean shared;
+
+
+    /**
+     * Creates a dictionary with a copy of the entries of the given
+     * dictionary. If the given dictionary is itself a
+     * <code>CopyOnWriteDictionary</code> its entries are shared instead.
+     */
+    CopyOnWriteDictionary( final Dictionary source )
+    {
+        if ( source instanceof CopyOnWriteDictionary )
+        {
+            final CopyOnWriteDictionary other = ( CopyOnWriteDictionary ) source;
+            if ( !other.shared )
+            {
+                other.shared = true;
+            }
+            this.map = other.map;
+            this.shared = true;
+        }
+        else
+        {
+            this.map = copy( source );
+            this.shared = false;
+        }
+    }
+
+
+    /**
+     * Returns a new dictionary sharing the entries of this dictionary.
+     */
+    CopyOnWriteDictionary share()
+    {
+        return new CopyOnWriteDictionary( this );
+    }
+
+
+    public int size()
+    {
+        return map.size();
+    }
+
+
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+
+    public Enumeration keys()
+    {
+        return Collections.enumeration( map.keySet() );
+    }
+
+
+    public Enumeration elements()
+    {
+        return Collections.enumeration( map.values() );
+    }
+
+
+    public Object get( final Object key )
+    {
+        if ( key == null )
+        {
+            throw new NullPointerException( "key" );
+        }
+        return map.get( key );
+    }
+
+
+    public Object put( final Object key, final Object value )
+    {
+        if ( key == null || value == null )
+        {
+            throw new NullPointerException( ( key == null ) ? "key" : "value" );
+        }
+        return writableMap().put( key, value );
+    }
+
+
+    public Object remove( final Object key )
+    {
+        if ( key == null )
+        {
+            throw new NullPointerException( "key" );
+        }
+        if ( !map.containsKey( key ) )
+        {
+            return null;
+        }
+        return writableMap().remove( key );
+    }
+
+
+    public String toString()
+    {
+        return map.toString();
+    }
+
+
+    /**
+     * Returns the entries to be modified, copying them first if they are
+     * shared with other dictionaries.
+     */
+    private Map writableMap()
+    {
+        if ( shared )
+        {
+            map = new HashMap( map );
+            shared = false;
+        }
+        return map;
+    }
+
+
+    private static Map copy( final Dictionary source )
+    {
+        final HashMap copy = new HashMap( Math.max( 16, source.size() * 4 / 3 + 1 ) );
+        if ( source instanceof Map )
+        {
+            copy.putAll( ( Map ) source );
+        }
+        else
+        {
+            for ( Enumeration keys = source.keys(); keys.hasMoreElements(); )
+            {
+                final Object key = keys.nextElement();
+                copy.put( key, source.get( key ) );
+            }
+        }
+        return copy;
+    }
+}
@@ -32,10 +32,14 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 
 
-class DynamicBindings
+public class DynamicBindings
 {
 
-    static final String BINDINGS_FILE_NAME = "org_apache_felix_cm_impl_DynamicBindings";
+    /**
+     * The name under which the dynamic bindings are stored with the
+     * persistence manager.
+     */
+    public static final String BINDINGS_FILE_NAME = "org_apache_felix_cm_impl_DynamicBindings";
 
     private final PersistenceManager persistenceManager;
 
@@ -117,23 +117,44 @@ class Factory extends ConfigurationBase
     }
 
 
-    void store() throws IOException
+    /**
+     * Returns the identifier under which this factory is persisted.
+     */
+    String getIdentifier()
     {
-        Hashtable props = new Hashtable();
+        return factoryPidToIdentifier( this.getFactoryPid().toString() );
+    }
 
-        if ( !pids.isEmpty() )
+
+    /**
+     * Returns the properties to persist for this factory with the given
+     * configuration PIDs or <code>null</code> if the factory is to be
+     * removed from persistence because the set of PIDs is empty.
+     */
+    Dictionary getProperties( Set pids )
+    {
+        if ( pids.isEmpty() )
         {
-            props.put( FACTORY_PID_LIST, pids.toArray( new String[pids.size()] ) );
+            return null;
         }
 
-        String id = factoryPidToIdentifier( this.getFactoryPid().toString() );
-        if ( props.isEmpty() )
+        Hashtable props = new Hashtable();
+        props.put( FACTORY_PID_LIST, pids.toArray( new String[pids.size()] ) );
+        props.put( FACTORY_PID, this.getFactoryPid() );
+        return props;
+    }
+
+
+    void store() throws IOException
+    {
+        String id = getIdentifier();
+        Dictionary props = getProperties( pids );
+        if ( props == null )
         {
             getPersistenceManager().delete( id );
         }
         else
         {
-            props.put( FACTORY_PID, this.getFactoryPid() );
             getPersistenceManager().store( id, props );
         }
     }
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.PrintWriter;
+
+
+/**
+ * The <code>StatusPrinter</code> prints the current statistics of the
+ * {@link UpdateDispatcher}: the queue depth, the number of completed and
+ * coalesced updates and the time updates wait in the queue and take to be
+ * delivered to the managed services.
+ * <p>
+ * It is registered as a configuration printer of the Apache Felix Web
+ * Console, which finds the {@link #printConfiguration(PrintWriter)} method
+ * by reflection, so the statistics can be watched on a running system
+ * without a dependency on the web console.
+ */
+public class StatusPrinter
+{
+
+    static final String LABEL = "configadmin-updates";
+
+    static final String TITLE = "Configuration Updates";
+
+    static final String[] MODES =
+        { "txt", "zip" };
+
+    private final UpdateDispatcher updateDispatcher;
+
+
+    StatusPrinter( final UpdateDispatcher updateDispatcher )
+    {
+        this.updateDispatcher = updateDispatcher;
+    }
+
+
+    /**
+     * Prints the statistics. Called by the web console.
+     */
+    public void printConfiguration( final PrintWriter pw )
+    {
+        pw.println( "Managed Service Updates" );
+        pw.println( "  Update threads: " + updateDispatcher.getPoolSize() );
+        pw.println( "  Queue depth: " + updateDispatcher.getQueueSize() + " (max "
+            + updateDispatcher.getMaxQueueSize() + ")" );
+        pw.println( "  Completed updates: " + updateDispatcher.getTaskCount() );
+        pw.println( "  Coalesced updates: " + updateDispatcher.getCoalescedCount() );
+        pw.println( "  Wait time: " + updateDispatcher.getAverageWaitTime() + "ms average, "
+            + updateDispatcher.getMaxWaitTime() + "ms max" );
+        pw.println( "  Callback time: " + updateDispatcher.getAverageRunTime() + "ms average, "
+            + updateDispatcher.getMaxRunTime() + "ms max" );
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>UpdateDispatcher</code> runs the tasks updating managed services
+ * and managed service factories on a bounded pool of worker threads.
+ * <p>
+ * Each task is scheduled with an ordering key, which is the service PID or
+ * the factory PID of the configuration. Tasks with the same key are run one
+ * after the other in the order they have been scheduled, while tasks with
+ * different keys may be run concurrently. Thus a slow service only delays
+ * the updates of its own configurations.
+ * <p>
+ * An update of a configuration which has been scheduled but not started
+ * yet is replaced by a newer update of the same configuration, unless other
+ * tasks for this configuration have been scheduled in between. The newer
+ * update takes over the place of the replaced update in the queue.
+ * <p>
+ * The dispatcher keeps statistics on the number of queued tasks as well as
+ * on the time tasks wait in the queue and take to run. Tasks running longer
+ * than {@link #SLOW_TASK_THRESHOLD} milliseconds are logged as warnings.
+ * The statistics are published by the {@link StatusPrinter} while the
+ * dispatcher is running.
+ */
+public class UpdateDispatcher
+{
+
+    /**
+     * The time in milliseconds after which a task is considered slow and
+     * a warning is logged (value is 5000).
+     */
+    static final long SLOW_TASK_THRESHOLD = 5000;
+
+    // the configuration manager on whose behalf the workers are started
+    // (this is mainly used for logging)
+    private final ConfigurationManager configurationManager;
+
+    // the thread group into which the worker threads will be placed
+    private final ThreadGroup workerThreadGroup;
+
+    // the base name of the worker threads
+    private final String workerBaseName;
+
+    // the number of worker threads
+    private final int poolSize;
+
+    // the queued tasks per ordering key; the first task of each queue is
+    // either running or ready to run. This map is also the lock guarding
+    // the state of the dispatcher
+    private final HashMap<String, LinkedList<Task>> keyQueues;
+
+    // the tasks ready to run in the order they became ready
+    private final LinkedList<Task> readyTasks;
+
+    // the worker threads
+    private Thread[] workers;
+
+    // whether the dispatcher is terminating and does not accept tasks
+    private boolean terminating;
+
+    // the number of scheduled tasks which have not completed yet
+    private int queueSize;
+
+    // the maximum number of scheduled tasks which had not completed yet
+    private int maxQueueSize;
+
+    // the number of completed tasks
+    private long taskCount;
+
+    // the number of tasks replaced by newer tasks
+    private long coalescedCount;
+
+    // the total and maximum time in nanoseconds tasks waited to be run
+    private long totalWaitTime;
+    private long maxWaitTime;
+
+    // the total and maximum time in nanoseconds tasks took to run
+    private long totalRunTime;
+    private long maxRunTime;
+
+
+    public UpdateDispatcher( final ConfigurationManager configurationManager, final ThreadGroup tg,
+        final String name, final int poolSize )
+    {
+        this.configurationManager = configurationManager;
+        this.workerThreadGroup = tg;
+        this.workerBaseName = name;
+        this.poolSize = Math.max( 1, poolSize );
+
+        this.keyQueues = new HashMap<String, LinkedList<Task>>();
+        this.readyTasks = new LinkedList<Task>();
+    }
+
+
+    /**
+     * Starts processing the queued tasks. This method does nothing if the
+     * workers have already been started.
+     */
+    synchronized void start()
+    {
+        if ( this.workers == null )
+        {
+            Thread[] workerThreads = new Thread[poolSize];
+            for ( int i = 0; i < workerThreads.length; i++ )
+            {
+                final String workerName = ( poolSize == 1 ) ? workerBaseName : workerBaseName + " #" + ( i + 1 );
+                workerThreads[i] = new Thread( workerThreadGroup, new Runnable()
+                {
+                    public void run()
+                    {
+                        UpdateDispatcher.this.run( workerName );
+                    }
+                }, workerName );
+                workerThreads[i].setDaemon( true );
+                workerThreads[i].start();
+            }
+            this.workers = workerThreads;
+        }
+    }
+
+
+    /**
+     * Terminates the worker threads and waits for them to have processed
+     * all outstanding tasks. All tasks {@link #schedule(String, Runnable)
+     * scheduled} after termination has been initiated will not be processed
+     * any more. This method does nothing if the workers are not currently
+     * active.
+     * <p>
+     * If the worker threads do not terminate within 5 seconds they are
+     * killed by calling the (deprecated) <code>Thread.stop()</code> method
+     * as is done by the {@link UpdateThread}.
+     */
+    synchronized void terminate()
+    {
+        if ( this.workers != null )
+        {
+            Thread[] workerThreads = this.workers;
+            this.workers = null;
+
+            synchronized ( keyQueues )
+            {
+                terminating = true;
+                keyQueues.notifyAll();
+            }
+
+            // wait for all updates to terminate (<= 5 seconds !)
+            final long deadline = System.currentTimeMillis() + 5000;
+            for ( int i = 0; i < workerThreads.length; i++ )
+            {
+                try
+                {
+                    workerThreads[i].join( Math.max( 1, deadline - System.currentTimeMillis() ) );
+                }
+                catch ( InterruptedException ie )
+                {
+                    // don't really care
+                }
+            }
+
+            for ( int i = 0; i < workerThreads.length; i++ )
+            {
+                if ( workerThreads[i].isAlive() )
+                {
+                    this.configurationManager.log( LogService.LOG_ERROR,
+                        "Worker thread {0} did not terminate within 5 seconds; trying to kill", new Object[]
+                            { workerThreads[i].getName() } );
+                    workerThreads[i].stop();
+                }
+            }
+
+            this.configurationManager.log( LogService.LOG_DEBUG, "{0} statistics: {1}", new Object[]
+                { workerBaseName, getStatistics() } );
+        }
+    }
+
+
+    /**
+     * Queues the task to be run after all tasks previously scheduled with
+     * the same key have completed.
+     *
+     * @param key The ordering key of the task
+     * @param task The task to run
+     */
+    void schedule( final String key, final Runnable task )
+    {
+        schedule( key, null, false, task );
+    }
+
+
+    /**
+     * Queues the task to be run after all tasks previously scheduled with
+     * the same key have completed.
+     *
+     * @param key The ordering key of the task
+     * @param pid The PID of the configuration the task is about or
+     *      <code>null</code> if the task is not about a single configuration
+     * @param replace <code>true</code> if the task replaces a task for the
+     *      same configuration scheduled with <code>replace</code> set to
+     *      <code>true</code> which has not been started yet, provided no
+     *      other task for this configuration has been scheduled after it
+     * @param task The task to run
+     */
+    void schedule( final String key, final String pid, final boolean replace, final Runnable task )
+    {
+        synchronized ( keyQueues )
+        {
+            if ( terminating )
+            {
+                configurationManager.log( LogService.LOG_DEBUG, "Not scheduling task {0} after termination",
+                    new Object[]
+                        { task } );
+                return;
+            }
+
+            LinkedList<Task> queue = keyQueues.get( key );
+            if ( queue == null )
+            {
+                queue = new LinkedList<Task>();
+                keyQueues.put( key, queue );
+            }
+            else if ( replace && pid != null )
+            {
+                // look for the most recent task for the configuration
+                for ( ListIterator<Task> ti = queue.listIterator( queue.size() ); ti.hasPrevious(); )
+                {
+                    final Task queued = ti.previous();
+                    if ( pid.equals( queued.pid ) )
+                    {
+                        if ( queued.replaceable && !queued.running )
+                        {
+                            configurationManager.log( LogService.LOG_DEBUG, "Replacing task {0} by task {1}",
+                                new Object[]
+                                    { queued.task, task } );
+                            queued.task = task;
+                            coalescedCount++;
+                            return;
+                        }
+                        break;
+                    }
+                }
+            }
+
+            configurationManager.log( LogService.LOG_DEBUG, "Scheduling task {0}", new Object[]
+                { task } );
+
+            final Task entry = new Task( key, pid, replace, task );
+            queue.add( entry );
+            if ( queue.size() == 1 )
+            {
+                readyTasks.add( entry );
+                keyQueues.notify();
+            }
+
+            queueSize++;
+            if ( queueSize > maxQueueSize )
+            {
+                maxQueueSize = queueSize;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of worker threads.
+     */
+    int getPoolSize()
+    {
+        return poolSize;
+    }
+
+
+    /**
+     * Returns the number of scheduled tasks which have not completed yet.
+     */
+    int getQueueSize()
+    {
+        synchronized ( keyQueues )
+        {
+            return queueSize;
+        }
+    }
+
+
+    /**
+     * Returns the maximum number of scheduled tasks which had not completed
+     * yet since the dispatcher has been created.
+     */
+    int getMaxQueueSize()
+    {
+        synchronized ( keyQueues )
+        {
+            return maxQueueSize;
+        }
+    }
+
+
+    /**
+     * Returns the number of completed tasks.
+     */
+    long getTaskCount()
+    {
+        synchronized ( keyQueues )
+        {
+            return taskCount;
+        }
+    }
+
+
+    /**
+     * Returns the number of tasks which have been replaced by newer tasks
+     * before being started.
+     */
+    long getCoalescedCount()
+    {
+        synchronized ( keyQueues )
+        {
+            return coalescedCount;
+        }
+    }
+
+
+    /**
+     * Returns the maximum time in milliseconds a completed task took to run.
+     */
+    long getMaxRunTime()
+    {
+        synchronized ( keyQueues )
+        {
+            return maxRunTime / 1000000L;
+        }
+    }
+
+
+    /**
+     * Returns the average time in milliseconds the completed tasks took to
+     * run.
+     */
+    long getAverageRunTime()
+    {
+        synchronized ( keyQueues )
+        {
+            return ( taskCount == 0 ) ? 0 : totalRunTime / taskCount / 1000000L;
+        }
+    }
+
+
+    /**
+     * Returns the maximum time in milliseconds a completed task waited to be
+     * run.
+     */
+    long getMaxWaitTime()
+    {
+        synchronized ( keyQueues )
+        {
+            return maxWaitTime / 1000000L;
+        }
+    }
+
+
+    /**
+     * Returns the average time in milliseconds the completed tasks waited to
+     * be run.
+     */
+    long getAverageWaitTime()
+    {
+        synchronized ( keyQueues )
+        {
+            return ( taskCount == 0 ) ? 0 : totalWaitTime / taskCount / 1000000L;
+        }
+    }
+
+
+    /**
+     * Returns a human readable summary of the statistics of the dispatcher.
+     */
+    String getStatistics()
+    {
+        synchronized ( keyQueues )
+        {
+            return "tasks=" + taskCount + ", coalesced=" + coalescedCount + ", queued=" + queueSize
+                + ", maxQueued=" + maxQueueSize + ", avgWait=" + getAverageWaitTime() + "ms, maxWait="
+                + getMaxWaitTime() + "ms, avgRun=" + getAverageRunTime() + "ms, maxRun=" + getMaxRunTime() + "ms";
+        }
+    }
+
+
+    // runs the tasks becoming ready until the dispatcher terminates and
+    // all tasks have completed. Any exception thrown by a task is logged.
+    private void run( final String workerName )
+    {
+        for ( ;; )
+        {
+            final Task entry;
+            final Runnable task;
+            synchronized ( keyQueues )
+            {
+                while ( readyTasks.isEmpty() )
+                {
+                    if ( terminating && queueSize == 0 )
+                    {
+                        return;
+                    }
+
+                    try
+                    {
+                        keyQueues.wait();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        // don't care
+                    }
+                }
+
+                entry = readyTasks.removeFirst();
+                entry.running = true;
+                task = entry.task;
+            }
+
+            final long start = System.nanoTime();
+            try
+            {
+                // set the thread name indicating the current task
+                Thread.currentThread().setName( workerName + " (" + task + ")" );
+
+                configurationManager.log( LogService.LOG_DEBUG, "Running task {0}", new Object[]
+                    { task } );
+
+                task.run();
+            }
+            catch ( Throwable t )
+            {
+                configurationManager.log( LogService.LOG_ERROR, "Unexpected problem executing task", t );
+            }
+            finally
+            {
+                // reset the thread name to "idle"
+                Thread.currentThread().setName( workerName );
+
+                completed( entry, start, System.nanoTime() );
+            }
+        }
+    }
+
+
+    // removes the completed task from its queue making the next task with
+    // the same key ready and records the statistics
+    private void completed( final Task entry, final long start, final long end )
+    {
+        synchronized ( keyQueues )
+        {
+            final LinkedList<Task> queue = keyQueues.get( entry.key );
+            queue.removeFirst();
+            if ( queue.isEmpty() )
+            {
+                keyQueues.remove( entry.key );
+            }
+            else
+            {
+                readyTasks.add( queue.getFirst() );
+            }
+
+            queueSize--;
+            taskCount++;
+            totalWaitTime += start - entry.scheduled;
+            maxWaitTime = Math.max( maxWaitTime, start - entry.scheduled );
+            totalRunTime += end - start;
+            maxRunTime = Math.max( maxRunTime, end - start );
+
+            // wake up workers waiting for the next task or for termination
+            keyQueues.notifyAll();
+        }
+
+        final long runTime = ( end - start ) / 1000000L;
+        if ( runTime > SLOW_TASK_THRESHOLD )
+        {
+            configurationManager.log( LogService.LOG_WARNING, "Task {0} took {1} ms to run", new Object[]
+                { entry.task, new Long( runTime ) } );
+        }
+    }
+
+    private static class Task
+    {
+        final String key;
+
+        final String pid;
+
+        final boolean replaceable;
+
+        final long scheduled;
+
+        Runnable task;
+
+        boolean running;
+
+
+        Task( final String key, final String pid, final boolean replaceable, final Runnable task )
+        {
+            this.key = key;
+            this.pid = pid;
+            this.replaceable = replaceable;
+            this.task = task;
+            this.scheduled = System.nanoTime();
+        }
+    }
+}
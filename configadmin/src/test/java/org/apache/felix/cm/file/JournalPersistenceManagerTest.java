@@ -0,0 +1,521 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.impl.DynamicBindings;
+import org.osgi.framework.Constants;
+
+
+public class JournalPersistenceManagerTest extends TestCase
+{
+    private File file = new File( System.getProperty( "java.io.tmpdir" ), "config.journaltest" );
+
+    private JournalPersistenceManager jpm;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        delete( file );
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        jpm.close();
+        delete( file );
+
+        super.tearDown();
+    }
+
+
+    public void testCreateJournal()
+    {
+        assertTrue( jpm.getJournalFile().isFile() );
+        assertEquals( new File( file, JournalPersistenceManager.JOURNAL_FILE ), jpm.getJournalFile() );
+    }
+
+
+    public void testStoreLoadDelete() throws IOException
+    {
+        assertFalse( jpm.exists( "a" ) );
+
+        jpm.store( "a", config( "a", "1" ) );
+        assertTrue( jpm.exists( "a" ) );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+
+        jpm.store( "a", config( "a", "2" ) );
+        assertEquals( "2", jpm.load( "a" ).get( "value" ) );
+
+        jpm.delete( "a" );
+        assertFalse( jpm.exists( "a" ) );
+        try
+        {
+            jpm.load( "a" );
+            fail( "Expected IOException loading a deleted configuration" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+    }
+
+
+    public void testReopen() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.store( "b", config( "b", "1" ) );
+        jpm.store( "a", config( "a", "2" ) );
+        jpm.delete( "b" );
+        jpm.store( "c", config( "c", "1" ) );
+        reopen();
+
+        assertEquals( "2", jpm.load( "a" ).get( "value" ) );
+        assertFalse( jpm.exists( "b" ) );
+        assertEquals( "1", jpm.load( "c" ).get( "value" ) );
+        assertPids( "a c", jpm.getDictionaries() );
+    }
+
+
+    public void testIncompleteRecord() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.store( "b", config( "b", "1" ) );
+        jpm.close();
+
+        // cut the last record
+        RandomAccessFile raf = new RandomAccessFile( jpm.getJournalFile(), "rw" );
+        raf.setLength( raf.length() - 3 );
+        raf.close();
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertTrue( jpm.exists( "a" ) );
+        assertFalse( jpm.exists( "b" ) );
+
+        // the journal is still writable
+        jpm.store( "b", config( "b", "2" ) );
+        reopen();
+        assertEquals( "2", jpm.load( "b" ).get( "value" ) );
+    }
+
+
+    public void testDamagedLastRecord() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.store( "b", config( "b", "1" ) );
+        jpm.close();
+
+        // damage the last record without cutting it
+        damage( jpm.getJournalFile(), 1 );
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertTrue( jpm.exists( "a" ) );
+        assertFalse( jpm.exists( "b" ) );
+    }
+
+
+    public void testCorruptRecord() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.store( "b", config( "b", "1" ) );
+        jpm.store( "c", config( "c", "1" ) );
+        jpm.close();
+
+        // damage the record in the middle of the journal
+        damage( jpm.getJournalFile(), 2 );
+        final long length = jpm.getJournalFile().length();
+
+        try
+        {
+            jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+            fail( "Corrupt journal should not be opened" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+
+        // the journal is kept as it is and copied
+        assertEquals( length, jpm.getJournalFile().length() );
+        assertEquals( length, journalFile( JournalPersistenceManager.CORRUPT_EXT ).length() );
+    }
+
+
+    public void testDeleteMissing() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        final long length = jpm.getJournalFile().length();
+
+        jpm.delete( "x" );
+        jpm.apply( Collections.EMPTY_MAP, Arrays.asList( new String[]
+            { "x", "y" } ) );
+        assertEquals( length, jpm.getJournalFile().length() );
+
+        // the batch only holds the deletion of an existing configuration
+        Map stored = new LinkedHashMap();
+        stored.put( "c", config( "c", "1" ) );
+        jpm.apply( stored, Arrays.asList( new String[]
+            { "a", "x" } ) );
+        reopen();
+        assertFalse( jpm.exists( "a" ) );
+        assertEquals( "1", jpm.load( "c" ).get( "value" ) );
+    }
+
+
+    public void testApply() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.store( "b", config( "b", "1" ) );
+
+        Map stored = new LinkedHashMap();
+        stored.put( "a", config( "a", "2" ) );
+        stored.put( "c", config( "c", "1" ) );
+        jpm.apply( stored, Arrays.asList( new String[]
+            { "b", "d" } ) );
+
+        assertEquals( "2", jpm.load( "a" ).get( "value" ) );
+        assertFalse( jpm.exists( "b" ) );
+        assertEquals( "1", jpm.load( "c" ).get( "value" ) );
+
+        reopen();
+        assertEquals( "2", jpm.load( "a" ).get( "value" ) );
+        assertPids( "a c", jpm.getDictionaries() );
+    }
+
+
+    public void testIncompleteBatch() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+
+        Map stored = new LinkedHashMap();
+        stored.put( "a", config( "a", "2" ) );
+        stored.put( "b", config( "b", "1" ) );
+        jpm.apply( stored, Collections.EMPTY_LIST );
+        jpm.close();
+
+        // cut the last record of the batch
+        RandomAccessFile raf = new RandomAccessFile( jpm.getJournalFile(), "rw" );
+        raf.setLength( raf.length() - 3 );
+        raf.close();
+
+        // none of the changes of the batch survive
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+        assertFalse( jpm.exists( "b" ) );
+
+        // the journal is still writable
+        jpm.apply( stored, Collections.EMPTY_LIST );
+        reopen();
+        assertEquals( "2", jpm.load( "a" ).get( "value" ) );
+        assertEquals( "1", jpm.load( "b" ).get( "value" ) );
+    }
+
+
+    public void testCompaction() throws IOException
+    {
+        StringBuffer large = new StringBuffer();
+        for ( int i = 0; i < 10000; i++ )
+        {
+            large.append( 'x' );
+        }
+
+        jpm.store( "b", config( "b", "1" ) );
+        for ( int i = 0; i < 300; i++ )
+        {
+            jpm.store( "a", config( "a", large.toString() + i ) );
+        }
+
+        assertTrue( jpm.getJournalFile().length() < 2 * JournalPersistenceManager.COMPACTION_THRESHOLD );
+        assertTrue( ( large.toString() + 299 ).equals( jpm.load( "a" ).get( "value" ) ) );
+        assertEquals( "1", jpm.load( "b" ).get( "value" ) );
+
+        reopen();
+        assertTrue( ( large.toString() + 299 ).equals( jpm.load( "a" ).get( "value" ) ) );
+        assertPids( "a b", jpm.getDictionaries() );
+    }
+
+
+    public void testConcurrentStore() throws Exception
+    {
+        final IOException[] failure = new IOException[1];
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final String prefix = "t" + i + ".";
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int j = 0; j < 50; j++ )
+                        {
+                            jpm.store( prefix + j, config( prefix + j, String.valueOf( j ) ) );
+                        }
+                    }
+                    catch ( IOException ioe )
+                    {
+                        failure[0] = ioe;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+
+        assertNull( failure[0] );
+        reopen();
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            for ( int j = 0; j < 50; j++ )
+            {
+                assertEquals( String.valueOf( j ), jpm.load( "t" + i + "." + j ).get( "value" ) );
+            }
+        }
+    }
+
+
+    public void testMigration() throws IOException
+    {
+        jpm.close();
+        delete( file );
+
+        FilePersistenceManager fpm = new FilePersistenceManager( file.getAbsolutePath() );
+        fpm.store( "a", config( "a", "1" ) );
+        fpm.store( "b.c", config( "b.c", "2" ) );
+        Dictionary bindings = new Hashtable();
+        bindings.put( "a", "location" );
+        fpm.store( DynamicBindings.BINDINGS_FILE_NAME, bindings );
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+        assertEquals( "2", jpm.load( "b.c" ).get( "value" ) );
+        assertEquals( "location", jpm.load( DynamicBindings.BINDINGS_FILE_NAME ).get( "a" ) );
+
+        // the configuration files are not imported again
+        jpm.delete( "a" );
+        reopen();
+        assertFalse( jpm.exists( "a" ) );
+        assertTrue( fpm.exists( "a" ) );
+    }
+
+
+    public void testNoMigrationOfImportedFiles() throws IOException
+    {
+        jpm.close();
+        delete( file );
+
+        FilePersistenceManager fpm = new FilePersistenceManager( file.getAbsolutePath() );
+        fpm.store( "a", config( "a", "1" ) );
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        jpm.store( "a", config( "a", "2" ) );
+        jpm.close();
+
+        // a lost journal is not replaced by the outdated configuration files
+        assertTrue( jpm.getJournalFile().delete() );
+        try
+        {
+            jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+            fail( "Expected IOException opening a lost journal" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        assertFalse( jpm.getJournalFile().exists() );
+
+        // unless asked to import them again
+        assertTrue( new File( file, JournalPersistenceManager.JOURNAL_FILE + JournalPersistenceManager.MIGRATED_EXT )
+            .delete() );
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+    }
+
+
+    public void testRecoverCompactedJournal() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.close();
+
+        // stopped after moving the journal away for the compacted journal
+        final File compactFile = journalFile( JournalPersistenceManager.COMPACT_EXT );
+        final File backupFile = journalFile( JournalPersistenceManager.BACKUP_EXT );
+        copy( jpm.getJournalFile(), compactFile );
+        assertTrue( jpm.getJournalFile().renameTo( backupFile ) );
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+        assertFalse( compactFile.exists() );
+        assertFalse( backupFile.exists() );
+    }
+
+
+    public void testRecoverBackupJournal() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.close();
+
+        final File backupFile = journalFile( JournalPersistenceManager.BACKUP_EXT );
+        assertTrue( jpm.getJournalFile().renameTo( backupFile ) );
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+        assertFalse( backupFile.exists() );
+    }
+
+
+    public void testIgnoreIncompleteCompaction() throws IOException
+    {
+        jpm.store( "a", config( "a", "1" ) );
+        jpm.close();
+
+        // stopped while writing the compacted journal
+        final File compactFile = journalFile( JournalPersistenceManager.COMPACT_EXT );
+        final RandomAccessFile raf = new RandomAccessFile( compactFile, "rw" );
+        raf.writeInt( 0 );
+        raf.close();
+
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+        assertEquals( "1", jpm.load( "a" ).get( "value" ) );
+        assertFalse( compactFile.exists() );
+    }
+
+
+    private void reopen() throws IOException
+    {
+        jpm.close();
+        jpm = new JournalPersistenceManager( null, file.getAbsolutePath() );
+    }
+
+
+    private File journalFile( final String extension )
+    {
+        return new File( jpm.getJournalFile().getPath() + extension );
+    }
+
+
+    /**
+     * Flips a byte in the body of the record with the given number counted
+     * from the end of the journal, starting with 1 for the last record.
+     */
+    private static void damage( final File journal, final int fromEnd ) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( journal, "rw" );
+        try
+        {
+            final List offsets = new ArrayList();
+            for ( long offset = 8; offset < raf.length(); )
+            {
+                offsets.add( new Long( offset ) );
+                raf.seek( offset );
+                offset += 4 + raf.readInt() + 4;
+            }
+            final long offset = ( ( Long ) offsets.get( offsets.size() - fromEnd ) ).longValue() + 6;
+            raf.seek( offset );
+            final int b = raf.read();
+            raf.seek( offset );
+            raf.write( b ^ 0xff );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private static void copy( final File source, final File target ) throws IOException
+    {
+        final RandomAccessFile in = new RandomAccessFile( source, "r" );
+        final RandomAccessFile out = new RandomAccessFile( target, "rw" );
+        try
+        {
+            final byte[] data = new byte[( int ) in.length()];
+            in.readFully( data );
+            out.write( data );
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    private static Dictionary config( final String pid, final String value )
+    {
+        Dictionary props = new Hashtable();
+        props.put( Constants.SERVICE_PID, pid );
+        props.put( "value", value );
+        return props;
+    }
+
+
+    private static void assertPids( final String expected, final Enumeration dictionaries )
+    {
+        Set expectedPids = new HashSet();
+        String[] pids = expected.split( " " );
+        for ( int i = 0; i < pids.length; i++ )
+        {
+            expectedPids.add( pids[i] );
+        }
+
+        Set actualPids = new HashSet();
+        while ( dictionaries.hasMoreElements() )
+        {
+            actualPids.add( ( ( Dictionary ) dictionaries.nextElement() ).get( Constants.SERVICE_PID ) );
+        }
+
+        assertEquals( expectedPids, actualPids );
+    }
+
+
+    private static void delete( final File file )
+    {
+        File[] children = file.listFiles();
+        for ( int i = 0; children != null && i < children.length; i++ )
+        {
+            delete( children[i] );
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.felix.cm.MockPersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+/**
+ * Measures the throughput of loading and listing cached configurations
+ * from many threads concurrently. Each thread loads configurations and
+ * reads a property of each; every 100th operation lists the configurations
+ * of a factory instead.
+ * <p>
+ * Usage: <code>CachingPersistenceManagerProxyBenchmark [threads] [operations per thread] [configurations]</code>
+ */
+public class CachingPersistenceManagerProxyBenchmark
+{
+
+    public static void main( final String[] args ) throws Exception
+    {
+        final int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 8;
+        final int operations = args.length > 1 ? Integer.parseInt( args[1] ) : 1000000;
+        final int configurations = args.length > 2 ? Integer.parseInt( args[2] ) : 1000;
+
+        final MockPersistenceManager pm = new MockPersistenceManager();
+        for ( int i = 0; i < configurations; i++ )
+        {
+            final Hashtable props = new Hashtable();
+            props.put( Constants.SERVICE_PID, "pid." + i );
+            props.put( ConfigurationAdmin.SERVICE_FACTORYPID, "factory." + ( i % 100 ) );
+            for ( int p = 0; p < 20; p++ )
+            {
+                props.put( "property." + p, "value." + p );
+            }
+            pm.store( "pid." + i, props );
+        }
+
+        final String[] pids = new String[configurations];
+        for ( int i = 0; i < pids.length; i++ )
+        {
+            pids[i] = "pid." + i;
+        }
+
+        final CachingPersistenceManagerProxy proxy = new CachingPersistenceManagerProxy( pm );
+        final Filter filter = FrameworkUtil.createFilter( "(service.factoryPid=factory.42)" );
+
+        // warm up
+        run( proxy, filter, threads, operations / 10, pids );
+        final long start = System.nanoTime();
+        run( proxy, filter, threads, operations, pids );
+        final long time = System.nanoTime() - start;
+
+        System.out.println( threads + " threads ran " + ( long ) threads * operations + " operations: "
+            + ( ( long ) threads * operations * 1000000000L / time ) + " operations/s" );
+    }
+
+
+    private static void run( final CachingPersistenceManagerProxy proxy, final Filter filter, final int threads,
+        final int operations, final String[] pids ) throws Exception
+    {
+        final CountDownLatch ready = new CountDownLatch( threads );
+        final CountDownLatch go = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( threads );
+        final Exception[] failure = new Exception[1];
+        for ( int t = 0; t < threads; t++ )
+        {
+            final int offset = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    ready.countDown();
+                    try
+                    {
+                        go.await();
+                        for ( int i = 0; i < operations; i++ )
+                        {
+                            if ( i % 100 == 0 )
+                            {
+                                for ( Enumeration e = proxy.getDictionaries( filter ); e.hasMoreElements(); )
+                                {
+                                    ( ( Dictionary ) e.nextElement() ).get( Constants.SERVICE_PID );
+                                }
+                            }
+                            else
+                            {
+                                final Dictionary props = proxy.load( pids[( i + offset ) % pids.length] );
+                                props.get( "property.1" );
+                            }
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        failure[0] = e;
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        ready.await();
+        go.countDown();
+        done.await();
+
+        if ( failure[0] != null )
+        {
+            throw failure[0];
+        }
+    }
+}
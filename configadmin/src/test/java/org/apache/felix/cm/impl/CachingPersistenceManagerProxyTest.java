@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.MockPersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+public class CachingPersistenceManagerProxyTest extends TestCase
+{
+
+    private MockPersistenceManager pm;
+
+    private CachingPersistenceManagerProxy proxy;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        pm = new MockPersistenceManager();
+        store( pm, "a.1", "a", "location1", "red" );
+        store( pm, "a.2", "a", "location2", new String[]
+            { "green", "blue" } );
+        store( pm, "b.1", "b", "location1", new Integer( 1 ) );
+        store( pm, "c", null, null, null );
+
+        proxy = new CachingPersistenceManagerProxy( pm, new String[]
+            { "Color" } );
+    }
+
+
+    public void test_getDictionaries_no_filter() throws Exception
+    {
+        assertPids( "a.1 a.2 b.1 c", proxy.getDictionaries( null ) );
+    }
+
+
+    public void test_getDictionaries_indexed() throws Exception
+    {
+        assertPids( "a.1 a.2", getDictionaries( "(service.factoryPid=a)" ) );
+        assertPids( "a.1 b.1", getDictionaries( "(service.bundleLocation=location1)" ) );
+        assertPids( "c", getDictionaries( "(SERVICE.PID=c)" ) );
+        assertPids( "a.1", getDictionaries( "(&(service.factoryPid=a)(service.bundleLocation=location1))" ) );
+        assertPids( "", getDictionaries( "(&(service.factoryPid=a)(service.bundleLocation=location3))" ) );
+        assertPids( "", getDictionaries( "(service.factoryPid=x)" ) );
+    }
+
+
+    public void test_getDictionaries_additional_index() throws Exception
+    {
+        assertPids( "a.1", getDictionaries( "(color=red)" ) );
+        assertPids( "a.2", getDictionaries( "(color=blue)" ) );
+
+        // non-string values are matched by the filter
+        assertPids( "b.1", getDictionaries( "(color=1)" ) );
+        assertPids( "b.1", getDictionaries( "(color=01)" ) );
+    }
+
+
+    public void test_getDictionaries_not_indexed() throws Exception
+    {
+        assertPids( "a.1 a.2", getDictionaries( "(service.factoryPid=a*)" ) );
+        assertPids( "b.1 c", getDictionaries( "(!(service.factoryPid=a))" ) );
+        assertPids( "a.1 b.1", getDictionaries( "(|(color=red)(color=1))" ) );
+        assertPids( "a.1 a.2 b.1", getDictionaries( "(service.factoryPid=*)" ) );
+    }
+
+
+    public void test_getDictionaries_escaped() throws Exception
+    {
+        store( proxy, "d", "d*(x)", null, null );
+        assertPids( "d", getDictionaries( "(service.factoryPid=d\\*\\(x\\))" ) );
+    }
+
+
+    public void test_index_updated() throws Exception
+    {
+        // load all dictionaries into the cache before changing them
+        assertPids( "a.1 a.2", getDictionaries( "(service.factoryPid=a)" ) );
+
+        store( proxy, "a.1", "b", "location1", "red" );
+        assertPids( "a.2", getDictionaries( "(service.factoryPid=a)" ) );
+        assertPids( "a.1 b.1", getDictionaries( "(service.factoryPid=b)" ) );
+
+        proxy.delete( "a.2" );
+        assertPids( "", getDictionaries( "(service.factoryPid=a)" ) );
+        assertPids( "", getDictionaries( "(color=blue)" ) );
+    }
+
+
+    public void test_getDictionaries_copies() throws Exception
+    {
+        Enumeration dicts = getDictionaries( "(service.pid=a.1)" );
+        Dictionary dict = ( Dictionary ) dicts.nextElement();
+        dict.put( "color", "yellow" );
+
+        assertPids( "a.1", getDictionaries( "(color=red)" ) );
+        assertPids( "", getDictionaries( "(color=yellow)" ) );
+    }
+
+
+    public void test_load_copies() throws Exception
+    {
+        Dictionary first = proxy.load( "a.1" );
+        Dictionary second = proxy.load( "a.1" );
+        assertNotSame( first, second );
+
+        first.put( "color", "yellow" );
+        first.remove( ConfigurationAdmin.SERVICE_FACTORYPID );
+        assertEquals( "red", second.get( "color" ) );
+        assertEquals( "a", second.get( ConfigurationAdmin.SERVICE_FACTORYPID ) );
+        assertEquals( "red", proxy.load( "a.1" ).get( "color" ) );
+        assertPids( "a.1", getDictionaries( "(color=red)" ) );
+    }
+
+
+    public void test_store_loaded() throws Exception
+    {
+        // load all dictionaries into the cache before changing them
+        assertPids( "a.1", getDictionaries( "(color=red)" ) );
+
+        Dictionary loaded = proxy.load( "a.1" );
+        loaded.put( "color", "yellow" );
+        proxy.store( "a.1", loaded );
+        assertEquals( "yellow", pm.load( "a.1" ).get( "color" ) );
+
+        // modifying the stored dictionary does not modify the cache
+        loaded.put( "color", "black" );
+        assertEquals( "yellow", proxy.load( "a.1" ).get( "color" ) );
+        assertPids( "a.1", getDictionaries( "(color=yellow)" ) );
+    }
+
+
+    public void test_apply() throws Exception
+    {
+        // load all dictionaries into the cache before changing them
+        assertPids( "a.1", getDictionaries( "(color=red)" ) );
+
+        Hashtable props = new Hashtable();
+        props.put( Constants.SERVICE_PID, "d" );
+        props.put( "color", "red" );
+        Map stored = new HashMap();
+        stored.put( "d", props );
+        proxy.apply( stored, Arrays.asList( new String[]
+            { "a.1" } ) );
+
+        assertFalse( pm.exists( "a.1" ) );
+        assertEquals( "red", pm.load( "d" ).get( "color" ) );
+        assertFalse( proxy.exists( "a.1" ) );
+        assertPids( "d", getDictionaries( "(color=red)" ) );
+
+        // modifying the stored dictionary does not modify the cache
+        props.put( "color", "black" );
+        assertEquals( "red", proxy.load( "d" ).get( "color" ) );
+    }
+
+
+    private Enumeration getDictionaries( final String filter ) throws IOException, InvalidSyntaxException
+    {
+        return proxy.getDictionaries( FrameworkUtil.createFilter( filter ) );
+    }
+
+
+    private static void store( final org.apache.felix.cm.PersistenceManager pm, final String pid,
+        final String factoryPid, final String location, final Object color ) throws IOException
+    {
+        Hashtable props = new Hashtable();
+        props.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        if ( location != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, location );
+        }
+        if ( color != null )
+        {
+            props.put( "color", color );
+        }
+        pm.store( pid, props );
+    }
+
+
+    private static void assertPids( final String expected, final Enumeration dictionaries )
+    {
+        Set expectedPids = new HashSet();
+        String[] pids = expected.split( " " );
+        for ( int i = 0; i < pids.length; i++ )
+        {
+            if ( pids[i].length() > 0 )
+            {
+                expectedPids.add( pids[i] );
+            }
+        }
+
+        Set actualPids = new HashSet();
+        while ( dictionaries.hasMoreElements() )
+        {
+            Dictionary dict = ( Dictionary ) dictionaries.nextElement();
+            actualPids.add( dict.get( Constants.SERVICE_PID ) );
+        }
+
+        assertEquals( expectedPids, actualPids );
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.ConfigurationBatch;
+import org.apache.felix.cm.MockBundleContext;
+import org.apache.felix.cm.MockPersistenceManager;
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.util.tracker.ServiceTracker;
+
+
+public class ConfigurationBatchImplTest extends TestCase
+{
+
+    private MockPersistenceManager pm;
+
+    private final List<String> events = new ArrayList<String>();
+
+    private final MockConfigurationManager configMgr = new MockConfigurationManager()
+    {
+        boolean isActive()
+        {
+            return true;
+        }
+
+
+        void updated( ConfigurationImpl config, boolean fireEvent )
+        {
+            events.add( "updated " + config.getPidString() );
+        }
+
+
+        void deleted( ConfigurationImpl config )
+        {
+            removeConfiguration( config );
+            events.add( "deleted " + config.getPidString() );
+        }
+    };
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        pm = new MockPersistenceManager();
+        store( "a", null, "1" );
+        store( "f.1", "f", "1" );
+        Hashtable factory = new Hashtable();
+        factory.put( Factory.FACTORY_PID_LIST, new String[]
+            { "f.1" } );
+        pm.store( "f.factory", factory );
+
+        setPersistenceManager( new CachingPersistenceManagerProxy( pm, null ) );
+    }
+
+
+    public void test_update_create() throws IOException
+    {
+        ConfigurationBatch batch = createBatch();
+        batch.update( "a", props( "2" ) );
+        batch.update( "b", props( "1" ) );
+        String pid = batch.createFactoryConfiguration( "f", props( "3" ) );
+        batch.commit();
+
+        assertEquals( "2", pm.load( "a" ).get( "value" ) );
+        assertEquals( "1", pm.load( "b" ).get( "value" ) );
+        assertEquals( "3", pm.load( pid ).get( "value" ) );
+        assertFactoryPids( "f.1 " + pid );
+
+        assertEquals( "2", configMgr.getConfiguration( "a" ).getProperties( false ).get( "value" ) );
+        assertEquals( "1", configMgr.getConfiguration( "b" ).getProperties( false ).get( "value" ) );
+        assertEquals( "3", configMgr.getConfiguration( pid ).getProperties( false ).get( "value" ) );
+        assertEquals( "f", configMgr.getConfiguration( pid ).getFactoryPidString() );
+        assertEquals( Arrays.asList( new String[]
+            { "updated a", "updated b", "updated " + pid } ), events );
+    }
+
+
+    public void test_delete() throws IOException
+    {
+        ConfigurationBatch batch = createBatch();
+        batch.delete( "a" );
+        batch.delete( "f.1" );
+        batch.delete( "missing" );
+        batch.commit();
+
+        assertFalse( pm.exists( "a" ) );
+        assertFalse( pm.exists( "f.1" ) );
+        assertFalse( pm.exists( "f.factory" ) );
+        assertNull( configMgr.getConfiguration( "a" ) );
+        assertEquals( Arrays.asList( new String[]
+            { "deleted a", "deleted f.1" } ), events );
+    }
+
+
+    public void test_last_change_wins() throws IOException
+    {
+        ConfigurationBatch batch = createBatch();
+        batch.update( "a", props( "2" ) );
+        batch.update( "a", props( "3" ) );
+        String pid = batch.createFactoryConfiguration( "f", props( "1" ) );
+        batch.update( pid, props( "2" ) );
+        String deleted = batch.createFactoryConfiguration( "f", props( "1" ) );
+        batch.delete( deleted );
+        batch.commit();
+
+        assertEquals( "3", pm.load( "a" ).get( "value" ) );
+        assertEquals( "2", pm.load( pid ).get( "value" ) );
+        assertFalse( pm.exists( deleted ) );
+        assertFactoryPids( "f.1 " + pid );
+        assertEquals( Arrays.asList( new String[]
+            { "updated a", "updated " + pid } ), events );
+    }
+
+
+    public void test_persistence_failure() throws IOException
+    {
+        setPersistenceManager( new CachingPersistenceManagerProxy( new MockPersistenceManager()
+        {
+            public void store( String pid, Dictionary properties )
+            {
+                throw new IllegalStateException( "Cannot store " + pid );
+            }
+
+
+            public boolean exists( String pid )
+            {
+                return pm.exists( pid );
+            }
+
+
+            public Dictionary load( String pid ) throws IOException
+            {
+                return pm.load( pid );
+            }
+        }, null ) );
+
+        ConfigurationBatch batch = createBatch();
+        batch.update( "a", props( "2" ) );
+        batch.delete( "f.1" );
+        try
+        {
+            batch.commit();
+            fail( "Expected failure storing the batch" );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // expected
+        }
+
+        assertEquals( "1", configMgr.getConfiguration( "a" ).getProperties( false ).get( "value" ) );
+        assertNotNull( configMgr.getConfiguration( "f.1" ) );
+        assertTrue( events.isEmpty() );
+    }
+
+
+    public void test_commit_after_failure() throws IOException
+    {
+        final boolean[] failing = new boolean[]
+            { true };
+        setPersistenceManager( new CachingPersistenceManagerProxy( new MockPersistenceManager()
+        {
+            public void store( String pid, Dictionary properties )
+            {
+                if ( failing[0] )
+                {
+                    throw new IllegalStateException( "Cannot store " + pid );
+                }
+                pm.store( pid, properties );
+            }
+
+
+            public boolean exists( String pid )
+            {
+                return pm.exists( pid );
+            }
+
+
+            public Dictionary load( String pid ) throws IOException
+            {
+                return pm.load( pid );
+            }
+        }, null ) );
+
+        ConfigurationBatch batch = createBatch();
+        batch.update( "a", props( "2" ) );
+        try
+        {
+            batch.commit();
+            fail( "Expected failure storing the batch" );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // expected
+        }
+        assertTrue( events.isEmpty() );
+
+        // the batch is not committed by the failed attempt
+        failing[0] = false;
+        batch.commit();
+        assertEquals( "2", pm.load( "a" ).get( "value" ) );
+        assertEquals( "2", configMgr.getConfiguration( "a" ).getProperties( false ).get( "value" ) );
+        assertEquals( Arrays.asList( new String[]
+            { "updated a" } ), events );
+    }
+
+
+    public void test_failure_does_not_cache_factory() throws IOException
+    {
+        setPersistenceManager( new CachingPersistenceManagerProxy( new MockPersistenceManager()
+        {
+            public void store( String pid, Dictionary properties )
+            {
+                throw new IllegalStateException( "Cannot store " + pid );
+            }
+        }, null ) );
+
+        ConfigurationBatch batch = createBatch();
+        batch.createFactoryConfiguration( "g", props( "1" ) );
+        try
+        {
+            batch.commit();
+            fail( "Expected failure storing the batch" );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // expected
+        }
+
+        assertNull( configMgr.getCachedFactory( "g" ) );
+        assertTrue( events.isEmpty() );
+    }
+
+
+    public void test_several_persistence_managers() throws IOException
+    {
+        // "a" is loaded from the second persistence manager while the new
+        // configuration "b" is created in the first one
+        final MockPersistenceManager first = new MockPersistenceManager();
+        setPersistenceManagers( new PersistenceManager[]
+            { new CachingPersistenceManagerProxy( first, null ), new CachingPersistenceManagerProxy( pm, null ) } );
+
+        ConfigurationBatch batch = createBatch();
+        batch.update( "a", props( "2" ) );
+        batch.update( "b", props( "1" ) );
+        try
+        {
+            batch.commit();
+            fail( "Expected IOException for several persistence managers" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+
+        assertFalse( first.exists( "b" ) );
+        assertEquals( "1", pm.load( "a" ).get( "value" ) );
+        assertEquals( "1", configMgr.getConfiguration( "a" ).getProperties( false ).get( "value" ) );
+        assertNull( configMgr.getConfiguration( "b" ) );
+        assertTrue( events.isEmpty() );
+    }
+
+
+    public void test_committed() throws IOException
+    {
+        ConfigurationBatch batch = createBatch();
+        batch.update( "a", props( "2" ) );
+        batch.commit();
+
+        try
+        {
+            batch.update( "a", props( "3" ) );
+            fail( "Expected IllegalStateException after commit" );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // expected
+        }
+
+        try
+        {
+            batch.commit();
+            fail( "Expected IllegalStateException after commit" );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // expected
+        }
+    }
+
+
+    public void test_invalid_properties()
+    {
+        Hashtable props = new Hashtable();
+        props.put( "value", new Object() );
+        try
+        {
+            createBatch().update( "a", props );
+            fail( "Expected IllegalArgumentException for an invalid value" );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // expected
+        }
+    }
+
+
+    private ConfigurationBatch createBatch()
+    {
+        return new ConfigurationAdminImpl( configMgr, null ).createBatch();
+    }
+
+
+    private void store( final String pid, final String factoryPid, final String value )
+    {
+        Dictionary props = props( value );
+        props.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        pm.store( pid, props );
+    }
+
+
+    private static Dictionary props( final String value )
+    {
+        Hashtable props = new Hashtable();
+        props.put( "value", value );
+        return props;
+    }
+
+
+    private void assertFactoryPids( final String expected ) throws IOException
+    {
+        List<String> expectedPids = new ArrayList<String>( Arrays.asList( expected.split( " " ) ) );
+        List<String> actualPids = new ArrayList<String>( Arrays.asList( ( String[] ) pm.load( "f.factory" ).get(
+            Factory.FACTORY_PID_LIST ) ) );
+        Collections.sort( expectedPids );
+        Collections.sort( actualPids );
+        assertEquals( expectedPids, actualPids );
+    }
+
+
+    private void setPersistenceManager( final PersistenceManager persistenceManager )
+    {
+        setPersistenceManagers( new PersistenceManager[]
+            { persistenceManager } );
+    }
+
+
+    private void setPersistenceManagers( final PersistenceManager[] persistenceManagers )
+    {
+        try
+        {
+            Field field = ConfigurationManager.class.getDeclaredField( "persistenceManagers" );
+            field.setAccessible( true );
+            field.set( configMgr, persistenceManagers );
+
+            // an unopened tracker never reports new persistence managers
+            field = ConfigurationManager.class.getDeclaredField( "persistenceManagerTracker" );
+            field.setAccessible( true );
+            field.set( configMgr, new ServiceTracker( new MockBundleContext(), "", null ) );
+        }
+        catch ( Throwable t )
+        {
+            throw new RuntimeException( t );
+        }
+    }
+}
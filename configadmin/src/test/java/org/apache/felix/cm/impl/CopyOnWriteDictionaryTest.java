@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+
+public class CopyOnWriteDictionaryTest extends TestCase
+{
+
+    public void test_copy()
+    {
+        Hashtable source = new Hashtable();
+        source.put( "a", "1" );
+        CopyOnWriteDictionary dict = new CopyOnWriteDictionary( source );
+
+        source.put( "b", "2" );
+        assertEquals( 1, dict.size() );
+        assertEquals( "1", dict.get( "a" ) );
+        assertNull( dict.get( "b" ) );
+    }
+
+
+    public void test_share()
+    {
+        Hashtable source = new Hashtable();
+        source.put( "a", "1" );
+        source.put( "b", "2" );
+        CopyOnWriteDictionary dict = new CopyOnWriteDictionary( source );
+        CopyOnWriteDictionary shared = dict.share();
+
+        shared.put( "a", "3" );
+        shared.remove( "b" );
+        assertEquals( "3", shared.get( "a" ) );
+        assertNull( shared.get( "b" ) );
+        assertEquals( "1", dict.get( "a" ) );
+        assertEquals( "2", dict.get( "b" ) );
+
+        // the original is copied on write as well
+        CopyOnWriteDictionary other = new CopyOnWriteDictionary( dict );
+        dict.put( "c", "4" );
+        assertNull( other.get( "c" ) );
+        assertEquals( 2, other.size() );
+        assertEquals( 3, dict.size() );
+    }
+
+
+    public void test_remove_missing_does_not_copy()
+    {
+        Hashtable source = new Hashtable();
+        source.put( "a", "1" );
+        CopyOnWriteDictionary dict = new CopyOnWriteDictionary( source );
+        CopyOnWriteDictionary shared = dict.share();
+
+        assertNull( shared.remove( "b" ) );
+        dict.put( "b", "2" );
+        assertNull( shared.get( "b" ) );
+    }
+
+
+    public void test_enumerations()
+    {
+        Hashtable source = new Hashtable();
+        source.put( "a", "1" );
+        Dictionary dict = new CopyOnWriteDictionary( source );
+
+        assertEquals( Collections.singletonList( "a" ), Collections.list( dict.keys() ) );
+        assertEquals( Collections.singletonList( "1" ), Collections.list( dict.elements() ) );
+        assertFalse( dict.isEmpty() );
+    }
+
+
+    public void test_null()
+    {
+        Dictionary dict = new CopyOnWriteDictionary( new Hashtable() );
+        try
+        {
+            dict.put( "a", null );
+            fail( "Expected NullPointerException" );
+        }
+        catch ( NullPointerException npe )
+        {
+            // expected
+        }
+        try
+        {
+            dict.get( null );
+            fail( "Expected NullPointerException" );
+        }
+        catch ( NullPointerException npe )
+        {
+            // expected
+        }
+        assertTrue( dict.isEmpty() );
+    }
+}
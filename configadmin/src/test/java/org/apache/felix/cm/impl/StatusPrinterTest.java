@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+
+public class StatusPrinterTest extends TestCase
+{
+
+    public void test_print_statistics() throws InterruptedException
+    {
+        final ThreadGroup threadGroup = new ThreadGroup( "StatusPrinterTest" );
+        final UpdateDispatcher dispatcher = new UpdateDispatcher( new MockConfigurationManager(), threadGroup,
+            "Test Updater", 2 );
+        try
+        {
+            dispatcher.start();
+            for ( int i = 0; i < 5; i++ )
+            {
+                dispatcher.schedule( "a" + i, new Runnable()
+                {
+                    public void run()
+                    {
+                    }
+                } );
+            }
+        }
+        finally
+        {
+            dispatcher.terminate();
+        }
+
+        final StringWriter out = new StringWriter();
+        new StatusPrinter( dispatcher ).printConfiguration( new PrintWriter( out ) );
+        final String status = out.toString();
+
+        assertTrue( status, status.indexOf( "Update threads: 2" ) >= 0 );
+        assertTrue( status, status.indexOf( "Queue depth: 0" ) >= 0 );
+        assertTrue( status, status.indexOf( "Completed updates: 5" ) >= 0 );
+        assertTrue( status, status.indexOf( "Coalesced updates: 0" ) >= 0 );
+    }
+}
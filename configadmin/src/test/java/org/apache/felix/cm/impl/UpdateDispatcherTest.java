@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+
+public class UpdateDispatcherTest extends TestCase
+{
+
+    private ThreadGroup threadGroup;
+
+    private UpdateDispatcher dispatcher;
+
+    private List<String> runs;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        threadGroup = new ThreadGroup( "UpdateDispatcherTest" );
+        dispatcher = new UpdateDispatcher( new MockConfigurationManager(), threadGroup, "Test Updater", 4 );
+        runs = Collections.synchronizedList( new ArrayList<String>() );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        dispatcher.terminate();
+
+        super.tearDown();
+    }
+
+
+    public void test_order_per_key() throws InterruptedException
+    {
+        dispatcher.start();
+        for ( int i = 0; i < 100; i++ )
+        {
+            dispatcher.schedule( "a", new Record( "a" + i ) );
+            dispatcher.schedule( "b", new Record( "b" + i ) );
+        }
+        dispatcher.terminate();
+
+        int a = 0;
+        int b = 0;
+        for ( String run : runs )
+        {
+            if ( run.startsWith( "a" ) )
+            {
+                assertEquals( "a" + a++, run );
+            }
+            else
+            {
+                assertEquals( "b" + b++, run );
+            }
+        }
+        assertEquals( 100, a );
+        assertEquals( 100, b );
+        assertEquals( 200, dispatcher.getTaskCount() );
+        assertEquals( 0, dispatcher.getQueueSize() );
+    }
+
+
+    public void test_blocked_key_does_not_block_others() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final CountDownLatch otherRun = new CountDownLatch( 1 );
+
+        dispatcher.start();
+        dispatcher.schedule( "slow", new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    release.await( 10, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    // ignore
+                }
+            }
+        } );
+        dispatcher.schedule( "slow", new Record( "slow" ) );
+        dispatcher.schedule( "other", new Runnable()
+        {
+            public void run()
+            {
+                otherRun.countDown();
+            }
+        } );
+
+        assertTrue( "Expected other key to be processed", otherRun.await( 5, TimeUnit.SECONDS ) );
+        assertTrue( runs.isEmpty() );
+
+        release.countDown();
+        dispatcher.terminate();
+        assertEquals( Collections.singletonList( "slow" ), runs );
+    }
+
+
+    public void test_replace_queued_update()
+    {
+        // not started: all tasks remain queued
+        dispatcher.schedule( "f", "f.1", true, new Record( "update f.1 #1" ) );
+        dispatcher.schedule( "f", "f.2", true, new Record( "update f.2 #1" ) );
+        dispatcher.schedule( "f", "f.1", true, new Record( "update f.1 #2" ) );
+        dispatcher.schedule( "f", "f.2", false, new Record( "delete f.2" ) );
+        dispatcher.schedule( "f", "f.2", true, new Record( "update f.2 #2" ) );
+        dispatcher.schedule( "f", new Record( "factory f" ) );
+        dispatcher.schedule( "f", "f.1", true, new Record( "update f.1 #3" ) );
+        assertEquals( 5, dispatcher.getQueueSize() );
+        assertEquals( 2, dispatcher.getCoalescedCount() );
+
+        dispatcher.start();
+        dispatcher.terminate();
+
+        assertEquals( 5, runs.size() );
+        assertEquals( "update f.1 #3", runs.get( 0 ) );
+        assertEquals( "update f.2 #1", runs.get( 1 ) );
+        assertEquals( "delete f.2", runs.get( 2 ) );
+        assertEquals( "update f.2 #2", runs.get( 3 ) );
+        assertEquals( "factory f", runs.get( 4 ) );
+        assertEquals( 5, dispatcher.getMaxQueueSize() );
+    }
+
+
+    public void test_no_tasks_after_terminate()
+    {
+        dispatcher.start();
+        dispatcher.schedule( "a", new Record( "a" ) );
+        dispatcher.terminate();
+        dispatcher.schedule( "a", new Record( "b" ) );
+
+        assertEquals( Collections.singletonList( "a" ), runs );
+        assertEquals( 0, dispatcher.getQueueSize() );
+    }
+
+
+    public void test_failing_task()
+    {
+        dispatcher.start();
+        dispatcher.schedule( "a", new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException( "failing task" );
+            }
+        } );
+        dispatcher.schedule( "a", new Record( "a" ) );
+        dispatcher.terminate();
+
+        assertEquals( Collections.singletonList( "a" ), runs );
+        assertEquals( 2, dispatcher.getTaskCount() );
+    }
+
+    private class Record implements Runnable
+    {
+        private final String name;
+
+
+        Record( final String name )
+        {
+            this.name = name;
+        }
+
+
+        public void run()
+        {
+            runs.add( name );
+        }
+
+
+        public String toString()
+        {
+            return name;
+        }
+    }
+}
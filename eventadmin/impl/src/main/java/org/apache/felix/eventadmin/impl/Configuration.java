@@ -43,9 +43,8 @@ import org.osgi.service.metatype.MetaTypeProvider;
  *      <tt>org.apache.felix.eventadmin.ThreadPoolSize</tt> - The size of the thread
  *          pool.
  * </p>
- * The default value is 10. Increase in case of a large amount of synchronous events
- * where the <tt>EventHandler</tt> services in turn send new synchronous events in
- * the event dispatching thread or a lot of timeouts are to be expected. A value of
+ * The default value is 10. Increase in case of a large amount of asynchronous events
+ * where the <tt>EventHandler</tt> services take a long time to process them. A value of
  * less then 2 triggers the default value. A value of 2 effectively disables thread
  * pooling.
  * </p>
@@ -56,7 +55,10 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * </p>
  * The default value is 5000. Increase or decrease at own discretion. A value of less
  * then 100 turns timeouts off. Any other value is the time in milliseconds granted
- * to each <tt>EventHandler</tt> before it gets blacklisted.
+ * to each <tt>EventHandler</tt> before it gets blacklisted. The handlers are called
+ * by the delivering thread, a watchdog thread blacklists handlers exceeding the
+ * timeout. The latencies of each handler are recorded in a histogram which is logged
+ * together with the blacklisting and, on debug level, once the handler goes away.
  * </p>
  * <p>
  * <p>
@@ -75,8 +77,8 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * </p>
  * If a timeout is configured by default all event handlers are called using the timeout.
  * For performance optimization it is possible to configure event handlers where the
- * timeout handling is not used - this reduces the thread usage from the thread pools
- * as the timout handling requires an additional thread to call the event handler.
+ * timeout handling is not used - this avoids registering each call of the event handler
+ * with the watchdog.
  * However, the application should work without this configuration property. It is a
  * pure optimization!
  * The value is a list of string (separated by comma). If the string ends with a dot,
@@ -84,6 +86,40 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
  *
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.QueueSize</tt> - The maximum number of
+ *          queued asynchronous deliveries.
+ * </p>
+ * The default value is 1000. If the queue is full, the rejection policy decides
+ * what happens with new deliveries.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.RejectionPolicy</tt> - What to do if the
+ *          queue is full.
+ * </p>
+ * One of <tt>block</tt> (the posting thread waits), <tt>drop-oldest</tt> (all
+ * pending events of the posting thread queued first are discarded) or
+ * <tt>caller-runs</tt> (the posting thread delivers the events itself). The
+ * default is <tt>caller-runs</tt>.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.VirtualThreads</tt> - Deliver asynchronous
+ *          events in virtual threads?
+ * </p>
+ * The default is <tt>false</tt>. If enabled and supported by the Java runtime, each
+ * asynchronous delivery uses a new virtual thread instead of a pooled thread and the
+ * queue size limits the number of concurrent deliveries.
+ * </p>
+ * <p>
+ * The queue depth and the number of rejected and discarded deliveries are
+ * published by a {@link StatusPrinter} on the configuration status page of the
+ * Apache Felix Web Console. They are also logged when the thread pool is
+ * reconfigured or closed.
+ * </p>
+ *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
  * through the config admin.
@@ -100,6 +136,9 @@ public class Configuration
     static final String PROP_REQUIRE_TOPIC = "org.apache.felix.eventadmin.RequireTopic";
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
+    static final String PROP_QUEUE_SIZE = "org.apache.felix.eventadmin.QueueSize";
+    static final String PROP_REJECTION_POLICY = "org.apache.felix.eventadmin.RejectionPolicy";
+    static final String PROP_VIRTUAL_THREADS = "org.apache.felix.eventadmin.VirtualThreads";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -114,9 +153,13 @@ public class Configuration
 
     private int m_logLevel;
 
-    // The thread pool used - this is a member because we need to close it on stop
-    private volatile DefaultThreadPool m_sync_pool;
+    private int m_queueSize;
 
+    private String m_rejectionPolicy;
+
+    private boolean m_virtualThreads;
+
+    // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_async_pool;
 
     // The actual implementation of the service - this is a member because we need to
@@ -128,6 +171,9 @@ public class Configuration
     // The registration of the security decorator factory (i.e., the service)
     private volatile ServiceRegistration m_registration;
 
+    // The registration of the status printer
+    private volatile ServiceRegistration m_statusPrinterReg;
+
     // all adapters
     private AbstractAdapter[] m_adapters;
 
@@ -197,10 +243,8 @@ public class Configuration
     {
         if ( config == null )
         {
-            // The size of the internal thread pool. Note that we must execute
-            // each synchronous event dispatch that happens in the synchronous event
-            // dispatching thread in a new thread, hence a small thread pool is o.k.
-            // A value of less then 2 triggers the default value. A value of 2
+            // The size of the internal thread pool used for asynchronous event
+            // delivery. A value of less then 2 triggers the default value. A value of 2
             // effectively disables thread pooling. Furthermore, this will be used by
             // a lazy thread pool (i.e., new threads are created when needed). Ones the
             // the size is reached and no cached thread is available new threads will
@@ -239,6 +283,14 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+
+            // The bounded queue of the asynchronous delivery and what to do
+            // if it is full.
+            m_queueSize = getIntProperty(PROP_QUEUE_SIZE,
+                    m_bundleContext.getProperty(PROP_QUEUE_SIZE), 1000, 1);
+            m_rejectionPolicy = getPolicyProperty(m_bundleContext.getProperty(PROP_REJECTION_POLICY));
+            m_virtualThreads = getBooleanProperty(
+                m_bundleContext.getProperty(PROP_VIRTUAL_THREADS), false);
         }
         else
         {
@@ -264,6 +316,9 @@ public class Configuration
                     config.get(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_queueSize = getIntProperty(PROP_QUEUE_SIZE, config.get(PROP_QUEUE_SIZE), 1000, 1);
+            m_rejectionPolicy = getPolicyProperty(config.get(PROP_REJECTION_POLICY));
+            m_virtualThreads = getBooleanProperty(config.get(PROP_VIRTUAL_THREADS), false);
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -283,33 +338,33 @@ public class Configuration
             PROP_TIMEOUT + "=" + m_timeout);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_QUEUE_SIZE + "=" + m_queueSize);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_REJECTION_POLICY + "=" + m_rejectionPolicy);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_VIRTUAL_THREADS + "=" + m_virtualThreads);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
         // is reached. Subsequently, a threadPoolSize of 2 effectively disables
         // caching of threads.
-        if ( m_sync_pool == null )
-        {
-            m_sync_pool = new DefaultThreadPool(m_threadPoolSize, true);
-        }
-        else
-        {
-            m_sync_pool.configure(m_threadPoolSize);
-        }
         final int asyncThreadPoolSize = m_threadPoolSize > 5 ? m_threadPoolSize / 2 : 2;
         if ( m_async_pool == null )
         {
-            m_async_pool = new DefaultThreadPool(asyncThreadPoolSize, false);
+            m_async_pool = new DefaultThreadPool(asyncThreadPoolSize,
+                    m_queueSize, m_rejectionPolicy, m_virtualThreads);
         }
         else
         {
-            m_async_pool.configure(asyncThreadPoolSize);
+            logStatistics(m_async_pool);
+            m_async_pool.configure(asyncThreadPoolSize,
+                    m_queueSize, m_rejectionPolicy, m_virtualThreads);
         }
 
         if ( m_admin == null )
         {
             m_admin = new EventAdminImpl(m_bundleContext,
-                    m_sync_pool,
                     m_async_pool,
                     m_timeout,
                     m_ignoreTimeout,
@@ -323,6 +378,15 @@ public class Configuration
             // appropriated permissions of each calling bundle
             m_registration = m_bundleContext.registerService(EventAdmin.class.getName(),
                     new SecureEventAdminFactory(m_admin), null);
+
+            // publish the statistics of the asynchronous delivery
+            final Dictionary props = new Hashtable();
+            props.put("felix.webconsole.label", StatusPrinter.LABEL);
+            props.put("felix.webconsole.title", StatusPrinter.TITLE);
+            props.put("felix.webconsole.configprinter.modes", StatusPrinter.MODES);
+            props.put(Constants.SERVICE_DESCRIPTION, "Apache Felix Event Admin Status Printer");
+            m_statusPrinterReg = m_bundleContext.registerService(StatusPrinter.class.getName(),
+                    new StatusPrinter(m_async_pool), props);
         }
         else
         {
@@ -355,6 +419,11 @@ public class Configuration
                 m_managedServiceReg.unregister();
                 m_managedServiceReg = null;
             }
+            if ( m_statusPrinterReg != null )
+            {
+                m_statusPrinterReg.unregister();
+                m_statusPrinterReg = null;
+            }
             // We need to unregister manually
             if ( m_registration != null )
             {
@@ -368,14 +437,10 @@ public class Configuration
             }
             if (m_async_pool != null )
             {
+                logStatistics(m_async_pool);
                 m_async_pool.close();
                 m_async_pool = null;
             }
-            if ( m_sync_pool != null )
-            {
-                m_sync_pool.close();
-                m_sync_pool = null;
-            }
         }
     }
 
@@ -397,7 +462,8 @@ public class Configuration
         {
             return new MetaTypeProviderImpl((ManagedService)managedService,
                     m_threadPoolSize, m_timeout, m_requireTopic,
-                    m_ignoreTimeout);
+                    m_ignoreTimeout, m_queueSize, m_rejectionPolicy,
+                    m_virtualThreads);
         }
         catch (final Throwable t)
         {
@@ -466,6 +532,39 @@ public class Configuration
         return defaultValue;
     }
 
+    /**
+     * Logs the statistics of the asynchronous delivery before the pool
+     * is reconfigured or closed.
+     */
+    private void logStatistics(final DefaultThreadPool pool)
+    {
+        LogWrapper.getLogger().log(LogWrapper.LOG_INFO,
+            "Asynchronous delivery: queue depth=" + pool.getQueueDepth()
+            + ", rejected deliveries=" + pool.getRejectedCount()
+            + ", discarded deliveries=" + pool.getDiscardedCount());
+    }
+
+    /**
+     * Returns the rejection policy if the value of the property is a valid
+     * policy or the default policy otherwise.
+     */
+    private String getPolicyProperty(final Object obj)
+    {
+        if ( null != obj )
+        {
+            final String value = obj.toString().trim().toLowerCase();
+            if ( DefaultThreadPool.POLICY_BLOCK.equals(value)
+                || DefaultThreadPool.POLICY_DROP_OLDEST.equals(value)
+                || DefaultThreadPool.POLICY_CALLER_RUNS.equals(value) )
+            {
+                return value;
+            }
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Value for property: " + PROP_REJECTION_POLICY + " is not a valid policy - Using default");
+        }
+        return DefaultThreadPool.POLICY_CALLER_RUNS;
+    }
+
     /**
      * Returns true if the value of the property is set and is either 1, true, or yes
      * Returns false if the value of the property is set and is either 0, false, or no
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Dictionary;
 
+import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.osgi.service.metatype.*;
@@ -38,14 +39,21 @@ public class MetaTypeProviderImpl
     private final int m_timeout;
     private final boolean m_requireTopic;
     private final String[] m_ignoreTimeout;
+    private final int m_queueSize;
+    private final String m_rejectionPolicy;
+    private final boolean m_virtualThreads;
 
     private final ManagedService m_delegatee;
 
     public MetaTypeProviderImpl(final ManagedService delegatee,
             final int threadPoolSize,
             final int timeout, final boolean requireTopic,
-            final String[] ignoreTimeout)
+            final String[] ignoreTimeout, final int queueSize,
+            final String rejectionPolicy, final boolean virtualThreads)
     {
+        m_queueSize = queueSize;
+        m_rejectionPolicy = rejectionPolicy;
+        m_virtualThreads = virtualThreads;
         m_threadPoolSize = threadPoolSize;
         m_timeout = timeout;
         m_requireTopic = requireTopic;
@@ -87,15 +95,15 @@ public class MetaTypeProviderImpl
 
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_THREAD_POOL_SIZE, "Thread Pool Size",
                 "The size of the thread pool. The default value is 10. Increase in case of a large amount " +
-                "of synchronous events where the event handler services in turn send new synchronous events in " +
-                "the event dispatching thread or a lot of timeouts are to be expected. A value of " +
+                "of asynchronous events where the event handler services take a long time to process them. A value of " +
                 "less then 2 triggers the default value. A value of 2 effectively disables thread pooling.",
                 m_threadPoolSize ) );
 
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_TIMEOUT, "Timeout",
                     "The black-listing timeout in milliseconds. The default value is 5000. Increase or decrease " +
                     "at own discretion. A value of less then 100 turns timeouts off. Any other value is the time " +
-                    "in milliseconds granted to each event handler before it gets blacklisted",
+                    "in milliseconds granted to each event handler before it gets blacklisted. The latencies of " +
+                    "each handler are logged together with the blacklisting and on debug level.",
                     m_timeout ) );
 
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_REQUIRE_TOPIC, "Require Topic",
@@ -108,14 +116,32 @@ public class MetaTypeProviderImpl
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_IGNORE_TIMEOUT, "Ignore Timeouts",
                     "Configure event handlers to be called without a timeout. If a timeout is configured by default " +
                     "all event handlers are called using the timeout. For performance optimization it is possible to " +
-                    "configure event handlers where the timeout handling is not used - this reduces the thread usage " +
-                    "from the thread pools as the timout handling requires an additional thread to call the event " +
-                    "handler. However, the application should work without this configuration property. It is a " +
+                    "configure event handlers where the timeout handling is not used - this avoids registering " +
+                    "each call of the event handler with the watchdog. However, the application should work without " +
+                    "this configuration property. It is a " +
                     "pure optimization! The value is a list of strings. If a string ends with a dot, " +
                     "all handlers in exactly this package are ignored. If the string ends with a star, " +
                     "all handlers in this package and all subpackages are ignored. If the string neither " +
                     "ends with a dot nor with a star, this is assumed to define an exact class name.",
                     AttributeDefinition.STRING, m_ignoreTimeout, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_QUEUE_SIZE, "Queue Size",
+                    "The maximum number of queued asynchronous event deliveries. The default value is 1000. " +
+                    "If the queue is full, the rejection policy decides what happens with new deliveries.",
+                    m_queueSize ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_REJECTION_POLICY, "Rejection Policy",
+                    "What to do if the queue of asynchronous event deliveries is full: the posting thread either " +
+                    "waits until there is space in the queue, all pending events of the posting thread queued first " +
+                    "are discarded or the posting thread delivers the events itself. The default is to deliver " +
+                    "the events in the posting thread.",
+                    AttributeDefinition.STRING, new String[] {m_rejectionPolicy}, 0,
+                    new String[] {"Block", "Drop oldest", "Caller runs"},
+                    new String[] {DefaultThreadPool.POLICY_BLOCK, DefaultThreadPool.POLICY_DROP_OLDEST,
+                            DefaultThreadPool.POLICY_CALLER_RUNS}));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_VIRTUAL_THREADS, "Virtual Threads",
+                    "Deliver each asynchronous event in a new virtual thread instead of a pooled thread. This " +
+                    "requires a Java runtime supporting virtual threads; the queue size then limits the number of " +
+                    "concurrent deliveries. This is disabled by default.",
+                    m_virtualThreads ) );
             ocd = new ObjectClassDefinition()
             {
 
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl;
+
+import java.io.PrintWriter;
+
+import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+
+/**
+ * The <code>StatusPrinter</code> prints the current statistics of the
+ * asynchronous event delivery: the queue depth and the number of rejected
+ * and discarded deliveries.
+ *
+ * It is registered as a configuration printer of the Apache Felix Web
+ * Console, which finds the {@link #printConfiguration(PrintWriter)} method
+ * by reflection, so the statistics can be watched on a running system
+ * without a dependency on the web console.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class StatusPrinter
+{
+    static final String LABEL = "eventadmin";
+
+    static final String TITLE = "Event Admin";
+
+    static final String[] MODES = new String[] {"txt", "zip"};
+
+    private final DefaultThreadPool m_pool;
+
+    public StatusPrinter(final DefaultThreadPool pool)
+    {
+        m_pool = pool;
+    }
+
+    /**
+     * Prints the statistics. Called by the web console.
+     */
+    public void printConfiguration(final PrintWriter pw)
+    {
+        pw.println("Asynchronous Event Delivery");
+        pw.println("  Rejection policy: " + m_pool.getPolicy());
+        pw.println("  Queue depth: " + m_pool.getQueueDepth() + " of " + m_pool.getQueueSize());
+        pw.println("  Rejected deliveries: " + m_pool.getRejectedCount());
+        pw.println("  Discarded deliveries: " + m_pool.getDiscardedCount());
+    }
+}
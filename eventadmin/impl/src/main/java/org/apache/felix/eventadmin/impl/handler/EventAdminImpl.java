@@ -52,24 +52,21 @@ public class EventAdminImpl implements EventAdmin
     /**
      * The constructor of the <tt>EventAdmin</tt> implementation.
      *
-     * @param syncPool The synchronous thread pool
      * @param asyncPool The asynchronous thread pool
      */
     public EventAdminImpl(
                     final BundleContext bundleContext,
-                    final DefaultThreadPool syncPool,
                     final DefaultThreadPool asyncPool,
                     final int timeout,
                     final String[] ignoreTimeout,
                     final boolean requireTopic)
     {
-        checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
 
         this.tracker = new EventHandlerTracker(bundleContext);
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
-        m_sendManager = new SyncDeliverTasks(syncPool, timeout);
+        m_sendManager = new SyncDeliverTasks(timeout);
         m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
     }
 
@@ -121,6 +118,7 @@ public class EventAdminImpl implements EventAdmin
     {
         this.tracker.close();
         this.tracker = null;
+        m_sendManager.stop();
     }
 
     /**
@@ -18,10 +18,13 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
+import org.apache.felix.eventadmin.impl.util.LatencyHistogram;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Filter;
@@ -54,18 +57,27 @@ public class EventHandlerProxy {
     /** Optional filter. */
     private volatile Filter filter;
 
+    /**
+     * The property name and value if the filter is a simple equality
+     * test like <code>(name=value)</code>.
+     */
+    private volatile String[] equalityFilter;
+
     /** Lazy fetched event handler. */
     private volatile EventHandler handler;
 
     /** Is this handler blacklisted? */
-    private volatile boolean blacklisted;
+    private final AtomicBoolean blacklisted = new AtomicBoolean();
 
     /** Use timeout. */
-    private boolean useTimeout;
+    private volatile boolean useTimeout;
 
     /** Deliver async ordered. */
     private boolean asyncOrderedDelivery;
 
+    /** The latencies of the event deliveries to this handler. */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
     /**
      * Create an EventHandlerProxy.
      *
@@ -85,7 +97,7 @@ public class EventHandlerProxy {
      */
     public boolean update()
     {
-        this.blacklisted = false;
+        this.blacklisted.set(false);
         boolean valid = true;
         // First check, topic
         final Object topicObj = reference.getProperty(EventConstants.EVENT_TOPIC);
@@ -206,6 +218,8 @@ public class EventHandlerProxy {
             }
         }
         this.filter = handlerFilter;
+        this.equalityFilter = handlerFilter == null ? null
+                        : parseEqualityFilter(reference.getProperty(EventConstants.EVENT_FILTER).toString());
 
         // new in 1.3 - deliver
         this.asyncOrderedDelivery = true;
@@ -270,6 +284,29 @@ public class EventHandlerProxy {
     public void dispose()
     {
         this.release();
+        if ( this.latencies.getCount() > 0 )
+        {
+            LogWrapper.getLogger().log(
+                            LogWrapper.LOG_DEBUG,
+                            "Event delivery latencies of ServiceReference [" + this.reference + " | Bundle("
+                                            + this.reference.getBundle() + ")]: " + this.latencies);
+        }
+    }
+
+    /**
+     * Get the service reference of the event handler.
+     */
+    public ServiceReference getReference()
+    {
+        return this.reference;
+    }
+
+    /**
+     * Get the histogram of the event delivery latencies of this handler.
+     */
+    public LatencyHistogram getLatencyHistogram()
+    {
+        return this.latencies;
     }
 
     /**
@@ -322,6 +359,47 @@ public class EventHandlerProxy {
         return this.topics;
     }
 
+    /**
+     * Get the property name and value of the filter of this handler
+     * if the filter is a simple equality test like <code>(name=value)</code>.
+     * A handler with such a filter receives an event if the property of
+     * the event with exactly this name is a string with exactly this value.
+     * @return An array with the name and the value or <code>null</code>
+     */
+    public String[] getEqualityFilter()
+    {
+        return this.equalityFilter;
+    }
+
+    /**
+     * Parse a filter of the form <code>(name=value)</code>. Only names and
+     * values without white space and without characters having a special
+     * meaning in filters are accepted.
+     * @return An array with the name and the value or <code>null</code>
+     */
+    static String[] parseEqualityFilter(final String filter)
+    {
+        final String f = filter.trim();
+        if ( f.length() < 5 || f.charAt(0) != '(' || f.charAt(f.length() - 1) != ')' )
+        {
+            return null;
+        }
+        final int pos = f.indexOf('=');
+        if ( pos < 2 || pos > f.length() - 3 )
+        {
+            return null;
+        }
+        for(int i=1;i<f.length() - 1;i++)
+        {
+            final char c = f.charAt(i);
+            if ( Character.isWhitespace(c) || "()<>~*\\&|!".indexOf(c) != -1 || ( c == '=' && i != pos ) )
+            {
+                return null;
+            }
+        }
+        return new String[] {f.substring(1, pos), f.substring(pos + 1, f.length() - 1)};
+    }
+
     /**
      * Check if this handler is allowed to receive the event
      * - blacklisted
@@ -330,7 +408,22 @@ public class EventHandlerProxy {
      */
     public boolean canDeliver(final Event event)
     {
-        if ( this.blacklisted )
+        return this.canDeliver(event,
+                        PermissionsUtil.createSubscribePermission(event.getTopic()),
+                        true);
+    }
+
+    /**
+     * Check if this handler is allowed to receive the event
+     * - blacklisted
+     * - check filter if requested
+     * - check permission
+     * @param permission The subscribe permission for the topic of the event
+     * @param checkFilter Whether the filter has to be checked
+     */
+    public boolean canDeliver(final Event event, final Permission permission, final boolean checkFilter)
+    {
+        if ( this.blacklisted.get() )
         {
             return false;
         }
@@ -343,14 +436,13 @@ public class EventHandlerProxy {
 
         // filter match
         final Filter eventFilter = this.filter;
-        if ( eventFilter != null && !event.matches(eventFilter) )
+        if ( checkFilter && eventFilter != null && !event.matches(eventFilter) )
         {
             return false;
         }
 
         // permission check
-        final Object p = PermissionsUtil.createSubscribePermission(event.getTopic());
-        if (p != null && !bundle.hasPermission(p) )
+        if (permission != null && !bundle.hasPermission(permission) )
         {
             return false;
         }
@@ -363,6 +455,11 @@ public class EventHandlerProxy {
      */
     public boolean useTimeout()
     {
+        // the timeout configuration is only known once the handler is obtained
+        if ( this.handler == null && !this.blacklisted.get() )
+        {
+            this.obtain();
+        }
         return this.useTimeout;
     }
 
@@ -424,16 +521,23 @@ public class EventHandlerProxy {
     }
 
     /**
-     * Blacklist the handler.
+     * Blacklist the handler. The watchdog and the delivering thread might
+     * both detect a timeout, but only the first call blacklists the handler.
+     * @return <code>true</code> if the handler has been blacklisted by this call
      */
-    public void blackListHandler()
+    public boolean blackListHandler()
     {
+        if ( !this.blacklisted.compareAndSet(false, true) )
+        {
+            return false;
+        }
         LogWrapper.getLogger().log(
                         LogWrapper.LOG_WARNING,
                         "Blacklisting ServiceReference [" + this.reference + " | Bundle("
-                                        + this.reference.getBundle() + ")] due to timeout!");
-        this.blacklisted = true;
+                                        + this.reference.getBundle() + ")] due to timeout! Latencies: "
+                                        + this.latencies);
         // we can free the handler now.
         this.release();
+        return true;
     }
 }
@@ -18,8 +18,11 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
@@ -33,6 +36,14 @@ import org.osgi.util.tracker.ServiceTracker;
  */
 public class EventHandlerTracker extends ServiceTracker {
 
+    /**
+     * The maximum number of topics for which the handlers are cached. If
+     * more topics are used, topics not used recently are evicted.
+     */
+    static final int MAX_CACHED_TOPICS = 1000;
+
+    private static final EventHandlerProxy[] EMPTY = new EventHandlerProxy[0];
+
     /** The proxies in this list match all events. */
 	private volatile List matchingAllEvents;
 
@@ -50,6 +61,9 @@ public class EventHandlerTracker extends ServiceTracker {
 	/** The context for the proxies. */
 	private HandlerContext handlerContext;
 
+	/** The topic trie and the cached handlers per topic. */
+	private volatile Snapshot snapshot = new Snapshot(new TopicNode());
+
     public EventHandlerTracker(final BundleContext context) {
 		super(context, EventHandler.class.getName(), null);
 
@@ -211,6 +225,7 @@ public class EventHandlerTracker extends ServiceTracker {
     		    this.matchingPrefixTopic = newMatchingPrefixTopic;
     		}
 		}
+		this.rebuild();
 	}
 
     /**
@@ -263,6 +278,7 @@ public class EventHandlerTracker extends ServiceTracker {
                 this.matchingPrefixTopic = newMatchingPrefixTopic;
             }
         }
+        this.rebuild();
 	}
 
 	/**
@@ -272,46 +288,323 @@ public class EventHandlerTracker extends ServiceTracker {
 	 * @return All handlers for the event
 	 */
 	public Collection getHandlers(final Event event) {
-	    final String topic = event.getTopic();
+	    return this.snapshot.get(event.getTopic()).getHandlers(event);
+	}
 
-		final Set handlers = new HashSet();
+    /**
+     * Are the handlers of the topic cached?
+     */
+    boolean isCached(final String topic) {
+        return this.snapshot.cache.containsKey(topic);
+    }
 
-		// Add all handlers matching everything
-		handlers.addAll(this.matchingAllEvents);
+    /**
+     * Return the number of topics for which the handlers are cached.
+     */
+    int getCachedTopicCount() {
+        return this.snapshot.cache.size();
+    }
 
-		// Now check for prefix matches
-		if ( !this.matchingPrefixTopic.isEmpty() )
-		{
-		    int pos = topic.lastIndexOf('/');
-			while (pos != -1)
-			{
-			    final String prefix = topic.substring(0, pos);
-				List proxies = (List)this.matchingPrefixTopic.get(prefix);
-				if (proxies != null)
-				{
-					handlers.addAll(proxies);
-				}
-
-				pos = prefix.lastIndexOf('/');
-			}
-		}
+    /**
+     * Rebuild the topic trie from the current handlers. This clears
+     * the cached handlers of all topics.
+     */
+    private void rebuild() {
+        final TopicNode root = new TopicNode();
+        root.exact = (EventHandlerProxy[])this.matchingAllEvents.toArray(EMPTY);
+        Iterator i = this.matchingTopic.entrySet().iterator();
+        while ( i.hasNext() ) {
+            final Map.Entry entry = (Map.Entry)i.next();
+            root.getNode((String)entry.getKey()).exact = (EventHandlerProxy[])((List)entry.getValue()).toArray(EMPTY);
+        }
+        i = this.matchingPrefixTopic.entrySet().iterator();
+        while ( i.hasNext() ) {
+            final Map.Entry entry = (Map.Entry)i.next();
+            root.getNode((String)entry.getKey()).prefix = (EventHandlerProxy[])((List)entry.getValue()).toArray(EMPTY);
+        }
+        this.snapshot = new Snapshot(root);
+    }
 
-		// Add the handlers for matching topic names
-		List proxies = (List)this.matchingTopic.get(topic);
-		if (proxies != null) {
-			handlers.addAll(proxies);
-		}
+    /**
+     * The topic trie together with the handlers cached per topic.
+     * A new snapshot is created whenever the handlers change.
+     */
+    private static final class Snapshot
+    {
+        /** The root node of the trie, it holds the handlers matching all topics. */
+        final TopicNode root;
 
-		// now check permission and filters
-		final Iterator i = handlers.iterator();
-		while ( i.hasNext() ) {
-		    final EventHandlerProxy proxy = (EventHandlerProxy) i.next();
-		    if ( !proxy.canDeliver(event) ) {
-		        i.remove();
-		    }
-		}
-		return handlers;
-	}
+        /** The handlers per topic, the key is the topic. */
+        final Map cache = new ConcurrentHashMap();
+
+        Snapshot(final TopicNode root)
+        {
+            this.root = root;
+        }
+
+        /**
+         * Get the handlers for a topic from the cache or look them up and
+         * cache them.
+         */
+        TopicHandlers get(final String topic)
+        {
+            TopicHandlers topicHandlers = (TopicHandlers)this.cache.get(topic);
+            if ( topicHandlers == null )
+            {
+                topicHandlers = this.lookup(topic);
+                if ( this.cache.size() >= MAX_CACHED_TOPICS )
+                {
+                    this.evict();
+                }
+                this.cache.put(topic, topicHandlers);
+            }
+            else if ( !topicHandlers.used )
+            {
+                topicHandlers.used = true;
+            }
+            return topicHandlers;
+        }
+
+        /**
+         * Evict a topic which has not been used since the last eviction.
+         * This approximates evicting the least recently used topic without
+         * tracking the order of the topics on each event.
+         */
+        private void evict()
+        {
+            for(int pass=0;pass<2;pass++)
+            {
+                final Iterator i = this.cache.values().iterator();
+                while ( i.hasNext() )
+                {
+                    final TopicHandlers topicHandlers = (TopicHandlers)i.next();
+                    if ( topicHandlers.used )
+                    {
+                        topicHandlers.used = false;
+                    }
+                    else
+                    {
+                        i.remove();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Find all handlers registered for a topic.
+         */
+        TopicHandlers lookup(final String topic)
+        {
+            // a handler might match the topic more than once
+            final Set handlers = new LinkedHashSet();
+            handlers.addAll(Arrays.asList(this.root.exact));
+            TopicNode node = this.root;
+            int start = 0;
+            while ( node != null )
+            {
+                final int end = topic.indexOf('/', start);
+                node = (TopicNode)node.children.get(end == -1 ? topic.substring(start) : topic.substring(start, end));
+                if ( node != null )
+                {
+                    if ( end == -1 )
+                    {
+                        handlers.addAll(Arrays.asList(node.exact));
+                        break;
+                    }
+                    // prefix handlers only match deeper topics
+                    handlers.addAll(Arrays.asList(node.prefix));
+                    start = end + 1;
+                }
+            }
+            return new TopicHandlers(topic,
+                    (EventHandlerProxy[])handlers.toArray(EMPTY));
+        }
+    }
+
+    /**
+     * A node of the topic trie. Each node represents a topic, the
+     * children are keyed by the next token of the topic.
+     */
+    private static final class TopicNode
+    {
+        final Map children = new HashMap();
+
+        /** The handlers registered for exactly this topic. */
+        EventHandlerProxy[] exact = EMPTY;
+
+        /** The handlers registered for this topic followed by <code>/*</code>. */
+        EventHandlerProxy[] prefix = EMPTY;
+
+        TopicNode getNode(final String topic)
+        {
+            TopicNode node = this;
+            int start = 0;
+            int end;
+            while ( (end = topic.indexOf('/', start)) != -1 )
+            {
+                node = node.getChild(topic.substring(start, end));
+                start = end + 1;
+            }
+            return node.getChild(topic.substring(start));
+        }
+
+        private TopicNode getChild(final String token)
+        {
+            TopicNode child = (TopicNode)this.children.get(token);
+            if ( child == null )
+            {
+                child = new TopicNode();
+                this.children.put(token, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * The handlers for a single topic. Handlers with a simple equality
+     * filter are indexed by the property name and value, so their filters
+     * do not have to be evaluated for each event.
+     */
+    private static final class TopicHandlers
+    {
+        /** Handlers without a filter or with a filter which is not indexed. */
+        private final EventHandlerProxy[] handlers;
+
+        /** All handlers which are not indexed as an unmodifiable list. */
+        private final List handlerList;
+
+        /** Property name to an {@link IndexedHandlers}. */
+        private final Map indexed;
+
+        /** The subscribe permission for the topic. */
+        private final Permission permission;
+
+        /** Has the topic been used since the last eviction? */
+        volatile boolean used;
+
+        TopicHandlers(final String topic, final EventHandlerProxy[] proxies)
+        {
+            final List plain = new ArrayList();
+            final Map byName = new HashMap();
+            for(int i=0;i<proxies.length;i++)
+            {
+                final String[] equalityFilter = proxies[i].getEqualityFilter();
+                if ( equalityFilter == null )
+                {
+                    plain.add(proxies[i]);
+                }
+                else
+                {
+                    IndexedHandlers indexedHandlers = (IndexedHandlers)byName.get(equalityFilter[0]);
+                    if ( indexedHandlers == null )
+                    {
+                        indexedHandlers = new IndexedHandlers();
+                        byName.put(equalityFilter[0], indexedHandlers);
+                    }
+                    indexedHandlers.add(equalityFilter[1], proxies[i]);
+                }
+            }
+            this.handlers = (EventHandlerProxy[])plain.toArray(EMPTY);
+            this.handlerList = Collections.unmodifiableList(Arrays.asList(this.handlers));
+            this.indexed = byName.isEmpty() ? Collections.EMPTY_MAP : byName;
+            this.permission = PermissionsUtil.createSubscribePermission(topic);
+        }
+
+        /**
+         * Get the handlers which can receive the event. If all handlers
+         * can receive the event and none is indexed, the returned
+         * collection is shared and nothing is allocated.
+         */
+        Collection getHandlers(final Event event)
+        {
+            List result = null;
+            for(int i=0;i<this.handlers.length;i++)
+            {
+                final boolean deliver = this.handlers[i].canDeliver(event, this.permission, true);
+                if ( result == null && !deliver )
+                {
+                    result = new ArrayList(this.handlers.length);
+                    for(int j=0;j<i;j++)
+                    {
+                        result.add(this.handlers[j]);
+                    }
+                }
+                else if ( result != null && deliver )
+                {
+                    result.add(this.handlers[i]);
+                }
+            }
+            if ( this.indexed.isEmpty() )
+            {
+                return result == null ? this.handlerList : result;
+            }
+            if ( result == null )
+            {
+                result = new ArrayList(this.handlerList);
+            }
+            final Iterator i = this.indexed.entrySet().iterator();
+            while ( i.hasNext() )
+            {
+                final Map.Entry entry = (Map.Entry)i.next();
+                final IndexedHandlers indexedHandlers = (IndexedHandlers)entry.getValue();
+                final Object value = event.getProperty((String)entry.getKey());
+                if ( value instanceof String )
+                {
+                    final EventHandlerProxy[] matching = (EventHandlerProxy[])indexedHandlers.byValue.get(value);
+                    for(int j=0;matching != null && j<matching.length;j++)
+                    {
+                        if ( matching[j].canDeliver(event, this.permission, false) )
+                        {
+                            result.add(matching[j]);
+                        }
+                    }
+                }
+                else
+                {
+                    // other types or differently cased property names
+                    // are left to the filter
+                    for(int j=0;j<indexedHandlers.all.length;j++)
+                    {
+                        if ( indexedHandlers.all[j].canDeliver(event, this.permission, true) )
+                        {
+                            result.add(indexedHandlers.all[j]);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The handlers with an equality filter on the same property.
+     */
+    private static final class IndexedHandlers
+    {
+        /** Property value to the handlers. */
+        final Map byValue = new HashMap();
+
+        EventHandlerProxy[] all = EMPTY;
+
+        void add(final String value, final EventHandlerProxy proxy)
+        {
+            this.byValue.put(value, append((EventHandlerProxy[])this.byValue.get(value), proxy));
+            this.all = append(this.all, proxy);
+        }
+
+        private static EventHandlerProxy[] append(final EventHandlerProxy[] proxies, final EventHandlerProxy proxy)
+        {
+            if ( proxies == null )
+            {
+                return new EventHandlerProxy[] {proxy};
+            }
+            final EventHandlerProxy[] result = new EventHandlerProxy[proxies.length + 1];
+            System.arraycopy(proxies, 0, result, 0, proxies.length);
+            result[proxies.length] = proxy;
+            return result;
+        }
+    }
 
     /**
      * The matcher interface for checking if timeout handling
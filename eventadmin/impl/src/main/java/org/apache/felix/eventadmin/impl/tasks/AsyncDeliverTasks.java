@@ -18,17 +18,32 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
+import java.lang.ref.WeakReference;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.service.event.Event;
 
 /**
  * This class does the actual work of the asynchronous event dispatch.
  *
+ * Events posted by the same thread are delivered in the order they were
+ * posted. Each posting thread has its own queue of events; posting an
+ * event appends it to this queue without any locking and schedules the
+ * queue with the thread pool unless it is already scheduled. A scheduled
+ * queue delivers all of its events in a single run.
+ *
+ * The queue of a thread is only weakly referenced by the thread. While
+ * events are pending, the queue is strongly referenced by the thread pool,
+ * so a queue which is garbage collected is always empty. This way, long
+ * living threads do not keep the queues and this object after a restart.
+ *
+ * If the thread pool discards a queue as the pool is full, all events
+ * of this queue which are not delivered yet are discarded, i.e. the
+ * {@link DefaultThreadPool#POLICY_DROP_OLDEST} policy drops all pending
+ * events of the posting thread whose queue was scheduled first.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class AsyncDeliverTasks
@@ -42,8 +57,10 @@ public class AsyncDeliverTasks
      */
     private final SyncDeliverTasks m_deliver_task;
 
-    /** A map of running threads currently delivering async events. */
-    private final Map m_running_threads = new HashMap();
+    /**
+     * A weak reference to the queue of the events posted by the current thread.
+     */
+    private final ThreadLocal m_queues = new ThreadLocal();
 
     /**
      * The constructor of the class that will use the asynchronous.
@@ -85,68 +102,136 @@ public class AsyncDeliverTasks
         }
         if ( hasOrdered )
         {*/
-            final Thread currentThread = Thread.currentThread();
-            TaskExecuter executer = null;
-            synchronized (m_running_threads )
+            final WeakReference ref = (WeakReference)m_queues.get();
+            TaskExecuter executer = ref == null ? null : (TaskExecuter)ref.get();
+            if ( executer == null )
             {
-                final TaskExecuter runningExecutor = (TaskExecuter)m_running_threads.get(currentThread);
-                if ( runningExecutor != null )
-                {
-                    runningExecutor.add(tasks, event);
-                }
-                else
-                {
-                    executer = new TaskExecuter( tasks, event, currentThread );
-                    m_running_threads.put(currentThread, executer);
-                }
+                executer = new TaskExecuter();
+                m_queues.set(new WeakReference(executer));
             }
-            if ( executer != null )
+            executer.add(tasks, event);
+            if ( executer.schedule() )
             {
                 m_pool.executeTask(executer);
             }
         //}
     }
 
-    private final class TaskExecuter implements Runnable
+    /**
+     * A delivery of an event, linked to the delivery posted next.
+     */
+    private static final class Delivery
     {
-        private final List m_tasks = new LinkedList();
+        Collection m_tasks;
+
+        Event m_event;
 
-        private final Object m_key;
+        volatile Delivery m_next;
 
-        public TaskExecuter(final Collection tasks, final Event event, final Object key)
+        Delivery(final Collection tasks, final Event event)
         {
-            m_key = key;
-            m_tasks.add(new Object[] {tasks, event});
+            m_tasks = tasks;
+            m_event = event;
+        }
+    }
+
+    /**
+     * The queue of the events posted by a single thread. Events are added
+     * by the posting thread and removed by the thread currently running
+     * the executer; as there is only one thread on each side, the queue
+     * is a plain linked list of deliveries without any locking.
+     */
+    private final class TaskExecuter implements DefaultThreadPool.DiscardableTask
+    {
+        /**
+         * The last added delivery.
+         * Only accessed by the posting thread.
+         */
+        private Delivery m_last;
+
+        /** Is this executer queued with or running in the thread pool? */
+        private final AtomicBoolean m_scheduled = new AtomicBoolean();
+
+        /**
+         * The last delivered delivery, its successor is delivered next.
+         * Only accessed by the thread running the executer.
+         */
+        private Delivery m_delivered;
+
+        public TaskExecuter()
+        {
+            m_delivered = new Delivery(null, null);
+            m_last = m_delivered;
+        }
+
+        public void add(final Collection tasks, final Event event)
+        {
+            final Delivery delivery = new Delivery(tasks, event);
+            final Delivery previous = m_last;
+            m_last = delivery;
+            // publishes the delivery to the thread running the executer
+            previous.m_next = delivery;
+        }
+
+        /**
+         * Mark this executer as scheduled.
+         * @return <code>true</code> if the caller has to schedule the executer.
+         */
+        public boolean schedule()
+        {
+            return !m_scheduled.get() && m_scheduled.compareAndSet(false, true);
+        }
+
+        private Delivery poll()
+        {
+            final Delivery next = m_delivered.m_next;
+            if ( next != null )
+            {
+                // unlink the delivered event
+                m_delivered = next;
+            }
+            return next;
         }
 
         public void run()
         {
-            boolean running;
             do
             {
-                Object[] tasks = null;
-                synchronized ( m_tasks )
+                Delivery delivery;
+                while ( (delivery = this.poll()) != null )
                 {
-                    tasks = (Object[]) m_tasks.remove(0);
+                    final Collection tasks = delivery.m_tasks;
+                    final Event event = delivery.m_event;
+                    delivery.m_tasks = null;
+                    delivery.m_event = null;
+                    m_deliver_task.execute(tasks, event, true);
                 }
-                m_deliver_task.execute((Collection)tasks[0], (Event)tasks[1], true);
-                synchronized ( m_running_threads )
-                {
-                    running = m_tasks.size() > 0;
-                    if ( !running )
-                    {
-                        m_running_threads.remove(m_key);
-                    }
-                }
-            } while ( running );
+                m_scheduled.set(false);
+                // an event might have been added after the last poll; the
+                // posting thread might have seen us as still scheduled.
+            } while ( m_delivered.m_next != null && m_scheduled.compareAndSet(false, true) );
         }
 
-        public void add(final Collection tasks, final Event event)
+        /**
+         * The thread pool discarded this executer, all queued events are lost.
+         */
+        public void discard()
         {
-            synchronized ( m_tasks )
+            int count = 0;
+            Delivery delivery;
+            while ( (delivery = this.poll()) != null )
+            {
+                delivery.m_tasks = null;
+                delivery.m_event = null;
+                count++;
+            }
+            m_scheduled.set(false);
+            if ( m_delivered.m_next != null && this.schedule() )
             {
-                m_tasks.add(new Object[] {tasks, event});
+                m_pool.executeTask(this);
             }
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Discarded " + count + " asynchronous event(s) as the delivery queue is full");
         }
     }
 }
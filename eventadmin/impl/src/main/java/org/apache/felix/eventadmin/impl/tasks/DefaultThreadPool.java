@@ -1,83 +1,153 @@
 /*
- * Licensed to the Apache Software Foundation (ASF) under one or more
- * contributor license agreements.  See the NOTICE file distributed with
- * this work for additional information regarding copyright ownership.
- * The ASF licenses this file to You under the Apache License, Version 2.0
- * (the "License"); you may not use this file except in compliance with
- * the License.  You may obtain a copy of the License at
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
  *
- *      http://www.apache.org/licenses/LICENSE-2.0
+ *   http://www.apache.org/licenses/LICENSE-2.0
  *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import EDU.oswego.cs.dl.util.concurrent.*;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 
 /**
  * A thread pool that allows to execute tasks using pooled threads in order
  * to ease the thread creation overhead.
  *
+ * Tasks are queued in a bounded queue. If the queue is full, the configured
+ * rejection policy decides what happens with a new task:
+ * <ul>
+ * <li>{@link #POLICY_BLOCK} - the caller waits until there is space in the queue.</li>
+ * <li>{@link #POLICY_DROP_OLDEST} - the oldest queued task is discarded.</li>
+ * <li>{@link #POLICY_CALLER_RUNS} - the task is executed by the caller.</li>
+ * </ul>
+ * A task executed by a thread of this pool is never blocked, it is run by
+ * the calling thread instead, as blocking all threads of the pool would
+ * dead lock the pool.
+ *
+ * Optionally, each task is executed in a new virtual thread instead of a
+ * pooled thread. This requires a Java runtime supporting virtual threads;
+ * on other runtimes pooled threads are used. In this mode, the queue size
+ * limits the number of tasks executing concurrently and as there are no
+ * waiting tasks, {@link #POLICY_DROP_OLDEST} discards the new task.
+ *
+ * The number of rejected and discarded tasks is counted. The first time
+ * the queue is full, a warning is logged.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class DefaultThreadPool
-    extends PooledExecutor
 {
+    public static final String POLICY_BLOCK = "block";
+    public static final String POLICY_DROP_OLDEST = "drop-oldest";
+    public static final String POLICY_CALLER_RUNS = "caller-runs";
 
     /**
-     * Create a new pool.
+     * A task which wants to be informed when it is discarded by the
+     * {@link DefaultThreadPool#POLICY_DROP_OLDEST} policy.
      */
-    public DefaultThreadPool(final int poolSize, final boolean syncThreads)
+    public static interface DiscardableTask extends Runnable
     {
-   	    super(new LinkedQueue());
-   	    if ( syncThreads )
-   	    {
-            this.setThreadFactory(new ThreadFactory()
-            {
+        void discard();
+    }
 
-                public Thread newThread( final Runnable command )
-                {
-                    final Thread thread = new SyncThread( command );
-                    thread.setPriority( Thread.NORM_PRIORITY );
-                    thread.setDaemon( true );
+    /** Marks the threads of this pool. */
+    private final ThreadLocal m_poolThread = new ThreadLocal();
 
-                    return thread;
-                }
-            });
-   	    }
-   	    else
-   	    {
-            this.setThreadFactory(new ThreadFactory()
-            {
+    /** The number of tasks which could not be queued. */
+    private final AtomicLong m_rejected = new AtomicLong();
 
-                public Thread newThread( final Runnable command )
-                {
-                    final Thread thread = new Thread( command );
-                    thread.setPriority( Thread.NORM_PRIORITY );
-                    thread.setDaemon( true );
+    /** The number of discarded tasks. */
+    private final AtomicLong m_discarded = new AtomicLong();
 
-                    return thread;
-                }
-            });
-   	    }
-   	    configure(poolSize);
-        setKeepAliveTime(60000);
-        runWhenBlocked();
+    private volatile Engine m_engine;
+
+    private volatile String m_policy;
+
+    private int m_poolSize;
+
+    private int m_queueSize;
+
+    private boolean m_virtualThreads;
+
+    /**
+     * Create a new pool.
+     */
+    public DefaultThreadPool(final int poolSize, final int queueSize,
+            final String policy, final boolean virtualThreads)
+    {
+        configure(poolSize, queueSize, policy, virtualThreads);
     }
 
     /**
-     * Configure a new pool size.
+     * Configure a new pool size, queue size, rejection policy and thread mode.
+     * If the queue size or the thread mode changes, a new engine is created
+     * and the tasks queued in the old one are moved to the new one.
      */
-    public void configure(final int poolSize)
+    public synchronized void configure(final int poolSize, final int queueSize,
+            final String policy, final boolean virtualThreads)
     {
-        setMinimumPoolSize(poolSize);
-        setMaximumPoolSize(poolSize + 10);
+        m_policy = policy;
+        final Engine old = m_engine;
+        if ( old == null || queueSize != m_queueSize || virtualThreads != m_virtualThreads )
+        {
+            Engine engine = null;
+            if ( virtualThreads )
+            {
+                final ThreadFactory factory = createVirtualThreadFactory();
+                if ( factory == null )
+                {
+                    LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                            "Virtual threads are not supported by this Java runtime - Using pooled threads");
+                }
+                else
+                {
+                    engine = new VirtualThreadEngine(queueSize, factory);
+                }
+            }
+            if ( engine == null )
+            {
+                engine = new PooledEngine(poolSize, queueSize);
+            }
+            m_engine = engine;
+            if ( old != null )
+            {
+                old.shutdown();
+                final Iterator i = old.drain().iterator();
+                while ( i.hasNext() )
+                {
+                    engine.execute((Runnable) i.next());
+                }
+            }
+        }
+        else if ( poolSize != m_poolSize )
+        {
+            old.setPoolSize(poolSize);
+        }
+        m_poolSize = poolSize;
+        m_queueSize = queueSize;
+        m_virtualThreads = virtualThreads;
     }
 
     /**
@@ -86,8 +156,7 @@ public class DefaultThreadPool
      */
     public void close()
     {
-        shutdownNow();
-
+        m_engine.shutdownNow();
     }
 
     /**
@@ -98,7 +167,7 @@ public class DefaultThreadPool
     {
         try
         {
-            super.execute(task);
+            m_engine.execute(task);
         }
         catch (final Throwable t)
         {
@@ -108,4 +177,383 @@ public class DefaultThreadPool
             // ignore this
         }
     }
+
+    /**
+     * Return the number of queued tasks or, with virtual threads, the
+     * number of executing tasks.
+     */
+    public int getQueueDepth()
+    {
+        return m_engine.getQueueDepth();
+    }
+
+    /**
+     * Return the configured queue size.
+     */
+    public synchronized int getQueueSize()
+    {
+        return m_queueSize;
+    }
+
+    /**
+     * Return the configured rejection policy.
+     */
+    public String getPolicy()
+    {
+        return m_policy;
+    }
+
+    /**
+     * Return the number of tasks which could not be queued because the
+     * queue was full.
+     */
+    public long getRejectedCount()
+    {
+        return m_rejected.get();
+    }
+
+    /**
+     * Return the number of tasks discarded because the queue was full.
+     */
+    public long getDiscardedCount()
+    {
+        return m_discarded.get();
+    }
+
+    /**
+     * Apply the rejection policy to a task which could not be queued.
+     * @param task The task
+     * @param engine The engine which rejected the task
+     */
+    private void rejected(final Runnable task, final Engine engine)
+    {
+        final String policy = m_policy;
+        if ( m_rejected.incrementAndGet() == 1 )
+        {
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "The queue of the asynchronous event delivery is full - Using the "
+                    + policy + " policy");
+        }
+        if ( POLICY_BLOCK.equals(policy) && m_poolThread.get() == null )
+        {
+            try
+            {
+                engine.put(task);
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                this.discard(task);
+            }
+        }
+        else if ( POLICY_DROP_OLDEST.equals(policy) )
+        {
+            final Runnable oldest = engine.replaceOldest(task);
+            if ( oldest != null )
+            {
+                this.discard(oldest);
+            }
+        }
+        else
+        {
+            task.run();
+        }
+    }
+
+    private void discard(final Runnable task)
+    {
+        m_discarded.incrementAndGet();
+        if ( task instanceof DiscardableTask )
+        {
+            ((DiscardableTask)task).discard();
+        }
+    }
+
+    /**
+     * Marks the threads created by the factory as pool threads.
+     */
+    private ThreadFactory markPoolThreads(final ThreadFactory factory)
+    {
+        return new ThreadFactory()
+        {
+
+            public Thread newThread( final Runnable command )
+            {
+                return factory.newThread( new Runnable()
+                {
+
+                    public void run()
+                    {
+                        m_poolThread.set( Boolean.TRUE );
+                        command.run();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Create a factory for virtual threads using reflection, as virtual
+     * threads are not available on all supported Java versions.
+     * @return The factory or <code>null</code> if virtual threads are not supported.
+     */
+    private static ThreadFactory createVirtualThreadFactory()
+    {
+        try
+        {
+            final Class builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]);
+            builder = builderClass.getMethod("name", new Class[] {String.class, long.class})
+                .invoke(builder, new Object[] {"EventAdminAsyncThread-", Long.valueOf(0)});
+            return (ThreadFactory) builderClass.getMethod("factory", new Class[0]).invoke(builder, new Object[0]);
+        }
+        catch (final Throwable t)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The engine executing the tasks.
+     */
+    private static interface Engine
+    {
+        void execute(Runnable task);
+
+        /** Queue the task, waiting for space if necessary. */
+        void put(Runnable task) throws InterruptedException;
+
+        /**
+         * Replace the oldest queued task with the new task.
+         * @return The replaced task or the new task if it could not be queued
+         */
+        Runnable replaceOldest(Runnable task);
+
+        int getQueueDepth();
+
+        void setPoolSize(int poolSize);
+
+        void shutdown();
+
+        /**
+         * Remove the queued tasks of a shut down engine.
+         * @return The tasks in the order they have been queued
+         */
+        List drain();
+
+        void shutdownNow();
+    }
+
+    /**
+     * Executes the tasks with a fixed number of pooled threads.
+     */
+    private final class PooledEngine implements Engine, RejectedExecutionHandler
+    {
+        private final ThreadPoolExecutor m_executor;
+
+        PooledEngine(final int poolSize, final int queueSize)
+        {
+            m_executor = new ThreadPoolExecutor(poolSize, poolSize,
+                    60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue(queueSize),
+                    markPoolThreads(new ThreadFactory()
+                    {
+
+                        public Thread newThread( final Runnable command )
+                        {
+                            final Thread thread = new Thread( command );
+                            thread.setPriority( Thread.NORM_PRIORITY );
+                            thread.setDaemon( true );
+
+                            return thread;
+                        }
+                    }),
+                    this);
+        }
+
+        public void execute(final Runnable task)
+        {
+            m_executor.execute(task);
+        }
+
+        public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor)
+        {
+            if ( executor.isShutdown() )
+            {
+                // no pooling anymore
+                task.run();
+            }
+            else
+            {
+                rejected(task, this);
+            }
+        }
+
+        public void put(final Runnable task) throws InterruptedException
+        {
+            m_executor.getQueue().put(task);
+            this.requeueIfShutdown(task);
+        }
+
+        public Runnable replaceOldest(final Runnable task)
+        {
+            final Runnable oldest = m_executor.getQueue().poll();
+            if ( !m_executor.getQueue().offer(task) )
+            {
+                if ( oldest != null )
+                {
+                    // we lost the free slot to another thread, keep the oldest task
+                    m_executor.getQueue().offer(oldest);
+                }
+                return task;
+            }
+            this.requeueIfShutdown(task);
+            return oldest;
+        }
+
+        /**
+         * If the engine has been replaced while the task was queued, the
+         * queue might already be drained and the task has to be passed
+         * to the new engine.
+         */
+        private void requeueIfShutdown(final Runnable task)
+        {
+            if ( m_executor.isShutdown() && m_executor.getQueue().remove(task) )
+            {
+                executeTask(task);
+            }
+        }
+
+        public List drain()
+        {
+            final List tasks = new ArrayList();
+            m_executor.getQueue().drainTo(tasks);
+            return tasks;
+        }
+
+        public int getQueueDepth()
+        {
+            return m_executor.getQueue().size();
+        }
+
+        public void setPoolSize(final int poolSize)
+        {
+            if ( poolSize > m_executor.getMaximumPoolSize() )
+            {
+                m_executor.setMaximumPoolSize(poolSize);
+                m_executor.setCorePoolSize(poolSize);
+            }
+            else
+            {
+                m_executor.setCorePoolSize(poolSize);
+                m_executor.setMaximumPoolSize(poolSize);
+            }
+        }
+
+        public void shutdown()
+        {
+            m_executor.shutdown();
+        }
+
+        public void shutdownNow()
+        {
+            m_executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Executes each task in a new virtual thread. The number of
+     * concurrently executing tasks is limited by the queue size.
+     */
+    private final class VirtualThreadEngine implements Engine
+    {
+        private final ThreadFactory m_factory;
+
+        private final Semaphore m_permits;
+
+        private final int m_size;
+
+        private volatile boolean m_shutdown;
+
+        VirtualThreadEngine(final int queueSize, final ThreadFactory factory)
+        {
+            m_factory = markPoolThreads(factory);
+            m_permits = new Semaphore(queueSize);
+            m_size = queueSize;
+        }
+
+        public void execute(final Runnable task)
+        {
+            if ( m_shutdown )
+            {
+                // no new threads anymore
+                task.run();
+            }
+            else if ( m_permits.tryAcquire() )
+            {
+                this.start(task);
+            }
+            else
+            {
+                rejected(task, this);
+            }
+        }
+
+        private void start(final Runnable task)
+        {
+            m_factory.newThread(new Runnable()
+            {
+
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        m_permits.release();
+                    }
+                }
+            }).start();
+        }
+
+        public void put(final Runnable task) throws InterruptedException
+        {
+            m_permits.acquire();
+            this.start(task);
+        }
+
+        public Runnable replaceOldest(final Runnable task)
+        {
+            // there are no waiting tasks
+            return task;
+        }
+
+        public int getQueueDepth()
+        {
+            return m_size - m_permits.availablePermits();
+        }
+
+        public void setPoolSize(final int poolSize)
+        {
+            // no pooled threads
+        }
+
+        public void shutdown()
+        {
+            m_shutdown = true;
+        }
+
+        public List drain()
+        {
+            // there are no waiting tasks
+            return new ArrayList();
+        }
+
+        public void shutdownNow()
+        {
+            m_shutdown = true;
+        }
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+
+/**
+ * The watchdog observes the deadlines of running event handler invocations.
+ *
+ * Event handlers are called by the delivering thread itself. Before a
+ * handler is called the invocation is registered with the watchdog and
+ * it is removed again once the handler returns. A single daemon thread
+ * periodically checks the registered invocations and blacklists a
+ * handler as soon as it is still running after the timeout. Registering
+ * an invocation does not block and does not hand off any work.
+ *
+ * If a handler sends an event itself, the invocation of the handler is
+ * suspended while the inner event is delivered, i.e. the time of the
+ * inner delivery does not count against the timeout of the outer handler.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class HandlerWatchdog
+{
+    /** The maximum time in milliseconds between two checks. */
+    private static final long MAX_CHECK_INTERVAL = 1000;
+
+    /** The minimum time in milliseconds between two checks. */
+    private static final long MIN_CHECK_INTERVAL = 10;
+
+    /** The invocation running on the current thread. */
+    private final ThreadLocal m_current = new ThreadLocal();
+
+    /** The watched invocations, the values are not used. */
+    private final Map m_watched = new ConcurrentHashMap();
+
+    /** Lock for starting, stopping and waking up the watchdog thread. */
+    private final Object m_lock = new Object();
+
+    private volatile long m_timeout;
+
+    private volatile long m_checkInterval;
+
+    /** Is the watchdog thread waiting for new invocations? */
+    private volatile boolean m_idle;
+
+    private volatile Thread m_thread;
+
+    private boolean m_stopped;
+
+    /**
+     * Create a new watchdog.
+     * @param timeout The timeout in milliseconds
+     */
+    public HandlerWatchdog(final long timeout)
+    {
+        this.update(timeout);
+    }
+
+    /**
+     * Update the timeout configuration. The new timeout is used for
+     * all invocations starting afterwards.
+     */
+    public void update(final long timeout)
+    {
+        m_timeout = timeout;
+        m_checkInterval = Math.max(MIN_CHECK_INTERVAL, Math.min(MAX_CHECK_INTERVAL, timeout / 10));
+    }
+
+    /**
+     * Register the invocation of a handler on the current thread.
+     * @param proxy The handler to invoke
+     * @param watch Whether the timeout applies to this invocation
+     * @return The invocation which has to be passed to {@link #finish(Invocation)}
+     */
+    public Invocation start(final EventHandlerProxy proxy, final boolean watch)
+    {
+        final long now = System.nanoTime();
+        final Invocation parent = (Invocation) m_current.get();
+        if ( parent != null && parent.m_watched )
+        {
+            m_watched.remove(parent);
+            parent.m_suspended = now;
+        }
+        final Invocation invocation = new Invocation(proxy, parent, now,
+                watch ? m_timeout * 1000000L : 0);
+        m_current.set(invocation);
+        if ( watch )
+        {
+            m_watched.put(invocation, invocation);
+            this.ensureRunning();
+        }
+        return invocation;
+    }
+
+    /**
+     * Unregister an invocation once the handler returned.
+     * @param invocation The invocation returned by {@link #start(EventHandlerProxy, boolean)}
+     * @return The time spent in the handler in nanoseconds, without the
+     *         time of nested deliveries of watched invocations
+     */
+    public long finish(final Invocation invocation)
+    {
+        final long now = System.nanoTime();
+        if ( invocation.m_watched )
+        {
+            m_watched.remove(invocation);
+        }
+        final Invocation parent = invocation.m_parent;
+        m_current.set(parent);
+        if ( parent != null && parent.m_watched )
+        {
+            parent.m_start += now - parent.m_suspended;
+            m_watched.put(parent, parent);
+        }
+        return now - invocation.m_start;
+    }
+
+    /**
+     * Stop the watchdog thread. Invocations registered afterwards are
+     * not observed anymore.
+     */
+    public void stop()
+    {
+        synchronized ( m_lock )
+        {
+            m_stopped = true;
+            m_lock.notifyAll();
+        }
+    }
+
+    private void ensureRunning()
+    {
+        if ( m_idle || m_thread == null )
+        {
+            synchronized ( m_lock )
+            {
+                if ( !m_stopped && m_thread == null )
+                {
+                    m_thread = new Thread("EventAdminWatchdog")
+                    {
+                        public void run()
+                        {
+                            HandlerWatchdog.this.run();
+                        }
+                    };
+                    m_thread.setDaemon(true);
+                    m_thread.start();
+                }
+                m_lock.notifyAll();
+            }
+        }
+    }
+
+    private void run()
+    {
+        try
+        {
+            while ( true )
+            {
+                synchronized ( m_lock )
+                {
+                    // the flag is set before checking for invocations, so an
+                    // invocation registered concurrently always wakes us up
+                    m_idle = true;
+                    while ( !m_stopped && m_watched.isEmpty() )
+                    {
+                        m_lock.wait();
+                    }
+                    m_idle = false;
+                    if ( !m_stopped )
+                    {
+                        m_lock.wait(m_checkInterval);
+                    }
+                    if ( m_stopped )
+                    {
+                        return;
+                    }
+                }
+                this.check();
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            // we just stop
+        }
+    }
+
+    /**
+     * Blacklist the handlers of all invocations running longer than the timeout.
+     */
+    private void check()
+    {
+        final long now = System.nanoTime();
+        final Iterator i = m_watched.keySet().iterator();
+        while ( i.hasNext() )
+        {
+            final Invocation invocation = (Invocation) i.next();
+            final long elapsed = now - invocation.m_start;
+            if ( !invocation.m_expired && elapsed > invocation.m_timeout )
+            {
+                invocation.m_expired = true;
+                if ( invocation.m_proxy.blackListHandler() )
+                {
+                    LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                            "Event handler " + invocation.m_proxy.getReference() + " is still running after "
+                            + (elapsed / 1000000L) + "ms in thread " + invocation.m_thread.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * A single invocation of an event handler.
+     */
+    public static final class Invocation
+    {
+        private final EventHandlerProxy m_proxy;
+
+        private final Invocation m_parent;
+
+        private final Thread m_thread;
+
+        private final boolean m_watched;
+
+        /** The timeout in nanoseconds. */
+        private final long m_timeout;
+
+        /** The start time, moved forward by the time of nested deliveries. */
+        private volatile long m_start;
+
+        /** The start time of the current nested delivery. */
+        private long m_suspended;
+
+        private volatile boolean m_expired;
+
+        Invocation(final EventHandlerProxy proxy,
+                final Invocation parent,
+                final long start,
+                final long timeout)
+        {
+            m_proxy = proxy;
+            m_parent = parent;
+            m_thread = Thread.currentThread();
+            m_watched = timeout > 0;
+            m_timeout = timeout;
+            m_start = start;
+        }
+
+        /**
+         * Has the watchdog already blacklisted the handler of this invocation?
+         */
+        public boolean isExpired()
+        {
+            return m_expired;
+        }
+    }
+}
@@ -24,50 +24,45 @@ import java.util.Iterator;
 import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
 import org.osgi.service.event.Event;
 
-import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
-
 /**
  * This class does the actual work of the synchronous event delivery.
- *
- * This is the heart of the event delivery. If an event is delivered
- * without timeout handling, the event is directly delivered using
- * the calling thread.
- * If timeout handling is enabled, a new thread is taken from the
- * thread pool and this thread is used to deliver the event.
- * The calling thread is blocked until either the deliver is finished
- * or the timeout occurs.
- * <p><tt>
- * Note that in case of a timeout while a task is disabled the thread
- * is released and we spin-off a new thread that resumes the disabled
- * task hence, this is the only place were we break the semantics of
- * the synchronous delivery. While the only one to notice this is the
- * timed-out handler - it is the fault of this handler too (i.e., it
- * blocked the dispatch for to long) but since it will not receive
- * events anymore it will not notice this semantic difference except
- * that it might not see events it already sent before.
- * </tt></pre>
- *
+ * <p>
+ * This is the heart of the event delivery. Events are always delivered
+ * using the calling thread. If timeout handling is enabled, each handler
+ * invocation is registered with a {@link HandlerWatchdog} which blacklists
+ * the handler as soon as it exceeds the timeout. In addition, the time
+ * spent in the handler is checked once the handler returns, so a handler
+ * exceeding the timeout is blacklisted even if the watchdog did not notice
+ * it yet.
+ * <p>
+ * Note that in case of a timeout the calling thread is not released: it
+ * keeps waiting for the handler to return. The handler is blacklisted
+ * immediately though, so other threads do not deliver events to it anymore.
+ * <p>
  * If during an event delivery a new event should be delivered from
  * within the event handler, the timeout handler is stopped for the
  * delivery time of the inner event!
+ * <p>
+ * The latency of each invocation is recorded in the latency histogram of
+ * the handler, see {@link EventHandlerProxy#getLatencyHistogram()}.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class SyncDeliverTasks
 {
 
-    /** The thread pool used to spin-off new threads. */
-    private final DefaultThreadPool pool;
+    /** The watchdog observing the timeouts. */
+    private final HandlerWatchdog watchdog;
 
-    private long timeout;
+    private volatile long timeout;
 
     /**
      * Construct a new sync deliver tasks.
-     * @param pool The thread pool used to spin-off new threads.
+     * @param timeout The timeout in milliseconds, <code>0</code> disables timeouts
      */
-    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout)
+    public SyncDeliverTasks(final long timeout)
     {
-        this.pool = pool;
+        this.watchdog = new HandlerWatchdog(timeout);
         this.update(timeout);
     }
 
@@ -77,6 +72,15 @@ public class SyncDeliverTasks
     public void update(final long timeout)
     {
         this.timeout = timeout;
+        this.watchdog.update(timeout);
+    }
+
+    /**
+     * Stop the timeout handling.
+     */
+    public void stop()
+    {
+        this.watchdog.stop();
     }
 
     /**
@@ -96,77 +100,35 @@ public class SyncDeliverTasks
 
     /**
      * This blocks an unrelated thread used to send a synchronous event until the
-     * event is send (or a timeout occurs).
+     * event is send.
      *
      * @param tasks The event handler dispatch tasks to execute
      *
      */
     public void execute(final Collection tasks, final Event event, final boolean filterAsyncUnordered)
     {
-        final Thread sleepingThread = Thread.currentThread();
-        final SyncThread syncThread = sleepingThread instanceof SyncThread ? (SyncThread)sleepingThread : null;
-
         final Iterator i = tasks.iterator();
         while ( i.hasNext() )
         {
             final EventHandlerProxy task = (EventHandlerProxy)i.next();
 //            if ( !filterAsyncUnordered || task.isAsyncOrderedDelivery() )
 //            {
-                if ( !useTimeout(task) )
+                final boolean useTimeout = useTimeout(task);
+                final HandlerWatchdog.Invocation invocation = this.watchdog.start(task, useTimeout);
+                long elapsed;
+                try
                 {
-                    // no timeout, we can directly execute
                     task.sendEvent(event);
                 }
-                else if ( syncThread != null )
+                finally
                 {
-                    // if this is a cascaded event, we directly use this thread
-                    // otherwise we could end up in a starvation
-                    final long startTime = System.currentTimeMillis();
-                    task.sendEvent(event);
-                    if ( System.currentTimeMillis() - startTime > this.timeout )
-                    {
-                        task.blackListHandler();
-                    }
+                    elapsed = this.watchdog.finish(invocation);
                 }
-                else
+                task.getLatencyHistogram().record(elapsed);
+                // the watchdog might not have noticed the timeout yet
+                if ( useTimeout && !invocation.isExpired() && elapsed > this.timeout * 1000000L )
                 {
-                    final Rendezvous startBarrier = new Rendezvous();
-                    final Rendezvous timerBarrier = new Rendezvous();
-                    this.pool.executeTask(new Runnable()
-                    {
-                        public void run()
-                        {
-                            try
-                            {
-                                // notify the outer thread to start the timer
-                                startBarrier.waitForRendezvous();
-                                // execute the task
-                                task.sendEvent(event);
-                                // stop the timer
-                                timerBarrier.waitForRendezvous();
-                            }
-                            catch (final IllegalStateException ise)
-                            {
-                                // this can happen on shutdown, so we ignore it
-                            }
-                        }
-                    });
-                    // we wait for the inner thread to start
-                    startBarrier.waitForRendezvous();
-
-                    // timeout handling
-                    // we sleep for the sleep time
-                    // if someone wakes us up it's the finished inner task
-                    try
-                    {
-                        timerBarrier.waitAttemptForRendezvous(this.timeout);
-                    }
-                    catch (final TimeoutException ie)
-                    {
-                        // if we timed out, we have to blacklist the handler
-                        task.blackListHandler();
-                    }
-
+                    task.blackListHandler();
                 }
 //            }
         }
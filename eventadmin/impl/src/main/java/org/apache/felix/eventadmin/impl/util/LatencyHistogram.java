@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of event delivery latencies with fixed exponential buckets.
+ * The first bucket counts deliveries taking less than one millisecond,
+ * bucket <tt>i</tt> counts deliveries taking less than <tt>2^i</tt>
+ * milliseconds and the last bucket counts everything above. Recording is
+ * lock-free, so a histogram can be updated by any number of delivering
+ * threads.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class LatencyHistogram
+{
+    /** The number of buckets, the last one is unbounded. */
+    public static final int BUCKETS = 18;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+
+    /** The sum of all recorded latencies in nanoseconds. */
+    private final AtomicLong m_total = new AtomicLong();
+
+    /** The maximum recorded latency in nanoseconds. */
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(final long nanos)
+    {
+        m_counts.incrementAndGet(getBucket(nanos));
+        m_total.addAndGet(nanos);
+        long max = m_max.get();
+        while ( nanos > max && !m_max.compareAndSet(max, nanos) )
+        {
+            max = m_max.get();
+        }
+    }
+
+    /**
+     * Return the bucket for a latency.
+     * @param nanos The latency in nanoseconds
+     */
+    static int getBucket(final long nanos)
+    {
+        final long millis = nanos / 1000000L;
+        if ( millis <= 0 )
+        {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+    }
+
+    /**
+     * Return the exclusive upper bound of a bucket in milliseconds.
+     * @return The upper bound or <code>-1</code> for the last bucket.
+     */
+    public static long getUpperBound(final int bucket)
+    {
+        return bucket < BUCKETS - 1 ? 1L << bucket : -1;
+    }
+
+    /**
+     * Return a snapshot of the bucket counts.
+     */
+    public long[] getCounts()
+    {
+        final long[] counts = new long[BUCKETS];
+        for(int i=0;i<BUCKETS;i++)
+        {
+            counts[i] = m_counts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Return the number of recorded latencies.
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for(int i=0;i<BUCKETS;i++)
+        {
+            count += m_counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Return the maximum recorded latency in nanoseconds.
+     */
+    public long getMax()
+    {
+        return m_max.get();
+    }
+
+    /**
+     * Return the sum of all recorded latencies in nanoseconds.
+     */
+    public long getTotal()
+    {
+        return m_total.get();
+    }
+
+    /**
+     * Return a summary of the histogram listing all non empty buckets, e.g.
+     * <tt>count=12, mean=0.8ms, max=3ms, &lt;1ms=10, &lt;2ms=1, &lt;4ms=1</tt>.
+     */
+    public String toString()
+    {
+        final long[] counts = this.getCounts();
+        long count = 0;
+        for(int i=0;i<BUCKETS;i++)
+        {
+            count += counts[i];
+        }
+        final StringBuffer sb = new StringBuffer();
+        sb.append("count=").append(count);
+        if ( count > 0 )
+        {
+            final long mean = this.getTotal() / count / 1000L;
+            sb.append(", mean=").append(mean / 1000L).append('.').append(mean % 1000L / 100L).append("ms");
+            sb.append(", max=").append(this.getMax() / 1000000L).append("ms");
+        }
+        for(int i=0;i<BUCKETS;i++)
+        {
+            if ( counts[i] > 0 )
+            {
+                if ( i < BUCKETS - 1 )
+                {
+                    sb.append(", <").append(getUpperBound(i));
+                }
+                else
+                {
+                    sb.append(", >=").append(getUpperBound(i - 1));
+                }
+                sb.append("ms=").append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+
+public class StatusPrinterTest extends TestCase
+{
+    private String print(final DefaultThreadPool pool)
+    {
+        final StringWriter out = new StringWriter();
+        new StatusPrinter(pool).printConfiguration(new PrintWriter(out, true));
+        return out.toString();
+    }
+
+    public void testLiveStatistics() throws Exception
+    {
+        final DefaultThreadPool pool = new DefaultThreadPool(1, 1, DefaultThreadPool.POLICY_CALLER_RUNS, false);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try
+        {
+            assertTrue(print(pool).indexOf("Queue depth: 0 of 1") != -1);
+
+            // occupy the pool thread, fill the queue and reject one task
+            pool.executeTask(new Runnable()
+            {
+                public void run()
+                {
+                    running.countDown();
+                    try
+                    {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        // ignore
+                    }
+                }
+            });
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+            final Runnable noop = new Runnable()
+            {
+                public void run()
+                {
+                    // nothing to do
+                }
+            };
+            pool.executeTask(noop);
+            pool.executeTask(noop);
+
+            final String status = print(pool);
+            assertTrue(status, status.indexOf("Rejection policy: " + DefaultThreadPool.POLICY_CALLER_RUNS) != -1);
+            assertTrue(status, status.indexOf("Queue depth: 1 of 1") != -1);
+            assertTrue(status, status.indexOf("Rejected deliveries: 1") != -1);
+            assertTrue(status, status.indexOf("Discarded deliveries: 0") != -1);
+        }
+        finally
+        {
+            release.countDown();
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+public class EventHandlerProxyTest extends TestCase
+{
+    private static final Event EVENT = new Event("org/apache/felix/Test", (Dictionary) new Hashtable());
+
+    private EventHandlerProxy createProxy()
+    {
+        final Dictionary props = new Hashtable();
+        props.put(EventConstants.EVENT_TOPIC, "org/apache/felix/*");
+        return MockHandlers.createProxy(new EventHandler()
+        {
+            public void handleEvent(final Event event)
+            {
+                // nothing to do
+            }
+        }, props);
+    }
+
+    public void testBlackListHandler()
+    {
+        final EventHandlerProxy proxy = createProxy();
+        assertTrue(proxy.canDeliver(EVENT, null, true));
+
+        assertTrue(proxy.blackListHandler());
+        assertFalse(proxy.canDeliver(EVENT, null, true));
+        assertFalse(proxy.blackListHandler());
+
+        // an update of the service properties releases the handler again
+        assertTrue(proxy.update());
+        assertTrue(proxy.canDeliver(EVENT, null, true));
+    }
+
+    public void testConcurrentBlackListHandler() throws Exception
+    {
+        final int threads = 16;
+        for(int run=0;run<100;run++)
+        {
+            final EventHandlerProxy proxy = createProxy();
+            final CountDownLatch go = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final AtomicInteger blacklisted = new AtomicInteger();
+            for(int i=0;i<threads;i++)
+            {
+                new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            go.await();
+                            if ( proxy.blackListHandler() )
+                            {
+                                blacklisted.incrementAndGet();
+                            }
+                        }
+                        catch (final InterruptedException ie)
+                        {
+                            // ignore
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            go.countDown();
+            done.await();
+            assertEquals(1, blacklisted.get());
+            assertFalse(proxy.canDeliver(EVENT, null, true));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+
+public class EventHandlerTrackerTest extends TestCase
+{
+    private EventHandlerTracker m_tracker;
+
+    protected void setUp()
+    {
+        m_tracker = new EventHandlerTracker(MockHandlers.createContext(null));
+        m_tracker.update(null, false);
+    }
+
+    private EventHandlerProxy addHandler(final Object topics, final String filter)
+    {
+        final Dictionary props = new Hashtable();
+        if ( topics != null )
+        {
+            props.put(EventConstants.EVENT_TOPIC, topics);
+        }
+        if ( filter != null )
+        {
+            props.put(EventConstants.EVENT_FILTER, filter);
+        }
+        return (EventHandlerProxy) m_tracker.addingService(MockHandlers.createReference(props));
+    }
+
+    private Set getHandlers(final String topic, final Dictionary props)
+    {
+        final Collection handlers = m_tracker.getHandlers(new Event(topic, props));
+        final Set result = new HashSet(handlers);
+        // each handler is returned only once
+        assertEquals(handlers.size(), result.size());
+        return result;
+    }
+
+    private Set getHandlers(final String topic)
+    {
+        return getHandlers(topic, new Hashtable());
+    }
+
+    private static Set asSet(final EventHandlerProxy[] proxies)
+    {
+        final Set result = new HashSet();
+        for(int i=0;i<proxies.length;i++)
+        {
+            result.add(proxies[i]);
+        }
+        return result;
+    }
+
+    public void testTopicTrie()
+    {
+        final EventHandlerProxy all = addHandler("*", null);
+        final EventHandlerProxy exact = addHandler("a/b/c", null);
+        final EventHandlerProxy parent = addHandler("a/b", null);
+        final EventHandlerProxy prefix = addHandler("a/b/*", null);
+        final EventHandlerProxy both = addHandler(new String[] {"a/*", "a/b/c"}, null);
+        final EventHandlerProxy other = addHandler("x/*", null);
+
+        assertEquals(asSet(new EventHandlerProxy[] {all, exact, prefix, both}), getHandlers("a/b/c"));
+        assertEquals(asSet(new EventHandlerProxy[] {all, parent, both}), getHandlers("a/b"));
+        assertEquals(asSet(new EventHandlerProxy[] {all, prefix, both}), getHandlers("a/b/c/d"));
+        assertEquals(asSet(new EventHandlerProxy[] {all}), getHandlers("a"));
+        assertEquals(asSet(new EventHandlerProxy[] {all, other}), getHandlers("x/y"));
+        assertEquals(asSet(new EventHandlerProxy[] {all}), getHandlers("x"));
+        assertEquals(asSet(new EventHandlerProxy[] {all}), getHandlers("ab/b/c"));
+    }
+
+    public void testHandlerChanges()
+    {
+        final EventHandlerProxy first = addHandler("a/*", null);
+        assertEquals(asSet(new EventHandlerProxy[] {first}), getHandlers("a/b"));
+
+        // the cached handlers are dropped if the handlers change
+        final EventHandlerProxy second = addHandler("a/b", null);
+        assertEquals(asSet(new EventHandlerProxy[] {first, second}), getHandlers("a/b"));
+
+        m_tracker.removedService(first.getReference(), first);
+        assertEquals(asSet(new EventHandlerProxy[] {second}), getHandlers("a/b"));
+        assertTrue(getHandlers("a/c").isEmpty());
+    }
+
+    public void testEqualityFilter()
+    {
+        final EventHandlerProxy one = addHandler("a/*", "(prop=1)");
+        final EventHandlerProxy two = addHandler("a/*", "(prop=2)");
+        final EventHandlerProxy other = addHandler("a/*", "(other=1)");
+        final EventHandlerProxy plain = addHandler("a/*", null);
+        assertNotNull(one.getEqualityFilter());
+
+        final Dictionary props = new Hashtable();
+        assertEquals(asSet(new EventHandlerProxy[] {plain}), getHandlers("a/b", props));
+
+        props.put("prop", "1");
+        assertEquals(asSet(new EventHandlerProxy[] {one, plain}), getHandlers("a/b", props));
+
+        props.put("prop", "2");
+        props.put("other", "1");
+        assertEquals(asSet(new EventHandlerProxy[] {two, other, plain}), getHandlers("a/b", props));
+
+        // values which are not strings are matched by the filter
+        props.put("prop", new Integer(1));
+        props.remove("other");
+        assertEquals(asSet(new EventHandlerProxy[] {one, plain}), getHandlers("a/b", props));
+
+        // blacklisted handlers are not indexed
+        one.blackListHandler();
+        assertEquals(asSet(new EventHandlerProxy[] {plain}), getHandlers("a/b", props));
+        props.put("prop", "1");
+        assertEquals(asSet(new EventHandlerProxy[] {plain}), getHandlers("a/b", props));
+    }
+
+    public void testParseEqualityFilter()
+    {
+        assertEquals("name", EventHandlerProxy.parseEqualityFilter("(name=value)")[0]);
+        assertEquals("value", EventHandlerProxy.parseEqualityFilter(" (name=value) ")[1]);
+        assertNull(EventHandlerProxy.parseEqualityFilter("(name=val*)"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(name>=value)"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(name~=value)"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(name=a=b)"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(name=a b)"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(&(a=b)(c=d))"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(=value)"));
+        assertNull(EventHandlerProxy.parseEqualityFilter("(name=)"));
+    }
+
+    public void testCacheEviction()
+    {
+        final EventHandlerProxy proxy = addHandler("t/*", null);
+        final int max = EventHandlerTracker.MAX_CACHED_TOPICS;
+        for(int i=0;i<max;i++)
+        {
+            assertEquals(1, getHandlers("t/" + i).size());
+        }
+        assertEquals(max, m_tracker.getCachedTopicCount());
+
+        // a topic used again survives the eviction
+        getHandlers("t/hot");
+        for(int i=0;i<3 * max;i++)
+        {
+            getHandlers("t/hot");
+            assertEquals(asSet(new EventHandlerProxy[] {proxy}), getHandlers("t/new" + i));
+            assertTrue(m_tracker.isCached("t/new" + i));
+            assertTrue(m_tracker.isCached("t/hot"));
+        }
+        assertTrue(m_tracker.getCachedTopicCount() <= max);
+    }
+}
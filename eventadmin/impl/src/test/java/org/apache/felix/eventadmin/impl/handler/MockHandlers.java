@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Creates event handler proxies for tests without a running framework.
+ * The bundle context, the service reference and the bundle are dynamic
+ * proxies returning fixed values.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class MockHandlers
+{
+    /**
+     * Create a proxy for a handler registered with the given properties.
+     * @param handler The handler returned by the bundle context
+     * @param properties The service properties
+     */
+    public static EventHandlerProxy createProxy(final EventHandler handler, final Dictionary properties)
+    {
+        final EventHandlerProxy proxy = new EventHandlerProxy(
+                new EventHandlerTracker.HandlerContext(createContext(handler), null, false),
+                createReference(properties));
+        proxy.update();
+        return proxy;
+    }
+
+    /**
+     * Create a bundle context returning the handler for all references.
+     * The filters created by the context only support equality filters
+     * like <code>(name=value)</code>.
+     */
+    public static BundleContext createContext(final EventHandler handler)
+    {
+        final Map contextResults = new HashMap();
+        contextResults.put("getService", handler);
+        contextResults.put("ungetService", Boolean.TRUE);
+        return (BundleContext) mock(BundleContext.class, contextResults, null, new InvocationHandler()
+        {
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                return createFilter((String) args[0]);
+            }
+        });
+    }
+
+    /**
+     * Create a reference of a service registered with the given properties.
+     */
+    public static ServiceReference createReference(final Dictionary properties)
+    {
+        final Map bundleResults = new HashMap();
+        bundleResults.put("hasPermission", Boolean.TRUE);
+        bundleResults.put("getBundleId", new Long(1));
+        final Bundle bundle = (Bundle) mock(Bundle.class, bundleResults);
+
+        final Map referenceResults = new HashMap();
+        referenceResults.put("getBundle", bundle);
+        return (ServiceReference) mock(ServiceReference.class, referenceResults, properties, null);
+    }
+
+    private static Filter createFilter(final String filter)
+    {
+        final String[] equality = EventHandlerProxy.parseEqualityFilter(filter);
+        return (Filter) mock(Filter.class, new HashMap(), null, new InvocationHandler()
+        {
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                final Object value;
+                if ( args[0] instanceof Dictionary )
+                {
+                    value = ((Dictionary) args[0]).get(equality[0]);
+                }
+                else if ( args[0] instanceof Map )
+                {
+                    value = ((Map) args[0]).get(equality[0]);
+                }
+                else
+                {
+                    value = ((ServiceReference) args[0]).getProperty(equality[0]);
+                }
+                return Boolean.valueOf(value != null && value.toString().equals(equality[1]));
+            }
+        });
+    }
+
+    private static Object mock(final Class type, final Map results)
+    {
+        return mock(type, results, null, null);
+    }
+
+    /**
+     * Create a mock returning the results by method name.
+     * @param properties Optional service properties
+     * @param factory Optional handler for the methods creating filters or
+     *        matching filters
+     */
+    private static Object mock(final Class type, final Map results, final Dictionary properties,
+            final InvocationHandler factory)
+    {
+        return Proxy.newProxyInstance(MockHandlers.class.getClassLoader(), new Class[] {type},
+                new InvocationHandler()
+                {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                        throws Throwable
+                    {
+                        final String name = method.getName();
+                        if ( "toString".equals(name) )
+                        {
+                            return "Mock" + type.getName().substring(type.getName().lastIndexOf('.') + 1);
+                        }
+                        else if ( "hashCode".equals(name) )
+                        {
+                            return new Integer(System.identityHashCode(proxy));
+                        }
+                        else if ( "equals".equals(name) )
+                        {
+                            return Boolean.valueOf(proxy == args[0]);
+                        }
+                        else if ( factory != null && ( "createFilter".equals(name) || name.startsWith("match") ) )
+                        {
+                            return factory.invoke(proxy, method, args);
+                        }
+                        else if ( "getProperty".equals(name) && properties != null )
+                        {
+                            return properties.get(args[0]);
+                        }
+                        else if ( "getPropertyKeys".equals(name) && properties != null )
+                        {
+                            final String[] keys = new String[properties.size()];
+                            int index = 0;
+                            for(final Enumeration e = properties.keys(); e.hasMoreElements(); )
+                            {
+                                keys[index++] = (String) e.nextElement();
+                            }
+                            return keys;
+                        }
+                        return results.get(name);
+                    }
+                });
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.AbstractCollection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Measures the throughput of posting events from many threads concurrently.
+ * The events have no handlers, so only the queueing and scheduling of the
+ * asynchronous delivery is measured.
+ *
+ * Usage: <code>AsyncDeliverTasksBenchmark [threads] [events per thread]</code>
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class AsyncDeliverTasksBenchmark
+{
+    public static void main(final String[] args) throws Exception
+    {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int events = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        // warm up
+        run(threads, events / 10);
+        final long start = System.nanoTime();
+        run(threads, events);
+        final long time = System.nanoTime() - start;
+
+        System.out.println(threads + " threads posted and delivered " + (long) threads * events
+                + " events: " + ((long) threads * events * 1000000000L / time) + " events/s");
+    }
+
+    private static void run(final int threads, final int events) throws Exception
+    {
+        final DefaultThreadPool pool = new DefaultThreadPool(10, 1000,
+                DefaultThreadPool.POLICY_CALLER_RUNS, false);
+        final AsyncDeliverTasks tasks = new AsyncDeliverTasks(pool, new SyncDeliverTasks(0));
+        final Event event = new Event("org/apache/felix/eventadmin/Benchmark", (Dictionary) new Hashtable());
+        final AtomicLong delivered = new AtomicLong();
+        // an empty list of handlers counting the deliveries
+        final AbstractCollection handlers = new AbstractCollection()
+        {
+            public Iterator iterator()
+            {
+                delivered.incrementAndGet();
+                return Collections.EMPTY_LIST.iterator();
+            }
+
+            public int size()
+            {
+                return 0;
+            }
+        };
+
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t=0;t<threads;t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    ready.countDown();
+                    try
+                    {
+                        go.await();
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        return;
+                    }
+                    for(int i=0;i<events;i++)
+                    {
+                        tasks.execute(handlers, event);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        ready.await();
+        go.countDown();
+        done.await();
+        while ( delivered.get() < (long) threads * events )
+        {
+            Thread.sleep(1);
+        }
+        pool.close();
+    }
+}
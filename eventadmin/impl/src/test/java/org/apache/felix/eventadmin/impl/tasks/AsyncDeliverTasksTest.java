@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.eventadmin.impl.handler.MockHandlers;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+public class AsyncDeliverTasksTest extends TestCase
+{
+    private static final String TOPIC = "org/apache/felix/Test";
+
+    private DefaultThreadPool m_pool;
+
+    protected void tearDown()
+    {
+        if ( m_pool != null )
+        {
+            m_pool.close();
+        }
+    }
+
+    private static Event createEvent(final String producer, final int index)
+    {
+        final Dictionary props = new Hashtable();
+        props.put("producer", producer);
+        props.put("index", new Integer(index));
+        return new Event(TOPIC, props);
+    }
+
+    /**
+     * A handler recording the index of the received events per producer.
+     */
+    private static class RecordingHandler implements EventHandler
+    {
+        private final Hashtable m_received = new Hashtable();
+
+        private final CountDownLatch m_done;
+
+        RecordingHandler(final int expected)
+        {
+            m_done = new CountDownLatch(expected);
+        }
+
+        public void handleEvent(final Event event)
+        {
+            final String producer = (String) event.getProperty("producer");
+            synchronized ( m_received )
+            {
+                List received = (List) m_received.get(producer);
+                if ( received == null )
+                {
+                    received = new ArrayList();
+                    m_received.put(producer, received);
+                }
+                received.add(event.getProperty("index"));
+            }
+            m_done.countDown();
+        }
+
+        List getReceived(final String producer)
+        {
+            synchronized ( m_received )
+            {
+                final List received = (List) m_received.get(producer);
+                return received == null ? Collections.EMPTY_LIST : new ArrayList(received);
+            }
+        }
+
+        boolean await() throws InterruptedException
+        {
+            return m_done.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static List createHandlers(final EventHandler handler)
+    {
+        final Dictionary props = new Hashtable();
+        props.put(EventConstants.EVENT_TOPIC, TOPIC);
+        return Collections.singletonList(MockHandlers.createProxy(handler, props));
+    }
+
+    private static void assertInOrder(final List received, final int count)
+    {
+        assertEquals(count, received.size());
+        for(int i=0;i<count;i++)
+        {
+            assertEquals(new Integer(i), received.get(i));
+        }
+    }
+
+    public void testOrderPerProducer() throws Exception
+    {
+        final int producers = 8;
+        final int events = 2000;
+        m_pool = new DefaultThreadPool(4, 2, DefaultThreadPool.POLICY_CALLER_RUNS, false);
+        final AsyncDeliverTasks tasks = new AsyncDeliverTasks(m_pool, new SyncDeliverTasks(0));
+        final RecordingHandler handler = new RecordingHandler(producers * events);
+        final List handlers = createHandlers(handler);
+
+        final Thread[] threads = new Thread[producers];
+        for(int i=0;i<producers;i++)
+        {
+            final String producer = "producer" + i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for(int j=0;j<events;j++)
+                    {
+                        tasks.execute(handlers, createEvent(producer, j));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(int i=0;i<producers;i++)
+        {
+            threads[i].join();
+        }
+
+        assertTrue(handler.await());
+        for(int i=0;i<producers;i++)
+        {
+            assertInOrder(handler.getReceived("producer" + i), events);
+        }
+    }
+
+    public void testDropOldestDiscardsPendingEventsOfProducer() throws Exception
+    {
+        m_pool = new DefaultThreadPool(1, 1, DefaultThreadPool.POLICY_DROP_OLDEST, false);
+        final AsyncDeliverTasks tasks = new AsyncDeliverTasks(m_pool, new SyncDeliverTasks(0));
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingHandler handler = new RecordingHandler(0)
+        {
+            public void handleEvent(final Event event)
+            {
+                if ( "blocker".equals(event.getProperty("producer")) )
+                {
+                    running.countDown();
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        // ignore
+                    }
+                }
+                super.handleEvent(event);
+            }
+        };
+        final List handlers = createHandlers(handler);
+
+        // occupy the single pool thread
+        post(tasks, handlers, "blocker", 1);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        // the queue of the first producer fills the queue of the pool,
+        // so it is discarded when the second producer posts
+        post(tasks, handlers, "first", 3);
+        post(tasks, handlers, "second", 3);
+        assertEquals(1, m_pool.getDiscardedCount());
+        release.countDown();
+        waitFor(handler, "second", 3);
+        assertEquals(1, handler.getReceived("blocker").size());
+        assertInOrder(handler.getReceived("second"), 3);
+
+        // the first producer can post again
+        post(tasks, handlers, "first", 1);
+        waitFor(handler, "first", 1);
+        assertEquals(Collections.singletonList(new Integer(0)), handler.getReceived("first"));
+        assertEquals(1, m_pool.getDiscardedCount());
+    }
+
+    private static void waitFor(final RecordingHandler handler, final String producer, final int count)
+            throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( handler.getReceived(producer).size() < count && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Post events from a new thread and wait until they are queued.
+     */
+    private static void post(final AsyncDeliverTasks tasks, final List handlers,
+            final String producer, final int count) throws InterruptedException
+    {
+        final Thread thread = new Thread()
+        {
+            public void run()
+            {
+                for(int i=0;i<count;i++)
+                {
+                    tasks.execute(handlers, createEvent(producer, i));
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+
+    public void testQueueDoesNotKeepInstance() throws Exception
+    {
+        m_pool = new DefaultThreadPool(1, 10, DefaultThreadPool.POLICY_CALLER_RUNS, false);
+        final RecordingHandler handler = new RecordingHandler(10);
+        AsyncDeliverTasks tasks = new AsyncDeliverTasks(m_pool, new SyncDeliverTasks(0));
+        final List handlers = createHandlers(handler);
+        for(int i=0;i<10;i++)
+        {
+            tasks.execute(handlers, createEvent("producer", i));
+        }
+        assertTrue(handler.await());
+
+        // the current thread posted events, but must not keep the instance
+        final WeakReference ref = new WeakReference(tasks);
+        tasks = null;
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( ref.get() != null && System.currentTimeMillis() < deadline )
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+}
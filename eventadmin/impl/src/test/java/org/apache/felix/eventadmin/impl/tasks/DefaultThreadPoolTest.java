@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class DefaultThreadPoolTest extends TestCase
+{
+    private DefaultThreadPool m_pool;
+
+    /** Blocks the single pool thread until released. */
+    private final CountDownLatch m_release = new CountDownLatch(1);
+
+    /** The names of the executed tasks in execution order. */
+    private final List m_executed = new CopyOnWriteArrayList();
+
+    protected void tearDown()
+    {
+        m_release.countDown();
+        if ( m_pool != null )
+        {
+            m_pool.close();
+        }
+    }
+
+    private class Task implements DefaultThreadPool.DiscardableTask
+    {
+        private final String m_name;
+
+        private final CountDownLatch m_done = new CountDownLatch(1);
+
+        volatile Thread m_thread;
+
+        volatile boolean m_discarded;
+
+        Task(final String name)
+        {
+            m_name = name;
+        }
+
+        public void run()
+        {
+            m_thread = Thread.currentThread();
+            m_executed.add(m_name);
+            m_done.countDown();
+        }
+
+        public void discard()
+        {
+            m_discarded = true;
+        }
+
+        boolean await() throws InterruptedException
+        {
+            return m_done.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Occupy the single pool thread and fill the queue of size one.
+     */
+    private Task fill(final String policy) throws InterruptedException
+    {
+        m_pool = new DefaultThreadPool(1, 1, policy, false);
+        final CountDownLatch running = new CountDownLatch(1);
+        m_pool.executeTask(new Runnable()
+        {
+            public void run()
+            {
+                running.countDown();
+                try
+                {
+                    m_release.await(5, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException ie)
+                {
+                    // ignore
+                }
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        final Task queued = new Task("queued");
+        m_pool.executeTask(queued);
+        assertEquals(1, m_pool.getQueueDepth());
+        return queued;
+    }
+
+    public void testCallerRuns() throws Exception
+    {
+        final Task queued = fill(DefaultThreadPool.POLICY_CALLER_RUNS);
+        final Task rejected = new Task("rejected");
+        m_pool.executeTask(rejected);
+
+        assertSame(Thread.currentThread(), rejected.m_thread);
+        assertEquals(1, m_pool.getRejectedCount());
+        assertEquals(0, m_pool.getDiscardedCount());
+
+        m_release.countDown();
+        assertTrue(queued.await());
+        assertEquals(2, m_executed.size());
+    }
+
+    public void testDropOldest() throws Exception
+    {
+        final Task queued = fill(DefaultThreadPool.POLICY_DROP_OLDEST);
+        final Task newest = new Task("newest");
+        m_pool.executeTask(newest);
+
+        assertTrue(queued.m_discarded);
+        assertNull(newest.m_thread);
+        assertEquals(1, m_pool.getRejectedCount());
+        assertEquals(1, m_pool.getDiscardedCount());
+
+        m_release.countDown();
+        assertTrue(newest.await());
+        assertEquals(Collections.singletonList("newest"), m_executed);
+    }
+
+    public void testBlock() throws Exception
+    {
+        final Task queued = fill(DefaultThreadPool.POLICY_BLOCK);
+        final Task blocked = new Task("blocked");
+        final Thread producer = new Thread()
+        {
+            public void run()
+            {
+                m_pool.executeTask(blocked);
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(1, m_pool.getRejectedCount());
+
+        m_release.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(queued.await());
+        assertTrue(blocked.await());
+        assertEquals(2, m_executed.size());
+        assertEquals(0, m_pool.getDiscardedCount());
+    }
+
+    public void testBlockNeverBlocksPoolThread() throws Exception
+    {
+        m_pool = new DefaultThreadPool(1, 1, DefaultThreadPool.POLICY_BLOCK, false);
+        final Task nested = new Task("nested");
+        final Task outer = new Task("outer")
+        {
+            public void run()
+            {
+                // fill the queue, the nested task must be run by this pool thread
+                m_pool.executeTask(new Task("queued"));
+                m_pool.executeTask(nested);
+                super.run();
+            }
+        };
+        m_pool.executeTask(outer);
+
+        assertTrue(outer.await());
+        assertSame(outer.m_thread, nested.m_thread);
+    }
+
+    public void testReconfigureMovesQueuedTasks() throws Exception
+    {
+        final Task queued = fill(DefaultThreadPool.POLICY_BLOCK);
+        final Task blocked = new Task("blocked");
+        final Thread producer = new Thread()
+        {
+            public void run()
+            {
+                m_pool.executeTask(blocked);
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        // a new queue size replaces the engine while the old thread is still
+        // busy, so the tasks are only executed if they are moved to the new one
+        m_pool.configure(1, 10, DefaultThreadPool.POLICY_BLOCK, false);
+
+        assertTrue(queued.await());
+        assertTrue(blocked.await());
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, m_pool.getDiscardedCount());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.handler.MockHandlers;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+public class SyncDeliverTasksTest extends TestCase
+{
+    private static final Event EVENT = new Event("org/apache/felix/Test", (Dictionary) new Hashtable());
+
+    private SyncDeliverTasks m_tasks;
+
+    protected void tearDown()
+    {
+        if ( m_tasks != null )
+        {
+            m_tasks.stop();
+        }
+    }
+
+    private static EventHandlerProxy createProxy(final EventHandler handler)
+    {
+        final Dictionary props = new Hashtable();
+        props.put(EventConstants.EVENT_TOPIC, "*");
+        return MockHandlers.createProxy(handler, props);
+    }
+
+    private static EventHandler sleepingHandler(final long millis)
+    {
+        return new EventHandler()
+        {
+            public void handleEvent(final Event event)
+            {
+                try
+                {
+                    Thread.sleep(millis);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    public void testWatchdogBlacklistsRunningHandler() throws Exception
+    {
+        m_tasks = new SyncDeliverTasks(50);
+        final CountDownLatch release = new CountDownLatch(1);
+        final EventHandlerProxy proxy = createProxy(new EventHandler()
+        {
+            public void handleEvent(final Event event)
+            {
+                try
+                {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final Thread sender = new Thread()
+        {
+            public void run()
+            {
+                m_tasks.execute(Collections.singletonList(proxy), EVENT, false);
+            }
+        };
+        sender.start();
+
+        // the handler is still running, so only the watchdog can blacklist it
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( proxy.canDeliver(EVENT, null, false) && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep(10);
+        }
+        final boolean blacklisted = !proxy.canDeliver(EVENT, null, false);
+        release.countDown();
+        sender.join();
+
+        assertTrue(blacklisted);
+        assertEquals(1, proxy.getLatencyHistogram().getCount());
+    }
+
+    public void testSlowHandlerWithoutTimeout()
+    {
+        m_tasks = new SyncDeliverTasks(0);
+        final EventHandlerProxy proxy = createProxy(sleepingHandler(100));
+        m_tasks.execute(Collections.singletonList(proxy), EVENT, false);
+
+        assertTrue(proxy.canDeliver(EVENT, null, false));
+        assertEquals(1, proxy.getLatencyHistogram().getCount());
+        assertTrue(proxy.getLatencyHistogram().getMax() >= 100 * 1000000L);
+    }
+
+    public void testFastHandlerNotBlacklisted()
+    {
+        m_tasks = new SyncDeliverTasks(5000);
+        final EventHandlerProxy proxy = createProxy(sleepingHandler(0));
+        for(int i=0;i<10;i++)
+        {
+            m_tasks.execute(Collections.singletonList(proxy), EVENT, false);
+        }
+
+        assertTrue(proxy.canDeliver(EVENT, null, false));
+        assertEquals(10, proxy.getLatencyHistogram().getCount());
+    }
+
+    public void testNestedDeliveryDoesNotCount()
+    {
+        m_tasks = new SyncDeliverTasks(200);
+        final EventHandlerProxy inner = createProxy(sleepingHandler(500));
+        final EventHandlerProxy outer = createProxy(new EventHandler()
+        {
+            public void handleEvent(final Event event)
+            {
+                m_tasks.execute(Collections.singletonList(inner), event, false);
+            }
+        });
+        m_tasks.execute(Collections.singletonList(outer), EVENT, false);
+
+        // only the inner handler exceeded the timeout
+        assertFalse(inner.canDeliver(EVENT, null, false));
+        assertTrue(outer.canDeliver(EVENT, null, false));
+        assertTrue(outer.getLatencyHistogram().getMax() < 200 * 1000000L);
+    }
+}
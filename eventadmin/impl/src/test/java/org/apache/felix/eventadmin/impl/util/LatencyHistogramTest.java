@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.util;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase
+{
+    private static final long MS = 1000000L;
+
+    public void testGetBucket()
+    {
+        assertEquals(0, LatencyHistogram.getBucket(0));
+        assertEquals(0, LatencyHistogram.getBucket(MS - 1));
+        assertEquals(1, LatencyHistogram.getBucket(MS));
+        assertEquals(2, LatencyHistogram.getBucket(2 * MS));
+        assertEquals(2, LatencyHistogram.getBucket(3 * MS));
+        assertEquals(3, LatencyHistogram.getBucket(4 * MS));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    public void testUpperBound()
+    {
+        for(int i=0;i<LatencyHistogram.BUCKETS - 1;i++)
+        {
+            final long bound = LatencyHistogram.getUpperBound(i);
+            assertEquals(i, LatencyHistogram.getBucket(bound * MS - 1));
+            assertEquals(i + 1, LatencyHistogram.getBucket(bound * MS));
+        }
+        assertEquals(-1, LatencyHistogram.getUpperBound(LatencyHistogram.BUCKETS - 1));
+    }
+
+    public void testRecord()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals("count=0", histogram.toString());
+
+        histogram.record(MS / 2);
+        histogram.record(MS / 2);
+        histogram.record(3 * MS);
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(3 * MS, histogram.getMax());
+        assertEquals(4 * MS, histogram.getTotal());
+        final long[] counts = histogram.getCounts();
+        assertEquals(2, counts[0]);
+        assertEquals(1, counts[2]);
+        assertEquals("count=3, mean=1.3ms, max=3ms, <1ms=2, <4ms=1", histogram.toString());
+    }
+
+    public void testConcurrentRecord() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Thread[] threads = new Thread[8];
+        for(int i=0;i<threads.length;i++)
+        {
+            final long latency = (i + 1) * MS;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for(int j=0;j<10000;j++)
+                    {
+                        histogram.record(latency);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(int i=0;i<threads.length;i++)
+        {
+            threads[i].join();
+        }
+        assertEquals(80000, histogram.getCount());
+        assertEquals(8 * MS, histogram.getMax());
+        assertEquals(10000 * 36 * MS, histogram.getTotal());
+    }
+}
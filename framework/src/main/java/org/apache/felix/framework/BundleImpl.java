@@ -26,10 +26,12 @@ import java.security.ProtectionDomain;
 import java.util.*;
 
 import org.apache.felix.framework.cache.BundleArchive;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ParsedHeaderCache;
 import org.osgi.framework.AdaptPermission;
 import org.osgi.framework.AdminPermission;
 import org.osgi.framework.Bundle;
@@ -1185,7 +1187,17 @@ class BundleImpl implements Bundle, BundleRevisions
     {
         // Get and parse the manifest from the most recent revision and
         // create an associated revision object for it.
-        Map headerMap = m_archive.getCurrentRevision().getManifestHeader();
+        BundleArchiveRevision archiveRevision = m_archive.getCurrentRevision();
+        Map headerMap = archiveRevision.getManifestHeader();
+
+        // Reuse the headers normalized when the revision was created before,
+        // e.g., before the framework was restarted.
+        File headerCacheFile = (archiveRevision.getRevisionRootDir() == null)
+            ? null
+            : new File(archiveRevision.getRevisionRootDir(), ParsedHeaderCache.CACHE_FILE);
+        ParsedHeaderCache headerCache = (headerCacheFile == null)
+            ? new ParsedHeaderCache()
+            : ParsedHeaderCache.load(headerCacheFile);
 
         // Create the bundle revision instance.
         BundleRevisionImpl revision = new BundleRevisionImpl(
@@ -1193,7 +1205,22 @@ class BundleImpl implements Bundle, BundleRevisions
             Long.toString(getBundleId())
                 + "." + m_archive.getCurrentRevisionNumber().toString(),
             headerMap,
-            m_archive.getCurrentRevision().getContent());
+            archiveRevision.getContent(),
+            headerCache);
+
+        if ((headerCacheFile != null) && headerCache.isModified())
+        {
+            try
+            {
+                headerCache.save(headerCacheFile);
+            }
+            catch (Exception ex)
+            {
+                // The headers are just parsed again next time.
+                getFramework().getLogger().log(this, Logger.LOG_DEBUG,
+                    "Unable to save normalized manifest headers.", ex);
+            }
+        }
 
         // For R4 bundles, verify that the bundle symbolic name + version
         // is unique unless this check has been disabled.
@@ -33,6 +33,7 @@ import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
+import org.apache.felix.framework.util.manifestparser.ParsedHeaderCache;
 import org.apache.felix.framework.util.manifestparser.R4Library;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleException;
@@ -107,7 +108,8 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     }
 
     BundleRevisionImpl(
-        Bundle bundle, String id, Map headerMap, Content content)
+        Bundle bundle, String id, Map headerMap, Content content,
+        ParsedHeaderCache headerCache)
         throws BundleException
     {
         m_bundle = bundle;
@@ -119,7 +121,8 @@ public class BundleRevisionImpl implements BundleRevision, Resource
             ((BundleImpl) bundle).getFramework().getLogger(),
             ((BundleImpl) bundle).getFramework().getConfig(),
             this,
-            m_headerMap);
+            m_headerMap,
+            headerCache);
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -40,6 +40,8 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -49,6 +51,7 @@ import org.apache.felix.framework.util.CompoundEnumeration;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ImmutableList;
 import org.apache.felix.framework.util.SecurityManagerEx;
+import org.apache.felix.framework.util.Statistics;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.apache.felix.framework.util.manifestparser.R4Library;
@@ -100,7 +103,7 @@ public class BundleWiringImpl implements BundleWiring
 
     private volatile List<BundleRequirement> m_wovenReqs = null;
 
-    private BundleClassLoader m_classLoader;
+    private volatile BundleClassLoader m_classLoader;
 
     // Bundle-specific class loader for boot delegation.
     private final ClassLoader m_bootClassLoader;
@@ -144,12 +147,42 @@ public class BundleWiringImpl implements BundleWiring
     // Thread local to keep track of deferred activation.
     private static final ThreadLocal m_deferredActivation = new ThreadLocal();
 
+    // Thread local counting detected class loading cycles, since a search
+    // cut short by a cycle must not be remembered as a miss.
+    private static final ThreadLocal m_cycleCount = new ThreadLocal()
+    {
+        @Override
+        protected Object initialValue()
+        {
+            return new int[1];
+        }
+    };
+
     // Flag indicating whether we are on an old JVM or not.
     private volatile static boolean m_isPreJava5 = false;
 
     // Flag indicating whether this wiring has been disposed.
     private volatile boolean m_isDisposed = false;
 
+    // Default maximum number of names remembered by each miss cache.
+    private static final int DEFAULT_MISS_CACHE_SIZE = 1024;
+    // Markers recording why a class or resource could not be found. An
+    // imported package miss is definitive since imported packages are
+    // atomic; a local miss means the name is neither available from
+    // imports, required bundles, or local content and that its package
+    // cannot be dynamically imported, so only implicit boot delegation
+    // remains to be tried, which depends on the caller.
+    private static final Object IMPORTED_MISS = "imported";
+    private static final Object LOCAL_MISS = "local";
+    // Bounded caches of class and resource names that could not be found
+    // by delegation; they are cleared when the wiring changes.
+    private final ConcurrentHashMap<String, Object> m_classMisses;
+    private final ConcurrentHashMap<String, Object> m_resourceMisses;
+    private final int m_missCacheSize;
+    // Framework-wide miss cache counters.
+    private final AtomicLong m_missCacheHits;
+    private final AtomicLong m_missCacheMisses;
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -429,6 +462,32 @@ public class BundleWiringImpl implements BundleWiring
         m_useLocalURLs =
             (m_configMap.get(FelixConstants.USE_LOCALURLS_PROP) == null)
                 ? false : true;
+
+        int missCacheSize = DEFAULT_MISS_CACHE_SIZE;
+        String s = (String) m_configMap.get(FelixConstants.WIRING_MISS_CACHE_SIZE_PROP);
+        if (s != null)
+        {
+            try
+            {
+                missCacheSize = Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(m_revision.getBundle(), Logger.LOG_WARNING,
+                    "Invalid " + FelixConstants.WIRING_MISS_CACHE_SIZE_PROP
+                    + " value, using default: " + s);
+            }
+        }
+        m_missCacheSize = missCacheSize;
+        m_classMisses = (m_missCacheSize > 0)
+            ? new ConcurrentHashMap<String, Object>() : null;
+        m_resourceMisses = (m_missCacheSize > 0)
+            ? new ConcurrentHashMap<String, Object>() : null;
+
+        Statistics stats =
+            ((BundleImpl) m_revision.getBundle()).getFramework().getStatistics();
+        m_missCacheHits = stats.getCounter("wiring.misscache.hits");
+        m_missCacheMisses = stats.getCounter("wiring.misscache.misses");
     }
 
     private static List<List<String>> parsePkgFilters(BundleCapability cap, String filtername)
@@ -467,6 +526,7 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        clearMissCaches();
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -494,7 +554,7 @@ public class BundleWiringImpl implements BundleWiring
         return (current != null) && (current.getWiring() == this);
     }
 
-    public synchronized boolean isInUse()
+    public boolean isInUse()
     {
         return !m_isDisposed;
     }
@@ -629,6 +689,51 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // The new wire may provide previously missing classes or resources.
+        clearMissCaches();
+    }
+
+    private void clearMissCaches()
+    {
+        if (m_classMisses != null)
+        {
+            m_classMisses.clear();
+            m_resourceMisses.clear();
+        }
+    }
+
+    private Object getCachedMiss(String name, boolean isClass)
+    {
+        if (m_classMisses == null)
+        {
+            return null;
+        }
+        Object miss = (isClass) ? m_classMisses.get(name) : m_resourceMisses.get(name);
+        if (miss != null)
+        {
+            m_missCacheHits.incrementAndGet();
+        }
+        else
+        {
+            m_missCacheMisses.incrementAndGet();
+        }
+        return miss;
+    }
+
+    private void cacheMiss(String name, boolean isClass, Object miss)
+    {
+        if (m_classMisses != null)
+        {
+            ConcurrentHashMap<String, Object> misses =
+                (isClass) ? m_classMisses : m_resourceMisses;
+            // Keep the cache bounded by simply starting over when it is full,
+            // which avoids the bookkeeping and locking of an LRU policy.
+            if (misses.size() >= m_missCacheSize)
+            {
+                misses.clear();
+            }
+            misses.put(name, miss);
+        }
     }
 
     public BundleRevision getResource()
@@ -641,7 +746,19 @@ public class BundleWiringImpl implements BundleWiring
         return m_revision;
     }
 
-    public synchronized ClassLoader getClassLoader()
+    public ClassLoader getClassLoader()
+    {
+        // Avoid the wiring lock in the common case where the class
+        // loader has already been created.
+        BundleClassLoader cl = m_classLoader;
+        if ((cl != null) || m_isDisposed)
+        {
+            return (m_isDisposed) ? null : cl;
+        }
+        return createClassLoader();
+    }
+
+    private synchronized ClassLoader createClassLoader()
     {
         if (m_isDisposed)
         {
@@ -716,8 +833,9 @@ public class BundleWiringImpl implements BundleWiring
     // Thread local to detect class loading cycles.
     private final ThreadLocal m_listResourcesCycleCheck = new ThreadLocal();
 
-// TODO: OSGi R4.3 - Should this be synchronized or should we take a snapshot?
-    public synchronized Collection<String> listResources(
+    // NOTE: This is not synchronized, since all wiring state it looks
+    // at is either immutable or a volatile snapshot.
+    public Collection<String> listResources(
         String path, String filePattern, int options)
     {
         // Implementation note: If you enable the DEBUG option for
@@ -1283,11 +1401,12 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
-    synchronized ClassLoader getBootDelegationClassLoader()
+    ClassLoader getBootDelegationClassLoader()
     {
         // Get the appropriate class loader for delegation.
-        ClassLoader parent = (m_classLoader == null)
-            ? determineParentClassLoader() : m_classLoader.getParent();
+        BundleClassLoader cl = m_classLoader;
+        ClassLoader parent = (cl == null)
+            ? determineParentClassLoader() : cl.getParent();
         return (parent == null) ? m_bootClassLoader : parent;
     }
 
@@ -1460,23 +1579,16 @@ public class BundleWiringImpl implements BundleWiring
                     }
                 }
 
-                // Look in the revision's imports. Note that the search may
-                // be aborted if this method throws an exception, otherwise
-                // it continues if a null is returned.
-                result = searchImports(pkgName, name, isClass);
-
-                // If not found, try the revision's own class path.
-                if (result == null)
+                // Check if an earlier search for the class/resource failed,
+                // in which case we can skip straight to the outcome.
+                Object miss = getCachedMiss(name, isClass);
+                if (miss == LOCAL_MISS)
                 {
-                    result = (isClass)
-                        ? (Object) ((BundleClassLoader) getClassLoader()).findClass(name)
-                        : (Object) m_revision.getResourceLocal(name);
-
-                    // If still not found, then try the revision's dynamic imports.
-                    if (result == null)
-                    {
-                        result = searchDynamicImports(pkgName, name, isClass);
-                    }
+                    result = searchImplicitBootDelegation(name, isClass);
+                }
+                else if (miss == null)
+                {
+                    result = searchDelegates(pkgName, name, isClass);
                 }
             }
             finally
@@ -1489,6 +1601,7 @@ public class BundleWiringImpl implements BundleWiring
             // If a cycle is detected, we should return null to break the
             // cycle. This should only ever be return to internal class
             // loading code and not to the actual instigator of the class load.
+            ((int[]) m_cycleCount.get())[0]++;
             return null;
         }
 
@@ -1509,6 +1622,57 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
+    private Object searchDelegates(String pkgName, String name, boolean isClass)
+        throws ClassNotFoundException, ResourceNotFoundException
+    {
+        // Remember the cycle count, since we can only cache a miss if
+        // no part of the search was cut short by a class loading cycle.
+        int[] cycleCount = (m_classMisses != null) ? (int[]) m_cycleCount.get() : null;
+        int cycles = (cycleCount != null) ? cycleCount[0] : 0;
+
+        // Look in the revision's imports. Note that the search may
+        // be aborted if this method throws an exception, otherwise
+        // it continues if a null is returned.
+        Object result;
+        try
+        {
+            result = searchImports(pkgName, name, isClass);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            if ((cycleCount != null) && (cycles == cycleCount[0]))
+            {
+                cacheMiss(name, isClass, IMPORTED_MISS);
+            }
+            throw ex;
+        }
+        catch (ResourceNotFoundException ex)
+        {
+            if ((cycleCount != null) && (cycles == cycleCount[0]))
+            {
+                cacheMiss(name, isClass, IMPORTED_MISS);
+            }
+            throw ex;
+        }
+
+        // If not found, try the revision's own class path.
+        if (result == null)
+        {
+            result = (isClass)
+                ? (Object) ((BundleClassLoader) getClassLoader()).findClass(name)
+                : (Object) m_revision.getResourceLocal(name);
+
+            // If still not found, then try the revision's dynamic imports.
+            if (result == null)
+            {
+                result = searchDynamicImports(pkgName, name, isClass,
+                    (cycleCount != null) && (cycles == cycleCount[0]));
+            }
+        }
+
+        return result;
+    }
+
     private Object searchImports(String pkgName, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
@@ -1566,7 +1730,7 @@ public class BundleWiringImpl implements BundleWiring
     }
 
     private Object searchDynamicImports(
-        final String pkgName, final String name, final boolean isClass)
+        String pkgName, String name, boolean isClass, boolean cacheMiss)
         throws ClassNotFoundException, ResourceNotFoundException
     {
         // At this point, the module's imports were searched and so was the
@@ -1599,6 +1763,70 @@ public class BundleWiringImpl implements BundleWiring
                 : (Object) ((BundleWiringImpl) provider.getWiring()).getResourceByDelegation(name);
         }
 
+        // Since the class/resource cannot be found by the bundle itself,
+        // remember the miss unless the package matches a dynamic import,
+        // since then a provider may show up later.
+        if (cacheMiss && !hasDynamicImport(pkgName))
+        {
+            cacheMiss(name, isClass, LOCAL_MISS);
+        }
+
+        return searchImplicitBootDelegation(name, isClass);
+    }
+
+    /**
+     * Determines whether the specified package matches any of the dynamic
+     * imports of this wiring, irrespective of whether there currently is a
+     * provider for it or not.
+     * @param pkgName the package name to check.
+     * @return <tt>true</tt> if the package could be dynamically imported now
+     *         or in the future, otherwise <tt>false</tt>.
+    **/
+    private boolean hasDynamicImport(String pkgName)
+    {
+        List<BundleRequirement> dynamics =
+            Util.getDynamicRequirements(getRequirements(null));
+        for (BundleRequirement req : dynamics)
+        {
+            if (matchesPackage(((BundleRequirementImpl) req).getFilter(), pkgName))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesPackage(SimpleFilter sf, String pkgName)
+    {
+        if (sf.getOperation() == SimpleFilter.AND)
+        {
+            for (SimpleFilter sub : (List<SimpleFilter>) sf.getValue())
+            {
+                if (BundleRevision.PACKAGE_NAMESPACE.equals(sub.getName()))
+                {
+                    return matchesPackage(sub, pkgName);
+                }
+            }
+        }
+        else if (BundleRevision.PACKAGE_NAMESPACE.equals(sf.getName()))
+        {
+            if (sf.getOperation() == SimpleFilter.EQ)
+            {
+                return pkgName.equals(sf.getValue());
+            }
+            else if (sf.getOperation() == SimpleFilter.SUBSTRING)
+            {
+                return SimpleFilter.compareSubstring(
+                    (List<String>) sf.getValue(), pkgName);
+            }
+        }
+        // Be conservative with any other filter structure.
+        return true;
+    }
+
+    private Object searchImplicitBootDelegation(final String name, final boolean isClass)
+        throws ClassNotFoundException, ResourceNotFoundException
+    {
         // If implicit boot delegation is enabled, then try to guess whether
         // we should boot delegate.
         if (m_implicitBootDelegation)
@@ -1804,18 +2032,44 @@ public class BundleWiringImpl implements BundleWiring
         }
     }
 
-    public class BundleClassLoaderJava5 extends BundleClassLoader
+    public static class BundleClassLoaderJava5 extends BundleClassLoader
     {
-        public BundleClassLoaderJava5(ClassLoader parent)
+        // A class loader is only parallel capable if all of its super
+        // classes are, so each subclass has to register itself.
+        private static final boolean m_isParallel;
+
+        static
         {
-            super(parent);
+            // NOTE: Must be invoked from here, since registration applies
+            // to the class calling the method; see registerAsParallel().
+            Object registered = null;
+            try
+            {
+                registered = getRegisterAsParallelMethod().invoke(null, (Object[]) null);
+            }
+            catch (Throwable th)
+            {
+                // Not supported on this platform, so we are not parallel.
+            }
+            m_isParallel = Boolean.TRUE.equals(registered);
+        }
+
+        public BundleClassLoaderJava5(BundleWiringImpl wiring, ClassLoader parent)
+        {
+            super(wiring, parent);
+        }
+
+        @Override
+        boolean isParallel()
+        {
+            return m_isParallel && super.isParallel();
         }
 
         @Override
         public Enumeration getResources(String name)
         {
-            Enumeration urls = BundleWiringImpl.this.getResourcesByDelegation(name);
-            if (m_useLocalURLs)
+            Enumeration urls = m_wiring.getResourcesByDelegation(name);
+            if (m_wiring.m_useLocalURLs)
             {
                 urls = new ToLocalUrlEnumeration(urls);
             }
@@ -1825,24 +2079,38 @@ public class BundleWiringImpl implements BundleWiring
         @Override
         protected Enumeration findResources(String name)
         {
-            return m_revision.getResourcesLocal(name);
+            return m_wiring.m_revision.getResourcesLocal(name);
         }
     }
 
-    public class BundleClassLoader extends SecureClassLoader implements BundleReference
+    public static class BundleClassLoader extends SecureClassLoader implements BundleReference
     {
+        // Registration only succeeds on platforms supporting parallel capable
+        // class loaders (i.e., Java 7 and later); otherwise, the VM locks the
+        // class loader instance itself and we fall back to doing the same.
+        private static final boolean m_isParallel = registerAsParallel();
+
+        final BundleWiringImpl m_wiring;
+
         // Flag used to determine if a class has been loaded from this class
         // loader or not.
         private volatile boolean m_isActivationTriggered = false;
 
+        // Per-class name locks used to define classes if this class
+        // loader is parallel capable.
+        private final ConcurrentHashMap<String, Object> m_classLocks;
+
         private final Map m_jarContentToDexFile;
         private Object[][] m_cachedLibs = new Object[0][];
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
 
-        public BundleClassLoader(ClassLoader parent)
+        public BundleClassLoader(BundleWiringImpl wiring, ClassLoader parent)
         {
             super(parent);
+            m_wiring = wiring;
+            m_classLocks = (isParallel())
+                ? new ConcurrentHashMap<String, Object>() : null;
             if (m_dexFileClassLoadClass != null)
             {
                 m_jarContentToDexFile = new HashMap();
@@ -1853,6 +2121,89 @@ public class BundleWiringImpl implements BundleWiring
             }
         }
 
+        /**
+         * Returns the <tt>ClassLoader.registerAsParallelCapable()</tt> method,
+         * which must be accessed reflectively since it only exists on Java 7
+         * and later.
+         * @return the accessible method.
+         * @throws Exception if the method does not exist on this platform.
+        **/
+        static Method getRegisterAsParallelMethod() throws Exception
+        {
+            Method m = ClassLoader.class.getDeclaredMethod(
+                "registerAsParallelCapable", (Class[]) null);
+            m.setAccessible(true);
+            return m;
+        }
+
+        /**
+         * Registers this class as parallel capable. The registration applies
+         * to the class invoking <tt>registerAsParallelCapable()</tt>, so
+         * subclasses cannot call this method but have to invoke the method
+         * returned by {@link #getRegisterAsParallelMethod()} themselves.
+         * @return <tt>true</tt> if this class has been registered,
+         *         <tt>false</tt> if this is not supported on this platform.
+        **/
+        private static boolean registerAsParallel()
+        {
+            try
+            {
+                return Boolean.TRUE.equals(
+                    getRegisterAsParallelMethod().invoke(null, (Object[]) null));
+            }
+            catch (Throwable th)
+            {
+                // Not supported on this platform, so we are not parallel.
+                return false;
+            }
+        }
+
+        boolean isParallel()
+        {
+            return m_isParallel;
+        }
+
+        /**
+         * Returns the lock to hold while defining the named class. If this
+         * class loader is parallel capable, then there is one lock per class
+         * name; otherwise, the class loader itself is the lock.
+         * @param name the name of the class to define.
+         * @return the lock object for the named class.
+        **/
+        Object getClassLock(String name)
+        {
+            if (m_classLocks == null)
+            {
+                return this;
+            }
+            Object lock = m_classLocks.get(name);
+            if (lock == null)
+            {
+                lock = new Object();
+                Object existing = m_classLocks.putIfAbsent(name, lock);
+                lock = (existing != null) ? existing : lock;
+            }
+            return lock;
+        }
+
+        /**
+         * Releases the lock of the named class once the class is defined.
+         * Threads still waiting for the lock as well as threads arriving later
+         * with a new lock find the defined class, so the lock is not needed
+         * any more. If the class could not be defined, the lock is kept to
+         * avoid a concurrent second attempt to define the class.
+         * @param name the name of the class.
+         * @param lock the lock returned by {@link #getClassLock(String)}.
+         * @param clazz the defined class or <tt>null</tt>.
+        **/
+        void releaseClassLock(String name, Object lock, Class clazz)
+        {
+            if ((m_classLocks != null) && (clazz != null))
+            {
+                m_classLocks.remove(name, lock);
+            }
+        }
+
         public boolean isActivationTriggered()
         {
             return m_isActivationTriggered;
@@ -1860,26 +2211,22 @@ public class BundleWiringImpl implements BundleWiring
 
         public Bundle getBundle()
         {
-            return BundleWiringImpl.this.getBundle();
+            return m_wiring.getBundle();
         }
 
         @Override
         protected Class loadClass(String name, boolean resolve)
             throws ClassNotFoundException
         {
-            Class clazz = null;
-
-            // Make sure the class was not already loaded.
-            synchronized (this)
-            {
-                clazz = findLoadedClass(name);
-            }
+            // Make sure the class was not already loaded. This does not need
+            // to be synchronized, since findLoadedClass() is thread safe.
+            Class clazz = findLoadedClass(name);
 
             if (clazz == null)
             {
                 try
                 {
-                    clazz = (Class) findClassOrResourceByDelegation(name, true);
+                    clazz = (Class) m_wiring.findClassOrResourceByDelegation(name, true);
                 }
                 catch (ResourceNotFoundException ex)
                 {
@@ -1890,9 +2237,9 @@ public class BundleWiringImpl implements BundleWiring
                 {
                     ClassNotFoundException ex = cnfe;
                     String msg = name;
-                    if (m_logger.getLogLevel() >= Logger.LOG_DEBUG)
+                    if (m_wiring.m_logger.getLogLevel() >= Logger.LOG_DEBUG)
                     {
-                        msg = diagnoseClassLoadError(m_resolver, m_revision, name);
+                        msg = diagnoseClassLoadError(m_wiring.m_resolver, m_wiring.m_revision, name);
                         ex = (msg != null)
                             ? new ClassNotFoundException(msg, cnfe)
                             : ex;
@@ -1922,7 +2269,7 @@ public class BundleWiringImpl implements BundleWiring
                 byte[] bytes = null;
 
                 // Check the bundle class path.
-                List<Content> contentPath = m_revision.getContentPath();
+                List<Content> contentPath = m_wiring.m_revision.getContentPath();
                 Content content = null;
                 for (int i = 0;
                     (bytes == null) &&
@@ -1944,14 +2291,14 @@ public class BundleWiringImpl implements BundleWiring
                     // or removal, we just get a snapshot and leave any changes
                     // as a race condition, doing any necessary clean up in
                     // the error handling.
-                    Felix felix = ((BundleImpl) m_revision.getBundle()).getFramework();
+                    Felix felix = ((BundleImpl) m_wiring.m_revision.getBundle()).getFramework();
                     Set<ServiceReference<WeavingHook>> hooks =
                         felix.getHooks(WeavingHook.class);
                     WovenClassImpl wci = null;
                     if (!hooks.isEmpty())
                     {
                         // Create woven class to be used for hooks.
-                        wci = new WovenClassImpl(name, BundleWiringImpl.this, bytes);
+                        wci = new WovenClassImpl(name, m_wiring, bytes);
                         // Loop through hooks in service ranking order.
                         for (ServiceReference<WeavingHook> sr : hooks)
                         {
@@ -1998,9 +2345,10 @@ public class BundleWiringImpl implements BundleWiring
                     }
 
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
-                    // other thread has defined this class in the meantime.
-                    synchronized (this)
+                    // the lock for the class and make sure than no other
+                    // thread has defined this class in the meantime.
+                    Object classLock = getClassLock(name);
+                    synchronized (classLock)
                     {
                         byte[] wovenBytes = null;
                         Class wovenClass = null;
@@ -2035,7 +2383,7 @@ public class BundleWiringImpl implements BundleWiring
                                         {
                                             List<BundleRequirement> wovenReqs =
                                                 ManifestParser.parseDynamicImportHeader(
-                                                    m_logger, m_revision, s);
+                                                    m_wiring.m_logger, m_wiring.m_revision, s);
                                             allWovenReqs.addAll(wovenReqs);
                                         }
                                         catch (BundleException ex)
@@ -2048,45 +2396,53 @@ public class BundleWiringImpl implements BundleWiring
                                     // Add the dynamic requirements.
                                     if (!allWovenReqs.isEmpty())
                                     {
-                                        // Check for duplicate woven imports.
-                                        // First grab existing woven imports, if any.
-                                        Set<String> filters = new HashSet<String>();
-                                        if (m_wovenReqs != null)
+                                        // Classes may be defined concurrently, so merging
+                                        // woven requirements is guarded by the wiring lock.
+                                        synchronized (m_wiring)
                                         {
-                                            for (BundleRequirement req : m_wovenReqs)
+                                            // Check for duplicate woven imports.
+                                            // First grab existing woven imports, if any.
+                                            Set<String> filters = new HashSet<String>();
+                                            if (m_wiring.m_wovenReqs != null)
                                             {
-                                                filters.add(
-                                                    ((BundleRequirementImpl) req)
-                                                        .getFilter().toString());
+                                                for (BundleRequirement req : m_wiring.m_wovenReqs)
+                                                {
+                                                    filters.add(
+                                                        ((BundleRequirementImpl) req)
+                                                            .getFilter().toString());
+                                                }
                                             }
-                                        }
-                                        // Then check new woven imports for duplicates
-                                        // against existing and self.
-                                        int idx = allWovenReqs.size();
-                                        while (idx < allWovenReqs.size())
-                                        {
-                                            BundleRequirement wovenReq = allWovenReqs.get(idx);
-                                            String filter = ((BundleRequirementImpl)
-                                                wovenReq).getFilter().toString();
-                                            if (!filters.contains(filter))
+                                            // Then check new woven imports for duplicates
+                                            // against existing and self.
+                                            int idx = allWovenReqs.size();
+                                            while (idx < allWovenReqs.size())
                                             {
-                                                filters.add(filter);
-                                                idx++;
+                                                BundleRequirement wovenReq = allWovenReqs.get(idx);
+                                                String filter = ((BundleRequirementImpl)
+                                                    wovenReq).getFilter().toString();
+                                                if (!filters.contains(filter))
+                                                {
+                                                    filters.add(filter);
+                                                    idx++;
+                                                }
+                                                else
+                                                {
+                                                    allWovenReqs.remove(idx);
+                                                }
                                             }
-                                            else
+                                            // Merge existing with new imports, if any.
+                                            if (!allWovenReqs.isEmpty())
                                             {
-                                                allWovenReqs.remove(idx);
+                                                if (m_wiring.m_wovenReqs != null)
+                                                {
+                                                    allWovenReqs.addAll(0, m_wiring.m_wovenReqs);
+                                                }
+                                                m_wiring.m_wovenReqs = allWovenReqs;
+                                                // Woven dynamic imports may make
+                                                // missing classes available.
+                                                m_wiring.clearMissCaches();
                                             }
                                         }
-                                        // Merge existing with new imports, if any.
-                                        if (!allWovenReqs.isEmpty())
-                                        {
-                                            if (m_wovenReqs != null)
-                                            {
-                                                allWovenReqs.addAll(0, m_wovenReqs);
-                                            }
-                                            m_wovenReqs = allWovenReqs;
-                                        }
                                     }
                                 }
 
@@ -2102,7 +2458,7 @@ public class BundleWiringImpl implements BundleWiring
                                 // circuit the trigger matching if the trigger is already
                                 // tripped.
                                 boolean isTriggerClass = m_isActivationTriggered
-                                    ? false : m_revision.isActivationTrigger(pkgName);
+                                    ? false : m_wiring.m_revision.isActivationTrigger(pkgName);
                                 if (!m_isActivationTriggered
                                     && isTriggerClass
                                     && (activationPolicy == BundleRevisionImpl.LAZY_ACTIVATION)
@@ -2121,25 +2477,30 @@ public class BundleWiringImpl implements BundleWiring
                                 // created it.
                                 if (pkgName.length() > 0)
                                 {
-                                    if (getPackage(pkgName) == null)
+                                    // Classes of the same package may be defined
+                                    // concurrently, so guard the package definition.
+                                    synchronized (this)
                                     {
-                                        Object[] params = definePackage(pkgName);
-                                        if (params != null)
-                                        {
-                                            definePackage(
-                                                pkgName,
-                                                (String) params[0],
-                                                (String) params[1],
-                                                (String) params[2],
-                                                (String) params[3],
-                                                (String) params[4],
-                                                (String) params[5],
-                                                null);
-                                        }
-                                        else
+                                        if (getPackage(pkgName) == null)
                                         {
-                                            definePackage(pkgName, null, null,
-                                                null, null, null, null, null);
+                                            Object[] params = definePackage(pkgName);
+                                            if (params != null)
+                                            {
+                                                definePackage(
+                                                    pkgName,
+                                                    (String) params[0],
+                                                    (String) params[1],
+                                                    (String) params[2],
+                                                    (String) params[3],
+                                                    (String) params[4],
+                                                    (String) params[5],
+                                                    null);
+                                            }
+                                            else
+                                            {
+                                                definePackage(pkgName, null, null,
+                                                    null, null, null, null, null);
+                                            }
                                         }
                                     }
                                 }
@@ -2162,10 +2523,10 @@ public class BundleWiringImpl implements BundleWiring
                                     // If we have a security context, then use it to
                                     // define the class with it for security purposes,
                                     // otherwise define the class without a protection domain.
-                                    if (m_revision.getProtectionDomain() != null)
+                                    if (m_wiring.m_revision.getProtectionDomain() != null)
                                     {
                                         clazz = defineClass(name, bytes, 0, bytes.length,
-                                            m_revision.getProtectionDomain());
+                                            m_wiring.m_revision.getProtectionDomain());
                                     }
                                     else
                                     {
@@ -2195,6 +2556,7 @@ public class BundleWiringImpl implements BundleWiring
                             }
                         }
                     }
+                    releaseClassLock(name, classLock, clazz);
 
                     // Perform deferred activation without holding the class loader lock,
                     // if the class we are returning is the instigating class.
@@ -2217,7 +2579,7 @@ public class BundleWiringImpl implements BundleWiring
                             }
                             catch (Throwable ex)
                             {
-                                m_logger.log((BundleImpl) (lazy)[1],
+                                m_wiring.m_logger.log((BundleImpl) (lazy)[1],
                                     Logger.LOG_WARNING,
                                     "Unable to lazily start bundle.",
                                     ex);
@@ -2232,12 +2594,12 @@ public class BundleWiringImpl implements BundleWiring
 
         private Object[] definePackage(String pkgName)
         {
-            String spectitle = (String) m_revision.getHeaders().get("Specification-Title");
-            String specversion = (String) m_revision.getHeaders().get("Specification-Version");
-            String specvendor = (String) m_revision.getHeaders().get("Specification-Vendor");
-            String impltitle = (String) m_revision.getHeaders().get("Implementation-Title");
-            String implversion = (String) m_revision.getHeaders().get("Implementation-Version");
-            String implvendor = (String) m_revision.getHeaders().get("Implementation-Vendor");
+            String spectitle = (String) m_wiring.m_revision.getHeaders().get("Specification-Title");
+            String specversion = (String) m_wiring.m_revision.getHeaders().get("Specification-Version");
+            String specvendor = (String) m_wiring.m_revision.getHeaders().get("Specification-Vendor");
+            String impltitle = (String) m_wiring.m_revision.getHeaders().get("Implementation-Title");
+            String implversion = (String) m_wiring.m_revision.getHeaders().get("Implementation-Version");
+            String implvendor = (String) m_wiring.m_revision.getHeaders().get("Implementation-Vendor");
             if ((spectitle != null)
                 || (specversion != null)
                 || (specvendor != null)
@@ -2262,31 +2624,35 @@ public class BundleWiringImpl implements BundleWiring
 
             Object dexFile = null;
 
-            if (!m_jarContentToDexFile.containsKey(content))
+            // Classes may be defined concurrently, so guard the cache.
+            synchronized (m_jarContentToDexFile)
             {
-                try
+                if (!m_jarContentToDexFile.containsKey(content))
                 {
-                    if (m_dexFileClassLoadDex != null)
+                    try
                     {
-                        dexFile = m_dexFileClassLoadDex.invoke(null,
-                            new Object[]{content.getFile().getAbsolutePath(),
-                                content.getFile().getAbsolutePath() + ".dex", new Integer(0)});
+                        if (m_dexFileClassLoadDex != null)
+                        {
+                            dexFile = m_dexFileClassLoadDex.invoke(null,
+                                new Object[]{content.getFile().getAbsolutePath(),
+                                    content.getFile().getAbsolutePath() + ".dex", new Integer(0)});
+                        }
+                        else
+                        {
+                            dexFile = m_dexFileClassConstructor.newInstance(
+                                new Object[] { content.getFile() });
+                        }
                     }
-                    else
+                    finally
                     {
-                        dexFile = m_dexFileClassConstructor.newInstance(
-                            new Object[] { content.getFile() });
+                        m_jarContentToDexFile.put(content, dexFile);
                     }
                 }
-                finally
+                else
                 {
-                    m_jarContentToDexFile.put(content, dexFile);
+                    dexFile = m_jarContentToDexFile.get(content);
                 }
             }
-            else
-            {
-                dexFile = m_jarContentToDexFile.get(content);
-            }
 
             if (dexFile != null)
             {
@@ -2299,8 +2665,8 @@ public class BundleWiringImpl implements BundleWiring
         @Override
         public URL getResource(String name)
         {
-            URL url = BundleWiringImpl.this.getResourceByDelegation(name);
-            if (m_useLocalURLs)
+            URL url = m_wiring.getResourceByDelegation(name);
+            if (m_wiring.m_useLocalURLs)
             {
                 url = convertToLocalUrl(url);
             }
@@ -2310,7 +2676,7 @@ public class BundleWiringImpl implements BundleWiring
         @Override
         protected URL findResource(String name)
         {
-            return m_revision.getResourceLocal(name);
+            return m_wiring.m_revision.getResourceLocal(name);
         }
 
         // The findResources() method should only look at the revision itself, but
@@ -2321,8 +2687,8 @@ public class BundleWiringImpl implements BundleWiring
         @Override
         protected Enumeration findResources(String name)
         {
-            Enumeration urls = BundleWiringImpl.this.getResourcesByDelegation(name);
-            if (m_useLocalURLs)
+            Enumeration urls = m_wiring.getResourcesByDelegation(name);
+            if (m_wiring.m_useLocalURLs)
             {
                 urls = new ToLocalUrlEnumeration(urls);
             }
@@ -2357,21 +2723,21 @@ public class BundleWiringImpl implements BundleWiring
                 // native library.
                 if (result == null)
                 {
-                    List<R4Library> libs = getNativeLibraries();
+                    List<R4Library> libs = m_wiring.getNativeLibraries();
                     for (int libIdx = 0; (libs != null) && (libIdx < libs.size()); libIdx++)
                     {
-                        if (libs.get(libIdx).match(m_configMap, name))
+                        if (libs.get(libIdx).match(m_wiring.m_configMap, name))
                         {
                             // Search bundle content first for native library.
-                            result = m_revision.getContent().getEntryAsNativeLibrary(
+                            result = m_wiring.m_revision.getContent().getEntryAsNativeLibrary(
                                 libs.get(libIdx).getEntryName());
                             // If not found, then search fragments in order.
                             for (int i = 0;
-                                (result == null) && (m_fragmentContents != null)
-                                    && (i < m_fragmentContents.size());
+                                (result == null) && (m_wiring.m_fragmentContents != null)
+                                    && (i < m_wiring.m_fragmentContents.size());
                                 i++)
                             {
-                                result = m_fragmentContents.get(i).getEntryAsNativeLibrary(
+                                result = m_wiring.m_fragmentContents.get(i).getEntryAsNativeLibrary(
                                     libs.get(libIdx).getEntryName());
                             }
                         }
@@ -2394,7 +2760,7 @@ public class BundleWiringImpl implements BundleWiring
         @Override
         public String toString()
         {
-            return BundleWiringImpl.this.toString();
+            return m_wiring.toString();
         }
     }
 
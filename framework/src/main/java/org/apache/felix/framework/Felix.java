@@ -23,6 +23,11 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
 import org.apache.felix.framework.cache.BundleArchive;
@@ -37,6 +42,7 @@ import org.apache.felix.framework.util.ListenerInfo;
 import org.apache.felix.framework.util.MapToDictionary;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.ShrinkableCollection;
+import org.apache.felix.framework.util.Statistics;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.ThreadGate;
 import org.apache.felix.framework.util.Util;
@@ -93,11 +99,17 @@ public class Felix extends BundleImpl implements Framework
     // Resolver and resolver state.
     private final StatefulResolver m_resolver;
 
+    // Counters about the framework's internal operation.
+    private final Statistics m_statistics = new Statistics();
+
     // Lock object used to determine if an individual bundle
     // lock or the global lock can be acquired.
     private final Object[] m_bundleLock = new Object[0];
     // Keeps track of threads wanting to acquire the global lock.
     private final List m_globalLockWaitersList = new ArrayList();
+    // Maps threads waiting for a bundle lock to the bundle they wait for.
+    private final Map<Thread, BundleImpl> m_bundleLockWaiters =
+        new HashMap<Thread, BundleImpl>();
     // The thread currently holding the global lock.
     private Thread m_globalLockThread = null;
     // How many times the global lock was acquired by the thread holding
@@ -140,6 +152,13 @@ public class Felix extends BundleImpl implements Framework
     // Keep track of bundles currently being processed by start level thread.
     private final SortedSet<StartLevelTuple> m_startLevelBundles =
         new TreeSet<StartLevelTuple>();
+    // Number of threads starting bundles of the same start level.
+    private final int m_startLevelParallelism;
+    // Marks the worker threads of the start level thread.
+    private final ThreadLocal<Boolean> m_startLevelWorker = new ThreadLocal<Boolean>();
+    // Number of attempts to lock a bundle during a start level change
+    // before the bundle is skipped.
+    private static final int MAX_LOCK_ATTEMPTS = 10;
 
     // Local bundle cache.
     private BundleCache m_cache = null;
@@ -363,6 +382,24 @@ public class Felix extends BundleImpl implements Framework
             m_bootPkgs[i] = s;
         }
 
+        // Read the number of threads used to start the bundles of a start level.
+        int parallelism = 1;
+        s = (String) m_configMap.get(FelixConstants.STARTLEVEL_PARALLELISM_PROP);
+        if (s != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Invalid " + FelixConstants.STARTLEVEL_PARALLELISM_PROP
+                    + " value, using default: " + s);
+            }
+        }
+        m_startLevelParallelism = Math.max(parallelism, 1);
+
         // Create default bundle stream handler.
         m_bundleStreamHandler = new URLHandlersBundleStreamHandler(this);
 
@@ -392,7 +429,8 @@ public class Felix extends BundleImpl implements Framework
         });
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        m_dispatcher = new EventDispatcher(
+            m_logger, m_registry, m_configMap, m_statistics);
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -415,6 +453,16 @@ public class Felix extends BundleImpl implements Framework
         return m_resolver;
     }
 
+    Statistics getStatistics()
+    {
+        return m_statistics;
+    }
+
+    EventDispatcher getEventDispatcher()
+    {
+        return m_dispatcher;
+    }
+
     BundleRevisionDependencies getDependencies()
     {
         return m_dependencies;
@@ -1193,120 +1241,77 @@ public class Felix extends BundleImpl implements Framework
                 releaseGlobalLock();
             }
 
-            // Process bundles and stop or start them accordingly.
-            while (bundlesRemaining)
+            // Process bundles and stop or start them accordingly. When
+            // raising the start level, bundles of the same start level may
+            // be started concurrently, but all bundles of a start level are
+            // processed before moving on to the next one.
+            ExecutorService executor = null;
+            BundleImpl retried = null;
+            int attempt = 0;
+            try
             {
-                StartLevelTuple tuple;
-                synchronized (m_startLevelBundles)
+                while (bundlesRemaining)
                 {
-                    if (lowering)
+                    List<StartLevelTuple> tuples = new ArrayList<StartLevelTuple>();
+                    synchronized (m_startLevelBundles)
                     {
-                        tuple = m_startLevelBundles.last();
-                    }
-                    else
-                    {
-                        tuple = m_startLevelBundles.first();
-                    }
-                }
-
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
-                {
-                    // Lock the current bundle.
-                    try
-                    {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
-                    {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                        if (lowering)
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
+                            tuples.add(m_startLevelBundles.last());
                         }
-                        else
+                        else if (m_startLevelParallelism > 1)
                         {
-                            synchronized (m_startLevelBundles)
+                            int level = m_startLevelBundles.first().m_level;
+                            for (StartLevelTuple tuple : m_startLevelBundles)
                             {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
+                                if (tuple.m_level != level)
+                                {
+                                    break;
+                                }
+                                tuples.add(tuple);
                             }
                         }
-                        continue;
+                        else
+                        {
+                            tuples.add(m_startLevelBundles.first());
+                        }
                     }
 
-                    try
+                    if (tuples.size() == 1)
                     {
-                        // Start the bundle if necessary.
-                        if (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                            || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                            && (tuple.m_level <= m_targetStartLevel))
+                        // Retry the bundle if it could not be locked. The
+                        // first bundle may have changed in the meantime if
+                        // a bundle start level was changed.
+                        attempt = (tuples.get(0).m_bundle == retried) ? attempt + 1 : 0;
+                        if (!processStartLevelTuple(tuples.get(0), attempt))
                         {
-                            // Count up the active start level.
-                            if (m_activeStartLevel != tuple.m_level)
-                            {
-                                m_activeStartLevel = tuple.m_level;
-                            }
-
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
-                            }
+                            retried = tuples.get(0).m_bundle;
+                            backOff(attempt);
+                            continue;
                         }
-                        // Stop the bundle if necessary.
-                        else if (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                            || (tuple.m_bundle.getState() == Bundle.STARTING))
-                            && (tuple.m_level > m_targetStartLevel))
+                        retried = null;
+                    }
+                    else
+                    {
+                        if (executor == null)
                         {
-                            // Count down the active start level.
-                            if (m_activeStartLevel != tuple.m_level)
-                            {
-                                m_activeStartLevel = tuple.m_level;
-                            }
-
-                            try
-                            {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
-                            }
+                            executor = createStartLevelExecutor();
                         }
+                        processStartLevelTuples(executor, tuples);
                     }
-                    finally
+
+                    synchronized (m_startLevelBundles)
                     {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
+                        m_startLevelBundles.removeAll(tuples);
+                        bundlesRemaining = !m_startLevelBundles.isEmpty();
                     }
                 }
-
-                synchronized (m_startLevelBundles)
+            }
+            finally
+            {
+                if (executor != null)
                 {
-                    m_startLevelBundles.remove(tuple);
-                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    executor.shutdown();
                 }
             }
 
@@ -1337,6 +1342,238 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts or stops the bundle of the specified tuple as needed for the
+     * target start level. This method is called by the start level thread
+     * and, if parallel activation is enabled, its worker threads.
+     * @param tuple The bundle and its start level.
+     * @param attempt The number of previous attempts to lock the bundle;
+     *        only the first failure is reported.
+     * @return <tt>false</tt> if the bundle could not be locked and must be
+     *         processed again, <tt>true</tt> otherwise, including when the
+     *         bundle could not be locked in <tt>MAX_LOCK_ATTEMPTS</tt>
+     *         attempts and is skipped.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, int attempt)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (tuple.m_bundle.getBundleId() != 0)
+        {
+            // Lock the current bundle.
+            try
+            {
+                acquireBundleLock(tuple.m_bundle,
+                    Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                    | Bundle.STARTING | Bundle.STOPPING);
+            }
+            catch (IllegalStateException ex)
+            {
+                // Ignore if the bundle has been uninstalled.
+                if (tuple.m_bundle.getState() == Bundle.UNINSTALLED)
+                {
+                    return true;
+                }
+                // Only report the first failure to lock the bundle.
+                if (attempt == 0)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error locking " + tuple.m_bundle._getLocation(), ex);
+                }
+                // Skip the bundle rather than retrying it forever.
+                if (attempt + 1 >= MAX_LOCK_ATTEMPTS)
+                {
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Skipping " + tuple.m_bundle._getLocation()
+                        + " after " + MAX_LOCK_ATTEMPTS + " attempts to lock it.");
+                    return true;
+                }
+                return false;
+            }
+
+            try
+            {
+                // Start the bundle if necessary.
+                if (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                    && (tuple.m_level <= m_targetStartLevel))
+                {
+                    // Count up the active start level.
+                    if (m_activeStartLevel != tuple.m_level)
+                    {
+                        m_activeStartLevel = tuple.m_level;
+                    }
+
+                    try
+                    {
+// TODO: LAZY - Not sure if this is the best way...
+                        int options = Bundle.START_TRANSIENT;
+                        options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                            ? options | Bundle.START_ACTIVATION_POLICY
+                            : options;
+                        long time = System.nanoTime();
+                        startBundle(tuple.m_bundle, options);
+                        recordActivationTime(tuple.m_bundle, System.nanoTime() - time);
+                    }
+                    catch (Throwable th)
+                    {
+                        fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error starting " + tuple.m_bundle._getLocation(), th);
+                    }
+                }
+                // Stop the bundle if necessary.
+                else if (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getState() == Bundle.STARTING))
+                    && (tuple.m_level > m_targetStartLevel))
+                {
+                    // Count down the active start level.
+                    if (m_activeStartLevel != tuple.m_level)
+                    {
+                        m_activeStartLevel = tuple.m_level;
+                    }
+
+                    try
+                    {
+                        stopBundle(tuple.m_bundle, false);
+                    }
+                    catch (Throwable th)
+                    {
+                        fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error stopping " + tuple.m_bundle._getLocation(), th);
+                    }
+                }
+            }
+            finally
+            {
+                // Always release bundle lock.
+                releaseBundleLock(tuple.m_bundle);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes the specified tuples, which all have the same start level,
+     * concurrently and waits until all of them are done.
+     * @param executor The executor running the tuples.
+     * @param tuples The bundles to process.
+    **/
+    private void processStartLevelTuples(
+        ExecutorService executor, List<StartLevelTuple> tuples)
+    {
+        List<Future> futures = new ArrayList<Future>(tuples.size());
+        for (final StartLevelTuple tuple : tuples)
+        {
+            futures.add(executor.submit(new Runnable() {
+                public void run()
+                {
+                    // Retry the bundle if it could not be locked.
+                    for (int attempt = 0;
+                        !processStartLevelTuple(tuple, attempt);
+                        attempt++)
+                    {
+                        backOff(attempt);
+                    }
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                futures.get(i).get();
+            }
+            catch (InterruptedException ex)
+            {
+                // Do not leave the start level before all its bundles
+                // are processed.
+                interrupted = true;
+                i--;
+            }
+            catch (ExecutionException ex)
+            {
+                BundleImpl bundle = tuples.get(i).m_bundle;
+                fireFrameworkEvent(FrameworkEvent.ERROR, bundle, ex.getCause());
+                m_logger.log(bundle, Logger.LOG_ERROR,
+                    "Error processing " + bundle._getLocation(), ex.getCause());
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ExecutorService createStartLevelExecutor()
+    {
+        return Executors.newFixedThreadPool(m_startLevelParallelism, new ThreadFactory() {
+            private int m_count = 0;
+
+            public synchronized Thread newThread(final Runnable r)
+            {
+                Thread t = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        m_startLevelWorker.set(Boolean.TRUE);
+                        r.run();
+                    }
+                }, FrameworkStartLevelImpl.THREAD_NAME + "-" + (++m_count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private boolean isStartLevelThread()
+    {
+        return Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME)
+            || (m_startLevelWorker.get() != null);
+    }
+
+    private void recordActivationTime(BundleImpl bundle, long time)
+    {
+        long millis = time / 1000000L;
+        m_statistics.getCounter("startlevel.activations").incrementAndGet();
+        m_statistics.getCounter("startlevel.activationtime").addAndGet(time);
+        m_statistics.getCounter(getActivationTimeCounter(bundle)).set(millis);
+        m_logger.log(bundle, Logger.LOG_DEBUG,
+            "Started " + bundle._getLocation() + " in " + millis + " ms.");
+    }
+
+    private static String getActivationTimeCounter(BundleImpl bundle)
+    {
+        return "startlevel.activationtime." + bundle.getBundleId();
+    }
+
+    /**
+     * Waits before retrying a bundle which could not be locked during a
+     * start level change. The wait time doubles with each attempt up to
+     * a maximum of 100 milliseconds, so the at most
+     * <tt>MAX_LOCK_ATTEMPTS</tt> attempts take well under a second.
+     * @param attempt The number of failed attempts so far, starting at 0.
+    **/
+    private static void backOff(int attempt)
+    {
+        try
+        {
+            Thread.sleep(Math.min(1L << Math.min(attempt, 7), 100L));
+        }
+        catch (InterruptedException ex)
+        {
+            // The start level change must complete, so ignore.
+        }
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -1917,7 +2154,7 @@ public class Felix extends BundleImpl implements Framework
             // Check to see if there is a start level change in progress and if so
             // add this bundle to the bundles being processed by the start level
             // thread and return.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            if (!isStartLevelThread())
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -2622,6 +2859,9 @@ public class Felix extends BundleImpl implements Framework
             // Set state to uninstalled.
             setBundleStateAndNotify(bundle, Bundle.UNINSTALLED);
             bundle.setLastModified(System.currentTimeMillis());
+
+            // Forget the activation time of the bundle.
+            m_statistics.removeCounter(getActivationTimeCounter(bundle));
         }
         finally
         {
@@ -2678,6 +2918,8 @@ public class Felix extends BundleImpl implements Framework
     {
         // First, check the config properties.
         String val = (String) m_configMap.get(key);
+        // If not found, then try the framework statistics.
+        val = (val == null) ? m_statistics.getProperty(key) : val;
         // If not found, then try the system properties.
         return (val == null) ? System.getProperty(key) : val;
     }
@@ -4954,7 +5196,17 @@ public class Felix extends BundleImpl implements Framework
                 {
                     bundle.getLockingThread().interrupt();
                 }
+                // If the bundle is locked by a thread which waits for a bundle
+                // locked by the calling thread, then waiting would deadlock,
+                // e.g., if the activators of two bundles started concurrently
+                // during a start level change start each other.
+                else if (isBundleLockCycle(bundle))
+                {
+                    throw new IllegalStateException(
+                        "Unable to acquire bundle lock, bundle locks form a cycle.");
+                }
 
+                m_bundleLockWaiters.put(Thread.currentThread(), bundle);
                 try
                 {
                     m_bundleLock.wait();
@@ -4963,6 +5215,10 @@ public class Felix extends BundleImpl implements Framework
                 {
                     throw new IllegalStateException("Unable to acquire bundle lock, thread interrupted.");
                 }
+                finally
+                {
+                    m_bundleLockWaiters.remove(Thread.currentThread());
+                }
             }
 
             // Now that we can acquire the bundle lock, let's check to make sure
@@ -4978,6 +5234,29 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Determines whether the calling thread waiting for the specified
+     * bundle would close a cycle of threads waiting for bundle locks held
+     * by each other. Must be called while holding the bundle lock monitor.
+     * @param bundle The bundle the calling thread is about to wait for.
+     * @return <tt>true</tt> if waiting would deadlock.
+    **/
+    private boolean isBundleLockCycle(BundleImpl bundle)
+    {
+        Thread owner = bundle.getLockingThread();
+        // Each waiting thread is visited at most once.
+        for (int i = 0; (owner != null) && (i <= m_bundleLockWaiters.size()); i++)
+        {
+            if (owner == Thread.currentThread())
+            {
+                return true;
+            }
+            BundleImpl waitedFor = m_bundleLockWaiters.get(owner);
+            owner = (waitedFor == null) ? null : waitedFor.getLockingThread();
+        }
+        return false;
+    }
+
     /**
      * Releases the bundle's lock.
      * @param bundle The bundle whose lock is to be released.
@@ -46,6 +46,8 @@ class ServiceRegistrationImpl implements ServiceRegistration
     private volatile Object m_svcObj;
     // Service factory interface.
     private volatile ServiceFactory m_factory;
+    // Flag indicating whether the service object is a service factory.
+    private final boolean m_isFactory;
     // Associated property dictionary.
     private volatile Map m_propMap = new StringMap(false);
     // Re-usable service reference.
@@ -65,6 +67,7 @@ class ServiceRegistrationImpl implements ServiceRegistration
         m_svcObj = svcObj;
         m_factory = (m_svcObj instanceof ServiceFactory)
             ? (ServiceFactory) m_svcObj : null;
+        m_isFactory = (m_factory != null);
 
         initializeProperties(dict);
 
@@ -73,11 +76,22 @@ class ServiceRegistrationImpl implements ServiceRegistration
         m_ref = new ServiceReferenceImpl();
     }
 
-    protected synchronized boolean isValid()
+    protected boolean isValid()
     {
         return (m_svcObj != null);
     }
 
+    /**
+     * Returns whether the service was registered with a service factory.
+     * Unlike checking the current service factory, this does not change
+     * when the service is unregistered.
+     * @return <tt>true</tt> if the service object is a service factory.
+    **/
+    boolean isFactory()
+    {
+        return m_isFactory;
+    }
+
     protected synchronized void invalidate()
     {
         m_svcObj = null;
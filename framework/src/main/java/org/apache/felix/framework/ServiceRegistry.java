@@ -19,9 +19,11 @@
 package org.apache.felix.framework;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
-import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -36,17 +38,24 @@ public class ServiceRegistry
 {
     private final Logger m_logger;
     private long m_currentServiceId = 1L;
-    // Maps bundle to an array of service registrations.
-    private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
-    // Capability set for all service registrations.
-    private final CapabilitySet m_regCapSet;
-
-    // Maps registration to thread to keep track when a
-    // registration is in use, which will cause other
-    // threads to wait.
-    private final Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private final Map m_inUseMap = new HashMap();
+    // Maps bundle to an array of service registrations. The arrays are
+    // copied on write while holding the registry lock, so they can be
+    // read without locking.
+    private final ConcurrentMap<Bundle, ServiceRegistration[]> m_regsMap =
+        new ConcurrentHashMap<Bundle, ServiceRegistration[]>();
+    // Maps object class name to an array of service references, which
+    // is maintained the same way as the registration arrays.
+    private final ConcurrentMap<String, ServiceReference[]> m_classRefsMap =
+        new ConcurrentHashMap<String, ServiceReference[]>();
+
+    // Maps registration to thread to keep track when a service
+    // factory registration is in use, which will cause other
+    // threads to wait on the registration.
+    private final ConcurrentMap<ServiceRegistration, Thread> m_lockedRegsMap =
+        new ConcurrentHashMap<ServiceRegistration, Thread>();
+    // Maps bundle to its usage counts by service reference.
+    private final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>> m_inUseMap =
+        new ConcurrentHashMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>>();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -72,15 +81,11 @@ public class ServiceRegistry
     {
         m_logger = logger;
         m_callbacks = callbacks;
-
-        List indices = new ArrayList();
-        indices.add(Constants.OBJECTCLASS);
-        m_regCapSet = new CapabilitySet(indices, false);
     }
 
     public ServiceReference[] getRegisteredServices(Bundle bundle)
     {
-        ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
+        ServiceRegistration[] regs = m_regsMap.get(bundle);
         if (regs != null)
         {
             List refs = new ArrayList(regs.length);
@@ -118,9 +123,13 @@ public class ServiceRegistry
             addHooks(classNames, svcObj, reg.getReference());
 
             // Get the bundles current registered services.
-            ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
+            ServiceRegistration[] regs = m_regsMap.get(bundle);
             m_regsMap.put(bundle, addServiceRegistration(regs, reg));
-            m_regCapSet.addCapability((BundleCapabilityImpl) reg.getReference());
+            for (int i = 0; i < classNames.length; i++)
+            {
+                m_classRefsMap.put(classNames[i], addServiceReference(
+                    m_classRefsMap.get(classNames[i]), reg.getReference()));
+            }
         }
 
         return reg;
@@ -140,9 +149,23 @@ public class ServiceRegistry
             // new bundles will be able to look up the service.
 
             // Now remove the registered service.
-            ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
+            ServiceRegistration[] regs = m_regsMap.get(bundle);
             m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
-            m_regCapSet.removeCapability((BundleCapabilityImpl) reg.getReference());
+            ServiceReference ref = reg.getReference();
+            String[] classNames = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+            for (int i = 0; i < classNames.length; i++)
+            {
+                ServiceReference[] refs = removeServiceReference(
+                    m_classRefsMap.get(classNames[i]), ref);
+                if (refs == null)
+                {
+                    m_classRefsMap.remove(classNames[i]);
+                }
+                else
+                {
+                    m_classRefsMap.put(classNames[i], refs);
+                }
+            }
         }
 
         // Notify callback objects about unregistering service.
@@ -153,15 +176,22 @@ public class ServiceRegistry
         }
 
         // Now forcibly unget the service object for all stubborn clients.
-        synchronized (this)
+        ServiceReference ref = reg.getReference();
+        ungetServiceForAll(ref);
+        ((ServiceRegistrationImpl) reg).invalidate();
+        // Since getting a service does not lock the registry, a client
+        // may have acquired the service while we were ungetting it above;
+        // such clients will see the invalidated registration from now on.
+        ungetServiceForAll(ref);
+    }
+
+    private void ungetServiceForAll(ServiceReference ref)
+    {
+        Bundle[] clients = getUsingBundles(ref);
+        for (int i = 0; (clients != null) && (i < clients.length); i++)
         {
-            Bundle[] clients = getUsingBundles(reg.getReference());
-            for (int i = 0; (clients != null) && (i < clients.length); i++)
-            {
-                while (ungetService(clients[i], reg.getReference()))
-                    ; // Keep removing until it is no longer possible
-            }
-            ((ServiceRegistrationImpl) reg).invalidate();
+            while (ungetService(clients[i], ref))
+                ; // Keep removing until it is no longer possible
         }
     }
 
@@ -175,11 +205,7 @@ public class ServiceRegistry
     public void unregisterServices(Bundle bundle)
     {
         // Simply remove all service registrations for the bundle.
-        ServiceRegistration[] regs = null;
-        synchronized (this)
-        {
-            regs = (ServiceRegistration[]) m_regsMap.get(bundle);
-        }
+        ServiceRegistration[] regs = m_regsMap.get(bundle);
 
         // Note, there is no race condition here with respect to the
         // bundle registering more services, because its bundle context
@@ -209,110 +235,154 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized List getServiceReferences(String className, SimpleFilter filter)
+    public List getServiceReferences(String className, SimpleFilter filter)
     {
-        if ((className == null) && (filter == null))
+        // Without a class name, try to find one in the filter so that
+        // we only need to look at the services registered under it.
+        if ((className == null) && (filter != null))
         {
-            // Return all services.
-            filter = new SimpleFilter(Constants.OBJECTCLASS, "*", SimpleFilter.PRESENT);
+            className = getObjectClass(filter);
         }
-        else if ((className != null) && (filter == null))
+
+        List matches = new ArrayList();
+        if (className != null)
         {
-            // Return services matching the class name.
-            filter = new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ);
+            ServiceReference[] refs = m_classRefsMap.get(className);
+            for (int i = 0; (refs != null) && (i < refs.length); i++)
+            {
+                if ((filter == null)
+                    || CapabilitySet.matches((BundleCapability) refs[i], filter))
+                {
+                    matches.add(refs[i]);
+                }
+            }
         }
-        else if ((className != null) && (filter != null))
+        else
         {
-            // Return services matching the class name and filter.
-            List filters = new ArrayList(2);
-            filters.add(new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ));
-            filters.add(filter);
-            filter = new SimpleFilter(null, filters, SimpleFilter.AND);
+            for (ServiceRegistration[] regs : m_regsMap.values())
+            {
+                for (int i = 0; i < regs.length; i++)
+                {
+                    ServiceReference ref;
+                    try
+                    {
+                        ref = regs[i].getReference();
+                    }
+                    catch (IllegalStateException ex)
+                    {
+                        // Don't include the reference as it is not valid anymore
+                        continue;
+                    }
+                    if ((filter == null)
+                        || CapabilitySet.matches((BundleCapability) ref, filter))
+                    {
+                        matches.add(ref);
+                    }
+                }
+            }
         }
-        // else just use the specified filter.
 
-        Set<BundleCapability> matches = m_regCapSet.match(filter, false);
+        return matches;
+    }
+
+    /**
+     * Returns the object class a filter requires services to be registered
+     * under, i.e., the value of an <tt>objectClass</tt> equality comparison
+     * that is either the filter itself or one of the operands of a top-level
+     * AND filter.
+     * @param filter the filter to examine.
+     * @return the required object class or <tt>null</tt> if there is none.
+    **/
+    private static String getObjectClass(SimpleFilter filter)
+    {
+        if (filter.getOperation() == SimpleFilter.AND)
+        {
+            List<SimpleFilter> filters = (List<SimpleFilter>) filter.getValue();
+            for (int i = 0; i < filters.size(); i++)
+            {
+                String className = getObjectClassFromComparison(filters.get(i));
+                if (className != null)
+                {
+                    return className;
+                }
+            }
+            return null;
+        }
+        return getObjectClassFromComparison(filter);
+    }
 
-        return new ArrayList(matches);
+    private static String getObjectClassFromComparison(SimpleFilter filter)
+    {
+        if ((filter.getOperation() == SimpleFilter.EQ)
+            && Constants.OBJECTCLASS.equalsIgnoreCase(filter.getName())
+            && (filter.getValue() instanceof String))
+        {
+            return (String) filter.getValue();
+        }
+        return null;
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages != null)
         {
-            ServiceReference[] refs = new ServiceReference[usages.length];
-            for (int i = 0; i < refs.length; i++)
+            List<ServiceReference> refs = new ArrayList<ServiceReference>(usages.size());
+            for (UsageCount usage : usages.values())
+            {
+                if (usage.isInUse())
+                {
+                    refs.add(usage.m_ref);
+                }
+            }
+            if (!refs.isEmpty())
             {
-                refs[i] = usages[i].m_ref;
+                return refs.toArray(new ServiceReference[refs.size()]);
             }
-            return refs;
         }
         return null;
     }
 
     public <S> S getService(Bundle bundle, ServiceReference<S> ref)
     {
-        UsageCount usage = null;
-        Object svcObj = null;
-
         // Get the service registration.
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
+        // Plain service objects do not require calling out to anyone,
+        // so their usage counts can be maintained without locking.
+        if (!reg.isFactory())
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
-            {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new ServiceException(
-                        "ServiceFactory.getService() resulted in a cycle.",
-                        ServiceException.FACTORY_ERROR,
-                        null);
-                }
+            return (S) getPlainService(bundle, ref, reg);
+        }
 
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
+        UsageCount usage = null;
+        Object svcObj = null;
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+        // First make sure that no existing operation is currently
+        // being performed by another thread on the service registration.
+        lockRegistration(reg, true);
 
-            // Make sure the service registration is still valid.
-            if (reg.isValid())
+        // Make sure the service registration is still valid.
+        if (reg.isValid())
+        {
+            // Get the usage count, creating one if we don't have one,
+            // and increment it, since the spec says we increment usage
+            // count before actually getting the service object.
+            usage = obtainUsageCount(bundle, ref);
+            while (!usage.acquire())
             {
-                // Get the usage count, if any.
-                usage = getUsageCount(bundle, ref);
-
-                // If we don't have a usage count, then create one and
-                // since the spec says we increment usage count before
-                // actually getting the service object.
-                if (usage == null)
-                {
-                    usage = addUsageCount(bundle, ref);
-                }
-
-                // Increment the usage count and grab the already retrieved
-                // service object, if one exists.
-                usage.m_count++;
-                svcObj = usage.m_svcObj;
+                removeUsageCount(bundle, usage);
+                usage = obtainUsageCount(bundle, ref);
             }
+            // Grab the already retrieved service object, if one exists.
+            svcObj = usage.m_svcObj;
         }
 
         // If we have a usage count, but no service object, then we haven't
-        // cached the service object yet, so we need to create one now without
-        // holding the lock, since we will potentially call out to a service
-        // factory.
+        // cached the service object yet, so we need to create one now while
+        // only holding the lock on the registration, since we will call out
+        // to the service factory.
         try
         {
             if ((usage != null) && (svcObj == null))
@@ -326,110 +396,202 @@ public class ServiceRegistry
             // cache it in the usage count. If not, we should flush the usage
             // count. Either way, we need to unlock the service registration
             // so that any threads waiting for it can continue.
-            synchronized (this)
+            if (usage != null)
             {
                 // Before caching the service object, double check to see if
                 // the registration is still valid, since it may have been
-                // unregistered while we didn't hold the lock.
+                // unregistered in the meantime.
                 if (!reg.isValid() || (svcObj == null))
                 {
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(bundle, usage);
                 }
                 else
                 {
                     usage.m_svcObj = svcObj;
                 }
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
             }
+            unlockRegistration(reg);
         }
 
         return (S) svcObj;
     }
 
-    public boolean ungetService(Bundle bundle, ServiceReference ref)
+    private Object getPlainService(
+        Bundle bundle, ServiceReference ref, ServiceRegistrationImpl reg)
     {
-        UsageCount usage = null;
-        ServiceRegistrationImpl reg =
-            ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
-
-        synchronized (this)
+        while (reg.isValid())
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            UsageCount usage = obtainUsageCount(bundle, ref);
+            if (usage.acquire())
             {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
+                // Double check the registration after incrementing the usage
+                // count, since it may have been unregistered concurrently, in
+                // which case all usages may have already been flushed.
+                Object svcObj = reg.getService(bundle);
+                if ((svcObj != null) && reg.isValid())
                 {
-                    throw new IllegalStateException(
-                        "ServiceFactory.ungetService() resulted in a cycle.");
-                }
-
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
+                    usage.m_svcObj = svcObj;
+                    return svcObj;
                 }
-                catch (InterruptedException ex)
+                if (usage.release() == 0)
                 {
+                    flushUnusedUsageCount(bundle, usage);
                 }
+                return null;
             }
+            // The usage count was flushed concurrently, so remove it in
+            // case that has not happened yet and try again.
+            removeUsageCount(bundle, usage);
+        }
+        return null;
+    }
 
-            // Get the usage count.
-            usage = getUsageCount(bundle, ref);
-            // If there is no cached services, then just return immediately.
-            if (usage == null)
-            {
-                return false;
-            }
+    public boolean ungetService(Bundle bundle, ServiceReference ref)
+    {
+        ServiceRegistrationImpl reg =
+            ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+        if (!reg.isFactory())
+        {
+            return ungetPlainService(bundle, ref, reg);
+        }
+
+        // First make sure that no existing operation is currently
+        // being performed by another thread on the service registration.
+        lockRegistration(reg, false);
+
+        // Get the usage count.
+        UsageCount usage = getUsageCount(bundle, ref);
+        // If there is no cached services, then just return immediately.
+        if (usage == null)
+        {
+            unlockRegistration(reg);
+            return false;
         }
 
         // If usage count will go to zero, then unget the service
-        // from the registration; we do this outside the lock
-        // since this might call out to the service factory.
+        // from the registration; we do this while only holding the
+        // lock on the registration, since this calls out to the
+        // service factory.
         try
         {
-            if (usage.m_count == 1)
+            if (usage.getCount() == 1)
             {
                 // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getRegistration().ungetService(bundle, usage.m_svcObj);
+                reg.ungetService(bundle, usage.m_svcObj);
             }
         }
         finally
         {
             // Finally, decrement usage count and flush if it goes to zero or
-            // the registration became invalid while we were not holding the
-            // lock. Either way, unlock the service registration so that any
-            // threads waiting for it can continue.
-            synchronized (this)
+            // the registration became invalid in the meantime. Either way,
+            // unlock the service registration so that any threads waiting
+            // for it can continue.
+
+            // Decrement usage count, which spec says should happen after
+            // ungetting the service object.
+            int count = usage.release();
+
+            // If the registration is invalid or the usage count has reached
+            // zero, then flush it.
+            if (!reg.isValid() || (count <= 0))
             {
-                // Decrement usage count, which spec says should happen after
-                // ungetting the service object.
-                usage.m_count--;
+                usage.m_svcObj = null;
+                flushUsageCount(bundle, usage);
+            }
+
+            // Release the registration lock so any waiting threads can
+            // continue.
+            unlockRegistration(reg);
+        }
+
+        return true;
+    }
+
+    private boolean ungetPlainService(
+        Bundle bundle, ServiceReference ref, ServiceRegistrationImpl reg)
+    {
+        UsageCount usage = getUsageCount(bundle, ref);
+        // If there is no cached services, then just return immediately.
+        if (usage == null)
+        {
+            return false;
+        }
+
+        // Decrement the usage count; if it was flushed concurrently,
+        // then the service is not in use anymore.
+        int count = usage.release();
+        if (count < 0)
+        {
+            removeUsageCount(bundle, usage);
+            return false;
+        }
 
-                // If the registration is invalid or the usage count has reached
-                // zero, then flush it.
-                if (!reg.isValid() || (usage.m_count <= 0))
+        // If the registration is invalid, then flush the usage count
+        // entirely, otherwise only if it is not used anymore.
+        if (!reg.isValid())
+        {
+            flushUsageCount(bundle, usage);
+        }
+        else if (count == 0)
+        {
+            flushUnusedUsageCount(bundle, usage);
+        }
+
+        return true;
+    }
+
+    /**
+     * Locks the specified service factory registration for the calling
+     * thread, waiting for any other thread to unlock it.
+     * @param reg the registration to lock.
+     * @param isGet whether the lock is acquired to get the service, which
+     *        determines the exception thrown if the calling thread
+     *        already holds the lock.
+    **/
+    private void lockRegistration(ServiceRegistrationImpl reg, boolean isGet)
+    {
+        synchronized (reg)
+        {
+            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            {
+                // We don't allow cycles when we call out to the service factory.
+                if (o.equals(Thread.currentThread()))
                 {
-                    usage.m_svcObj = null;
-                    flushUsageCount(bundle, ref);
+                    if (isGet)
+                    {
+                        throw new ServiceException(
+                            "ServiceFactory.getService() resulted in a cycle.",
+                            ServiceException.FACTORY_ERROR,
+                            null);
+                    }
+                    throw new IllegalStateException(
+                        "ServiceFactory.ungetService() resulted in a cycle.");
                 }
 
-                // Release the registration lock so any waiting threads can
-                // continue.
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                // Otherwise, wait for it to be freed.
+                try
+                {
+                    reg.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                }
             }
-        }
 
-        return true;
+            // Lock the service registration.
+            m_lockedRegsMap.put(reg, Thread.currentThread());
+        }
     }
 
+    private void unlockRegistration(ServiceRegistrationImpl reg)
+    {
+        synchronized (reg)
+        {
+            m_lockedRegsMap.remove(reg);
+            reg.notifyAll();
+        }
+    }
 
     /**
      * This is a utility method to release all services being
@@ -438,12 +600,7 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = (UsageCount[]) m_inUseMap.get(bundle);
-        }
-
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages == null)
         {
             return;
@@ -456,44 +613,42 @@ public class ServiceRegistry
 
         // Remove each service object from the
         // service cache.
-        for (int i = 0; i < usages.length; i++)
+        ServiceReference[] refs = usages.keySet().toArray(
+            new ServiceReference[usages.size()]);
+        for (int i = 0; i < refs.length; i++)
         {
             // Keep ungetting until all usage count is zero.
-            while (ungetService(bundle, usages[i].m_ref))
+            while (ungetService(bundle, refs[i]))
             {
                 // Empty loop body.
             }
         }
+
+        // Now remove the bundle itself, unless it is still using services.
+        if (usages.isEmpty())
+        {
+            m_inUseMap.remove(bundle, usages);
+        }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
+    public Bundle[] getUsingBundles(ServiceReference ref)
     {
-        Bundle[] bundles = null;
-        for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        List<Bundle> bundles = null;
+        for (Map.Entry<Bundle, ConcurrentMap<ServiceReference, UsageCount>> entry
+            : m_inUseMap.entrySet())
         {
-            Map.Entry entry = (Map.Entry) iter.next();
-            Bundle bundle = (Bundle) entry.getKey();
-            UsageCount[] usages = (UsageCount[]) entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            UsageCount usage = entry.getValue().get(ref);
+            if ((usage != null) && usage.isInUse())
             {
-                if (usages[useIdx].m_ref.equals(ref))
+                // Add the bundle to the array to be returned.
+                if (bundles == null)
                 {
-                    // Add the bundle to the array to be returned.
-                    if (bundles == null)
-                    {
-                        bundles = new Bundle[] { bundle };
-                    }
-                    else
-                    {
-                        Bundle[] nbs = new Bundle[bundles.length + 1];
-                        System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-                        nbs[bundles.length] = bundle;
-                        bundles = nbs;
-                    }
+                    bundles = new ArrayList<Bundle>();
                 }
+                bundles.add(entry.getKey());
             }
         }
-        return bundles;
+        return (bundles == null) ? null : bundles.toArray(new Bundle[bundles.size()]);
     }
 
     void servicePropertiesModified(ServiceRegistration reg, Dictionary oldProps)
@@ -557,6 +712,40 @@ public class ServiceRegistry
         return regs;
     }
 
+    private static ServiceReference[] addServiceReference(
+        ServiceReference[] refs, ServiceReference ref)
+    {
+        if (refs == null)
+        {
+            return new ServiceReference[] { ref };
+        }
+        ServiceReference[] newRefs = new ServiceReference[refs.length + 1];
+        System.arraycopy(refs, 0, newRefs, 0, refs.length);
+        newRefs[refs.length] = ref;
+        return newRefs;
+    }
+
+    private static ServiceReference[] removeServiceReference(
+        ServiceReference[] refs, ServiceReference ref)
+    {
+        for (int i = 0; (refs != null) && (i < refs.length); i++)
+        {
+            if (refs[i].equals(ref))
+            {
+                // If this is the only reference, then there are no more.
+                if (refs.length == 1)
+                {
+                    return null;
+                }
+                ServiceReference[] newRefs = new ServiceReference[refs.length - 1];
+                System.arraycopy(refs, 0, newRefs, 0, i);
+                System.arraycopy(refs, i + 1, newRefs, i, newRefs.length - i);
+                return newRefs;
+            }
+        }
+        return refs;
+    }
+
     /**
      * Utility method to retrieve the specified bundle's usage count for the
      * specified service reference.
@@ -566,97 +755,75 @@ public class ServiceRegistry
     **/
     private UsageCount getUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
-        {
-            if (usages[i].m_ref.equals(ref))
-            {
-                return usages[i];
-            }
-        }
-        return null;
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+        return (usages == null) ? null : usages.get(ref);
     }
 
     /**
-     * Utility method to update the specified bundle's usage count array to
-     * include the specified service. This method should only be called
-     * to add a usage count for a previously unreferenced service. If the
-     * service already has a usage count, then the existing usage count
-     * counter simply needs to be incremented.
+     * Utility method to retrieve the specified bundle's usage count for the
+     * specified service reference, creating it if it does not exist. The
+     * returned usage count may have been flushed concurrently, in which
+     * case acquiring it fails.
      * @param bundle The bundle acquiring the service.
      * @param ref The service reference of the acquired service.
-     * @param svcObj The service object of the acquired service.
+     * @return The associated usage count.
     **/
-    private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
+    private UsageCount obtainUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-
-        UsageCount usage = new UsageCount();
-        usage.m_ref = ref;
-
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages == null)
         {
-            usages = new UsageCount[] { usage };
+            usages = new ConcurrentHashMap<ServiceReference, UsageCount>();
+            ConcurrentMap<ServiceReference, UsageCount> existing =
+                m_inUseMap.putIfAbsent(bundle, usages);
+            usages = (existing != null) ? existing : usages;
         }
-        else
+
+        UsageCount usage = usages.get(ref);
+        if (usage == null)
         {
-            UsageCount[] newUsages = new UsageCount[usages.length + 1];
-            System.arraycopy(usages, 0, newUsages, 0, usages.length);
-            newUsages[usages.length] = usage;
-            usages = newUsages;
+            usage = new UsageCount(ref);
+            UsageCount existing = usages.putIfAbsent(ref, usage);
+            usage = (existing != null) ? existing : usage;
         }
-
-        m_inUseMap.put(bundle, usages);
-
         return usage;
     }
 
     /**
-     * Utility method to flush the specified bundle's usage count for the
-     * specified service reference. This should be called to completely
-     * remove the associated usage count object for the specified service
-     * reference. If the goal is to simply decrement the usage, then get
-     * the usage count and decrement its counter. This method will also
-     * remove the specified bundle from the "in use" map if it has no more
-     * usage counts after removing the usage count for the specified service
-     * reference.
+     * Utility method to flush the specified bundle's usage count. This
+     * should be called to completely remove the usage count object; if
+     * the goal is to simply decrement the usage, then release the usage
+     * count instead.
+     * @param bundle The bundle whose usage count should be removed.
+     * @param usage The usage count to remove.
+    **/
+    private void flushUsageCount(Bundle bundle, UsageCount usage)
+    {
+        usage.flush();
+        removeUsageCount(bundle, usage);
+    }
+
+    /**
+     * Utility method to flush the specified bundle's usage count if it is
+     * not in use, i.e., no other thread acquired it concurrently.
      * @param bundle The bundle whose usage count should be removed.
-     * @param ref The service reference whose usage count should be removed.
+     * @param usage The usage count to remove.
     **/
-    private void flushUsageCount(Bundle bundle, ServiceReference ref)
+    private void flushUnusedUsageCount(Bundle bundle, UsageCount usage)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
+        if (usage.flushUnused())
         {
-            if (usages[i].m_ref.equals(ref))
-            {
-                // If this is the only usage, then point to empty list.
-                if ((usages.length - 1) == 0)
-                {
-                    usages = null;
-                }
-                // Otherwise, we need to do some array copying.
-                else
-                {
-                    UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                    System.arraycopy(usages, 0, newUsages, 0, i);
-                    if (i < newUsages.length)
-                    {
-                        System.arraycopy(
-                            usages, i + 1, newUsages, i, newUsages.length - i);
-                    }
-                    usages = newUsages;
-                }
-            }
+            usage.m_svcObj = null;
+            removeUsageCount(bundle, usage);
         }
+    }
 
+    private void removeUsageCount(Bundle bundle, UsageCount usage)
+    {
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages != null)
         {
-            m_inUseMap.put(bundle, usages);
-        }
-        else
-        {
-            m_inUseMap.remove(bundle);
+            usages.remove(usage.m_ref, usage);
         }
     }
 
@@ -797,11 +964,70 @@ public class ServiceRegistry
         return (SortedSet<ServiceReference<S>>) (SortedSet) ss;
     }
 
+    /**
+     * Usage count of a service by a bundle. The count is negative once
+     * the usage count has been flushed, after which it cannot be acquired
+     * anymore and a new usage count has to be created instead.
+    **/
     private static class UsageCount
     {
-        public int m_count = 0;
-        public ServiceReference m_ref = null;
-        public Object m_svcObj = null;
+        private final AtomicInteger m_count = new AtomicInteger();
+        public final ServiceReference m_ref;
+        public volatile Object m_svcObj = null;
+
+        UsageCount(ServiceReference ref)
+        {
+            m_ref = ref;
+        }
+
+        boolean acquire()
+        {
+            for (int count = m_count.get(); count >= 0; count = m_count.get())
+            {
+                if (m_count.compareAndSet(count, count + 1))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Decrements the usage count.
+         * @return the new count or <tt>-1</tt> if the usage count was not
+         *         acquired.
+        **/
+        int release()
+        {
+            for (int count = m_count.get(); count > 0; count = m_count.get())
+            {
+                if (m_count.compareAndSet(count, count - 1))
+                {
+                    return count - 1;
+                }
+            }
+            return -1;
+        }
+
+        int getCount()
+        {
+            return m_count.get();
+        }
+
+        boolean isInUse()
+        {
+            return m_count.get() > 0;
+        }
+
+        void flush()
+        {
+            m_count.set(-1);
+        }
+
+        boolean flushUnused()
+        {
+            return m_count.compareAndSet(0, -1);
+        }
     }
 
     public interface ServiceRegistryCallbacks
@@ -85,7 +85,7 @@ class StatefulResolver
     {
         m_felix = felix;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        m_resolver = new ResolverImpl(m_logger, m_felix.getStatistics());
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
@@ -100,15 +100,18 @@ class StatefulResolver
 
         List<String> indices = new ArrayList<String>();
         indices.add(BundleRevision.BUNDLE_NAMESPACE);
-        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(
+            indices, Constants.BUNDLE_VERSION_ATTRIBUTE, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.PACKAGE_NAMESPACE);
-        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(
+            indices, Constants.VERSION_ATTRIBUTE, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.HOST_NAMESPACE);
-        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.HOST_NAMESPACE, new CapabilitySet(
+            indices, Constants.BUNDLE_VERSION_ATTRIBUTE, true));
     }
 
     synchronized void addRevision(BundleRevision br)
@@ -144,6 +147,10 @@ class StatefulResolver
 
     synchronized void removeRevision(BundleRevision br)
     {
+        // Removed or refreshed revisions must not reuse their previously
+        // calculated package space.
+        m_resolver.invalidate(br);
+
         if (m_revisions.remove(br))
         {
             m_fragments.remove(br);
@@ -24,11 +24,12 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
@@ -73,6 +74,11 @@ import org.osgi.service.url.URLStreamHandlerService;
  * simply not provide that services to their contained bundles, while framework
  * instances with the service enabled will.
  * </p>
+ * <p>
+ * Since every URL created in the JVM passes through this class, all handler
+ * caches and the framework registry are copy on write: lookups read an
+ * immutable snapshot without locking and only modifications are serialized.
+ * </p>
 **/
 class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
 {
@@ -87,14 +93,19 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
 
     // This maps classloaders of URLHandlers in other classloaders to lists of
     // their frameworks.
-    private static Map m_classloaderToFrameworkLists = new HashMap();
+    // CONCURRENCY: Copy on write, modified while holding the URL class lock.
+    private static volatile Map m_classloaderToFrameworkLists = Collections.EMPTY_MAP;
 
     // The list to hold all enabled frameworks registered with this handlers
-    private static final List m_frameworks = new ArrayList();
-    private static int m_counter = 0;
-
-    private static Map m_contentHandlerCache = null;
-    private static Map m_streamHandlerCache = null;
+    // CONCURRENCY: Modified while holding the list's lock, which also guards
+    // the handler instance and the counter.
+    private static final List m_frameworks = new CopyOnWriteArrayList();
+    private static volatile int m_counter = 0;
+
+    // Lock guarding modifications of the copy on write handler caches.
+    private static final Object m_cacheLock = new Object();
+    private static volatile Map m_contentHandlerCache = Collections.EMPTY_MAP;
+    private static volatile Map m_streamHandlerCache = Collections.EMPTY_MAP;
     private static URLStreamHandlerFactory m_streamHandlerFactory;
     private static ContentHandlerFactory m_contentHandlerFactory;
     private static final String STREAM_HANDLER_PACKAGE_PROP = "java.protocol.handler.pkgs";
@@ -102,7 +113,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     private static Object m_rootURLHandlers;
 
     private static final String m_streamPkgs;
-    private static final Map m_builtIn = new HashMap();
+    private static volatile Map m_builtIn = Collections.EMPTY_MAP;
     private static final boolean m_loaded;
 
     static
@@ -116,7 +127,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     }
 
 
-    private static final Map m_handlerToURL = new HashMap();
+    private static volatile Map m_handlerToURL = Collections.EMPTY_MAP;
     private void init(String protocol, URLStreamHandlerFactory factory)
     {
         try
@@ -125,7 +136,10 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             if (handler != null)
             {
                 URL url = new URL(protocol, null, -1, "", handler);
-                m_handlerToURL.put(handler, url);
+                synchronized (m_cacheLock)
+                {
+                    m_handlerToURL = copyAndPut(m_handlerToURL, handler, url);
+                }
             }
         }
         catch (Throwable ex)
@@ -284,8 +298,11 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             m_streamHandlerFactory.getClass().getName())))
         {
             m_sm = null;
-            m_handlerToURL.clear();
-            m_builtIn.clear();
+            synchronized (m_cacheLock)
+            {
+                m_handlerToURL = Collections.EMPTY_MAP;
+                m_builtIn = Collections.EMPTY_MAP;
+            }
         }
     }
 
@@ -294,10 +311,8 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     {
         synchronized (URL.class)
         {
-            synchronized (m_classloaderToFrameworkLists)
-            {
-                m_classloaderToFrameworkLists.put(index, frameworkLists);
-            }
+            m_classloaderToFrameworkLists =
+                copyAndPut(m_classloaderToFrameworkLists, index, frameworkLists);
         }
     }
 
@@ -305,46 +320,45 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     {
         synchronized (URL.class)
         {
-            synchronized (m_classloaderToFrameworkLists)
+            Map lists = new HashMap(m_classloaderToFrameworkLists);
+            lists.remove(index);
+            m_classloaderToFrameworkLists = lists;
+            if (m_classloaderToFrameworkLists.isEmpty() )
             {
-                m_classloaderToFrameworkLists.remove(index);
-                if (m_classloaderToFrameworkLists.isEmpty() )
+                synchronized (m_frameworks)
                 {
-                    synchronized (m_frameworks)
+                    if (m_frameworks.isEmpty())
                     {
-                        if (m_frameworks.isEmpty())
+                        try
                         {
-                            try
-                            {
-                                m_secureAction.swapStaticFieldIfNotClass(URL.class,
-                                    URLStreamHandlerFactory.class, null, "streamHandlerLock");
-                            }
-                            catch (Exception ex)
-                            {
-                                // TODO log this
-                                ex.printStackTrace();
-                            }
+                            m_secureAction.swapStaticFieldIfNotClass(URL.class,
+                                URLStreamHandlerFactory.class, null, "streamHandlerLock");
+                        }
+                        catch (Exception ex)
+                        {
+                            // TODO log this
+                            ex.printStackTrace();
+                        }
 
-                            if (m_streamHandlerFactory.getClass() != URLHANDLERS_CLASS)
-                            {
-                                URL.setURLStreamHandlerFactory(m_streamHandlerFactory);
-                            }
-                            try
-                            {
-                                m_secureAction.swapStaticFieldIfNotClass(
-                                    URLConnection.class, ContentHandlerFactory.class,
-                                    null, null);
-                            }
-                            catch (Exception ex)
-                            {
-                                // TODO log this
-                                ex.printStackTrace();
-                            }
+                        if (m_streamHandlerFactory.getClass() != URLHANDLERS_CLASS)
+                        {
+                            URL.setURLStreamHandlerFactory(m_streamHandlerFactory);
+                        }
+                        try
+                        {
+                            m_secureAction.swapStaticFieldIfNotClass(
+                                URLConnection.class, ContentHandlerFactory.class,
+                                null, null);
+                        }
+                        catch (Exception ex)
+                        {
+                            // TODO log this
+                            ex.printStackTrace();
+                        }
 
-                            if (m_contentHandlerFactory.getClass() != URLHANDLERS_CLASS)
-                            {
-                                URLConnection.setContentHandlerFactory(m_contentHandlerFactory);
-                            }
+                        if (m_contentHandlerFactory.getClass() != URLHANDLERS_CLASS)
+                        {
+                            URLConnection.setContentHandlerFactory(m_contentHandlerFactory);
                         }
                     }
                 }
@@ -354,12 +368,10 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
 
     private URLStreamHandler getBuiltInStreamHandler(String protocol, URLStreamHandlerFactory factory)
     {
-        synchronized (m_builtIn)
+        Map builtIn = m_builtIn;
+        if (builtIn.containsKey(protocol))
         {
-            if (m_builtIn.containsKey(protocol))
-            {
-                return (URLStreamHandler) m_builtIn.get(protocol);
-            }
+            return (URLStreamHandler) builtIn.get(protocol);
         }
         if (factory != null)
         {
@@ -445,14 +457,17 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
         return null;
     }
 
-    private synchronized URLStreamHandler addToCache(String protocol, URLStreamHandler result)
+    private URLStreamHandler addToCache(String protocol, URLStreamHandler result)
     {
-        if (!m_builtIn.containsKey(protocol))
+        synchronized (m_cacheLock)
+        {
+            if (!m_builtIn.containsKey(protocol))
             {
-                m_builtIn.put(protocol, result);
+                m_builtIn = copyAndPut(m_builtIn, protocol, result);
                 return result;
             }
-        return (URLStreamHandler) m_builtIn.get(protocol);
+            return (URLStreamHandler) m_builtIn.get(protocol);
+        }
     }
 
     /**
@@ -527,51 +542,54 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             (m_contentHandlerFactory != this) ? m_contentHandlerFactory : null));
     }
 
-    private synchronized ContentHandler addToContentCache(String mimeType, ContentHandler handler)
+    private ContentHandler addToContentCache(String mimeType, ContentHandler handler)
     {
-        if (m_contentHandlerCache == null)
+        synchronized (m_cacheLock)
         {
-            m_contentHandlerCache = new HashMap();
+            ContentHandler result = (ContentHandler) m_contentHandlerCache.get(mimeType);
+            if ((result == null) && (handler != null))
+            {
+                m_contentHandlerCache = copyAndPut(m_contentHandlerCache, mimeType, handler);
+                result = handler;
+            }
+            return result;
         }
-        return (ContentHandler) addToCache(m_contentHandlerCache, mimeType, handler);
     }
 
-    private synchronized ContentHandler getFromContentCache(String mimeType)
+    private ContentHandler getFromContentCache(String mimeType)
     {
-        return (ContentHandler) ((m_contentHandlerCache != null) ?
-            m_contentHandlerCache.get(mimeType) : null);
+        return (ContentHandler) m_contentHandlerCache.get(mimeType);
     }
 
-    private synchronized URLStreamHandler addToStreamCache(String protocol, URLStreamHandler handler)
+    private URLStreamHandler addToStreamCache(String protocol, URLStreamHandler handler)
     {
-        if (m_streamHandlerCache == null)
+        synchronized (m_cacheLock)
         {
-            m_streamHandlerCache = new HashMap();
+            URLStreamHandler result = (URLStreamHandler) m_streamHandlerCache.get(protocol);
+            if ((result == null) && (handler != null))
+            {
+                m_streamHandlerCache = copyAndPut(m_streamHandlerCache, protocol, handler);
+                result = handler;
+            }
+            return result;
         }
-        return (URLStreamHandler) addToCache(m_streamHandlerCache, protocol, handler);
     }
 
-    private synchronized URLStreamHandler getFromStreamCache(String protocol)
+    private URLStreamHandler getFromStreamCache(String protocol)
     {
-        return (URLStreamHandler) ((m_streamHandlerCache != null) ?
-            m_streamHandlerCache.get(protocol) : null);
+        return (URLStreamHandler) m_streamHandlerCache.get(protocol);
     }
 
-    private Object addToCache(Map cache, String key, Object value)
+    /**
+     * Returns a copy of the specified map with the specified entry added.
+     * The passed in map is not modified, so it can still be read without
+     * locking while the copy is created.
+    **/
+    static Map copyAndPut(Map map, Object key, Object value)
     {
-        if (value == null)
-        {
-            return null;
-        }
-
-        Object result = cache.get(key);
-
-        if (result == null)
-        {
-            cache.put(key, value);
-            result = value;
-        }
-        return result;
+        Map copy = new HashMap(map);
+        copy.put(key, value);
+        return copy;
     }
 
     /**
@@ -661,17 +679,13 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     public static Object getFrameworkFromContext()
     {
         // This is a hack. The idea is to return the only registered framework
-        synchronized (m_classloaderToFrameworkLists)
+        Map classloaderToFrameworkLists = m_classloaderToFrameworkLists;
+        if (classloaderToFrameworkLists.isEmpty())
         {
-            if (m_classloaderToFrameworkLists.isEmpty())
+            Object[] frameworks = m_frameworks.toArray();
+            if ((m_counter == 1) && (frameworks.length == 1))
             {
-                synchronized (m_frameworks)
-                {
-                    if ((m_counter == 1) && (m_frameworks.size() == 1))
-                    {
-                        return m_frameworks.get(0);
-                    }
-                }
+                return frameworks[0];
             }
         }
         // get the current class call stack.
@@ -698,43 +712,58 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
         // the bundle that loaded the class.
         if (targetClass != null)
         {
-            synchronized (m_classloaderToFrameworkLists)
-            {
-                ClassLoader index = targetClass.getClassLoader().getClass().getClassLoader();
+            ClassLoader index = targetClass.getClassLoader().getClass().getClassLoader();
 
-                List frameworks = (List) m_classloaderToFrameworkLists.get(
-                    index);
+            List frameworks = (List) classloaderToFrameworkLists.get(index);
 
-                if ((frameworks == null) && (index == URLHANDLERS_CLASS.getClassLoader()))
+            if ((frameworks == null) && (index == URLHANDLERS_CLASS.getClassLoader()))
+            {
+                frameworks = m_frameworks;
+            }
+            if (frameworks != null)
+            {
+                // Lists registered by older versions of this class are not
+                // copy on write and must be locked to take a snapshot.
+                Object[] snapshot;
+                if (frameworks instanceof CopyOnWriteArrayList)
                 {
-                    frameworks = m_frameworks;
+                    snapshot = frameworks.toArray();
                 }
-                if (frameworks != null)
+                else
                 {
                     synchronized (frameworks)
                     {
-                        // Check the registry of framework instances
-                        for (int i = 0; i < frameworks.size(); i++)
+                        snapshot = frameworks.toArray();
+                    }
+                }
+
+                // Check the registry of framework instances
+                for (int i = 0; i < snapshot.length; i++)
+                {
+                    Object framework = snapshot[i];
+                    try
+                    {
+                        if (framework instanceof Felix)
                         {
-                            Object framework = frameworks.get(i);
-                            try
-                            {
-                                if (m_secureAction.invoke(
-                                    m_secureAction.getDeclaredMethod(framework.getClass(),
-                                    "getBundle", CLASS_TYPE),
-                                    framework, new Object[]{targetClass}) != null)
-                                {
-                                    return framework;
-                                }
-                            }
-                            catch (Exception ex)
+                            if (((Felix) framework).getBundle(targetClass) != null)
                             {
-                                // This should not happen but if it does there is
-                                // not much we can do other then ignore it.
-                                // Maybe log this or something.
-                                ex.printStackTrace();
+                                return framework;
                             }
                         }
+                        else if (m_secureAction.invoke(
+                            m_secureAction.getDeclaredMethod(framework.getClass(),
+                            "getBundle", CLASS_TYPE),
+                            framework, new Object[]{targetClass}) != null)
+                        {
+                            return framework;
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        // This should not happen but if it does there is
+                        // not much we can do other then ignore it.
+                        // Maybe log this or something.
+                        ex.printStackTrace();
                     }
                 }
             }
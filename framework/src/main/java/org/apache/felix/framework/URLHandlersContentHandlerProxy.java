@@ -22,7 +22,7 @@ import java.io.IOException;
 import java.net.ContentHandler;
 import java.net.ContentHandlerFactory;
 import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 import java.util.StringTokenizer;
 
@@ -57,7 +57,8 @@ class URLHandlersContentHandlerProxy extends ContentHandler
     private static final String CONTENT_HANDLER_PACKAGE_PROP = "java.content.handler.pkgs";
     private static final String DEFAULT_CONTENT_HANDLER_PACKAGE = "sun.net.www.content|com.ibm.oti.net.www.content|gnu.java.net.content|org.apache.harmony.luni.internal.net.www.content|COM.newmonics.www.content";
 
-    private static final Map m_builtIn = new HashMap();
+    // CONCURRENCY: Copy on write, modified while holding the class lock.
+    private static volatile Map m_builtIn = Collections.EMPTY_MAP;
     private static final String m_pkgs;
 
     static
@@ -141,12 +142,10 @@ class URLHandlersContentHandlerProxy extends ContentHandler
 
     private ContentHandler getBuiltIn()
     {
-        synchronized (m_builtIn)
+        Map builtIn = m_builtIn;
+        if (builtIn.containsKey(m_mimeType))
         {
-            if (m_builtIn.containsKey(m_mimeType))
-            {
-                return (ContentHandler) m_builtIn.get(m_mimeType);
-            }
+            return (ContentHandler) builtIn.get(m_mimeType);
         }
         if (m_factory != null)
         {
@@ -186,11 +185,12 @@ class URLHandlersContentHandlerProxy extends ContentHandler
         return addToCache(m_mimeType, null);
     }
 
-    private synchronized ContentHandler addToCache(String mimeType, ContentHandler handler)
+    private static synchronized ContentHandler addToCache(
+        String mimeType, ContentHandler handler)
     {
         if (!m_builtIn.containsKey(mimeType))
         {
-            m_builtIn.put(mimeType, handler);
+            m_builtIn = URLHandlers.copyAndPut(m_builtIn, mimeType, handler);
             return handler;
         }
         return (ContentHandler) m_builtIn.get(mimeType);
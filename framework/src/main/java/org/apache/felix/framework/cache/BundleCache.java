@@ -68,6 +68,19 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.mmap</tt> - Enables or disables memory mapping of
+ *       bundle JAR files. If set to <tt>true</tt>, bundle content is read
+ *       directly from a mapping of the JAR file using an index of its
+ *       entries, which avoids stream copying and does not count against
+ *       the file limit. It is ignored if the JVM provides no way to unmap
+ *       files. The default value is <tt>false</tt>.
+ *   </li>
+ *   <li><tt>felix.cache.index</tt> - Enables or disables persisting an
+ *       index of the entries and manifest headers of bundle JAR files in
+ *       the bundle cache, which allows the headers and entry lookups after a
+ *       restart to be answered without opening the JAR files. The default
+ *       value is <tt>true</tt>.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +93,8 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MMAP_PROP = "felix.cache.mmap";
+    public static final String CACHE_INDEX_PROP = "felix.cache.index";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * This class holds the entry names of a JAR file and can persist them to a
+ * file in the bundle cache, so that entry lookups after a framework restart
+ * can be answered without opening the JAR file. The index of a bundle JAR
+ * file also holds the main attributes of its manifest, so the bundle
+ * headers can be read without opening the JAR file. A persisted index is only
+ * used if the length and last modification time of the JAR file still match
+ * those recorded in the index and the checksum of the index is valid.
+ * </p>
+**/
+class EntryIndex
+{
+    static final String INDEX_FILE_SUFFIX = ".index";
+
+    private static final int MAGIC = 0x46454958;
+    private static final int VERSION = 2;
+
+    private final String[] m_names;
+    private final Set<String> m_nameSet;
+    private final Map<String, String> m_headers;
+
+    EntryIndex(Enumeration<String> names)
+    {
+        this(names, null);
+    }
+
+    EntryIndex(Enumeration<String> names, Map<String, String> headers)
+    {
+        List<String> list = new ArrayList<String>();
+        while ((names != null) && names.hasMoreElements())
+        {
+            list.add(names.nextElement());
+        }
+        m_names = list.toArray(new String[list.size()]);
+        m_nameSet = new HashSet<String>(list);
+        m_headers = (headers == null)
+            ? null : Collections.unmodifiableMap(new HashMap<String, String>(headers));
+    }
+
+    private EntryIndex(String[] names, Map<String, String> headers)
+    {
+        m_names = names;
+        m_nameSet = new HashSet<String>(names.length * 4 / 3 + 1);
+        for (int i = 0; i < names.length; i++)
+        {
+            m_nameSet.add(names[i]);
+        }
+        m_headers = headers;
+    }
+
+    /**
+     * Returns the index file used for the specified JAR file, which is
+     * located in the specified directory of the bundle cache.
+     * @param rootDir the cache directory the index is stored in.
+     * @param jarFile the indexed JAR file.
+     * @return the index file.
+    **/
+    static File getIndexFile(File rootDir, File jarFile)
+    {
+        return new File(rootDir, jarFile.getName() + INDEX_FILE_SUFFIX);
+    }
+
+    /**
+     * Determines whether the specified entry exists. Like a zip file, a
+     * directory entry is found with or without its trailing slash.
+     * @param name the name of the entry.
+     * @return <tt>true</tt> if the entry exists.
+    **/
+    boolean hasEntry(String name)
+    {
+        return m_nameSet.contains(name)
+            || (!name.endsWith("/") && m_nameSet.contains(name + "/"));
+    }
+
+    /**
+     * Returns the entry names in the order of the JAR file.
+     * @return an enumeration of entry names or <tt>null</tt> if there
+     *         are no entries.
+    **/
+    Enumeration<String> getEntries()
+    {
+        if (m_names.length == 0)
+        {
+            return null;
+        }
+        return new Enumeration<String>()
+        {
+            private int m_idx = 0;
+
+            public boolean hasMoreElements()
+            {
+                return m_idx < m_names.length;
+            }
+
+            public String nextElement()
+            {
+                if (m_idx >= m_names.length)
+                {
+                    throw new NoSuchElementException();
+                }
+                return m_names[m_idx++];
+            }
+        };
+    }
+
+    /**
+     * Returns the main attributes of the manifest of the JAR file.
+     * @return the main attributes or <tt>null</tt> if they are not part
+     *         of this index.
+    **/
+    Map<String, String> getHeaders()
+    {
+        return m_headers;
+    }
+
+    /**
+     * Loads the index of the specified JAR file.
+     * @param indexFile the index file.
+     * @param jarFile the indexed JAR file.
+     * @return the index or <tt>null</tt> if the index file does not exist
+     *         or is not valid for the JAR file anymore.
+    **/
+    static EntryIndex load(File indexFile, File jarFile)
+    {
+        if (!BundleCache.getSecureAction().fileExists(indexFile))
+        {
+            return null;
+        }
+
+        InputStream is = null;
+        try
+        {
+            is = new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(indexFile),
+                BundleCache.BUFSIZE);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[BundleCache.BUFSIZE];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                baos.write(buf, 0, n);
+            }
+            byte[] bytes = baos.toByteArray();
+            if (bytes.length < 8)
+            {
+                return null;
+            }
+
+            // The last eight bytes are the checksum of everything before.
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(bytes, bytes.length - 8, 8));
+            if (dis.readLong() != crc.getValue())
+            {
+                return null;
+            }
+
+            dis = new DataInputStream(
+                new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION)
+                || (dis.readLong() != jarFile.length())
+                || (dis.readLong() != jarFile.lastModified()))
+            {
+                return null;
+            }
+            String[] names = new String[dis.readInt()];
+            for (int i = 0; i < names.length; i++)
+            {
+                names[i] = dis.readUTF();
+            }
+            Map<String, String> headers = null;
+            int count = dis.readInt();
+            if (count >= 0)
+            {
+                headers = new HashMap<String, String>(count * 4 / 3 + 1);
+                for (int i = 0; i < count; i++)
+                {
+                    String key = readString(dis);
+                    headers.put(key, readString(dis));
+                }
+                headers = Collections.unmodifiableMap(headers);
+            }
+            return new EntryIndex(names, headers);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    /**
+     * Saves this index for the specified JAR file. The index is written to
+     * a temporary file first, so a partially written index is never seen.
+     * @param indexFile the index file.
+     * @param jarFile the indexed JAR file.
+     * @throws Exception if the index could not be saved.
+    **/
+    void save(File indexFile, File jarFile) throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(jarFile.length());
+        dos.writeLong(jarFile.lastModified());
+        dos.writeInt(m_names.length);
+        for (int i = 0; i < m_names.length; i++)
+        {
+            dos.writeUTF(m_names[i]);
+        }
+        if (m_headers == null)
+        {
+            dos.writeInt(-1);
+        }
+        else
+        {
+            dos.writeInt(m_headers.size());
+            for (Iterator<Map.Entry<String, String>> it = m_headers.entrySet().iterator();
+                it.hasNext(); )
+            {
+                Map.Entry<String, String> entry = it.next();
+                writeString(dos, entry.getKey());
+                writeString(dos, entry.getValue());
+            }
+        }
+        dos.flush();
+        CRC32 crc = new CRC32();
+        byte[] bytes = baos.toByteArray();
+        crc.update(bytes);
+        dos.writeLong(crc.getValue());
+        dos.close();
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new BufferedOutputStream(
+                BundleCache.getSecureAction().getFileOutputStream(tmpFile),
+                BundleCache.BUFSIZE);
+            baos.writeTo(os);
+        }
+        finally
+        {
+            if (os != null) os.close();
+        }
+        BundleCache.getSecureAction().deleteFile(indexFile);
+        if (!BundleCache.getSecureAction().renameFile(tmpFile, indexFile))
+        {
+            BundleCache.getSecureAction().deleteFile(tmpFile);
+            throw new IOException("Unable to rename index file: " + tmpFile);
+        }
+    }
+
+    // Manifest values may exceed the 64K limit of writeUTF().
+    private static void writeString(DataOutputStream dos, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
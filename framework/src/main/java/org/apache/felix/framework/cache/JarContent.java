@@ -49,8 +49,10 @@ public class JarContent implements Content
     private final Object m_revisionLock;
     private final File m_rootDir;
     private final File m_file;
-    private final WeakZipFile m_zipFile;
     private final boolean m_isZipFileOwner;
+    private final boolean m_isIndexed;
+    private volatile WeakZipFile m_zipFile;
+    private volatile EntryIndex m_index;
     private Map m_nativeLibMap;
 
     public JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -62,23 +64,20 @@ public class JarContent implements Content
         m_revisionLock = revisionLock;
         m_rootDir = rootDir;
         m_file = file;
-        if (zipFile == null)
+        m_isIndexed = !"false".equalsIgnoreCase(
+            (String) m_configMap.get(BundleCache.CACHE_INDEX_PROP));
+        m_zipFile = zipFile;
+        m_isZipFileOwner = (zipFile == null);
+        // If there is a persisted index, we defer opening the JAR file
+        // until an entry actually needs to be read.
+        if (m_isZipFileOwner)
         {
-            try
+            m_index = loadIndex();
+            if (m_index == null)
             {
-                m_zipFile = m_zipFactory.create(m_file);
+                getZipFile();
             }
-            catch (IOException ex)
-            {
-                throw new RuntimeException(
-                    "Unable to open JAR file, probably deleted: " + ex.getMessage());
-            }
-        }
-        else
-        {
-            m_zipFile = zipFile;
         }
-        m_isZipFileOwner = (zipFile == null);
     }
 
     protected void finalize()
@@ -90,9 +89,10 @@ public class JarContent implements Content
     {
         try
         {
-            if (m_isZipFileOwner)
+            WeakZipFile zipFile = m_zipFile;
+            if (m_isZipFileOwner && (zipFile != null))
             {
-                m_zipFile.close();
+                zipFile.close();
             }
         }
         catch (Exception ex)
@@ -105,9 +105,15 @@ public class JarContent implements Content
 
     public boolean hasEntry(String name) throws IllegalStateException
     {
+        EntryIndex index = getIndex();
+        if (index != null)
+        {
+            return index.hasEntry(name);
+        }
+
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipFile().getEntry(name);
             return ze != null;
         }
         catch (Exception ex)
@@ -121,8 +127,14 @@ public class JarContent implements Content
 
     public Enumeration<String> getEntries()
     {
+        EntryIndex index = getIndex();
+        if (index != null)
+        {
+            return index.getEntries();
+        }
+
         // Wrap entries enumeration to filter non-matching entries.
-        Enumeration<String> e = new EntriesEnumeration(m_zipFile.entries());
+        Enumeration<String> e = new EntriesEnumeration(getZipFile().entries());
 
         // Spec says to return null if there are no entries.
         return (e.hasMoreElements()) ? e : null;
@@ -136,12 +148,12 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipFile().getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            is = getZipFile().getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -190,12 +202,12 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipFile().getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            is = getZipFile().getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -227,8 +239,10 @@ public class JarContent implements Content
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                m_rootDir, m_file, m_zipFile);
+            JarContent content = new JarContent(m_logger, m_configMap, m_zipFactory,
+                m_revisionLock, m_rootDir, m_file, getZipFile());
+            content.m_index = m_index;
+            return content;
         }
 
         // Remove any leading slash.
@@ -245,7 +259,7 @@ public class JarContent implements Content
         // Determine if the entry is an emdedded JAR file or
         // directory in the bundle JAR file. Ignore any entries
         // that do not exist per the spec.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getZipFile().getEntry(entryName);
         if ((ze != null) && ze.isDirectory())
         {
             File extractDir = new File(embedDir, entryName);
@@ -314,7 +328,7 @@ public class JarContent implements Content
 
         // The entry name must refer to a file type, since it is
         // a native library, not a directory.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getZipFile().getEntry(entryName);
         if ((ze != null) && !ze.isDirectory())
         {
             // Extracting the embedded native library file impacts all other
@@ -353,7 +367,7 @@ public class JarContent implements Content
                         try
                         {
                             is = new BufferedInputStream(
-                                m_zipFile.getInputStream(ze),
+                                getZipFile().getInputStream(ze),
                                 BundleCache.BUFSIZE);
                             if (is == null)
                             {
@@ -432,6 +446,77 @@ public class JarContent implements Content
         return m_file;
     }
 
+    private WeakZipFile getZipFile()
+    {
+        WeakZipFile zipFile = m_zipFile;
+        if (zipFile == null)
+        {
+            synchronized (this)
+            {
+                zipFile = m_zipFile;
+                if (zipFile == null)
+                {
+                    try
+                    {
+                        zipFile = m_zipFactory.create(m_file);
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new RuntimeException(
+                            "Unable to open JAR file, probably deleted: " + ex.getMessage());
+                    }
+                    m_zipFile = zipFile;
+                }
+            }
+        }
+        return zipFile;
+    }
+
+    private EntryIndex loadIndex()
+    {
+        if (!m_isIndexed)
+        {
+            return null;
+        }
+        synchronized (m_revisionLock)
+        {
+            return EntryIndex.load(EntryIndex.getIndexFile(m_rootDir, m_file), m_file);
+        }
+    }
+
+    /**
+     * Returns the index of the entries of the JAR file, creating and
+     * persisting it if necessary.
+     * @return the index or <tt>null</tt> if indexing is disabled.
+    **/
+    private EntryIndex getIndex()
+    {
+        EntryIndex index = m_index;
+        if ((index == null) && m_isIndexed)
+        {
+            index = loadIndex();
+            if (index == null)
+            {
+                index = new EntryIndex(new EntriesEnumeration(getZipFile().entries()));
+                synchronized (m_revisionLock)
+                {
+                    try
+                    {
+                        index.save(EntryIndex.getIndexFile(m_rootDir, m_file), m_file);
+                    }
+                    catch (Exception ex)
+                    {
+                        m_logger.log(
+                            Logger.LOG_DEBUG,
+                            "Unable to save entry index of " + m_file, ex);
+                    }
+                }
+            }
+            m_index = index;
+        }
+        return index;
+    }
+
     /**
      * This method extracts an embedded JAR file from the bundle's
      * JAR file.
@@ -457,7 +542,7 @@ public class JarContent implements Content
             try
             {
                 // Make sure class path entry is a JAR file.
-                ZipEntry ze = m_zipFile.getEntry(jarPath);
+                ZipEntry ze = getZipFile().getEntry(jarPath);
                 if (ze == null)
                 {
                     return;
@@ -479,7 +564,7 @@ public class JarContent implements Content
                     }
 
                     // Extract embedded JAR into its directory.
-                    is = new BufferedInputStream(m_zipFile.getInputStream(ze), BundleCache.BUFSIZE);
+                    is = new BufferedInputStream(getZipFile().getInputStream(ze), BundleCache.BUFSIZE);
                     if (is == null)
                     {
                         throw new IOException("No input stream: " + jarPath);
@@ -495,7 +580,7 @@ public class JarContent implements Content
         }
     }
 
-    private static class EntriesEnumeration implements Enumeration<String>
+    static class EntriesEnumeration implements Enumeration<String>
     {
         private final Enumeration m_enumeration;
 
@@ -44,6 +44,13 @@ import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
  * either case, some of the contents may be extracted into the revision
  * directory, such as embedded JAR files and native libraries.
  * </p>
+ * <p>
+ * Unless disabled, the main attributes of the manifest and the entry names
+ * of the bundle JAR file are persisted in an {@link EntryIndex} in the
+ * revision directory. If a valid index exists, the revision does not open
+ * the JAR file to read its headers, which defers opening it until an entry
+ * actually has to be read.
+ * </p>
 **/
 class JarRevision extends BundleArchiveRevision
 {
@@ -51,7 +58,10 @@ class JarRevision extends BundleArchiveRevision
 
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
-    private final WeakZipFile m_zipFile;
+    private final boolean m_isMapped;
+    private final boolean m_isIndexed;
+    private volatile Map<String, String> m_headers;
+    private WeakZipFile m_zipFile;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -61,6 +71,11 @@ class JarRevision extends BundleArchiveRevision
         super(logger, configMap, revisionRootDir, location);
 
         m_zipFactory = zipFactory;
+        m_isMapped = Boolean.valueOf(
+            (String) configMap.get(BundleCache.CACHE_MMAP_PROP)).booleanValue()
+            && MappedJarContent.isSupported();
+        m_isIndexed = !"false".equalsIgnoreCase(
+            (String) configMap.get(BundleCache.CACHE_INDEX_PROP));
 
         if (byReference)
         {
@@ -76,23 +91,17 @@ class JarRevision extends BundleArchiveRevision
         // Save and process the bundle JAR.
         initialize(byReference, is);
 
-        // Open shared copy of the JAR file.
-        WeakZipFile zipFile = null;
-        try
+        // Use the headers of a valid index, otherwise open the JAR file
+        // right away to fail early if it is missing.
+        if (m_isIndexed)
         {
-            // Open bundle JAR file.
-            zipFile = m_zipFactory.create(m_bundleFile);
-            // Error if no jar file.
-            if (zipFile == null)
-            {
-                throw new IOException("No JAR file found.");
-            }
-            m_zipFile = zipFile;
+            EntryIndex index = EntryIndex.load(
+                EntryIndex.getIndexFile(getRevisionRootDir(), m_bundleFile), m_bundleFile);
+            m_headers = (index != null) ? index.getHeaders() : null;
         }
-        catch (Exception ex)
+        if (m_headers == null)
         {
-            if (zipFile != null) zipFile.close();
-            throw ex;
+            getZipFile();
         }
     }
 
@@ -100,26 +109,90 @@ class JarRevision extends BundleArchiveRevision
     {
         // Create a case insensitive map of manifest attributes.
         Map headers = new StringMap(false);
+        Map<String, String> indexed = m_headers;
+        if (indexed != null)
+        {
+            headers.putAll(indexed);
+            return headers;
+        }
         // Read and parse headers.
-        getMainAttributes(headers, m_zipFile);
+        getMainAttributes(headers, getZipFile());
+        if (m_isIndexed)
+        {
+            saveIndex(headers);
+        }
         return headers;
     }
 
     public synchronized Content getContent() throws Exception
     {
+        if (m_isMapped)
+        {
+            try
+            {
+                return new MappedJarContent(getLogger(), getConfig(), m_zipFactory,
+                    this, getRevisionRootDir(), m_bundleFile);
+            }
+            catch (IOException ex)
+            {
+                getLogger().log(
+                    Logger.LOG_WARNING,
+                    "Unable to map JAR file, using zip file instead: " + m_bundleFile,
+                    ex);
+            }
+        }
+        // If the JAR file has not been opened, the content opens it
+        // when it is needed.
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
 
-    protected void close() throws Exception
+    protected synchronized void close() throws Exception
     {
-        m_zipFile.close();
+        if (m_zipFile != null)
+        {
+            m_zipFile.close();
+        }
     }
 
     //
     // Private methods.
     //
 
+    private synchronized WeakZipFile getZipFile() throws Exception
+    {
+        if (m_zipFile == null)
+        {
+            // Open shared copy of the JAR file.
+            WeakZipFile zipFile = m_zipFactory.create(m_bundleFile);
+            // Error if no jar file.
+            if (zipFile == null)
+            {
+                throw new IOException("No JAR file found.");
+            }
+            m_zipFile = zipFile;
+        }
+        return m_zipFile;
+    }
+
+    private synchronized void saveIndex(Map headers)
+    {
+        try
+        {
+            EntryIndex index = new EntryIndex(
+                new JarContent.EntriesEnumeration(getZipFile().entries()), headers);
+            index.save(
+                EntryIndex.getIndexFile(getRevisionRootDir(), m_bundleFile), m_bundleFile);
+            m_headers = index.getHeaders();
+        }
+        catch (Exception ex)
+        {
+            getLogger().log(
+                Logger.LOG_DEBUG,
+                "Unable to save entry index of " + m_bundleFile, ex);
+        }
+    }
+
     private void initialize(boolean byReference, InputStream is)
         throws Exception
     {
@@ -0,0 +1,843 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+/**
+ * <p>
+ * This class implements content for a JAR file by memory mapping it once and
+ * indexing its central directory, instead of going through a zip file. Entries
+ * are returned as exactly sized byte arrays directly from the mapped file;
+ * stored entries are simply copied and deflated entries are inflated in a
+ * single pass. Since no file handle is kept open after mapping, this content
+ * does not count against the <tt>felix.cache.filelimit</tt>.
+ * </p>
+ * <p>
+ * Only plain zip files are supported; ZIP64 and encrypted archives are
+ * rejected with an <tt>IOException</tt> when the content is created, in which
+ * case callers should fall back to <tt>JarContent</tt>. Extraction of native
+ * libraries is delegated to a lazily created <tt>JarContent</tt>.
+ * </p>
+ * <p>
+ * The mapping is unmapped explicitly once all contents sharing it are
+ * closed and all streams reading from it are closed, since a mapped file
+ * cannot be deleted or replaced on some platforms, e.g. Windows. As there
+ * is no public API to unmap a buffer, this uses the cleaner of the JVM by
+ * reflection. If the JVM provides none, mapping is not supported (see
+ * {@link #isSupported()}) and the content cannot be created.
+ * </p>
+**/
+public class MappedJarContent implements Content
+{
+    private static final transient String EMBEDDED_DIRECTORY = "-embedded";
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_HEADER_SIG = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final Logger m_logger;
+    private final Map m_configMap;
+    private final WeakZipFileFactory m_zipFactory;
+    private final Object m_revisionLock;
+    private final File m_rootDir;
+    private final File m_file;
+    private volatile Mapping m_mapping;
+    private JarContent m_nativeLibContent;
+
+    public MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file) throws IOException
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file,
+            new Mapping(file));
+    }
+
+    private MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, Mapping mapping)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_revisionLock = revisionLock;
+        m_rootDir = rootDir;
+        m_file = file;
+        m_mapping = mapping;
+    }
+
+    /**
+     * Determines whether JAR files can be mapped, which requires that
+     * mappings can be unmapped explicitly.
+     * @return <tt>true</tt> if JAR files can be mapped.
+    **/
+    public static boolean isSupported()
+    {
+        return Unmapper.isSupported();
+    }
+
+    public void close()
+    {
+        Mapping mapping;
+        synchronized (this)
+        {
+            mapping = m_mapping;
+            m_mapping = null;
+            if (m_nativeLibContent != null)
+            {
+                m_nativeLibContent.close();
+                m_nativeLibContent = null;
+            }
+        }
+        if (mapping != null)
+        {
+            mapping.release();
+        }
+    }
+
+    public boolean hasEntry(String name) throws IllegalStateException
+    {
+        Mapping mapping = m_mapping;
+        return (mapping != null) && (mapping.getEntry(name) != null);
+    }
+
+    public Enumeration<String> getEntries()
+    {
+        Mapping mapping = m_mapping;
+        // Spec says to return null if there are no entries.
+        return ((mapping == null) || (mapping.m_names.length == 0))
+            ? null : new NamesEnumeration(mapping.m_names);
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        Mapping mapping = m_mapping;
+        Entry entry = (mapping != null) ? mapping.getEntry(name) : null;
+        if ((entry == null) || entry.isDirectory())
+        {
+            return null;
+        }
+
+        // The mapping may not be unmapped while it is read.
+        if (!mapping.acquire())
+        {
+            return null;
+        }
+        try
+        {
+            return mapping.getBytes(entry);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "MappedJarContent: Unable to read bytes.", ex);
+            return null;
+        }
+        finally
+        {
+            mapping.release();
+        }
+    }
+
+    public InputStream getEntryAsStream(String name)
+        throws IllegalStateException, IOException
+    {
+        Mapping mapping = m_mapping;
+        Entry entry = (mapping != null) ? mapping.getEntry(name) : null;
+        if (entry == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return mapping.getInputStream(entry);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    public URL getEntryAsURL(String name)
+    {
+        try
+        {
+            return new URL("jar:" + m_file.toURI().toURL().toExternalForm() + "!/" + name);
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+    }
+
+    public Content getEntryAsContent(String entryName)
+    {
+        Mapping mapping = m_mapping;
+        if (mapping == null)
+        {
+            return null;
+        }
+
+        // If the entry name refers to the content itself, then
+        // just return it immediately.
+        if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
+        {
+            // The new content shares the mapping until it is closed.
+            return mapping.acquire()
+                ? new MappedJarContent(m_logger, m_configMap, m_zipFactory,
+                    m_revisionLock, m_rootDir, m_file, mapping)
+                : null;
+        }
+
+        // Remove any leading slash.
+        entryName = (entryName.startsWith("/")) ? entryName.substring(1) : entryName;
+
+        // Any embedded JAR files will be extracted to the embedded directory.
+        // Since embedded JAR file names may clash when extracting from multiple
+        // embedded JAR files, the embedded directory is per embedded JAR file.
+        File embedDir = new File(m_rootDir, m_file.getName() + EMBEDDED_DIRECTORY);
+
+        // Determine if the entry is an emdedded JAR file or
+        // directory in the bundle JAR file. Ignore any entries
+        // that do not exist per the spec.
+        Entry entry = mapping.getEntry(entryName);
+        if ((entry != null) && entry.isDirectory())
+        {
+            File extractDir = new File(embedDir, entryName);
+
+            // See JarContent for why the revision lock is needed here.
+            synchronized (m_revisionLock)
+            {
+                if (!BundleCache.getSecureAction().fileExists(extractDir))
+                {
+                    if (!BundleCache.getSecureAction().mkdirs(extractDir))
+                    {
+                        m_logger.log(
+                            Logger.LOG_ERROR,
+                            "Unable to extract embedded directory.");
+                    }
+                }
+            }
+            return new ContentDirectoryContent(this, entryName);
+        }
+        else if ((entry != null) && entry.m_name.endsWith(".jar"))
+        {
+            File extractJar = new File(embedDir, entry.m_name);
+
+            synchronized (m_revisionLock)
+            {
+                try
+                {
+                    if (!BundleCache.getSecureAction().fileExists(extractJar))
+                    {
+                        File jarDir = extractJar.getParentFile();
+                        if (!BundleCache.getSecureAction().fileExists(jarDir)
+                            && !BundleCache.getSecureAction().mkdirs(jarDir))
+                        {
+                            throw new IOException("Unable to create embedded JAR directory.");
+                        }
+                        BundleCache.copyStreamToFile(
+                            mapping.getInputStream(entry), extractJar);
+                    }
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Unable to extract embedded JAR file.", ex);
+                }
+            }
+
+            try
+            {
+                return new MappedJarContent(
+                    m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                    extractJar.getParentFile(), extractJar);
+            }
+            catch (IOException ex)
+            {
+                // Fall back to the zip file based content, e.g., for ZIP64 files.
+                return new JarContent(
+                    m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                    extractJar.getParentFile(), extractJar, null);
+            }
+        }
+
+        // The entry could not be found, so return null.
+        return null;
+    }
+
+    public String getEntryAsNativeLibrary(String entryName)
+    {
+        // Native libraries are rare and need the per request extraction
+        // logic of JarContent, so simply delegate to it.
+        JarContent content;
+        synchronized (this)
+        {
+            if (m_mapping == null)
+            {
+                return null;
+            }
+            if (m_nativeLibContent == null)
+            {
+                m_nativeLibContent = new JarContent(
+                    m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                    m_rootDir, m_file, null);
+            }
+            content = m_nativeLibContent;
+        }
+        return content.getEntryAsNativeLibrary(entryName);
+    }
+
+    public String toString()
+    {
+        return "JAR " + m_file.getPath();
+    }
+
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * A memory mapped zip file and the index of its central directory. The
+     * index is immutable once constructed and therefore safe to share between
+     * contents and threads; all reads use absolute positions or duplicates
+     * of the buffer. The buffer is reference counted: it is created with one
+     * reference, every user of the buffer has to hold a reference, and the
+     * buffer is unmapped when the last reference is released.
+    **/
+    private static class Mapping
+    {
+        private final ByteBuffer m_buffer;
+        private final Map<String, Entry> m_entries;
+        private final String[] m_names;
+        private int m_refCount = 1;
+
+        Mapping(File file) throws IOException
+        {
+            if (!Unmapper.isSupported())
+            {
+                throw new IOException("Unmapping files is not supported by this JVM.");
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                FileChannel channel = raf.getChannel();
+                long length = channel.size();
+                if (length > Integer.MAX_VALUE)
+                {
+                    throw new ZipException("File too large to map: " + file);
+                }
+                MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, length);
+                m_buffer = buffer;
+            }
+            finally
+            {
+                // The mapping remains valid after the channel is closed.
+                raf.close();
+            }
+
+            // Unmap the buffer if it is not a valid zip file.
+            try
+            {
+                int end = findEndHeader(m_buffer);
+                int count = getShort(m_buffer, end + 10);
+                int cdSize = getInt(m_buffer, end + 12);
+                int cdOffset = getInt(m_buffer, end + 16);
+                if ((count == 0xFFFF) || (cdSize == -1) || (cdOffset == -1))
+                {
+                    throw new ZipException("ZIP64 files are not supported.");
+                }
+                if ((cdOffset < 0) || ((long) cdOffset + cdSize > end))
+                {
+                    throw new ZipException("Invalid central directory offset.");
+                }
+
+                m_entries = new HashMap<String, Entry>(count * 4 / 3 + 1);
+                m_names = new String[count];
+                int pos = cdOffset;
+                for (int i = 0; i < count; i++)
+                {
+                    if ((pos + CENTRAL_HEADER_SIZE > end)
+                        || (getInt(m_buffer, pos) != CENTRAL_HEADER_SIG))
+                    {
+                        throw new ZipException("Invalid central directory header.");
+                    }
+                    int flags = getShort(m_buffer, pos + 8);
+                    int method = getShort(m_buffer, pos + 10);
+                    int compressedSize = getInt(m_buffer, pos + 20);
+                    int size = getInt(m_buffer, pos + 24);
+                    int nameLength = getShort(m_buffer, pos + 28);
+                    int extraLength = getShort(m_buffer, pos + 30);
+                    int commentLength = getShort(m_buffer, pos + 32);
+                    int headerOffset = getInt(m_buffer, pos + 42);
+                    if ((flags & 1) != 0)
+                    {
+                        throw new ZipException("Encrypted entries are not supported.");
+                    }
+                    if ((compressedSize < 0) || (size < 0) || (headerOffset < 0))
+                    {
+                        throw new ZipException("ZIP64 entries are not supported.");
+                    }
+                    if ((method != STORED) && (method != DEFLATED))
+                    {
+                        throw new ZipException("Unsupported compression method: " + method);
+                    }
+                    if (pos + CENTRAL_HEADER_SIZE + nameLength > end)
+                    {
+                        throw new ZipException("Invalid central directory header.");
+                    }
+
+                    byte[] nameBytes = new byte[nameLength];
+                    ByteBuffer dup = m_buffer.duplicate();
+                    dup.position(pos + CENTRAL_HEADER_SIZE);
+                    dup.get(nameBytes);
+                    String name = new String(nameBytes, "UTF-8");
+
+                    m_names[i] = name;
+                    m_entries.put(name, new Entry(
+                        name, method, compressedSize, size, headerOffset));
+
+                    pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+                }
+            }
+            catch (IOException ex)
+            {
+                Unmapper.unmap(m_buffer);
+                throw ex;
+            }
+            catch (RuntimeException ex)
+            {
+                Unmapper.unmap(m_buffer);
+                throw new ZipException("Invalid zip file: " + ex);
+            }
+        }
+
+        /**
+         * Acquires a reference to the buffer.
+         * @return <tt>false</tt> if the buffer has already been unmapped.
+        **/
+        synchronized boolean acquire()
+        {
+            if (m_refCount == 0)
+            {
+                return false;
+            }
+            m_refCount++;
+            return true;
+        }
+
+        /**
+         * Releases a reference to the buffer and unmaps it if it was the
+         * last one.
+        **/
+        void release()
+        {
+            synchronized (this)
+            {
+                if (--m_refCount > 0)
+                {
+                    return;
+                }
+            }
+            Unmapper.unmap(m_buffer);
+        }
+
+        Entry getEntry(String name)
+        {
+            Entry entry = m_entries.get(name);
+            // Like ZipFile, find directories even without the trailing slash.
+            if ((entry == null) && !name.endsWith("/"))
+            {
+                entry = m_entries.get(name + "/");
+            }
+            return entry;
+        }
+
+        byte[] getBytes(Entry entry) throws IOException
+        {
+            int dataOffset = getDataOffset(entry);
+            ByteBuffer dup = m_buffer.duplicate();
+            dup.position(dataOffset);
+
+            // The sizes come from the central directory, so do not trust
+            // them any further than the data actually available.
+            if ((entry.m_method == STORED) && (entry.m_size != entry.m_compressedSize))
+            {
+                throw new ZipException("Invalid entry size: " + entry.m_name);
+            }
+            byte[] bytes = new byte[entry.m_size];
+            if (entry.m_method == STORED)
+            {
+                dup.get(bytes);
+                return bytes;
+            }
+
+            // The inflater needs an extra dummy byte when no zlib header
+            // is used, see java.util.zip.ZipFile.
+            byte[] input = new byte[entry.m_compressedSize + 1];
+            dup.get(input, 0, entry.m_compressedSize);
+            Inflater inflater = new Inflater(true);
+            try
+            {
+                inflater.setInput(input);
+                int n = 0;
+                while (n < bytes.length)
+                {
+                    int count = inflater.inflate(bytes, n, bytes.length - n);
+                    if ((count == 0) && (inflater.finished()
+                        || inflater.needsInput() || inflater.needsDictionary()))
+                    {
+                        break;
+                    }
+                    n += count;
+                }
+                if (n != bytes.length)
+                {
+                    throw new ZipException("Invalid entry size: " + entry.m_name);
+                }
+            }
+            catch (DataFormatException ex)
+            {
+                throw new ZipException(ex.getMessage());
+            }
+            finally
+            {
+                inflater.end();
+            }
+            return bytes;
+        }
+
+        /**
+         * Returns a stream reading the entry, which holds a reference to
+         * the buffer until it is closed.
+        **/
+        InputStream getInputStream(Entry entry) throws IOException
+        {
+            if (!acquire())
+            {
+                throw new IOException("JAR file has been closed: " + entry.m_name);
+            }
+            ByteBuffer dup;
+            try
+            {
+                int dataOffset = getDataOffset(entry);
+                dup = m_buffer.duplicate();
+                dup.position(dataOffset);
+                dup.limit(dataOffset + entry.m_compressedSize);
+            }
+            catch (IOException ex)
+            {
+                release();
+                throw ex;
+            }
+
+            if (entry.m_method == STORED)
+            {
+                return new ByteBufferInputStream(this, dup, false);
+            }
+
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(new ByteBufferInputStream(this, dup, true), inflater)
+            {
+                private boolean m_closed = false;
+
+                public void close() throws IOException
+                {
+                    if (!m_closed)
+                    {
+                        m_closed = true;
+                        inflater.end();
+                        super.close();
+                    }
+                }
+            };
+        }
+
+        private int getDataOffset(Entry entry) throws IOException
+        {
+            int pos = entry.m_headerOffset;
+            if (((long) pos + LOCAL_HEADER_SIZE > m_buffer.limit())
+                || (getInt(m_buffer, pos) != LOCAL_HEADER_SIG))
+            {
+                throw new ZipException("Invalid local header: " + entry.m_name);
+            }
+            // Cannot overflow, since the header is within the buffer.
+            int dataOffset = pos + LOCAL_HEADER_SIZE
+                + getShort(m_buffer, pos + 26) + getShort(m_buffer, pos + 28);
+            if ((long) dataOffset + entry.m_compressedSize > m_buffer.limit())
+            {
+                throw new ZipException("Truncated entry: " + entry.m_name);
+            }
+            return dataOffset;
+        }
+
+        private static int findEndHeader(ByteBuffer buffer) throws ZipException
+        {
+            int min = Math.max(0, buffer.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+            for (int pos = buffer.limit() - END_HEADER_SIZE; pos >= min; pos--)
+            {
+                if ((getInt(buffer, pos) == END_HEADER_SIG)
+                    && (pos + END_HEADER_SIZE + getShort(buffer, pos + 20)
+                        == buffer.limit()))
+                {
+                    return pos;
+                }
+            }
+            throw new ZipException("No end of central directory found.");
+        }
+
+        private static int getShort(ByteBuffer buffer, int pos)
+        {
+            return (buffer.get(pos) & 0xFF) | ((buffer.get(pos + 1) & 0xFF) << 8);
+        }
+
+        private static int getInt(ByteBuffer buffer, int pos)
+        {
+            return getShort(buffer, pos) | (getShort(buffer, pos + 2) << 16);
+        }
+    }
+
+    private static class Entry
+    {
+        final String m_name;
+        final int m_method;
+        final int m_compressedSize;
+        final int m_size;
+        final int m_headerOffset;
+
+        Entry(String name, int method, int compressedSize, int size, int headerOffset)
+        {
+            m_name = name;
+            m_method = method;
+            m_compressedSize = compressedSize;
+            m_size = size;
+            m_headerOffset = headerOffset;
+        }
+
+        boolean isDirectory()
+        {
+            return m_name.endsWith("/");
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final Mapping m_mapping;
+        private final ByteBuffer m_buffer;
+        private boolean m_dummy;
+        private boolean m_closed = false;
+
+        ByteBufferInputStream(Mapping mapping, ByteBuffer buffer, boolean dummy)
+        {
+            m_mapping = mapping;
+            m_buffer = buffer;
+            m_dummy = dummy;
+        }
+
+        public synchronized void close()
+        {
+            if (!m_closed)
+            {
+                m_closed = true;
+                m_mapping.release();
+            }
+        }
+
+        public synchronized int read() throws IOException
+        {
+            if (m_closed)
+            {
+                throw new IOException("Stream closed.");
+            }
+            if (m_buffer.hasRemaining())
+            {
+                return m_buffer.get() & 0xFF;
+            }
+            else if (m_dummy)
+            {
+                m_dummy = false;
+                return 0;
+            }
+            return -1;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) throws IOException
+        {
+            if (m_closed)
+            {
+                throw new IOException("Stream closed.");
+            }
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_buffer.hasRemaining())
+            {
+                int b0 = read();
+                if (b0 < 0)
+                {
+                    return -1;
+                }
+                b[off] = (byte) b0;
+                return 1;
+            }
+            len = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, len);
+            return len;
+        }
+
+        public synchronized int available()
+        {
+            return m_closed ? 0 : m_buffer.remaining();
+        }
+    }
+
+    /**
+     * Unmaps buffers using the cleaner of the JVM, which is only accessible
+     * by reflection: <tt>sun.misc.Unsafe.invokeCleaner()</tt> on Java 9 and
+     * later, <tt>sun.nio.ch.DirectBuffer.cleaner().clean()</tt> before.
+    **/
+    private static class Unmapper
+    {
+        private static final Object m_unsafe;
+        private static final Method m_invokeCleaner;
+        private static final Method m_cleaner;
+        private static final Method m_clean;
+
+        static
+        {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            Method cleaner = null;
+            Method clean = null;
+            try
+            {
+                Class unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = BundleCache.getSecureAction().getMethod(
+                    unsafeClass, "invokeCleaner", new Class[] { ByteBuffer.class });
+                unsafe = BundleCache.getSecureAction().getDeclaredField(
+                    unsafeClass, "theUnsafe", null);
+            }
+            catch (Throwable ex)
+            {
+                invokeCleaner = null;
+                try
+                {
+                    cleaner = BundleCache.getSecureAction().getMethod(
+                        Class.forName("sun.nio.ch.DirectBuffer"), "cleaner", null);
+                    clean = BundleCache.getSecureAction().getMethod(
+                        Class.forName("sun.misc.Cleaner"), "clean", null);
+                }
+                catch (Throwable ex2)
+                {
+                    cleaner = null;
+                    clean = null;
+                }
+            }
+            m_unsafe = unsafe;
+            m_invokeCleaner = invokeCleaner;
+            m_cleaner = cleaner;
+            m_clean = clean;
+        }
+
+        static boolean isSupported()
+        {
+            return (m_invokeCleaner != null) || (m_clean != null);
+        }
+
+        static void unmap(ByteBuffer buffer)
+        {
+            try
+            {
+                if (m_invokeCleaner != null)
+                {
+                    BundleCache.getSecureAction().invokeDirect(
+                        m_invokeCleaner, m_unsafe, new Object[] { buffer });
+                }
+                else if (m_clean != null)
+                {
+                    Object cleaner = BundleCache.getSecureAction().invokeDirect(
+                        m_cleaner, buffer, null);
+                    if (cleaner != null)
+                    {
+                        BundleCache.getSecureAction().invokeDirect(m_clean, cleaner, null);
+                    }
+                }
+            }
+            catch (Exception ex)
+            {
+                // The buffer is released once it is garbage collected.
+            }
+        }
+    }
+
+    private static class NamesEnumeration implements Enumeration<String>
+    {
+        private final String[] m_names;
+        private int m_idx = 0;
+
+        NamesEnumeration(String[] names)
+        {
+            m_names = names;
+        }
+
+        public boolean hasMoreElements()
+        {
+            return m_idx < m_names.length;
+        }
+
+        public String nextElement()
+        {
+            if (m_idx >= m_names.length)
+            {
+                throw new NoSuchElementException();
+            }
+            return m_names[m_idx++];
+        }
+    }
+}
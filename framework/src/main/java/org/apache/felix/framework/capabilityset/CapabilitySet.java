@@ -19,9 +19,9 @@
 package org.apache.felix.framework.capabilityset;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,17 +29,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 
 public class CapabilitySet
 {
     private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
     private final Set<BundleCapability> m_capSet = new HashSet<BundleCapability>();
-    private final static SecureAction m_secureAction = new SecureAction();
+    // Sorts the capabilities of each bucket of the exact indices by the
+    // version attribute, so version ranges can be looked up directly.
+    private final String m_rangeIndexProp;
+    private final boolean m_caseSensitive;
+    private final Map<String, Map<Object, VersionIndex>> m_rangeIndices;
 
 public void dump()
 {
@@ -71,15 +76,41 @@ public void dump()
 }
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
+    {
+        this(indexProps, null, caseSensitive);
+    }
+
+    /**
+     * Creates a capability set.
+     * @param indexProps the attributes to index by exact value.
+     * @param rangeIndexProp a version attribute by which the capabilities
+     *        with the same value of an exact index are sorted, so that
+     *        version range filters can be evaluated by range queries, or
+     *        <tt>null</tt>.
+     * @param caseSensitive whether attribute names are case sensitive.
+    **/
+    public CapabilitySet(
+        List<String> indexProps, String rangeIndexProp, boolean caseSensitive)
     {
         m_indices = (caseSensitive)
             ? new TreeMap<String, Map<Object, Set<BundleCapability>>>()
             : new TreeMap<String, Map<Object, Set<BundleCapability>>>(
                 new StringComparator(false));
+        m_rangeIndices = (caseSensitive)
+            ? new TreeMap<String, Map<Object, VersionIndex>>()
+            : new TreeMap<String, Map<Object, VersionIndex>>(
+                new StringComparator(false));
+        m_rangeIndexProp = rangeIndexProp;
+        m_caseSensitive = caseSensitive;
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
             m_indices.put(
                 indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
+            if (rangeIndexProp != null)
+            {
+                m_rangeIndices.put(
+                    indexProps.get(i), new HashMap<Object, VersionIndex>());
+            }
         }
     }
 
@@ -99,25 +130,27 @@ public void dump()
                 }
 
                 Map<Object, Set<BundleCapability>> index = entry.getValue();
+                Map<Object, VersionIndex> rangeIndex = m_rangeIndices.get(entry.getKey());
 
                 if (value instanceof Collection)
                 {
                     Collection c = (Collection) value;
                     for (Object o : c)
                     {
-                        indexCapability(index, cap, o);
+                        indexCapability(index, rangeIndex, cap, o);
                     }
                 }
                 else
                 {
-                    indexCapability(index, cap, value);
+                    indexCapability(index, rangeIndex, cap, value);
                 }
             }
         }
     }
 
     private void indexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
+        Map<Object, Set<BundleCapability>> index, Map<Object, VersionIndex> rangeIndex,
+        BundleCapability cap, Object capValue)
     {
         Set<BundleCapability> caps = index.get(capValue);
         if (caps == null)
@@ -126,6 +159,17 @@ public void dump()
             index.put(capValue, caps);
         }
         caps.add(cap);
+
+        if (rangeIndex != null)
+        {
+            VersionIndex versions = rangeIndex.get(capValue);
+            if (versions == null)
+            {
+                versions = new VersionIndex();
+                rangeIndex.put(capValue, versions);
+            }
+            versions.add(cap, cap.getAttributes().get(m_rangeIndexProp));
+        }
     }
 
     public void removeCapability(BundleCapability cap)
@@ -143,18 +187,20 @@ public void dump()
                     }
 
                     Map<Object, Set<BundleCapability>> index = entry.getValue();
+                    Map<Object, VersionIndex> rangeIndex =
+                        m_rangeIndices.get(entry.getKey());
 
                     if (value instanceof Collection)
                     {
                         Collection c = (Collection) value;
                         for (Object o : c)
                         {
-                            deindexCapability(index, cap, o);
+                            deindexCapability(index, rangeIndex, cap, o);
                         }
                     }
                     else
                     {
-                        deindexCapability(index, cap, value);
+                        deindexCapability(index, rangeIndex, cap, value);
                     }
                 }
             }
@@ -162,7 +208,8 @@ public void dump()
     }
 
     private void deindexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
+        Map<Object, Set<BundleCapability>> index, Map<Object, VersionIndex> rangeIndex,
+        BundleCapability cap, Object value)
     {
         Set<BundleCapability> caps = index.get(value);
         if (caps != null)
@@ -173,6 +220,16 @@ public void dump()
                 index.remove(value);
             }
         }
+
+        if (rangeIndex != null)
+        {
+            VersionIndex versions = rangeIndex.get(value);
+            if ((versions != null)
+                && versions.remove(cap, cap.getAttributes().get(m_rangeIndexProp)))
+            {
+                rangeIndex.remove(value);
+            }
+        }
     }
 
     public Set<BundleCapability> match(SimpleFilter sf, boolean obeyMandatory)
@@ -198,6 +255,23 @@ public void dump()
             // We can short-circuit the AND operation if there are no
             // remaining capabilities.
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+
+            // If the operands include an exact index lookup and a version
+            // range, start with the capabilities in that range.
+            Set<BundleCapability> ranged = matchRange(sfs);
+            if (ranged != null)
+            {
+                matches = new HashSet<BundleCapability>();
+                for (BundleCapability cap : ranged)
+                {
+                    if (caps.contains(cap))
+                    {
+                        matches.add(cap);
+                    }
+                }
+                caps = matches;
+            }
+
             for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
             {
                 matches = match(caps, sfs.get(i));
@@ -239,16 +313,13 @@ public void dump()
             }
             else
             {
+                FilterMatcher matcher = sf.getMatcher();
                 for (Iterator<BundleCapability> it = caps.iterator(); it.hasNext(); )
                 {
                     BundleCapability cap = it.next();
-                    Object lhs = cap.getAttributes().get(sf.getName());
-                    if (lhs != null)
+                    if (matcher.matches(cap.getAttributes()))
                     {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
-                        {
-                            matches.add(cap);
-                        }
+                        matches.add(cap);
                     }
                 }
             }
@@ -257,63 +328,106 @@ public void dump()
         return matches;
     }
 
-    public static boolean matches(BundleCapability cap, SimpleFilter sf)
-    {
-        return matchesInternal(cap, sf) && matchMandatory(cap, sf);
-    }
-
-    private static boolean matchesInternal(BundleCapability cap, SimpleFilter sf)
+    /**
+     * Determines the capabilities that can satisfy the version range
+     * expressed by the specified AND operands, using the version index of
+     * the bucket selected by an exact index lookup among the operands.
+     * Only the range is checked, so the result is a superset of the
+     * matching capabilities.
+     * @param sfs the operands of an AND filter.
+     * @return the capabilities within the range or <tt>null</tt> if the
+     *         operands cannot be evaluated by a range query.
+    **/
+    private Set<BundleCapability> matchRange(List<SimpleFilter> sfs)
     {
-        boolean matched = true;
-
-        if (sf.getOperation() == SimpleFilter.MATCH_ALL)
+        if (m_rangeIndexProp == null)
         {
-            matched = true;
+            return null;
         }
-        else if (sf.getOperation() == SimpleFilter.AND)
+
+        VersionIndex versions = null;
+        boolean bucketFound = false;
+        Version floor = null;
+        boolean floorInclusive = true;
+        Version ceiling = null;
+        boolean ceilingInclusive = true;
+        for (SimpleFilter operand : sfs)
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For AND we calculate the intersection of each subfilter.
-            // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; matched && (i < sfs.size()); i++)
+            int op = operand.getOperation();
+            boolean negated = false;
+            if ((op == SimpleFilter.NOT) && (((List) operand.getValue()).size() == 1))
             {
-                matched = matchesInternal(cap, sfs.get(i));
+                operand = (SimpleFilter) ((List) operand.getValue()).get(0);
+                op = operand.getOperation();
+                negated = true;
             }
-        }
-        else if (sf.getOperation() == SimpleFilter.OR)
-        {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For OR we calculate the union of each subfilter.
-            matched = false;
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; !matched && (i < sfs.size()); i++)
+
+            if (!negated && (op == SimpleFilter.EQ) && !bucketFound)
             {
-                matched = matchesInternal(cap, sfs.get(i));
+                Map<Object, VersionIndex> rangeIndex = m_rangeIndices.get(operand.getName());
+                if (rangeIndex != null)
+                {
+                    versions = rangeIndex.get(operand.getValue());
+                    bucketFound = true;
+                }
             }
-        }
-        else if (sf.getOperation() == SimpleFilter.NOT)
-        {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For OR we calculate the union of each subfilter.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; i < sfs.size(); i++)
+            else if (((op == SimpleFilter.GTE) || (op == SimpleFilter.LTE))
+                && isRangeIndexProp(operand.getName())
+                && (operand.getValue() instanceof String))
             {
-                matched = !(matchesInternal(cap, sfs.get(i)));
+                Version v;
+                try
+                {
+                    v = new Version((String) operand.getValue());
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    // Leave it to the filter evaluation.
+                    continue;
+                }
+                // A negated comparison is an exclusive bound on the other side.
+                if ((op == SimpleFilter.GTE) != negated)
+                {
+                    int cmp = (floor == null) ? 1 : v.compareTo(floor);
+                    if ((cmp > 0) || ((cmp == 0) && negated))
+                    {
+                        floor = v;
+                        floorInclusive = !negated;
+                    }
+                }
+                else
+                {
+                    int cmp = (ceiling == null) ? -1 : v.compareTo(ceiling);
+                    if ((cmp < 0) || ((cmp == 0) && negated))
+                    {
+                        ceiling = v;
+                        ceilingInclusive = !negated;
+                    }
+                }
             }
         }
-        else
+
+        if (!bucketFound || ((floor == null) && (ceiling == null)))
         {
-            matched = false;
-            Object lhs = cap.getAttributes().get(sf.getName());
-            if (lhs != null)
-            {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
-            }
+            return null;
         }
+        else if (versions == null)
+        {
+            return Collections.EMPTY_SET;
+        }
+        return versions.match(floor, floorInclusive, ceiling, ceilingInclusive);
+    }
 
-        return matched;
+    private boolean isRangeIndexProp(String name)
+    {
+        return (m_caseSensitive)
+            ? m_rangeIndexProp.equals(name)
+            : m_rangeIndexProp.equalsIgnoreCase(name);
+    }
+
+    public static boolean matches(BundleCapability cap, SimpleFilter sf)
+    {
+        return sf.getMatcher().matches(cap.getAttributes()) && matchMandatory(cap, sf);
     }
 
     private static Set<BundleCapability> matchMandatory(
@@ -366,224 +480,84 @@ public void dump()
         return false;
     }
 
-    private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
-
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    /**
+     * Holds the capabilities of an index bucket sorted by version. Values of
+     * other types, multiple values and missing values cannot be sorted, so
+     * such capabilities are always candidates.
+    **/
+    private static class VersionIndex
     {
-        if (lhs == null)
-        {
-            return false;
-        }
-        
-        // If this is a PRESENT operation, then just return true immediately
-        // since we wouldn't be here if the attribute wasn't present.
-        if (op == SimpleFilter.PRESENT)
-        {
-            return true;
-        }
+        private final SortedMap<Version, Set<BundleCapability>> m_sorted =
+            new TreeMap<Version, Set<BundleCapability>>();
+        private final Set<BundleCapability> m_unsorted = new HashSet<BundleCapability>();
 
-        // If the type is comparable, then we can just return the
-        // result immediately.
-        if (lhs instanceof Comparable)
+        void add(BundleCapability cap, Object version)
         {
-            // Spec says SUBSTRING is false for all types other than string.
-            if ((op == SimpleFilter.SUBSTRING) && !(lhs instanceof String))
-            {
-                return false;
-            }
-
-            Object rhs;
-            if (op == SimpleFilter.SUBSTRING)
-            {
-                rhs = rhsUnknown;
-            }
-            else
+            if (version instanceof Version)
             {
-                try
+                Set<BundleCapability> caps = m_sorted.get(version);
+                if (caps == null)
                 {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
-                }
-                catch (Exception ex)
-                {
-                    return false;
+                    caps = new HashSet<BundleCapability>();
+                    m_sorted.put((Version) version, caps);
                 }
+                caps.add(cap);
             }
-
-            switch (op)
-            {
-                case SimpleFilter.EQ :
-                    try
-                    {
-                        return (((Comparable) lhs).compareTo(rhs) == 0);
-                    }
-                    catch (Exception ex)
-                    {
-                        return false;
-                    }
-                case SimpleFilter.GTE :
-                    try
-                    {
-                        return (((Comparable) lhs).compareTo(rhs) >= 0);
-                    }
-                    catch (Exception ex)
-                    {
-                        return false;
-                    }
-                case SimpleFilter.LTE :
-                    try
-                    {
-                        return (((Comparable) lhs).compareTo(rhs) <= 0);
-                    }
-                    catch (Exception ex)
-                    {
-                        return false;
-                    }
-                case SimpleFilter.APPROX :
-                    return compareApproximate(((Comparable) lhs), rhs);
-                case SimpleFilter.SUBSTRING :
-                    return SimpleFilter.compareSubstring((List<String>) rhs, (String) lhs);
-                default:
-                    throw new RuntimeException(
-                        "Unknown comparison operator: " + op);
-            }
-        }
-        // Booleans do not implement comparable, so special case them.
-        else if (lhs instanceof Boolean)
-        {
-            Object rhs;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
-            {
-                return false;
-            }
-
-            switch (op)
+            else
             {
-                case SimpleFilter.EQ :
-                case SimpleFilter.GTE :
-                case SimpleFilter.LTE :
-                case SimpleFilter.APPROX :
-                    return (lhs.equals(rhs));
-                default:
-                    throw new RuntimeException(
-                        "Unknown comparison operator: " + op);
+                m_unsorted.add(cap);
             }
         }
 
-        // If the LHS is not a comparable or boolean, check if it is an
-        // array. If so, convert it to a list so we can treat it as a
-        // collection.
-        if (lhs.getClass().isArray())
+        /**
+         * Removes a capability.
+         * @return <tt>true</tt> if the index is empty afterwards.
+        **/
+        boolean remove(BundleCapability cap, Object version)
         {
-            lhs = convertArrayToList(lhs);
-        }
-
-        // If LHS is a collection, then call compare() on each element
-        // of the collection until a match is found.
-        if (lhs instanceof Collection)
-        {
-            for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
+            if (version instanceof Version)
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                Set<BundleCapability> caps = m_sorted.get(version);
+                if (caps != null)
                 {
-                    return true;
+                    caps.remove(cap);
+                    if (caps.isEmpty())
+                    {
+                        m_sorted.remove(version);
+                    }
                 }
             }
-
-            return false;
-        }
-
-        // Spec says SUBSTRING is false for all types other than string.
-        if ((op == SimpleFilter.SUBSTRING) && !(lhs instanceof String))
-        {
-            return false;
-        }
-
-        // Since we cannot identify the LHS type, then we can only perform
-        // equality comparison.
-        try
-        {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
-        }
-        catch (Exception ex)
-        {
-            return false;
-        }
-    }
-
-    private static boolean compareApproximate(Object lhs, Object rhs)
-    {
-        if (rhs instanceof String)
-        {
-            return removeWhitespace((String) lhs)
-                .equalsIgnoreCase(removeWhitespace((String) rhs));
-        }
-        else if (rhs instanceof Character)
-        {
-            return Character.toLowerCase(((Character) lhs))
-                == Character.toLowerCase(((Character) rhs));
-        }
-        return lhs.equals(rhs);
-    }
-
-    private static String removeWhitespace(String s)
-    {
-        StringBuffer sb = new StringBuffer(s.length());
-        for (int i = 0; i < s.length(); i++)
-        {
-            if (!Character.isWhitespace(s.charAt(i)))
+            else
             {
-                sb.append(s.charAt(i));
+                m_unsorted.remove(cap);
             }
-        }
-        return sb.toString();
-    }
-
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
-    {
-        // If the LHS expects a string, then we can just return
-        // the RHS since it is a string.
-        if (lhs.getClass() == rhsString.getClass())
-        {
-            return rhsString;
+            return m_sorted.isEmpty() && m_unsorted.isEmpty();
         }
 
-        // Try to convert the RHS type to the LHS type by using
-        // the string constructor of the LHS class, if it has one.
-        Object rhs = null;
-        try
+        Set<BundleCapability> match(
+            Version floor, boolean floorInclusive, Version ceiling, boolean ceilingInclusive)
         {
-            // The Character class is a special case, since its constructor
-            // does not take a string, so handle it separately.
-            if (lhs instanceof Character)
+            Set<BundleCapability> matches = new HashSet<BundleCapability>(m_unsorted);
+            SortedMap<Version, Set<BundleCapability>> tail =
+                (floor == null) ? m_sorted : m_sorted.tailMap(floor);
+            for (Entry<Version, Set<BundleCapability>> entry : tail.entrySet())
             {
-                rhs = new Character(rhsString.charAt(0));
-            }
-            else
-            {
-                // Spec says we should trim number types.
-                if ((lhs instanceof Number) || (lhs instanceof Boolean))
+                if (!floorInclusive && entry.getKey().equals(floor))
+                {
+                    continue;
+                }
+                if (ceiling != null)
                 {
-                    rhsString = rhsString.trim();
+                    int cmp = entry.getKey().compareTo(ceiling);
+                    if ((cmp > 0) || ((cmp == 0) && !ceilingInclusive))
+                    {
+                        break;
+                    }
                 }
-                Constructor ctor = m_secureAction.getConstructor(lhs.getClass(), STRING_CLASS);
-                m_secureAction.setAccesssible(ctor);
-                rhs = ctor.newInstance(new Object[] { rhsString });
+                matches.addAll(entry.getValue());
             }
+            return matches;
         }
-        catch (Exception ex)
-        {
-            throw new Exception(
-                "Could not instantiate class "
-                    + lhs.getClass().getName()
-                    + " from string constructor with argument '"
-                    + rhsString + "' because " + ex);
-        }
-
-        return rhs;
     }
 
     /**
@@ -0,0 +1,441 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.felix.framework.util.SecureAction;
+import org.osgi.framework.Version;
+
+/**
+ * <p>
+ * A compiled form of a <tt>SimpleFilter</tt> that evaluates the filter
+ * against the attributes of a capability. Compiling a filter resolves the
+ * operation of every node once and comparison nodes remember the operand
+ * converted to the type of the attribute value they were last compared
+ * with, so repeated matches of the same filter neither re-parse version
+ * or number operands nor look up string constructors via reflection.
+ * </p>
+ * <p>
+ * Matchers are immutable apart from the operand cache, which is safe to
+ * update concurrently, so a matcher can be shared by all threads.
+ * </p>
+**/
+abstract class FilterMatcher
+{
+    private static final SecureAction m_secureAction = new SecureAction();
+    private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
+    private static final FilterMatcher MATCH_ALL = new FilterMatcher() {
+        boolean matches(Map<String, Object> attrs)
+        {
+            return true;
+        }
+    };
+
+    /**
+     * Evaluates the filter against the specified attributes.
+     * @param attrs the attributes of a capability.
+     * @return <tt>true</tt> if the attributes match the filter.
+    **/
+    abstract boolean matches(Map<String, Object> attrs);
+
+    /**
+     * Compiles the specified filter. Callers should obtain matchers via
+     * <tt>SimpleFilter.getMatcher()</tt>, which caches the result.
+     * @param sf the filter to compile.
+     * @return the matcher for the filter.
+    **/
+    static FilterMatcher compile(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.MATCH_ALL:
+                return MATCH_ALL;
+            case SimpleFilter.AND:
+                return new And(compileAll((List<SimpleFilter>) sf.getValue()));
+            case SimpleFilter.OR:
+                return new Or(compileAll((List<SimpleFilter>) sf.getValue()));
+            case SimpleFilter.NOT:
+                List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+                // Like the interpreted filter, only the last operand counts.
+                return (sfs.isEmpty())
+                    ? MATCH_ALL : new Not(sfs.get(sfs.size() - 1).getMatcher());
+            default:
+                return new Comparison(sf.getName(), sf.getValue(), sf.getOperation());
+        }
+    }
+
+    private static FilterMatcher[] compileAll(List<SimpleFilter> sfs)
+    {
+        FilterMatcher[] matchers = new FilterMatcher[sfs.size()];
+        for (int i = 0; i < matchers.length; i++)
+        {
+            matchers[i] = sfs.get(i).getMatcher();
+        }
+        return matchers;
+    }
+
+    private static class And extends FilterMatcher
+    {
+        private final FilterMatcher[] m_operands;
+
+        And(FilterMatcher[] operands)
+        {
+            m_operands = operands;
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            for (int i = 0; i < m_operands.length; i++)
+            {
+                if (!m_operands[i].matches(attrs))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Or extends FilterMatcher
+    {
+        private final FilterMatcher[] m_operands;
+
+        Or(FilterMatcher[] operands)
+        {
+            m_operands = operands;
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            for (int i = 0; i < m_operands.length; i++)
+            {
+                if (m_operands[i].matches(attrs))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Not extends FilterMatcher
+    {
+        private final FilterMatcher m_operand;
+
+        Not(FilterMatcher operand)
+        {
+            m_operand = operand;
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            return !m_operand.matches(attrs);
+        }
+    }
+
+    /**
+     * Compares a single attribute with an operand.
+    **/
+    static class Comparison extends FilterMatcher
+    {
+        // Marks operands that cannot be converted to a type.
+        private static final Object INVALID = new Object();
+
+        private final String m_name;
+        private final Object m_value;
+        private final int m_op;
+        private final String m_approxValue;
+        // The operand converted to the type of the last compared value.
+        private volatile Operand m_operand = null;
+
+        Comparison(String name, Object value, int op)
+        {
+            m_name = name;
+            m_value = value;
+            m_op = op;
+            m_approxValue = ((op == SimpleFilter.APPROX) && (value instanceof String))
+                ? removeWhitespace((String) value) : null;
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            Object lhs = attrs.get(m_name);
+            return (lhs != null) && compare(lhs);
+        }
+
+        boolean compare(Object lhs)
+        {
+            if (lhs == null)
+            {
+                return false;
+            }
+
+            // If this is a PRESENT operation, then just return true immediately
+            // since we wouldn't be here if the attribute wasn't present.
+            if (m_op == SimpleFilter.PRESENT)
+            {
+                return true;
+            }
+
+            // If the type is comparable, then we can just return the
+            // result immediately.
+            if (lhs instanceof Comparable)
+            {
+                // Spec says SUBSTRING is false for all types other than string.
+                if (m_op == SimpleFilter.SUBSTRING)
+                {
+                    return (lhs instanceof String)
+                        && SimpleFilter.compareSubstring((List<String>) m_value, (String) lhs);
+                }
+
+                Object rhs = getOperand(lhs);
+                if (rhs == INVALID)
+                {
+                    return false;
+                }
+
+                if (m_op == SimpleFilter.APPROX)
+                {
+                    return compareApproximate(lhs, rhs);
+                }
+
+                int cmp;
+                try
+                {
+                    cmp = ((Comparable) lhs).compareTo(rhs);
+                }
+                catch (Exception ex)
+                {
+                    return false;
+                }
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ :
+                        return (cmp == 0);
+                    case SimpleFilter.GTE :
+                        return (cmp >= 0);
+                    case SimpleFilter.LTE :
+                        return (cmp <= 0);
+                    default:
+                        throw new RuntimeException(
+                            "Unknown comparison operator: " + m_op);
+                }
+            }
+
+            // If LHS is an array or a collection, then compare each
+            // element until a match is found.
+            if (lhs instanceof Object[])
+            {
+                Object[] array = (Object[]) lhs;
+                for (int i = 0; i < array.length; i++)
+                {
+                    if (compare(array[i]))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs.getClass().isArray())
+            {
+                int len = Array.getLength(lhs);
+                for (int i = 0; i < len; i++)
+                {
+                    if (compare(Array.get(lhs, i)))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs instanceof Collection)
+            {
+                for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
+                {
+                    if (compare(iter.next()))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            // Spec says SUBSTRING is false for all types other than string.
+            if (m_op == SimpleFilter.SUBSTRING)
+            {
+                return false;
+            }
+
+            // Since we cannot identify the LHS type, then we can only perform
+            // equality comparison.
+            Object rhs = getOperand(lhs);
+            return (rhs != INVALID) && lhs.equals(rhs);
+        }
+
+        private boolean compareApproximate(Object lhs, Object rhs)
+        {
+            if (rhs instanceof String)
+            {
+                return removeWhitespace((String) lhs).equalsIgnoreCase(m_approxValue);
+            }
+            else if (rhs instanceof Character)
+            {
+                return Character.toLowerCase(((Character) lhs))
+                    == Character.toLowerCase(((Character) rhs));
+            }
+            return lhs.equals(rhs);
+        }
+
+        private Object getOperand(Object lhs)
+        {
+            Class clazz = lhs.getClass();
+            Operand operand = m_operand;
+            if ((operand == null) || (operand.m_class != clazz))
+            {
+                operand = new Operand(clazz, coerceType(clazz, m_value));
+                m_operand = operand;
+            }
+            return operand.m_value;
+        }
+    }
+
+    private static class Operand
+    {
+        private final Class m_class;
+        private final Object m_value;
+
+        Operand(Class clazz, Object value)
+        {
+            m_class = clazz;
+            m_value = value;
+        }
+    }
+
+    /**
+     * Converts a filter operand to the specified type.
+     * @param clazz the type of the attribute value.
+     * @param rhsUnknown the filter operand.
+     * @return the converted operand or <tt>Comparison.INVALID</tt> if the
+     *         operand cannot be converted.
+    **/
+    private static Object coerceType(Class clazz, Object rhsUnknown)
+    {
+        if (!(rhsUnknown instanceof String))
+        {
+            return Comparison.INVALID;
+        }
+        String rhsString = (String) rhsUnknown;
+
+        // If the LHS expects a string, then we can just return
+        // the RHS since it is a string.
+        if (clazz == String.class)
+        {
+            return rhsString;
+        }
+
+        try
+        {
+            // Handle the common attribute types directly, the result is
+            // the same as using their string constructors.
+            if (clazz == Version.class)
+            {
+                return new Version(rhsString);
+            }
+            // The Character class is a special case, since its constructor
+            // does not take a string, so handle it separately.
+            else if (clazz == Character.class)
+            {
+                return new Character(rhsString.charAt(0));
+            }
+
+            // Spec says we should trim number types.
+            if (Number.class.isAssignableFrom(clazz) || (clazz == Boolean.class))
+            {
+                rhsString = rhsString.trim();
+            }
+
+            if (clazz == Long.class)
+            {
+                return Long.valueOf(rhsString);
+            }
+            else if (clazz == Integer.class)
+            {
+                return Integer.valueOf(rhsString);
+            }
+            else if (clazz == Boolean.class)
+            {
+                return Boolean.valueOf(rhsString);
+            }
+            else if (clazz == Double.class)
+            {
+                return Double.valueOf(rhsString);
+            }
+            else if (clazz == Float.class)
+            {
+                return Float.valueOf(rhsString);
+            }
+            else if (clazz == Short.class)
+            {
+                return Short.valueOf(rhsString);
+            }
+            else if (clazz == Byte.class)
+            {
+                return Byte.valueOf(rhsString);
+            }
+            else if (clazz == BigInteger.class)
+            {
+                return new BigInteger(rhsString);
+            }
+            else if (clazz == BigDecimal.class)
+            {
+                return new BigDecimal(rhsString);
+            }
+
+            // Try to convert the RHS type to the LHS type by using
+            // the string constructor of the LHS class, if it has one.
+            Constructor ctor = m_secureAction.getConstructor(clazz, STRING_CLASS);
+            m_secureAction.setAccesssible(ctor);
+            return ctor.newInstance(new Object[] { rhsString });
+        }
+        catch (Exception ex)
+        {
+            return Comparison.INVALID;
+        }
+    }
+
+    private static String removeWhitespace(String s)
+    {
+        StringBuffer sb = new StringBuffer(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (!Character.isWhitespace(s.charAt(i)))
+            {
+                sb.append(s.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -40,6 +40,7 @@ public class SimpleFilter
     private final String m_name;
     private final Object m_value;
     private final int m_op;
+    private volatile FilterMatcher m_matcher = null;
 
     public SimpleFilter(String attr, Object value, int op)
     {
@@ -48,6 +49,22 @@ public class SimpleFilter
         m_op = op;
     }
 
+    /**
+     * Returns the compiled form of this filter, compiling it on first use.
+     * The filter must not be modified after it has been compiled.
+     * @return the matcher for this filter.
+    **/
+    FilterMatcher getMatcher()
+    {
+        FilterMatcher matcher = m_matcher;
+        if (matcher == null)
+        {
+            matcher = FilterMatcher.compile(this);
+            m_matcher = matcher;
+        }
+        return matcher;
+    }
+
     public String getName()
     {
         return m_name;
@@ -31,4 +31,5 @@ public interface Resolver
     Map<BundleRevision, List<ResolverWire>> resolve(ResolveContext rc);
     Map<BundleRevision, List<ResolverWire>> resolve(
         ResolveContext rc, BundleRevision revision, String pkgName);
+    void invalidate(BundleRevision revision);
 }
\ No newline at end of file
@@ -29,11 +29,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.felix.framework.BundleWiringImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ResolveContextImpl;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Statistics;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
@@ -42,6 +45,7 @@ import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 
 public class ResolverImpl implements Resolver
 {
@@ -54,9 +58,29 @@ public class ResolverImpl implements Resolver
     // These permutations represent backtracking on previous decisions.
     private final List<Candidates> m_importPermutations = new ArrayList<Candidates>();
 
+    // Holds the package spaces of resolved revisions, which do not change
+    // until the revisions are refreshed, so they can be reused by
+    // subsequent resolves.
+    private final Map<BundleRevision, ResolvedPackages> m_resolvedPkgCache =
+        new ConcurrentHashMap<BundleRevision, ResolvedPackages>();
+    private final AtomicLong m_reusedPkgSpaces;
+    private final AtomicLong m_computedPkgSpaces;
+
     public ResolverImpl(Logger logger)
+    {
+        this(logger, new Statistics());
+    }
+
+    public ResolverImpl(Logger logger, Statistics stats)
     {
         m_logger = logger;
+        m_reusedPkgSpaces = stats.getCounter("resolver.packagespaces.reused");
+        m_computedPkgSpaces = stats.getCounter("resolver.packagespaces.computed");
+    }
+
+    public void invalidate(BundleRevision revision)
+    {
+        m_resolvedPkgCache.remove(revision);
     }
 
     public Map<BundleRevision, List<ResolverWire>> resolve(ResolveContext rc)
@@ -284,6 +308,10 @@ public class ResolverImpl implements Resolver
             getDynamicImportCandidates(rc, revision, pkgName);
         if (allCandidates != null)
         {
+            // A successful dynamic import adds a wire to the revision's
+            // wiring, so its cached package space will be out of date.
+            invalidate(revision);
+
             Collection<BundleRevision> ondemandFragments = (rc instanceof ResolveContextImpl)
                 ? ((ResolveContextImpl) rc).getOndemandRevisions() : Collections.EMPTY_LIST;
 
@@ -509,6 +537,26 @@ public class ResolverImpl implements Resolver
         }
         cycle.add(revision);
 
+        // Reuse the package space of a resolved revision if a previous
+        // resolve already calculated it.
+        ResolvedPackages resolvedPkgs = getResolvedPackages(revision, allCandidates);
+        if (resolvedPkgs != null)
+        {
+            if (revisionPkgMap.put(revision, resolvedPkgs.m_packages)
+                != resolvedPkgs.m_packages)
+            {
+                m_reusedPkgSpaces.incrementAndGet();
+            }
+            // Providers must still be in the map, since uses constraints
+            // are merged from their package spaces.
+            for (BundleRevision provider : resolvedPkgs.m_providers)
+            {
+                calculatePackageSpaces(
+                    provider, allCandidates, revisionPkgMap, usesCycleMap, cycle);
+            }
+            return;
+        }
+
         // Make sure package space hasn't already been calculated.
         Packages revisionPkgs = revisionPkgMap.get(revision);
         if (revisionPkgs != null)
@@ -706,6 +754,47 @@ public class ResolverImpl implements Resolver
                 }
             }
         }
+
+        m_computedPkgSpaces.incrementAndGet();
+        // The package space of a resolved revision only consists of its
+        // exports and its existing wires, so it can be cached unless the
+        // revision is dynamically importing.
+        if ((revision.getWiring() != null) && !isDynamicImporting)
+        {
+            List<BundleRevision> providers = new ArrayList<BundleRevision>(caps.size());
+            for (BundleCapability cap : caps)
+            {
+                providers.add(cap.getRevision());
+            }
+            m_resolvedPkgCache.put(
+                revision,
+                new ResolvedPackages(revision.getWiring(), revisionPkgs, providers));
+        }
+    }
+
+    private ResolvedPackages getResolvedPackages(BundleRevision revision, Candidates allCandidates)
+    {
+        BundleWiring wiring = revision.getWiring();
+        if (wiring == null)
+        {
+            return null;
+        }
+        ResolvedPackages resolvedPkgs = m_resolvedPkgCache.get(revision);
+        if ((resolvedPkgs == null) || (resolvedPkgs.m_wiring != wiring))
+        {
+            return null;
+        }
+        // A revision with candidates for its dynamic imports is dynamically
+        // importing, so its package space must be calculated again.
+        for (BundleRequirement req
+            : Util.getDynamicRequirements(wiring.getRequirements(null)))
+        {
+            if (allCandidates.getCandidates(req) != null)
+            {
+                return null;
+            }
+        }
+        return resolvedPkgs;
     }
 
     private void mergeCandidatePackages(
@@ -1782,6 +1871,21 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    private static class ResolvedPackages
+    {
+        private final BundleWiring m_wiring;
+        private final Packages m_packages;
+        private final List<BundleRevision> m_providers;
+
+        ResolvedPackages(
+            BundleWiring wiring, Packages packages, List<BundleRevision> providers)
+        {
+            m_wiring = wiring;
+            m_packages = packages;
+            m_providers = providers;
+        }
+    }
+
     private static class Blame
     {
         public final BundleCapability m_cap;
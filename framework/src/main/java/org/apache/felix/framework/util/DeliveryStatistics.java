@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how many events were delivered to a single event listener and
+ * how long the listener took to process them. Events can be delivered to
+ * the same listener from several threads, so all values are updated
+ * atomically.
+**/
+public class DeliveryStatistics
+{
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_slowCount = new AtomicLong();
+    private final AtomicLong m_totalTime = new AtomicLong();
+    private final AtomicLong m_maxTime = new AtomicLong();
+
+    /**
+     * Records a single delivery.
+     * @param time the time the listener took in nanoseconds.
+     * @param slow whether the delivery exceeded the slow listener threshold.
+    **/
+    void record(long time, boolean slow)
+    {
+        m_count.incrementAndGet();
+        m_totalTime.addAndGet(time);
+        if (slow)
+        {
+            m_slowCount.incrementAndGet();
+        }
+        long max = m_maxTime.get();
+        while ((time > max) && !m_maxTime.compareAndSet(max, time))
+        {
+            max = m_maxTime.get();
+        }
+    }
+
+    /**
+     * Returns the number of events delivered to the listener.
+     * @return the number of deliveries.
+    **/
+    public long getCount()
+    {
+        return m_count.get();
+    }
+
+    /**
+     * Returns the number of deliveries that exceeded the slow listener
+     * threshold.
+     * @return the number of slow deliveries.
+    **/
+    public long getSlowCount()
+    {
+        return m_slowCount.get();
+    }
+
+    /**
+     * Returns the accumulated time the listener took to process its events.
+     * @return the total delivery time in nanoseconds.
+    **/
+    public long getTotalTime()
+    {
+        return m_totalTime.get();
+    }
+
+    /**
+     * Returns the longest time the listener took to process a single event.
+     * @return the maximum delivery time in nanoseconds.
+    **/
+    public long getMaxTime()
+    {
+        return m_maxTime.get();
+    }
+
+    public String toString()
+    {
+        return "[count=" + getCount() + ", slow=" + getSlowCount()
+            + ", total=" + getTotalTime() + "ns, max=" + getMaxTime() + "ns]";
+    }
+}
@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
@@ -64,57 +65,110 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
-
-    // A single thread is used to deliver events for all dispatchers.
-    private static Thread m_thread = null;
-    private final static String m_threadLock = new String("thread lock");
-    private static int m_references = 0;
-    private static volatile boolean m_stopping = false;
-
-    // List of requests.
-    private static final List<Request> m_requestList = new ArrayList<Request>();
-    // Pooled requests to avoid memory allocation.
-    private static final List<Request> m_requestPool = new ArrayList<Request>();
+    // Index over the current snapshot of service listeners, which is
+    // rebuilt lazily when the first event after a change is fired.
+    private volatile ServiceListenerIndex m_svcListenerIndex;
+
+    // Asynchronous events are delivered by a number of lanes, each with its
+    // own thread and queue. All listeners of a bundle are served by the same
+    // lane, so they see events in order while a slow listener only delays
+    // the bundles sharing its lane.
+    private final Lane[] m_lanes;
+    private final Object m_threadLock = new Object();
+    private int m_references = 0;
+    private volatile boolean m_stopping = true;
+
+    // Listeners taking longer than this number of nanoseconds to process
+    // an event are reported; zero disables the check.
+    private final long m_slowThreshold;
+    private final AtomicLong m_deliveries;
+    private final AtomicLong m_deliveryTime;
+    private final AtomicLong m_slowDeliveries;
 
     private static final SecureAction m_secureAction = new SecureAction();
 
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, Collections.EMPTY_MAP, new Statistics());
+    }
+
+    public EventDispatcher(
+        Logger logger, ServiceRegistry registry, Map configMap, Statistics stats)
     {
         m_logger = logger;
         m_registry = registry;
+
+        int lanes = (int) parseLong(
+            logger, configMap, FelixConstants.EVENT_DISPATCH_LANES_PROP, 1);
+        m_lanes = new Lane[Math.max(lanes, 1)];
+        for (int i = 0; i < m_lanes.length; i++)
+        {
+            m_lanes[i] = new Lane((m_lanes.length == 1)
+                ? "FelixDispatchQueue" : "FelixDispatchQueue-" + i);
+        }
+        m_slowThreshold = Math.max(0, parseLong(logger, configMap,
+            FelixConstants.EVENT_SLOW_LISTENER_THRESHOLD_PROP, 0)) * 1000000L;
+
+        m_deliveries = stats.getCounter("eventdispatcher.deliveries");
+        m_deliveryTime = stats.getCounter("eventdispatcher.deliverytime");
+        m_slowDeliveries = stats.getCounter("eventdispatcher.slowdeliveries");
+    }
+
+    private static long parseLong(
+        Logger logger, Map configMap, String name, long defaultValue)
+    {
+        String s = (String) configMap.get(name);
+        if (s != null)
+        {
+            try
+            {
+                return Long.parseLong(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.log(Logger.LOG_WARNING,
+                    "Invalid " + name + " value: " + s + ", using default.");
+            }
+        }
+        return defaultValue;
     }
 
     public void startDispatching()
     {
         synchronized (m_threadLock)
         {
-            // Start event dispatching thread if necessary.
-            if (m_thread == null || !m_thread.isAlive())
+            // Start event dispatching threads if necessary.
+            if (m_references == 0)
             {
+                // Wait for the threads of a previous run, which may still
+                // be delivering their remaining events.
+                waitForLanes();
                 m_stopping = false;
 
-                m_thread = new Thread(new Runnable() {
-                    public void run()
-                    {
-                        try
-                        {
-                            EventDispatcher.run();
-                        }
-                        finally
+                for (int i = 0; i < m_lanes.length; i++)
+                {
+                    final Lane lane = m_lanes[i];
+                    lane.m_thread = new Thread(new Runnable() {
+                        public void run()
                         {
-                            // Ensure we update state even if stopped by external cause
-                            // e.g. an Applet VM forceably killing threads
-                            synchronized (m_threadLock)
+                            try
                             {
-                                m_thread = null;
-                                m_stopping = false;
-                                m_references = 0;
-                                m_threadLock.notifyAll();
+                                lane.run();
+                            }
+                            finally
+                            {
+                                // Ensure we update state even if stopped by external cause
+                                // e.g. an Applet VM forceably killing threads
+                                synchronized (m_threadLock)
+                                {
+                                    lane.m_thread = null;
+                                    m_threadLock.notifyAll();
+                                }
                             }
                         }
-                    }
-                }, "FelixDispatchQueue");
-                m_thread.start();
+                    }, lane.m_name);
+                    lane.m_thread.start();
+                }
             }
 
             // reference counting and flags
@@ -127,7 +181,7 @@ public class EventDispatcher
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
-            if (m_thread == null || m_stopping)
+            if ((m_references == 0) || m_stopping)
             {
                 return;
             }
@@ -142,16 +196,32 @@ public class EventDispatcher
             m_stopping = true;
         }
 
-        // Signal dispatch thread.
-        synchronized (m_requestList)
+        // Signal dispatch threads.
+        for (int i = 0; i < m_lanes.length; i++)
         {
-            m_requestList.notify();
+            synchronized (m_lanes[i].m_requestList)
+            {
+                m_lanes[i].m_requestList.notify();
+            }
         }
 
         // Use separate lock for shutdown to prevent any chance of nested lock deadlock
         synchronized (m_threadLock)
         {
-            while (m_thread != null)
+            waitForLanes();
+            m_references = 0;
+        }
+    }
+
+    // Must be called while holding m_threadLock.
+    private void waitForLanes()
+    {
+        for (int i = 0; i < m_lanes.length; i++)
+        {
+            // A listener stopping the framework from a dispatch thread
+            // must not wait for itself.
+            while ((m_lanes[i].m_thread != null)
+                && (m_lanes[i].m_thread != Thread.currentThread()))
             {
                 try
                 {
@@ -416,14 +486,7 @@ public class EventDispatcher
                     {
                         // The spec says to update the filter in this case.
                         Filter oldFilter = info.getParsedFilter();
-                        ListenerInfo newInfo = new ListenerInfo(
-                            info.getBundle(),
-                            info.getBundleContext(),
-                            info.getListenerClass(),
-                            info.getListener(),
-                            filter,
-                            info.getSecurityContext(),
-                            info.isRemoved());
+                        ListenerInfo newInfo = new ListenerInfo(info, filter);
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
                         return oldFilter;
                     }
@@ -454,6 +517,28 @@ public class EventDispatcher
         return listeners;
     }
 
+    /**
+     * Returns the information of all registered framework, bundle and
+     * service listeners, which includes their delivery statistics.
+     * @return the information of all registered listeners.
+    **/
+    public Collection<ListenerInfo> getAllListeners()
+    {
+        List<ListenerInfo> listeners = new ArrayList<ListenerInfo>();
+        synchronized (this)
+        {
+            for (Map<BundleContext, List<ListenerInfo>> map : new Map[] {
+                m_fwkListeners, m_bndlListeners, m_syncBndlListeners, m_svcListeners })
+            {
+                for (List<ListenerInfo> infos : map.values())
+                {
+                    listeners.addAll(infos);
+                }
+            }
+        }
+        return listeners;
+    }
+
     public void fireFrameworkEvent(FrameworkEvent event)
     {
         // Take a snapshot of the listener array.
@@ -536,14 +621,36 @@ public class EventDispatcher
             listeners = m_svcListeners;
         }
 
-        // Use service registry hooks to filter target listeners.
-        listeners = filterListenersUsingHooks(event, felix, listeners);
+        if (isEmpty(m_registry.getHooks(org.osgi.framework.hooks.service.EventHook.class))
+            && isEmpty(m_registry.getHooks(
+                org.osgi.framework.hooks.service.EventListenerHook.class)))
+        {
+            // Without hooks, only listeners that can possibly be interested
+            // in the event need to have their filters evaluated.
+            ServiceListenerIndex index = m_svcListenerIndex;
+            if ((index == null) || !index.isFor(listeners))
+            {
+                index = new ServiceListenerIndex(listeners, index);
+                m_svcListenerIndex = index;
+            }
+            listeners = index.getCandidates(event, oldProps);
+        }
+        else
+        {
+            // Use service registry hooks to filter target listeners.
+            listeners = filterListenersUsingHooks(event, felix, listeners);
+        }
 
         // Fire all service events immediately on the calling thread.
         fireEventImmediately(
             this, Request.SERVICE_EVENT, listeners, event, oldProps);
     }
 
+    private static boolean isEmpty(Set hooks)
+    {
+        return (hooks == null) || hooks.isEmpty();
+    }
+
 // TODO: OSGi R4.3 - This is ugly and inefficient.
     private Map<BundleContext, List<ListenerInfo>> filterListenersUsingHooks(
         ServiceEvent event, Framework felix, Map<BundleContext, List<ListenerInfo>> listeners)
@@ -725,39 +832,42 @@ public class EventDispatcher
         EventObject event)
     {
         //TODO: should possibly check this within thread lock, seems to be ok though without
-        // If dispatch thread is stopped, then ignore dispatch request.
-        if (m_stopping || m_thread == null)
+        // If dispatch threads are stopped, then ignore dispatch request.
+        if (dispatcher.m_stopping || listeners.isEmpty())
+        {
+            return;
+        }
+
+        Lane[] lanes = dispatcher.m_lanes;
+        if (lanes.length == 1)
         {
+            lanes[0].add(new Request(dispatcher, type, listeners, event));
             return;
         }
 
-        // First get a request from the pool or create one if necessary.
-        Request req = null;
-        synchronized (m_requestPool)
+        // Partition the listeners by bundle, so that all listeners of a
+        // bundle are always served by the same lane.
+        Map<BundleContext, List<ListenerInfo>>[] partitions = new Map[lanes.length];
+        for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
         {
-            if (m_requestPool.size() > 0)
+            List<ListenerInfo> infos = entry.getValue();
+            if (infos.isEmpty())
             {
-                req = m_requestPool.remove(0);
+                continue;
             }
-            else
+            int idx = (int) (infos.get(0).getBundle().getBundleId() % lanes.length);
+            if (partitions[idx] == null)
             {
-                req = new Request();
+                partitions[idx] = new HashMap<BundleContext, List<ListenerInfo>>();
             }
+            partitions[idx].put(entry.getKey(), infos);
         }
-
-        // Initialize dispatch request.
-        req.m_dispatcher = dispatcher;
-        req.m_type = type;
-        req.m_listeners = listeners;
-        req.m_event = event;
-
-        // Lock the request list.
-        synchronized (m_requestList)
+        for (int i = 0; i < lanes.length; i++)
         {
-            // Add our request to the list.
-            m_requestList.add(req);
-            // Notify the dispatch thread that there is work to do.
-            m_requestList.notify();
+            if (partitions[i] != null)
+            {
+                lanes[i].add(new Request(dispatcher, type, partitions[i], event));
+            }
         }
     }
 
@@ -778,24 +888,27 @@ public class EventDispatcher
                     Filter filter = info.getParsedFilter();
                     Object acc = info.getSecurityContext();
 
+                    long start = System.nanoTime();
+                    boolean delivered = false;
                     try
                     {
                         if (type == Request.FRAMEWORK_EVENT)
                         {
-                            invokeFrameworkListenerCallback(bundle, l, event);
+                            delivered = invokeFrameworkListenerCallback(bundle, l, event);
                         }
                         else if (type == Request.BUNDLE_EVENT)
                         {
-                            invokeBundleListenerCallback(bundle, l, event);
+                            delivered = invokeBundleListenerCallback(bundle, l, event);
                         }
                         else if (type == Request.SERVICE_EVENT)
                         {
-                            invokeServiceListenerCallback(
+                            delivered = invokeServiceListenerCallback(
                                 bundle, l, filter, acc, event, oldProps);
                         }
                     }
                     catch (Throwable th)
                     {
+                        delivered = true;
                         if ((type != Request.FRAMEWORK_EVENT)
                             || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
                         {
@@ -806,12 +919,31 @@ public class EventDispatcher
                                 new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
                         }
                     }
+                    if (delivered)
+                    {
+                        dispatcher.recordDelivery(info, event, System.nanoTime() - start);
+                    }
                 }
             }
         }
     }
 
-    private static void invokeFrameworkListenerCallback(
+    private void recordDelivery(ListenerInfo info, EventObject event, long time)
+    {
+        boolean slow = (m_slowThreshold > 0) && (time > m_slowThreshold);
+        info.getDeliveryStatistics().record(time, slow);
+        m_deliveries.incrementAndGet();
+        m_deliveryTime.addAndGet(time);
+        if (slow)
+        {
+            m_slowDeliveries.incrementAndGet();
+            m_logger.log(info.getBundle(), Logger.LOG_WARNING,
+                "EventDispatcher: Listener " + info.getListener()
+                + " took " + (time / 1000000L) + " ms to process " + event + ".");
+        }
+    }
+
+    private static boolean invokeFrameworkListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
         // The spec says only active bundles receive asynchronous events,
@@ -834,10 +966,12 @@ public class EventDispatcher
             {
                 ((FrameworkListener) l).frameworkEvent((FrameworkEvent) event);
             }
+            return true;
         }
+        return false;
     }
 
-    private static void invokeBundleListenerCallback(
+    private static boolean invokeBundleListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
         // A bundle listener is either synchronous or asynchronous.
@@ -867,10 +1001,12 @@ public class EventDispatcher
             {
                 ((BundleListener) l).bundleChanged((BundleEvent) event);
             }
+            return true;
         }
+        return false;
     }
 
-    private static void invokeServiceListenerCallback(
+    private static boolean invokeServiceListenerCallback(
         Bundle bundle, final EventListener l, Filter filter, Object acc,
         final EventObject event, final Dictionary oldProps)
     {
@@ -880,7 +1016,7 @@ public class EventDispatcher
             (bundle.getState() != Bundle.STOPPING) &&
             (bundle.getState() != Bundle.ACTIVE))
         {
-            return;
+            return false;
         }
 
         // Check that the bundle has permission to get at least
@@ -931,6 +1067,7 @@ public class EventDispatcher
                     {
                         ((ServiceListener) l).serviceChanged((ServiceEvent) event);
                     }
+                    return true;
                 }
             }
             // We need to send an MODIFIED_ENDMATCH event if the listener
@@ -957,9 +1094,11 @@ public class EventDispatcher
                     {
                         ((ServiceListener) l).serviceChanged(se);
                     }
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     private static Map<BundleContext, List<ListenerInfo>> addListenerInfo(
@@ -1041,62 +1180,80 @@ public class EventDispatcher
     }
 
     /**
-     * This is the dispatching thread's main loop.
+     * A lane delivers asynchronous events in the order they were queued
+     * using its own thread.
     **/
-    private static void run()
+    private class Lane
     {
-        Request req = null;
-        while (true)
+        private final String m_name;
+        private final List<Request> m_requestList = new ArrayList<Request>();
+        private Thread m_thread = null;
+
+        Lane(String name)
         {
-            // Lock the request list so we can try to get a
-            // dispatch request from it.
+            m_name = name;
+        }
+
+        void add(Request req)
+        {
+            // Lock the request list.
             synchronized (m_requestList)
             {
-                // Wait while there are no requests to dispatch. If the
-                // dispatcher thread is supposed to stop, then let the
-                // dispatcher thread exit the loop and stop.
-                while (m_requestList.isEmpty() && !m_stopping)
+                // Add our request to the list.
+                m_requestList.add(req);
+                // Notify the dispatch thread that there is work to do.
+                m_requestList.notify();
+            }
+        }
+
+        /**
+         * This is the dispatching thread's main loop.
+        **/
+        void run()
+        {
+            Request req = null;
+            while (true)
+            {
+                // Lock the request list so we can try to get a
+                // dispatch request from it.
+                synchronized (m_requestList)
                 {
-                    // Wait until some signals us for work.
-                    try
+                    // Wait while there are no requests to dispatch. If the
+                    // dispatcher thread is supposed to stop, then let the
+                    // dispatcher thread exit the loop and stop.
+                    while (m_requestList.isEmpty() && !m_stopping)
                     {
-                        m_requestList.wait();
+                        // Wait until some signals us for work.
+                        try
+                        {
+                            m_requestList.wait();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // Not much we can do here except for keep waiting.
+                        }
                     }
-                    catch (InterruptedException ex)
+
+                    // If there are no events to dispatch and shutdown
+                    // has been called then exit, otherwise dispatch event.
+                    if (m_requestList.isEmpty() && m_stopping)
                     {
-                        // Not much we can do here except for keep waiting.
+                        return;
                     }
-                }
 
-                // If there are no events to dispatch and shutdown
-                // has been called then exit, otherwise dispatch event.
-                if (m_requestList.isEmpty() && m_stopping)
-                {
-                    return;
+                    // Get the dispatch request.
+                    req = m_requestList.remove(0);
                 }
 
-                // Get the dispatch request.
-                req = m_requestList.remove(0);
-            }
-
-            // Deliver event outside of synchronized block
-            // so that we don't block other requests from being
-            // queued during event processing.
-            // NOTE: We don't catch any exceptions here, because
-            // the invoked method shields us from exceptions by
-            // catching Throwables when it invokes callbacks.
-            fireEventImmediately(
-                req.m_dispatcher, req.m_type, req.m_listeners,
-                req.m_event, null);
-
-            // Put dispatch request in cache.
-            synchronized (m_requestPool)
-            {
-                req.m_dispatcher = null;
-                req.m_type = -1;
-                req.m_listeners = null;
-                req.m_event = null;
-                m_requestPool.add(req);
+                // Deliver event outside of synchronized block
+                // so that we don't block other requests from being
+                // queued during event processing.
+                // NOTE: We don't catch any exceptions here, because
+                // the invoked method shields us from exceptions by
+                // catching Throwables when it invokes callbacks.
+                fireEventImmediately(
+                    req.m_dispatcher, req.m_type, req.m_listeners,
+                    req.m_event, null);
             }
         }
     }
@@ -1107,9 +1264,19 @@ public class EventDispatcher
         public static final int BUNDLE_EVENT = 1;
         public static final int SERVICE_EVENT = 2;
 
-        public EventDispatcher m_dispatcher = null;
-        public int m_type = -1;
-        public Map<BundleContext, List<ListenerInfo>> m_listeners = null;
-        public EventObject m_event = null;
+        public final EventDispatcher m_dispatcher;
+        public final int m_type;
+        public final Map<BundleContext, List<ListenerInfo>> m_listeners;
+        public final EventObject m_event;
+
+        Request(
+            EventDispatcher dispatcher, int type,
+            Map<BundleContext, List<ListenerInfo>> listeners, EventObject event)
+        {
+            m_dispatcher = dispatcher;
+            m_type = type;
+            m_listeners = listeners;
+            m_event = event;
+        }
     }
-}
\ No newline at end of file
+}
@@ -51,6 +51,10 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
     String USE_LOCALURLS_PROP = "felix.jarurls";
+    String WIRING_MISS_CACHE_SIZE_PROP = "felix.wiring.misscache.size";
+    String EVENT_DISPATCH_LANES_PROP = "felix.eventdispatcher.lanes";
+    String EVENT_SLOW_LISTENER_THRESHOLD_PROP = "felix.eventdispatcher.slowlistener.threshold";
+    String STARTLEVEL_PARALLELISM_PROP = "felix.startlevel.parallelism";
 
     // Missing OSGi constant for resolution directive.
     String RESOLUTION_DYNAMIC = "dynamic";
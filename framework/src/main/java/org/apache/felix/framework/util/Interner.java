@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.osgi.framework.Version;
+
+/**
+ * Maps equal immutable values to a single canonical instance, so values
+ * that occur in many bundle manifests, such as package names, attribute
+ * names and versions, are only held once. Canonical instances are only
+ * weakly referenced, so values no longer used by any bundle are garbage
+ * collected; unlike <tt>String.intern()</tt> this does not permanently
+ * fill the VM's string pool.
+ * <p>
+ * The values are spread over a number of segments by their hash code and
+ * each segment is locked separately, so concurrent manifest parsing, for
+ * example by several framework instances, rarely contends for a lock.
+**/
+public class Interner<T>
+{
+    public static final Interner<String> STRINGS = new Interner<String>();
+    public static final Interner<Version> VERSIONS = new Interner<Version>();
+    public static final Interner<VersionRange> VERSION_RANGES =
+        new Interner<VersionRange>();
+
+    // Must be a power of two.
+    private static final int SEGMENTS = 32;
+
+    private final Map<T, WeakReference<T>>[] m_segments;
+
+    public Interner()
+    {
+        m_segments = new Map[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+        {
+            m_segments[i] = new WeakHashMap<T, WeakReference<T>>();
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the specified value.
+     * @param value the value to intern, may be <tt>null</tt>.
+     * @return the canonical instance equal to the value or <tt>null</tt>
+     *         if the value is <tt>null</tt>.
+    **/
+    public T intern(T value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        int hash = value.hashCode();
+        Map<T, WeakReference<T>> segment =
+            m_segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+        synchronized (segment)
+        {
+            WeakReference<T> ref = segment.get(value);
+            T canonical = (ref == null) ? null : ref.get();
+            if (canonical == null)
+            {
+                segment.put(value, new WeakReference<T>(value));
+                canonical = value;
+            }
+            return canonical;
+        }
+    }
+}
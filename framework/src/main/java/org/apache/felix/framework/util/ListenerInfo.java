@@ -34,6 +34,7 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
     private final Filter m_filter;
     private final Object m_acc;
     private final boolean m_removed;
+    private final DeliveryStatistics m_stats;
 
     public ListenerInfo(
         Bundle bundle, BundleContext context, Class listenerClass, EventListener listener,
@@ -49,6 +50,25 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         m_filter = filter;
         m_acc = acc;
         m_removed = removed;
+        m_stats = new DeliveryStatistics();
+    }
+
+    /**
+     * Creates a copy of the listener information with an updated filter,
+     * keeping the delivery statistics of the listener.
+     * @param info the listener information to copy.
+     * @param filter the new filter of the listener.
+    **/
+    public ListenerInfo(ListenerInfo info, Filter filter)
+    {
+        m_bundle = info.m_bundle;
+        m_context = info.m_context;
+        m_listenerClass = info.m_listenerClass;
+        m_listener = info.m_listener;
+        m_filter = filter;
+        m_acc = info.m_acc;
+        m_removed = info.m_removed;
+        m_stats = info.m_stats;
     }
 
     public ListenerInfo(ListenerInfo info, boolean removed)
@@ -60,6 +80,7 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         m_filter = info.m_filter;
         m_acc = info.m_acc;
         m_removed = removed;
+        m_stats = info.m_stats;
     }
 
     public Bundle getBundle()
@@ -106,6 +127,16 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         return m_removed;
     }
 
+    /**
+     * Returns the delivery statistics of the listener. The statistics are
+     * kept when the filter of a service listener is updated.
+     * @return the delivery statistics of the listener.
+    **/
+    public DeliveryStatistics getDeliveryStatistics()
+    {
+        return m_stats;
+    }
+
     @Override
     public boolean equals(Object obj)
     {
@@ -0,0 +1,333 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>
+ * An immutable index over a snapshot of service listeners that is used to
+ * determine which listeners can possibly be interested in a service event.
+ * A listener whose filter requires an attribute to equal a string, either
+ * directly or as an operand of a top-level AND filter, is indexed by that
+ * attribute and value; <tt>objectClass</tt> is preferred over other
+ * attributes. All other listeners are always candidates.
+ * </p>
+ * <p>
+ * The index only narrows the set of listeners, it never decides a match:
+ * the filters of all candidates are still evaluated during delivery. For
+ * this reason, property values that are not strings make all listeners
+ * indexed by the respective attribute candidates.
+ * </p>
+**/
+class ServiceListenerIndex
+{
+    private static final String OBJECTCLASS = Constants.OBJECTCLASS.toLowerCase();
+    private static final Comparator<Candidate> ORDINAL_COMPARATOR =
+        new Comparator<Candidate>() {
+            public int compare(Candidate c1, Candidate c2)
+            {
+                return (c1.m_ordinal < c2.m_ordinal)
+                    ? -1 : ((c1.m_ordinal == c2.m_ordinal) ? 0 : 1);
+            }
+        };
+
+    private final Map<BundleContext, List<ListenerInfo>> m_listeners;
+    // The index key of each listener, or null if it is not indexed.
+    private final Map<ListenerInfo, String[]> m_keys =
+        new IdentityHashMap<ListenerInfo, String[]>();
+    // Maps lower case attribute names to values to listeners.
+    private final Map<String, Map<String, List<Candidate>>> m_index =
+        new HashMap<String, Map<String, List<Candidate>>>();
+    // Maps lower case attribute names to all listeners indexed by them.
+    private final Map<String, List<Candidate>> m_attrCandidates =
+        new HashMap<String, List<Candidate>>();
+    private final List<Candidate> m_unindexed = new ArrayList<Candidate>();
+
+    /**
+     * Creates an index for the specified listeners.
+     * @param listeners the snapshot of service listeners to index.
+     * @param previous the index of a previous snapshot whose index keys
+     *        are reused to avoid parsing filters again, or <tt>null</tt>.
+    **/
+    ServiceListenerIndex(
+        Map<BundleContext, List<ListenerInfo>> listeners, ServiceListenerIndex previous)
+    {
+        m_listeners = listeners;
+        int ordinal = 0;
+        for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
+        {
+            for (ListenerInfo info : entry.getValue())
+            {
+                String[] key;
+                if ((previous != null) && previous.m_keys.containsKey(info))
+                {
+                    key = previous.m_keys.get(info);
+                }
+                else
+                {
+                    key = getKey(info.getParsedFilter());
+                }
+                m_keys.put(info, key);
+
+                Candidate c = new Candidate(entry.getKey(), info, ordinal++);
+                if (key == null)
+                {
+                    m_unindexed.add(c);
+                }
+                else
+                {
+                    Map<String, List<Candidate>> values = m_index.get(key[0]);
+                    if (values == null)
+                    {
+                        values = new HashMap<String, List<Candidate>>();
+                        m_index.put(key[0], values);
+                        m_attrCandidates.put(key[0], new ArrayList<Candidate>());
+                    }
+                    List<Candidate> candidates = values.get(key[1]);
+                    if (candidates == null)
+                    {
+                        candidates = new ArrayList<Candidate>(1);
+                        values.put(key[1], candidates);
+                    }
+                    candidates.add(c);
+                    m_attrCandidates.get(key[0]).add(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether this index was created for the specified snapshot.
+     * @param listeners the snapshot of service listeners.
+     * @return <tt>true</tt> if the index can be used for the snapshot.
+    **/
+    boolean isFor(Map<BundleContext, List<ListenerInfo>> listeners)
+    {
+        return m_listeners == listeners;
+    }
+
+    /**
+     * Returns the listeners that can possibly be interested in the specified
+     * event, grouped by bundle context like the snapshot the index was
+     * created for. For <tt>MODIFIED</tt> events, listeners matching the old
+     * properties are included so they can receive
+     * <tt>MODIFIED_ENDMATCH</tt> events.
+     * @param event the service event.
+     * @param oldProps the old service properties of a <tt>MODIFIED</tt>
+     *        event or <tt>null</tt>.
+     * @return the candidate listeners.
+    **/
+    Map<BundleContext, List<ListenerInfo>> getCandidates(
+        ServiceEvent event, Dictionary oldProps)
+    {
+        if (m_index.isEmpty())
+        {
+            return m_listeners;
+        }
+
+        ServiceReference ref = event.getServiceReference();
+        List<Candidate> candidates = new ArrayList<Candidate>(m_unindexed);
+        for (Entry<String, Map<String, List<Candidate>>> entry : m_index.entrySet())
+        {
+            addCandidates(candidates, entry.getKey(), entry.getValue(),
+                ref.getProperty(entry.getKey()));
+            if ((oldProps != null) && (event.getType() == ServiceEvent.MODIFIED))
+            {
+                addCandidates(candidates, entry.getKey(), entry.getValue(),
+                    getProperty(oldProps, entry.getKey()));
+            }
+        }
+
+        // Restore the original order and remove duplicates, which result
+        // from old and new properties or from repeated property values.
+        Collections.sort(candidates, ORDINAL_COMPARATOR);
+        Map<BundleContext, List<ListenerInfo>> result =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        Candidate last = null;
+        for (Candidate c : candidates)
+        {
+            if (c != last)
+            {
+                List<ListenerInfo> infos = result.get(c.m_context);
+                if (infos == null)
+                {
+                    infos = new ArrayList<ListenerInfo>();
+                    result.put(c.m_context, infos);
+                }
+                infos.add(c.m_info);
+                last = c;
+            }
+        }
+        return result;
+    }
+
+    private void addCandidates(
+        List<Candidate> candidates, String attr,
+        Map<String, List<Candidate>> values, Object value)
+    {
+        if (value == null)
+        {
+            return;
+        }
+        else if (value instanceof String)
+        {
+            addAll(candidates, values.get(value));
+            return;
+        }
+        else if (value instanceof String[])
+        {
+            String[] array = (String[]) value;
+            for (int i = 0; i < array.length; i++)
+            {
+                addAll(candidates, values.get(array[i]));
+            }
+            return;
+        }
+        else if (value instanceof Collection)
+        {
+            boolean strings = true;
+            for (Object o : (Collection) value)
+            {
+                strings = strings && (o instanceof String);
+            }
+            if (strings)
+            {
+                for (Object o : (Collection) value)
+                {
+                    addAll(candidates, values.get(o));
+                }
+                return;
+            }
+        }
+        // Other types may match string values after type coercion.
+        addAll(candidates, m_attrCandidates.get(attr));
+    }
+
+    private static void addAll(List<Candidate> candidates, List<Candidate> toAdd)
+    {
+        if (toAdd != null)
+        {
+            candidates.addAll(toAdd);
+        }
+    }
+
+    private static Object getProperty(Dictionary props, String attr)
+    {
+        Object value = props.get(attr);
+        if (value == null)
+        {
+            // Service property names are case insensitive.
+            for (Enumeration e = props.keys(); e.hasMoreElements(); )
+            {
+                Object key = e.nextElement();
+                if ((key instanceof String) && ((String) key).equalsIgnoreCase(attr))
+                {
+                    return props.get(key);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the attribute and value a listener is indexed by.
+     * @param filter the filter of the listener.
+     * @return the lower case attribute name and the value or <tt>null</tt>
+     *         if the listener cannot be indexed.
+    **/
+    static String[] getKey(Filter filter)
+    {
+        if (filter == null)
+        {
+            return null;
+        }
+
+        SimpleFilter sf;
+        try
+        {
+            sf = SimpleFilter.parse(filter.toString());
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+
+        if (sf.getOperation() == SimpleFilter.AND)
+        {
+            String[] key = null;
+            for (SimpleFilter operand : (List<SimpleFilter>) sf.getValue())
+            {
+                String[] k = getKeyFromComparison(operand);
+                if ((k != null) && ((key == null) || k[0].equals(OBJECTCLASS)))
+                {
+                    key = k;
+                }
+            }
+            return key;
+        }
+        return getKeyFromComparison(sf);
+    }
+
+    private static String[] getKeyFromComparison(SimpleFilter sf)
+    {
+        if ((sf.getOperation() == SimpleFilter.EQ) && (sf.getValue() instanceof String))
+        {
+            String value = (String) sf.getValue();
+            // Be conservative about values where parsers may differ.
+            if ((value.length() > 0)
+                && !Character.isWhitespace(value.charAt(0))
+                && !Character.isWhitespace(value.charAt(value.length() - 1)))
+            {
+                return new String[] { sf.getName().toLowerCase(), value };
+            }
+        }
+        return null;
+    }
+
+    private static class Candidate
+    {
+        private final BundleContext m_context;
+        private final ListenerInfo m_info;
+        private final int m_ordinal;
+
+        Candidate(BundleContext context, ListenerInfo info, int ordinal)
+        {
+            m_context = context;
+            m_info = info;
+            m_ordinal = ordinal;
+        }
+    }
+}
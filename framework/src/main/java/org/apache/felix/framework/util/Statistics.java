@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the named counters a framework instance maintains about its
+ * internal operation. Counters are exposed as read-only framework
+ * properties by prefixing their name with {@link #PROPERTY_PREFIX}, so
+ * they can be watched via <tt>BundleContext.getProperty()</tt> without
+ * requiring any additional API.
+**/
+public class Statistics
+{
+    public static final String PROPERTY_PREFIX = "felix.statistics.";
+
+    private final ConcurrentHashMap<String, AtomicLong> m_counters =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Returns the counter with the specified name, creating it if it
+     * does not exist yet. Callers on hot paths should look up the
+     * counter once and keep a reference to it.
+     * @param name the name of the counter without the property prefix.
+     * @return the counter.
+    **/
+    public AtomicLong getCounter(String name)
+    {
+        AtomicLong counter = m_counters.get(name);
+        if (counter == null)
+        {
+            counter = new AtomicLong();
+            AtomicLong existing = m_counters.putIfAbsent(name, counter);
+            counter = (existing != null) ? existing : counter;
+        }
+        return counter;
+    }
+
+    /**
+     * Removes the counter with the specified name, if it exists. This is
+     * used for counters kept per bundle once the bundle is uninstalled.
+     * @param name the name of the counter without the property prefix.
+    **/
+    public void removeCounter(String name)
+    {
+        m_counters.remove(name);
+    }
+
+    /**
+     * Returns the current value of the counter associated with the
+     * specified framework property.
+     * @param key the framework property name including the prefix.
+     * @return the counter value as a string or <tt>null</tt> if the
+     *         property does not refer to an existing counter.
+    **/
+    public String getProperty(String key)
+    {
+        if (key.startsWith(PROPERTY_PREFIX))
+        {
+            AtomicLong counter = m_counters.get(key.substring(PROPERTY_PREFIX.length()));
+            if (counter != null)
+            {
+                return Long.toString(counter.get());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a sorted snapshot of all counter values.
+     * @return a map of counter names to their current values.
+    **/
+    public Map<String, Long> getSnapshot()
+    {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : m_counters.entrySet())
+        {
+            snapshot.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return snapshot;
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.osgi.framework.BundleException;
@@ -50,13 +51,35 @@ public class ManifestParser
     private volatile List<BundleRequirement> m_requirements;
     private volatile List<R4LibraryClause> m_libraryClauses;
     private volatile boolean m_libraryHeadersOptional = false;
+    private final ParsedHeaderCache m_headerCache;
 
     public ManifestParser(Logger logger, Map configMap, BundleRevision owner, Map headerMap)
         throws BundleException
+    {
+        this(logger, configMap, owner, headerMap, null);
+    }
+
+    /**
+     * Parses the specified manifest headers, taking the normalized clauses
+     * of the package and capability headers from the specified cache if the
+     * cache holds them for the same header values and normalization context.
+     * Newly normalized headers are added to the cache.
+     * @param logger the logger.
+     * @param configMap the framework configuration.
+     * @param owner the revision declaring the headers.
+     * @param headerMap the manifest headers.
+     * @param headerCache the cache of normalized headers or <tt>null</tt>.
+     * @throws BundleException if the headers are not valid.
+    **/
+    public ManifestParser(
+        Logger logger, Map configMap, BundleRevision owner, Map headerMap,
+        ParsedHeaderCache headerCache)
+        throws BundleException
     {
         m_logger = logger;
         m_configMap = configMap;
         m_headerMap = headerMap;
+        m_headerCache = headerCache;
 
         // Verify that only manifest version 2 is specified.
         String manifestVersion = getManifestVersion(m_headerMap);
@@ -78,7 +101,7 @@ public class ManifestParser
         {
             try
             {
-                m_bundleVersion = Version.parseVersion(
+                m_bundleVersion = parseVersion(
                     (String) headerMap.get(Constants.BUNDLE_VERSION));
             }
             catch (RuntimeException ex)
@@ -149,18 +172,27 @@ public class ManifestParser
         // Parse Require-Bundle
         //
 
-        List<ParsedHeaderClause> rbClauses =
-            parseStandardHeader((String) headerMap.get(Constants.REQUIRE_BUNDLE));
-        rbClauses = normalizeRequireClauses(m_logger, rbClauses, getManifestVersion());
+        String mv = getManifestVersion();
+        List<ParsedHeaderClause> rbClauses = getCachedClauses(Constants.REQUIRE_BUNDLE, mv);
+        if (rbClauses == null)
+        {
+            rbClauses = parseHeader(Constants.REQUIRE_BUNDLE);
+            rbClauses = normalizeRequireClauses(m_logger, rbClauses, mv);
+            putCachedClauses(Constants.REQUIRE_BUNDLE, mv, rbClauses);
+        }
         List<BundleRequirementImpl> rbReqs = convertRequires(rbClauses, owner);
 
         //
         // Parse Import-Package.
         //
 
-        List<ParsedHeaderClause> importClauses =
-            parseStandardHeader((String) headerMap.get(Constants.IMPORT_PACKAGE));
-        importClauses = normalizeImportClauses(m_logger, importClauses, getManifestVersion());
+        List<ParsedHeaderClause> importClauses = getCachedClauses(Constants.IMPORT_PACKAGE, mv);
+        if (importClauses == null)
+        {
+            importClauses = parseHeader(Constants.IMPORT_PACKAGE);
+            importClauses = normalizeImportClauses(m_logger, importClauses, mv);
+            putCachedClauses(Constants.IMPORT_PACKAGE, mv, importClauses);
+        }
         List<BundleRequirement> importReqs = convertImports(importClauses, owner);
 
         //
@@ -168,28 +200,44 @@ public class ManifestParser
         //
 
         List<ParsedHeaderClause> dynamicClauses =
-            parseStandardHeader((String) headerMap.get(Constants.DYNAMICIMPORT_PACKAGE));
-        dynamicClauses = normalizeDynamicImportClauses(m_logger, dynamicClauses, getManifestVersion());
+            getCachedClauses(Constants.DYNAMICIMPORT_PACKAGE, mv);
+        if (dynamicClauses == null)
+        {
+            dynamicClauses = parseHeader(Constants.DYNAMICIMPORT_PACKAGE);
+            dynamicClauses = normalizeDynamicImportClauses(m_logger, dynamicClauses, mv);
+            putCachedClauses(Constants.DYNAMICIMPORT_PACKAGE, mv, dynamicClauses);
+        }
         List<BundleRequirement> dynamicReqs = convertImports(dynamicClauses, owner);
 
         //
         // Parse Require-Capability.
         //
 
-        List<ParsedHeaderClause> requireClauses =
-            parseStandardHeader((String) headerMap.get(Constants.REQUIRE_CAPABILITY));
-        importClauses = normalizeRequireCapabilityClauses(
-            m_logger, requireClauses, getManifestVersion());
+        importClauses = getCachedClauses(Constants.REQUIRE_CAPABILITY, mv);
+        if (importClauses == null)
+        {
+            List<ParsedHeaderClause> requireClauses = parseHeader(Constants.REQUIRE_CAPABILITY);
+            importClauses = normalizeRequireCapabilityClauses(
+                m_logger, requireClauses, mv);
+            putCachedClauses(Constants.REQUIRE_CAPABILITY, mv, importClauses);
+        }
         List<BundleRequirement> requireReqs = convertRequireCapabilities(importClauses, owner);
 
         //
         // Parse Export-Package.
         //
 
+        // Exports are normalized with the bundle symbolic name and version.
+        String exportContext = mv + ";" + m_bundleSymbolicName + ";" + m_bundleVersion;
         List<ParsedHeaderClause> exportClauses =
-            parseStandardHeader((String) headerMap.get(Constants.EXPORT_PACKAGE));
-        exportClauses = normalizeExportClauses(logger, exportClauses,
-            getManifestVersion(), m_bundleSymbolicName, m_bundleVersion);
+            getCachedClauses(Constants.EXPORT_PACKAGE, exportContext);
+        if (exportClauses == null)
+        {
+            exportClauses = parseHeader(Constants.EXPORT_PACKAGE);
+            exportClauses = normalizeExportClauses(logger, exportClauses,
+                mv, m_bundleSymbolicName, m_bundleVersion);
+            putCachedClauses(Constants.EXPORT_PACKAGE, exportContext, exportClauses);
+        }
         List<BundleCapability> exportCaps = convertExports(exportClauses, owner);
 
         //
@@ -197,9 +245,14 @@ public class ManifestParser
         //
 
         List<ParsedHeaderClause> provideClauses =
-            parseStandardHeader((String) headerMap.get(Constants.PROVIDE_CAPABILITY));
-        exportClauses = normalizeProvideCapabilityClauses(
-            logger, provideClauses, getManifestVersion());
+            getCachedClauses(Constants.PROVIDE_CAPABILITY, mv);
+        if (provideClauses == null)
+        {
+            provideClauses = parseHeader(Constants.PROVIDE_CAPABILITY);
+            provideClauses = normalizeProvideCapabilityClauses(
+                logger, provideClauses, mv);
+            putCachedClauses(Constants.PROVIDE_CAPABILITY, mv, provideClauses);
+        }
         List<BundleCapability> provideCaps = convertProvideCapabilities(provideClauses, owner);
 
         //
@@ -298,7 +351,7 @@ public class ManifestParser
                 v = (v == null) ? sv : v;
                 clause.m_attrs.put(
                     Constants.VERSION_ATTRIBUTE,
-                    VersionRange.parse(v.toString()));
+                    parseVersionRange(v.toString()));
             }
 
             // If bundle version is specified, then convert its type to VersionRange.
@@ -307,7 +360,7 @@ public class ManifestParser
             {
                 clause.m_attrs.put(
                     Constants.BUNDLE_VERSION_ATTRIBUTE,
-                    VersionRange.parse(v.toString()));
+                    parseVersionRange(v.toString()));
             }
 
             // Verify java.* is not imported, nor any duplicate imports.
@@ -491,7 +544,7 @@ public class ManifestParser
                 v = (v == null) ? sv : v;
                 clause.m_attrs.put(
                     Constants.VERSION_ATTRIBUTE,
-                    VersionRange.parse(v.toString()));
+                    parseVersionRange(v.toString()));
             }
 
             // If bundle version is specified, then convert its type to VersionRange.
@@ -500,7 +553,7 @@ public class ManifestParser
             {
                 clause.m_attrs.put(
                     Constants.BUNDLE_VERSION_ATTRIBUTE,
-                    VersionRange.parse(v.toString()));
+                    parseVersionRange(v.toString()));
             }
 
             // Dynamic imports can have duplicates, so verify that java.*
@@ -599,7 +652,8 @@ public class ManifestParser
                     {
                         clause.m_attrs.put(
                             entry.getKey(),
-                            new Version(clause.m_attrs.get(entry.getKey()).toString().trim()));
+                            Interner.VERSIONS.intern(new Version(
+                                clause.m_attrs.get(entry.getKey()).toString().trim())));
                     }
                     else if (type.equals("Long"))
                     {
@@ -642,7 +696,7 @@ public class ManifestParser
                             }
                             else if (listType.equals("Version"))
                             {
-                                values.add(new Version(token.trim()));
+                                values.add(Interner.VERSIONS.intern(new Version(token.trim())));
                             }
                             else if (listType.equals("Long"))
                             {
@@ -760,7 +814,7 @@ public class ManifestParser
                 v = (v == null) ? sv : v;
                 clause.m_attrs.put(
                     Constants.VERSION_ATTRIBUTE,
-                    Version.parseVersion(v.toString()));
+                    parseVersion(v.toString()));
             }
 
             // If this is an R4 bundle, then make sure it doesn't specify
@@ -1154,7 +1208,7 @@ public class ManifestParser
                 {
                     attrs.put(
                         Constants.VERSION_ATTRIBUTE,
-                        VersionRange.parse(version.toString()));
+                        parseVersionRange(version.toString()));
                 }
 
                 List<String> paths = new ArrayList();
@@ -1255,7 +1309,7 @@ public class ManifestParser
             {
                 try
                 {
-                    bundleVersion = Version.parseVersion(
+                    bundleVersion = parseVersion(
                         (String) headerMap.get(Constants.BUNDLE_VERSION));
                 }
                 catch (RuntimeException ex)
@@ -1319,7 +1373,7 @@ public class ManifestParser
                 {
                     clauses.get(0).m_attrs.put(
                         Constants.BUNDLE_VERSION_ATTRIBUTE,
-                        VersionRange.parse(value.toString()));
+                        parseVersionRange(value.toString()));
                 }
 
                 // Note that we use a linked hash map here to ensure the
@@ -1406,7 +1460,7 @@ public class ManifestParser
                 {
                     clause.m_attrs.put(
                         Constants.BUNDLE_VERSION_ATTRIBUTE,
-                        VersionRange.parse(value.toString()));
+                        parseVersionRange(value.toString()));
                 }
             }
         }
@@ -1556,6 +1610,44 @@ public class ManifestParser
         }
     }
 
+    private List<ParsedHeaderClause> parseHeader(String name)
+    {
+        return parseStandardHeader((String) m_headerMap.get(name));
+    }
+
+    private List<ParsedHeaderClause> getCachedClauses(String name, String context)
+    {
+        return (m_headerCache == null)
+            ? null
+            : m_headerCache.getClauses(name, (String) m_headerMap.get(name), context);
+    }
+
+    private void putCachedClauses(
+        String name, String context, List<ParsedHeaderClause> clauses)
+    {
+        // Invalid headers throw an exception before and are never cached.
+        if (m_headerCache != null)
+        {
+            m_headerCache.putClauses(
+                name, (String) m_headerMap.get(name), context, clauses);
+        }
+    }
+
+    static String intern(String s)
+    {
+        return Interner.STRINGS.intern(s);
+    }
+
+    private static Version parseVersion(String s)
+    {
+        return Interner.VERSIONS.intern(Version.parseVersion(s));
+    }
+
+    private static VersionRange parseVersionRange(String s)
+    {
+        return Interner.VERSION_RANGES.intern(VersionRange.parse(s));
+    }
+
     private static final char EOF = (char) -1;
 
     private static char charAt(int pos, String headers, int length)
@@ -1575,7 +1667,7 @@ public class ManifestParser
     private static final int VALUE = 16;
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    private static List<ParsedHeaderClause> parseStandardHeader(String header)
+    static List<ParsedHeaderClause> parseStandardHeader(String header)
     {
         List<ParsedHeaderClause> clauses = new ArrayList<ParsedHeaderClause>();
         if (header == null)
@@ -1614,7 +1706,7 @@ public class ManifestParser
                     {
                         case ':':
                         case '=':
-                            key = header.substring(startPosition, currentPosition).trim();
+                            key = intern(header.substring(startPosition, currentPosition).trim());
                             startPosition = currentPosition + 1;
                             targetMap = clause.m_attrs;
                             state = currentChar == ':' ? DIRECTIVE_OR_TYPEDATTRIBUTE : ARGUMENT;
@@ -1622,7 +1714,8 @@ public class ManifestParser
                         case EOF:
                         case ',':
                         case ';':
-                            clause.m_paths.add(header.substring(startPosition, currentPosition).trim());
+                            clause.m_paths.add(
+                                intern(header.substring(startPosition, currentPosition).trim()));
                             state = currentChar == ',' ? CLAUSE_START : PARAMETER_START;
                             break;
                         default:
@@ -1636,7 +1729,8 @@ public class ManifestParser
                         case '=':
                             if (startPosition != currentPosition)
                             {
-                                clause.m_types.put(key, header.substring(startPosition, currentPosition).trim());
+                                clause.m_types.put(key,
+                                    intern(header.substring(startPosition, currentPosition).trim()));
                             }
                             else
                             {
@@ -1695,7 +1789,7 @@ public class ManifestParser
                                     {
                                         value = value.substring(1, value.length() - 1);
                                     }
-                                    if (targetMap.put(key, value) != null)
+                                    if (targetMap.put(key, intern(value)) != null)
                                     {
                                         throw new IllegalArgumentException(
                                                 "Duplicate '" + key + "' in: " + header);
@@ -0,0 +1,511 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+import org.apache.felix.framework.util.Interner;
+import org.apache.felix.framework.util.SecureAction;
+import org.apache.felix.framework.util.VersionRange;
+import org.osgi.framework.Version;
+
+/**
+ * <p>
+ * This class holds the normalized clauses of the manifest headers of a
+ * bundle revision and can persist them to a file in the bundle cache, so
+ * headers do not have to be tokenized and normalized again after a framework
+ * restart. Normalized clauses hold typed attribute values, such as versions
+ * and version ranges, which are persisted in binary form and therefore need
+ * not be parsed again either. Clauses are stored together with the header
+ * value and the normalization context (the manifest version and, for
+ * exports, the bundle symbolic name and version) they were created from
+ * and are only used if both are still the same, so a stale or foreign cache
+ * file never changes the result. A cache file with an invalid checksum is
+ * ignored.
+ * </p>
+ * <p>
+ * The capabilities and requirements are still created from the clauses for
+ * each revision, since they refer to the revision. All strings and versions
+ * of the cached clauses are interned, so equal values are shared by all
+ * bundle revisions. The strings are stored in a table, so each distinct
+ * string is decoded and interned only once per file. This class is not
+ * thread safe; an instance is only meant to be used while creating a single
+ * revision.
+ * </p>
+**/
+public class ParsedHeaderCache
+{
+    public static final String CACHE_FILE = "manifest.parsed";
+
+    private static final SecureAction m_secureAction = new SecureAction();
+    private static final int BUFSIZE = 4096;
+    private static final int MAGIC = 0x46454D50;
+    private static final int VERSION = 2;
+
+    // The types of attribute values.
+    private static final byte STRING_VALUE = 0;
+    private static final byte VERSION_VALUE = 1;
+    private static final byte VERSION_RANGE_VALUE = 2;
+    private static final byte LONG_VALUE = 3;
+    private static final byte DOUBLE_VALUE = 4;
+    private static final byte LIST_VALUE = 5;
+
+    // Maps header names to the header value and its normalized clauses.
+    private final Map<String, CachedHeader> m_headers =
+        new LinkedHashMap<String, CachedHeader>();
+    private boolean m_modified = false;
+
+    /**
+     * Returns the normalized clauses of the specified header if the cache
+     * holds them for the same header value and normalization context.
+     * @param name the name of the header.
+     * @param header the value of the header, may be <tt>null</tt>.
+     * @param context the values the normalization depends on.
+     * @return a modifiable copy of the normalized clauses or <tt>null</tt>
+     *         if they have to be parsed.
+    **/
+    List<ParsedHeaderClause> getClauses(String name, String header, String context)
+    {
+        CachedHeader cached = m_headers.get(name);
+        if ((header == null) || (cached == null)
+            || !cached.m_header.equals(header) || !cached.m_context.equals(context))
+        {
+            return null;
+        }
+        return copy(cached.m_clauses);
+    }
+
+    /**
+     * Adds the normalized clauses of the specified header to the cache.
+     * @param name the name of the header.
+     * @param header the value of the header, may be <tt>null</tt>, in
+     *        which case the header is removed from the cache.
+     * @param context the values the normalization depends on.
+     * @param clauses the normalized clauses, which are copied.
+    **/
+    void putClauses(
+        String name, String header, String context, List<ParsedHeaderClause> clauses)
+    {
+        if (header == null)
+        {
+            if (m_headers.remove(name) != null)
+            {
+                m_modified = true;
+            }
+            return;
+        }
+        m_headers.put(name, new CachedHeader(header, context, copy(clauses)));
+        m_modified = true;
+    }
+
+    /**
+     * Determines whether headers were added to or removed from the cache
+     * since it was created or loaded.
+     * @return <tt>true</tt> if the cache should be saved.
+    **/
+    public boolean isModified()
+    {
+        return m_modified;
+    }
+
+    /**
+     * Loads the cache from the specified file.
+     * @param file the cache file.
+     * @return the loaded cache or an empty cache if the file does not exist
+     *         or is not valid.
+    **/
+    public static ParsedHeaderCache load(File file)
+    {
+        ParsedHeaderCache cache = new ParsedHeaderCache();
+        if (!m_secureAction.fileExists(file))
+        {
+            return cache;
+        }
+
+        InputStream is = null;
+        try
+        {
+            is = new BufferedInputStream(m_secureAction.getFileInputStream(file), BUFSIZE);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[BUFSIZE];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                baos.write(buf, 0, n);
+            }
+            byte[] bytes = baos.toByteArray();
+            if (bytes.length < 8)
+            {
+                return cache;
+            }
+
+            // The last eight bytes are the checksum of everything before.
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getLong(bytes.length - 8) != crc.getValue())
+            {
+                return cache;
+            }
+
+            // Decoded from a buffer rather than a data input stream, since
+            // each byte read from a byte array input stream takes a lock.
+            in.limit(bytes.length - 8);
+            if ((in.getInt() != MAGIC) || (in.getInt() != VERSION))
+            {
+                return cache;
+            }
+            String[] strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++)
+            {
+                strings[i] = ManifestParser.intern(readString(in));
+            }
+            Map<String, CachedHeader> headers = new LinkedHashMap<String, CachedHeader>();
+            for (int headerCount = in.getInt(); headerCount > 0; headerCount--)
+            {
+                String name = strings[in.getInt()];
+                String header = readString(in);
+                String context = readString(in);
+                List<ParsedHeaderClause> clauses = new ArrayList<ParsedHeaderClause>();
+                for (int clauseCount = in.getInt(); clauseCount > 0; clauseCount--)
+                {
+                    List<String> paths = new ArrayList<String>();
+                    for (int pathCount = in.getInt(); pathCount > 0; pathCount--)
+                    {
+                        paths.add(strings[in.getInt()]);
+                    }
+                    Map<String, String> dirs = new HashMap<String, String>();
+                    for (int count = in.getInt(); count > 0; count--)
+                    {
+                        String key = strings[in.getInt()];
+                        dirs.put(key, strings[in.getInt()]);
+                    }
+                    Map<String, Object> attrs = new HashMap<String, Object>();
+                    for (int count = in.getInt(); count > 0; count--)
+                    {
+                        String key = strings[in.getInt()];
+                        attrs.put(key, readValue(in, strings));
+                    }
+                    Map<String, String> types = new HashMap<String, String>();
+                    for (int count = in.getInt(); count > 0; count--)
+                    {
+                        String key = strings[in.getInt()];
+                        types.put(key, strings[in.getInt()]);
+                    }
+                    clauses.add(new ParsedHeaderClause(paths, dirs, attrs, types));
+                }
+                headers.put(name, new CachedHeader(header, context, clauses));
+            }
+            cache.m_headers.putAll(headers);
+        }
+        catch (Exception ex)
+        {
+            // Ignore the invalid cache file; the headers are parsed again.
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Saves the cache to the specified file. The cache is written to a
+     * temporary file first, so a partially written cache is never seen.
+     * @param file the cache file.
+     * @throws Exception if the cache could not be saved.
+    **/
+    public void save(File file) throws Exception
+    {
+        // The clauses are written first to collect their strings.
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(body);
+        dos.writeInt(m_headers.size());
+        for (Entry<String, CachedHeader> entry : m_headers.entrySet())
+        {
+            writeIndex(dos, strings, entry.getKey());
+            writeString(dos, entry.getValue().m_header);
+            writeString(dos, entry.getValue().m_context);
+            List<ParsedHeaderClause> clauses = entry.getValue().m_clauses;
+            dos.writeInt(clauses.size());
+            for (ParsedHeaderClause clause : clauses)
+            {
+                dos.writeInt(clause.m_paths.size());
+                for (String path : clause.m_paths)
+                {
+                    writeIndex(dos, strings, path);
+                }
+                dos.writeInt(clause.m_dirs.size());
+                for (Entry<String, String> dir : clause.m_dirs.entrySet())
+                {
+                    writeIndex(dos, strings, dir.getKey());
+                    writeIndex(dos, strings, dir.getValue());
+                }
+                dos.writeInt(clause.m_attrs.size());
+                for (Entry<String, Object> attr : clause.m_attrs.entrySet())
+                {
+                    writeIndex(dos, strings, attr.getKey());
+                    writeValue(dos, strings, attr.getValue());
+                }
+                dos.writeInt(clause.m_types.size());
+                for (Entry<String, String> type : clause.m_types.entrySet())
+                {
+                    writeIndex(dos, strings, type.getKey());
+                    writeIndex(dos, strings, type.getValue());
+                }
+            }
+        }
+        dos.flush();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(strings.size());
+        for (String s : strings.keySet())
+        {
+            writeString(dos, s);
+        }
+        body.writeTo(dos);
+        dos.flush();
+        CRC32 crc = new CRC32();
+        byte[] bytes = baos.toByteArray();
+        crc.update(bytes);
+        dos.writeLong(crc.getValue());
+        dos.close();
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new BufferedOutputStream(m_secureAction.getFileOutputStream(tmpFile), BUFSIZE);
+            baos.writeTo(os);
+        }
+        finally
+        {
+            if (os != null) os.close();
+        }
+        m_secureAction.deleteFile(file);
+        if (!m_secureAction.renameFile(tmpFile, file))
+        {
+            m_secureAction.deleteFile(tmpFile);
+            throw new IOException("Unable to rename header cache file: " + tmpFile);
+        }
+        m_modified = false;
+    }
+
+    private static List<ParsedHeaderClause> copy(List<ParsedHeaderClause> clauses)
+    {
+        // Clauses are modified while they are converted, so never hand
+        // out the cached instances.
+        List<ParsedHeaderClause> copies = new ArrayList<ParsedHeaderClause>(clauses.size());
+        for (ParsedHeaderClause clause : clauses)
+        {
+            Map<String, Object> attrs = new HashMap<String, Object>(clause.m_attrs);
+            for (Entry<String, Object> entry : attrs.entrySet())
+            {
+                if (entry.getValue() instanceof List)
+                {
+                    entry.setValue(new ArrayList<Object>((List<?>) entry.getValue()));
+                }
+            }
+            copies.add(new ParsedHeaderClause(
+                new ArrayList<String>(clause.m_paths),
+                new HashMap<String, String>(clause.m_dirs),
+                attrs,
+                new HashMap<String, String>(clause.m_types)));
+        }
+        return copies;
+    }
+
+    private static Object readValue(ByteBuffer in, String[] strings)
+        throws IOException
+    {
+        byte type = in.get();
+        switch (type)
+        {
+            case STRING_VALUE:
+                return strings[in.getInt()];
+            case VERSION_VALUE:
+                return readVersion(in, strings);
+            case VERSION_RANGE_VALUE:
+                Version floor = readVersion(in, strings);
+                boolean isFloorInclusive = (in.get() != 0);
+                Version ceiling = (in.get() != 0) ? readVersion(in, strings) : null;
+                boolean isCeilingInclusive = (in.get() != 0);
+                return Interner.VERSION_RANGES.intern(new VersionRange(
+                    floor, isFloorInclusive, ceiling, isCeilingInclusive));
+            case LONG_VALUE:
+                return new Long(in.getLong());
+            case DOUBLE_VALUE:
+                return new Double(in.getDouble());
+            case LIST_VALUE:
+                List<Object> list = new ArrayList<Object>();
+                for (int count = in.getInt(); count > 0; count--)
+                {
+                    list.add(readValue(in, strings));
+                }
+                return list;
+            default:
+                throw new IOException("Unknown attribute value type: " + type);
+        }
+    }
+
+    private static void writeValue(
+        DataOutputStream dos, Map<String, Integer> strings, Object value)
+        throws IOException
+    {
+        if (value instanceof String)
+        {
+            dos.writeByte(STRING_VALUE);
+            writeIndex(dos, strings, (String) value);
+        }
+        else if (value instanceof Version)
+        {
+            dos.writeByte(VERSION_VALUE);
+            writeVersion(dos, strings, (Version) value);
+        }
+        else if (value instanceof VersionRange)
+        {
+            VersionRange range = (VersionRange) value;
+            dos.writeByte(VERSION_RANGE_VALUE);
+            writeVersion(dos, strings, range.getFloor());
+            dos.writeBoolean(range.isFloorInclusive());
+            dos.writeBoolean(range.getCeiling() != null);
+            if (range.getCeiling() != null)
+            {
+                writeVersion(dos, strings, range.getCeiling());
+            }
+            dos.writeBoolean(range.isCeilingInclusive());
+        }
+        else if (value instanceof Long)
+        {
+            dos.writeByte(LONG_VALUE);
+            dos.writeLong(((Long) value).longValue());
+        }
+        else if (value instanceof Double)
+        {
+            dos.writeByte(DOUBLE_VALUE);
+            dos.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof List)
+        {
+            List<?> list = (List<?>) value;
+            dos.writeByte(LIST_VALUE);
+            dos.writeInt(list.size());
+            for (Object element : list)
+            {
+                writeValue(dos, strings, element);
+            }
+        }
+        else
+        {
+            // Such a header is just not cached.
+            throw new IOException("Unsupported attribute value: " + value);
+        }
+    }
+
+    private static Version readVersion(ByteBuffer in, String[] strings)
+        throws IOException
+    {
+        int major = in.getInt();
+        int minor = in.getInt();
+        int micro = in.getInt();
+        return Interner.VERSIONS.intern(
+            new Version(major, minor, micro, strings[in.getInt()]));
+    }
+
+    private static void writeVersion(
+        DataOutputStream dos, Map<String, Integer> strings, Version version)
+        throws IOException
+    {
+        dos.writeInt(version.getMajor());
+        dos.writeInt(version.getMinor());
+        dos.writeInt(version.getMicro());
+        writeIndex(dos, strings, version.getQualifier());
+    }
+
+    private static void writeIndex(
+        DataOutputStream dos, Map<String, Integer> strings, String s)
+        throws IOException
+    {
+        Integer index = strings.get(s);
+        if (index == null)
+        {
+            index = new Integer(strings.size());
+            strings.put(s, index);
+        }
+        dos.writeInt(index.intValue());
+    }
+
+    private static String readString(ByteBuffer in) throws IOException
+    {
+        int length = in.getInt();
+        if ((length < 0) || (length > in.remaining()))
+        {
+            throw new IOException("Invalid string length: " + length);
+        }
+        String s = new String(in.array(), in.position(), length, "UTF-8");
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException
+    {
+        // Header values may exceed the length supported by writeUTF().
+        byte[] bytes = s.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static class CachedHeader
+    {
+        private final String m_header;
+        private final String m_context;
+        private final List<ParsedHeaderClause> m_clauses;
+
+        CachedHeader(String header, String context, List<ParsedHeaderClause> clauses)
+        {
+            m_header = header;
+            m_context = context;
+            m_clauses = clauses;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.util.ImmutableMap;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.osgi.framework.Constants;
@@ -66,7 +67,7 @@ public class BundleCapabilityImpl implements BundleCapability
             uses = new ArrayList(tok.countTokens());
             while (tok.hasMoreTokens())
             {
-                uses.add(tok.nextToken().trim());
+                uses.add(Interner.STRINGS.intern(tok.nextToken().trim()));
             }
         }
         m_uses = uses;
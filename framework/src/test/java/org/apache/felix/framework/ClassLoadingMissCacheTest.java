@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Statistics;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+public class ClassLoadingMissCacheTest extends TestCase
+{
+    private static final String HITS =
+        Statistics.PROPERTY_PREFIX + "wiring.misscache.hits";
+
+    private File cacheDir;
+    private Framework felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        felix.stop();
+        felix.waitForStop(1000);
+        deleteDir(cacheDir);
+    }
+
+    public void testRepeatedMissIsCached() throws Exception
+    {
+        Bundle bundle = installBundle("Bundle-SymbolicName: miss.test\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n");
+
+        assertClassNotFound(bundle, "org.foo.Missing");
+        long hits = getHits();
+        assertClassNotFound(bundle, "org.foo.Missing");
+        assertEquals(hits + 1, getHits());
+
+        // Misses for imported packages are definitive too.
+        assertClassNotFound(bundle, "org.osgi.framework.Missing");
+        hits = getHits();
+        assertClassNotFound(bundle, "org.osgi.framework.Missing");
+        assertEquals(hits + 1, getHits());
+
+        // Resources are cached separately from classes.
+        assertNull(bundle.getResource("org/foo/missing.txt"));
+        hits = getHits();
+        assertNull(bundle.getResource("org/foo/missing.txt"));
+        assertEquals(hits + 1, getHits());
+        assertNotNull(bundle.getResource("org/foo/present.txt"));
+    }
+
+    public void testDynamicallyImportableMissIsNotCached() throws Exception
+    {
+        Bundle bundle = installBundle("Bundle-SymbolicName: miss.test.dynamic\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "DynamicImport-Package: org.foo.*\n");
+
+        assertClassNotFound(bundle, "org.foo.bar.Missing");
+        long hits = getHits();
+        assertClassNotFound(bundle, "org.foo.bar.Missing");
+        assertEquals(hits, getHits());
+    }
+
+    private long getHits()
+    {
+        BundleContext context = felix.getBundleContext();
+        String hits = context.getProperty(HITS);
+        return (hits == null) ? 0 : Long.parseLong(hits);
+    }
+
+    private static void assertClassNotFound(Bundle bundle, String name)
+    {
+        try
+        {
+            bundle.loadClass(name);
+            fail("Class should not be found: " + name);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private Bundle installBundle(String manifest) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.putNextEntry(new ZipEntry("org/foo/present.txt"));
+        os.write("present".getBytes("utf-8"));
+        os.close();
+
+        return felix.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
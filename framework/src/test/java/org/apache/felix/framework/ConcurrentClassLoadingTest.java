@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ConcurrentClassLoadingTest extends TestCase
+{
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 100;
+    private static final Class[] CLASSES = new Class[] {
+        A.class, B.class, C.class, D.class, E.class, F.class, G.class, H.class
+    };
+
+    private File cacheDir;
+    private Framework felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        felix.stop();
+        felix.waitForStop(1000);
+        deleteDir(cacheDir);
+    }
+
+    public void testConcurrentClassLoading() throws Exception
+    {
+        String mf = "Bundle-SymbolicName: cl.test\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        final Bundle bundle = felix.getBundleContext().installBundle(
+            createBundle(mf).toURI().toString());
+        assertTrue(felix.adapt(FrameworkWiring.class).resolveBundles(
+            Collections.singleton(bundle)));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Class[][] results = new Class[THREADS][CLASSES.length];
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int idx = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++)
+                        {
+                            for (int c = 0; c < CLASSES.length; c++)
+                            {
+                                // Vary the order per thread to maximize contention.
+                                int cIdx = (c + idx) % CLASSES.length;
+                                Class clazz = bundle.loadClass(CLASSES[cIdx].getName());
+                                if ((results[idx][cIdx] != null)
+                                    && (results[idx][cIdx] != clazz))
+                                {
+                                    throw new IllegalStateException(
+                                        "Class defined twice: " + clazz);
+                                }
+                                results[idx][cIdx] = clazz;
+                            }
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(th);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < THREADS; t++)
+        {
+            threads[t].join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        ClassLoader cl = bundle.adapt(BundleWiring.class).getClassLoader();
+        for (int c = 0; c < CLASSES.length; c++)
+        {
+            assertNotSame(CLASSES[c], results[0][c]);
+            assertSame(cl, results[0][c].getClassLoader());
+            for (int t = 1; t < THREADS; t++)
+            {
+                assertSame(results[0][c], results[t][c]);
+            }
+        }
+    }
+
+    public void testParallelCapableOnJava7() throws Exception
+    {
+        String mf = "Bundle-SymbolicName: cl.test.parallel\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Bundle bundle = felix.getBundleContext().installBundle(
+            createBundle(mf).toURI().toString());
+        assertTrue(felix.adapt(FrameworkWiring.class).resolveBundles(
+            Collections.singleton(bundle)));
+        BundleWiringImpl.BundleClassLoader cl = (BundleWiringImpl.BundleClassLoader)
+            bundle.adapt(BundleWiring.class).getClassLoader();
+
+        boolean java7;
+        try
+        {
+            ClassLoader.class.getDeclaredMethod("registerAsParallelCapable", (Class[]) null);
+            java7 = true;
+        }
+        catch (NoSuchMethodException ex)
+        {
+            java7 = false;
+        }
+        assertEquals(java7, cl.isParallel());
+        if (java7)
+        {
+            assertNotSame(cl.getClassLock("a.B"), cl.getClassLock("a.C"));
+            assertSame(cl.getClassLock("a.B"), cl.getClassLock("a.B"));
+
+            // The lock is only released once the class is defined.
+            Object lock = cl.getClassLock("a.B");
+            cl.releaseClassLock("a.B", lock, null);
+            assertSame(lock, cl.getClassLock("a.B"));
+            cl.releaseClassLock("a.B", lock, B.class);
+            assertNotSame(lock, cl.getClassLock("a.B"));
+        }
+        else
+        {
+            assertSame(cl, cl.getClassLock("a.B"));
+        }
+    }
+
+    private static File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        for (int i = 0; i < CLASSES.length; i++)
+        {
+            String path = CLASSES[i].getName().replace('.', '/') + ".class";
+            os.putNextEntry(new ZipEntry(path));
+
+            InputStream is = CLASSES[i].getClassLoader().getResourceAsStream(path);
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                os.write(buf, 0, n);
+            }
+            is.close();
+        }
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class A {}
+    public static class B {}
+    public static class C {}
+    public static class D {}
+    public static class E {}
+    public static class F {}
+    public static class G {}
+    public static class H {}
+}
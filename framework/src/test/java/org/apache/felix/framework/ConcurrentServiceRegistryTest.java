@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+public class ConcurrentServiceRegistryTest extends TestCase
+{
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+
+    private File cacheDir;
+    private Framework felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        felix.stop();
+        felix.waitForStop(1000);
+        deleteDir(cacheDir);
+    }
+
+    public void testLookupByClassAndFilter() throws Exception
+    {
+        BundleContext context = felix.getBundleContext();
+        Hashtable props = new Hashtable();
+        props.put("a", "1");
+        ServiceRegistration reg1 = context.registerService(
+            new String[] { Runnable.class.getName(), Object.class.getName() },
+            new Runnable() { public void run() {} }, props);
+        props.put("a", "2");
+        ServiceRegistration reg2 = context.registerService(
+            Runnable.class.getName(), new Runnable() { public void run() {} }, props);
+
+        assertEquals(2, context.getServiceReferences(Runnable.class.getName(), null).length);
+        assertEquals(1, context.getServiceReferences(Object.class.getName(), null).length);
+        assertEquals(1, context.getServiceReferences(Runnable.class.getName(), "(a=2)").length);
+        assertEquals(2, context.getServiceReferences(
+            (String) null, "(objectClass=" + Runnable.class.getName() + ")").length);
+        assertEquals(1, context.getServiceReferences(
+            (String) null, "(&(objectClass=" + Runnable.class.getName() + ")(a=1))").length);
+        assertEquals(2, context.getServiceReferences((String) null, "(a=*)").length);
+
+        reg1.unregister();
+        assertNull(context.getServiceReferences(Object.class.getName(), null));
+        assertEquals(1, context.getServiceReferences((String) null, "(a=*)").length);
+        reg2.unregister();
+        assertNull(context.getServiceReferences(Runnable.class.getName(), null));
+    }
+
+    public void testConcurrentGetAndUnget() throws Exception
+    {
+        final BundleContext context = felix.getBundleContext();
+        final Object svc = new Runnable() { public void run() {} };
+        final AtomicInteger factoryGets = new AtomicInteger();
+        final AtomicInteger factoryUngets = new AtomicInteger();
+        context.registerService(Object.class.getName(), svc, null);
+        context.registerService(Runnable.class.getName(), new ServiceFactory()
+        {
+            public Object getService(Bundle bundle, ServiceRegistration reg)
+            {
+                factoryGets.incrementAndGet();
+                return svc;
+            }
+
+            public void ungetService(Bundle bundle, ServiceRegistration reg, Object obj)
+            {
+                factoryUngets.incrementAndGet();
+            }
+        }, null);
+        final ServiceReference plainRef = context.getServiceReference(Object.class.getName());
+        final ServiceReference factoryRef =
+            context.getServiceReference(Runnable.class.getName());
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++)
+        {
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++)
+                        {
+                            ServiceReference ref = ((i % 2) == 0) ? plainRef : factoryRef;
+                            assertSame(svc, context.getService(ref));
+                            assertNotNull(context.getServiceReference(Object.class.getName()));
+                            assertTrue(context.ungetService(ref));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(th);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < THREADS; t++)
+        {
+            threads[t].join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertNull(plainRef.getUsingBundles());
+        assertNull(factoryRef.getUsingBundles());
+        assertNull(felix.getServicesInUse());
+        assertFalse(context.ungetService(plainRef));
+        assertEquals(factoryGets.get(), factoryUngets.get());
+    }
+
+    public void testUnregisterWhileInUse() throws Exception
+    {
+        final BundleContext context = felix.getBundleContext();
+        final ServiceRegistration reg = context.registerService(
+            Object.class.getName(), new Object(), null);
+        final ServiceReference ref = reg.getReference();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++)
+        {
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++)
+                        {
+                            if (context.getService(ref) != null)
+                            {
+                                context.ungetService(ref);
+                            }
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(th);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        reg.unregister();
+        for (int t = 0; t < THREADS; t++)
+        {
+            threads[t].join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertNull(context.getService(ref));
+        assertNull(ref.getUsingBundles());
+        assertNull(felix.getServicesInUse());
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
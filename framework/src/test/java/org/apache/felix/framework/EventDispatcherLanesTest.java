@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EventListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.DeliveryStatistics;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.ListenerInfo;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+
+public class EventDispatcherLanesTest extends TestCase
+{
+    private static final int EVENTS = 5;
+
+    private File cacheDir;
+    private Felix felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(FelixConstants.EVENT_DISPATCH_LANES_PROP, "2");
+        params.put(FelixConstants.EVENT_SLOW_LISTENER_THRESHOLD_PROP, "50");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        felix.stop();
+        felix.waitForStop(1000);
+        deleteDir(cacheDir);
+    }
+
+    public void testSlowListenerOnlyStallsItsLane() throws Exception
+    {
+        // Bundle ids 1 and 2 are served by different lanes.
+        BundleContext slowContext = installAndStart("slow").getBundleContext();
+        BundleContext fastContext = installAndStart("fast").getBundleContext();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> slowEvents = new ArrayList<Long>();
+        final CountDownLatch slowDone = new CountDownLatch(EVENTS);
+        BundleListener slow = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                if (event.getType() == BundleEvent.INSTALLED)
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // Ignore.
+                    }
+                    synchronized (slowEvents)
+                    {
+                        slowEvents.add(event.getBundle().getBundleId());
+                    }
+                    slowDone.countDown();
+                }
+            }
+        };
+        final List<Long> fastEvents = new ArrayList<Long>();
+        final CountDownLatch fastDone = new CountDownLatch(EVENTS);
+        BundleListener fast = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                if (event.getType() == BundleEvent.INSTALLED)
+                {
+                    synchronized (fastEvents)
+                    {
+                        fastEvents.add(event.getBundle().getBundleId());
+                    }
+                    fastDone.countDown();
+                }
+            }
+        };
+        slowContext.addBundleListener(slow);
+        fastContext.addBundleListener(fast);
+
+        List<Long> installed = new ArrayList<Long>();
+        for (int i = 0; i < EVENTS; i++)
+        {
+            installed.add(felix.getBundleContext().installBundle(
+                createBundle("b" + i).toURI().toString()).getBundleId());
+        }
+
+        // The fast listener gets all events while the slow one is blocked.
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        synchronized (slowEvents)
+        {
+            assertTrue(slowEvents.isEmpty());
+        }
+        Thread.sleep(100);
+        release.countDown();
+        assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+
+        // Both listeners saw the events in order.
+        assertEquals(installed, fastEvents);
+        assertEquals(installed, slowEvents);
+
+        DeliveryStatistics slowStats = null;
+        DeliveryStatistics fastStats = null;
+        for (ListenerInfo info : felix.getEventDispatcher().getAllListeners())
+        {
+            if (info.getListener() == slow)
+            {
+                slowStats = info.getDeliveryStatistics();
+            }
+            else if (info.getListener() == fast)
+            {
+                fastStats = info.getDeliveryStatistics();
+            }
+        }
+        assertTrue(slowStats.getCount() >= EVENTS);
+        assertTrue(slowStats.getSlowCount() >= 1);
+        assertTrue(slowStats.getMaxTime() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(fastStats.getCount() >= EVENTS);
+        assertTrue(Long.parseLong(felix.getBundleContext().getProperty(
+            "felix.statistics.eventdispatcher.slowdeliveries")) >= 1);
+    }
+
+    public void testStatisticsKeptOnFilterUpdate() throws Exception
+    {
+        BundleContext context = installAndStart("listener").getBundleContext();
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        ServiceListener listener = new ServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                synchronized (events)
+                {
+                    events.add(event);
+                }
+            }
+        };
+        context.addServiceListener(listener, "(objectClass=java.lang.Runnable)");
+        context.registerService(Runnable.class.getName(), new Runnable()
+        {
+            public void run()
+            {
+            }
+        }, null);
+        DeliveryStatistics stats = getStatistics(listener);
+        long count = stats.getCount();
+        assertTrue(count >= 1);
+
+        // Updating the filter keeps the statistics.
+        context.addServiceListener(listener, "(objectClass=java.lang.Object)");
+        assertSame(stats, getStatistics(listener));
+        assertEquals(count, getStatistics(listener).getCount());
+    }
+
+    private DeliveryStatistics getStatistics(EventListener listener)
+    {
+        DeliveryStatistics stats = null;
+        for (ListenerInfo info : felix.getEventDispatcher().getAllListeners())
+        {
+            if (info.getListener() == listener)
+            {
+                assertNull("Listener registered twice", stats);
+                stats = info.getDeliveryStatistics();
+            }
+        }
+        return stats;
+    }
+
+    private Bundle installAndStart(String name) throws Exception
+    {
+        Bundle bundle = felix.getBundleContext().installBundle(
+            createBundle(name).toURI().toString());
+        bundle.start();
+        return bundle;
+    }
+
+    private static File createBundle(String name) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + name + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        new JarOutputStream(new FileOutputStream(f), mf).close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Statistics;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.Version;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class IncrementalResolveTest extends TestCase
+{
+    private static final String REUSED =
+        Statistics.PROPERTY_PREFIX + "resolver.packagespaces.reused";
+    private static final String COMPUTED =
+        Statistics.PROPERTY_PREFIX + "resolver.packagespaces.computed";
+
+    private File cacheDir;
+    private Framework felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        felix.stop();
+        felix.waitForStop(1000);
+        deleteDir(cacheDir);
+    }
+
+    public void testResolvedPackageSpacesAreReused() throws Exception
+    {
+        Bundle provider = installBundle("provider", "1.0.0",
+            "Export-Package: org.p; version=1.0\n");
+        Bundle first = installBundle("first", "1.0.0",
+            "Import-Package: org.p\n");
+        assertTrue(resolve(provider, first));
+
+        // The provider's package space is calculated once it is resolved...
+        Bundle second = installBundle("second", "1.0.0",
+            "Import-Package: org.p\n");
+        assertTrue(resolve(second));
+
+        // ...and reused afterwards.
+        long reused = getCounter(REUSED);
+        long computed = getCounter(COMPUTED);
+        Bundle third = installBundle("third", "1.0.0",
+            "Import-Package: org.p\n");
+        assertTrue(resolve(third));
+        assertEquals(reused + 1, getCounter(REUSED));
+        assertEquals(computed + 1, getCounter(COMPUTED));
+
+        // Refreshing the provider invalidates its package space.
+        provider.update(new FileInputStream(createBundle("provider", "1.0.1",
+            "Export-Package: org.p; version=1.0\n")));
+        refresh(provider);
+        assertTrue(resolve(provider, first, second, third));
+        reused = getCounter(REUSED);
+        computed = getCounter(COMPUTED);
+        Bundle fourth = installBundle("fourth", "1.0.0",
+            "Import-Package: org.p\n");
+        assertTrue(resolve(fourth));
+        assertEquals(reused, getCounter(REUSED));
+        assertEquals(computed + 2, getCounter(COMPUTED));
+        assertEquals(new Version("1.0.1"), fourth.adapt(BundleWiring.class)
+            .getRequiredWires(null).get(0).getProviderWiring().getBundle().getVersion());
+    }
+
+    public void testUsesConflictsWithReusedPackageSpaces() throws Exception
+    {
+        Bundle q1 = installBundle("q1", "1.0.0",
+            "Export-Package: org.q; version=1.0\n");
+        Bundle q2 = installBundle("q2", "2.0.0",
+            "Export-Package: org.q; version=2.0\n");
+        Bundle p = installBundle("p", "1.0.0",
+            "Export-Package: org.p; uses:=org.q\n"
+            + "Import-Package: org.q; version=\"[1,2)\"\n");
+        assertTrue(resolve(q1, q2, p));
+
+        long reused = getCounter(REUSED);
+        for (int i = 0; i < 3; i++)
+        {
+            Bundle conflicting = installBundle("conflicting" + i, "1.0.0",
+                "Import-Package: org.p, org.q; version=\"[2,3)\"\n");
+            assertFalse(resolve(conflicting));
+            Bundle consistent = installBundle("consistent" + i, "1.0.0",
+                "Import-Package: org.p, org.q; version=\"[1,2)\"\n");
+            assertTrue(resolve(consistent));
+        }
+        assertTrue(getCounter(REUSED) > reused);
+    }
+
+    private boolean resolve(Bundle... bundles)
+    {
+        FrameworkWiring wiring = felix.adapt(FrameworkWiring.class);
+        return wiring.resolveBundles(Arrays.asList(bundles));
+    }
+
+    private void refresh(Bundle bundle) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        felix.adapt(FrameworkWiring.class).refreshBundles(
+            Collections.singleton(bundle), new FrameworkListener() {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    latch.countDown();
+                }
+            });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private long getCounter(String name)
+    {
+        String value = felix.getBundleContext().getProperty(name);
+        return (value == null) ? 0 : Long.parseLong(value);
+    }
+
+    private Bundle installBundle(String name, String version, String headers)
+        throws Exception
+    {
+        return felix.getBundleContext().installBundle(
+            createBundle(name, version, headers).toURI().toString());
+    }
+
+    private static File createBundle(String name, String version, String headers)
+        throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + name + "\n"
+            + "Bundle-Version: " + version + "\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Statistics;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+public class ParallelStartLevelTest extends TestCase
+{
+    public static final int DELAY = 500;
+    private static final int BUNDLES = 4;
+
+    private File cacheDir;
+    private Framework felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        if (felix != null)
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+        deleteDir(cacheDir);
+    }
+
+    public void testBundlesOfAStartLevelAreStartedConcurrently() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, Integer.toString(BUNDLES));
+        felix = createFramework(params);
+
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < BUNDLES; i++)
+        {
+            bundles.add(installBundle("level2.bundle" + i, 2));
+        }
+        Bundle last = installBundle("level3.bundle", 3);
+
+        long t0 = System.currentTimeMillis();
+        felix.start();
+        long t1 = System.currentTimeMillis();
+
+        for (Bundle bundle : bundles)
+        {
+            assertEquals(Bundle.ACTIVE, bundle.getState());
+        }
+        // The bundle of the next start level fails to start if it sees
+        // a bundle of a lower start level that is not active yet.
+        assertEquals(Bundle.ACTIVE, last.getState());
+        assertTrue((t1 - t0) < BUNDLES * DELAY);
+
+        assertEquals(BUNDLES + 1, getCounter("startlevel.activations"));
+        for (Bundle bundle : bundles)
+        {
+            assertTrue(getCounter("startlevel.activationtime."
+                + bundle.getBundleId()) >= DELAY);
+        }
+
+        // The activation time of a bundle is forgotten on uninstall.
+        String name = Statistics.PROPERTY_PREFIX + "startlevel.activationtime."
+            + last.getBundleId();
+        assertNotNull(felix.getBundleContext().getProperty(name));
+        last.uninstall();
+        assertNull(felix.getBundleContext().getProperty(name));
+    }
+
+    public void testBundlesAreStartedSequentiallyByDefault() throws Exception
+    {
+        felix = createFramework(new HashMap());
+
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < 2; i++)
+        {
+            bundles.add(installBundle("level2.bundle" + i, 2));
+        }
+        Bundle last = installBundle("level3.bundle", 3);
+
+        long t0 = System.currentTimeMillis();
+        felix.start();
+        long t1 = System.currentTimeMillis();
+
+        for (Bundle bundle : bundles)
+        {
+            assertEquals(Bundle.ACTIVE, bundle.getState());
+        }
+        assertEquals(Bundle.ACTIVE, last.getState());
+        assertTrue((t1 - t0) >= 3 * DELAY);
+        assertEquals(3, getCounter("startlevel.activations"));
+    }
+
+    public void testActivatorsStartingEachOtherDoNotDeadlock() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, "2");
+        felix = createFramework(params);
+        Bundle first = installBundle("starter.first", 2, SiblingActivator.class);
+        Bundle second = installBundle("starter.second", 2, SiblingActivator.class);
+
+        startFramework();
+        assertEquals(Bundle.ACTIVE, first.getState());
+        assertEquals(Bundle.ACTIVE, second.getState());
+    }
+
+    public void testActivatorsStartingEachOtherSequentially() throws Exception
+    {
+        felix = createFramework(new HashMap());
+        Bundle first = installBundle("starter.first", 2, SiblingActivator.class);
+        Bundle second = installBundle("starter.second", 2, SiblingActivator.class);
+
+        startFramework();
+        assertEquals(Bundle.ACTIVE, first.getState());
+        assertEquals(Bundle.ACTIVE, second.getState());
+    }
+
+    public void testActivatorWaitingForLaterSibling() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, "2");
+        felix = createFramework(params);
+        // The waiter is started first and only becomes active once the
+        // provider of the same start level has registered its service.
+        Bundle waiter = installBundle("waiter", 2, SiblingActivator.class);
+        Bundle provider = installBundle("provider", 2, SiblingActivator.class);
+
+        startFramework();
+        assertEquals(Bundle.ACTIVE, provider.getState());
+        assertEquals(Bundle.ACTIVE, waiter.getState());
+    }
+
+    private void startFramework() throws Exception
+    {
+        final Exception[] error = new Exception[1];
+        Thread starter = new Thread() {
+            public void run()
+            {
+                try
+                {
+                    felix.start();
+                }
+                catch (Exception ex)
+                {
+                    error[0] = ex;
+                }
+            }
+        };
+        starter.start();
+        starter.join(10 * DELAY);
+        assertFalse("The start level change hangs.", starter.isAlive());
+        if (error[0] != null)
+        {
+            throw error[0];
+        }
+    }
+
+    private Framework createFramework(Map params) throws Exception
+    {
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.framework.startlevel; version=1.0.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, "3");
+        Framework f = new Felix(params);
+        f.init();
+        return f;
+    }
+
+    private Bundle installBundle(String name, int level) throws Exception
+    {
+        return installBundle(name, level, TestBundleActivator.class);
+    }
+
+    private Bundle installBundle(String name, int level, Class activator)
+        throws Exception
+    {
+        Bundle bundle = felix.getBundleContext().installBundle(
+            createBundle(name, activator).toURI().toString());
+        bundle.adapt(BundleStartLevel.class).setStartLevel(level);
+        // Only marks the bundle as persistently started, since the
+        // framework is not started yet.
+        bundle.start();
+        return bundle;
+    }
+
+    private long getCounter(String name)
+    {
+        String value = felix.getBundleContext().getProperty(
+            Statistics.PROPERTY_PREFIX + name);
+        return (value == null) ? 0 : Long.parseLong(value);
+    }
+
+    private static File createBundle(String name, Class activator) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + name + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework, org.osgi.framework.startlevel\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, activator.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = activator.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = activator.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class TestBundleActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            int level = context.getBundle().adapt(BundleStartLevel.class).getStartLevel();
+            Bundle[] bundles = context.getBundles();
+            for (int i = 0; i < bundles.length; i++)
+            {
+                if ((bundles[i].getBundleId() != 0)
+                    && (bundles[i].adapt(BundleStartLevel.class).getStartLevel() < level)
+                    && (bundles[i].getState() != Bundle.ACTIVE))
+                {
+                    throw new IllegalStateException(
+                        bundles[i] + " of a lower start level is not active.");
+                }
+            }
+            Thread.sleep(DELAY);
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+
+    public static class SiblingActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            String name = context.getBundle().getSymbolicName();
+            if (name.startsWith("starter."))
+            {
+                // Give the sibling time to be locked for its own start.
+                Thread.sleep(DELAY / 5);
+                Bundle[] bundles = context.getBundles();
+                for (int i = 0; i < bundles.length; i++)
+                {
+                    if (!name.equals(bundles[i].getSymbolicName())
+                        && String.valueOf(bundles[i].getSymbolicName()).startsWith("starter."))
+                    {
+                        try
+                        {
+                            bundles[i].start();
+                        }
+                        catch (BundleException ex)
+                        {
+                            // The sibling is already being started.
+                        }
+                    }
+                }
+            }
+            else if (name.equals("waiter"))
+            {
+                long end = System.currentTimeMillis() + 5 * DELAY;
+                while (context.getServiceReferences(
+                    (String) null, "(sibling=provider)") == null)
+                {
+                    if (System.currentTimeMillis() > end)
+                    {
+                        throw new IllegalStateException("The provider did not start.");
+                    }
+                    Thread.sleep(10);
+                }
+            }
+            else if (name.equals("provider"))
+            {
+                Thread.sleep(DELAY / 5);
+                Hashtable props = new Hashtable();
+                props.put("sibling", "provider");
+                context.registerService(String.class.getName(), name, props);
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
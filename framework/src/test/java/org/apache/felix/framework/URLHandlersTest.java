@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Creates URLs concurrently with and without the URL Handlers service
+ * installed. Running this class as an application prints the throughput
+ * of both cases: <code>URLHandlersTest [threads] [iterations]</code>
+ */
+public class URLHandlersTest extends TestCase
+{
+    private static final String[] SPECS = new String[] {
+        "http://localhost:8080/path/to/resource?query=1#ref",
+        "https://user@example.org/index.html",
+        "file:/tmp/some/file.txt",
+        "ftp://ftp.example.org/pub/file.tar.gz"
+    };
+
+    public void testConcurrentURLCreation() throws Exception
+    {
+        String[] expected = new String[SPECS.length];
+        for (int i = 0; i < SPECS.length; i++)
+        {
+            expected[i] = new URL(SPECS[i]).toExternalForm();
+        }
+
+        run(4, 2000, false);
+
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        Framework felix = createFramework(cacheDir);
+        try
+        {
+            // The built-in handlers are used through the proxies, so the
+            // URLs must not change.
+            for (int i = 0; i < SPECS.length; i++)
+            {
+                assertEquals(expected[i], new URL(SPECS[i]).toExternalForm());
+            }
+            run(4, 2000, false);
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+            deleteDir(cacheDir);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+
+        System.out.println("Without URL handlers: "
+            + run(threads, iterations, true) + " ns per URL");
+
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        Framework felix = createFramework(cacheDir);
+        try
+        {
+            System.out.println("With URL handlers: "
+                + run(threads, iterations, true) + " ns per URL");
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+            deleteDir(cacheDir);
+        }
+    }
+
+    private static Framework createFramework(File cacheDir) throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "true");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        Framework felix = new Felix(params);
+        felix.init();
+        felix.start();
+        return felix;
+    }
+
+    /**
+     * Creates URLs on the specified number of threads.
+     * @return the average time per URL in nanoseconds.
+     */
+    private static long run(int threads, final int iterations, boolean warmUp)
+        throws Exception
+    {
+        if (warmUp)
+        {
+            run(threads, iterations / 10, false);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            Future[] futures = new Future[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++)
+            {
+                futures[t] = executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception
+                    {
+                        for (int i = 0; i < iterations; i++)
+                        {
+                            String spec = SPECS[i % SPECS.length];
+                            URL url = new URL(spec);
+                            if (url.getProtocol().length() == 0)
+                            {
+                                throw new IllegalStateException(spec);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (int t = 0; t < threads; t++)
+            {
+                futures[t].get();
+            }
+            return (System.nanoTime() - start) / ((long) threads * iterations);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+
+public class EntryIndexTest extends TestCase
+{
+    private File m_dir;
+    private File m_jar;
+    private File m_index;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = File.createTempFile("felix-index", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_jar = new File(m_dir, "bundle.jar");
+        m_index = EntryIndex.getIndexFile(m_dir, m_jar);
+        createJar(new String[] { "a/", "a/b.txt", "c.txt" });
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        File[] files = m_dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            files[i].delete();
+        }
+        m_dir.delete();
+    }
+
+    public void testIndexIsPersistedAndReused() throws Exception
+    {
+        assertFalse(m_index.exists());
+        JarContent content = createContent(new HashMap());
+        assertTrue(content.hasEntry("a/b.txt"));
+        assertTrue(content.hasEntry("a"));
+        assertFalse(content.hasEntry("d.txt"));
+        content.close();
+        assertTrue(m_index.exists());
+
+        EntryIndex index = EntryIndex.load(m_index, m_jar);
+        assertNotNull(index);
+        assertEquals(list(createContent(new HashMap()).getEntries()),
+            Collections.list(index.getEntries()));
+        assertTrue(index.hasEntry("a"));
+        assertFalse(index.hasEntry("d.txt"));
+    }
+
+    public void testStaleIndexIsIgnored() throws Exception
+    {
+        createContent(new HashMap()).getEntries();
+        assertNotNull(EntryIndex.load(m_index, m_jar));
+
+        createJar(new String[] { "a/", "a/b.txt", "c.txt", "d.txt" });
+        m_jar.setLastModified(m_jar.lastModified() + 10000);
+        assertNull(EntryIndex.load(m_index, m_jar));
+
+        JarContent content = createContent(new HashMap());
+        assertTrue(content.hasEntry("d.txt"));
+        content.close();
+        assertNotNull(EntryIndex.load(m_index, m_jar));
+    }
+
+    public void testCorruptIndexIsIgnored() throws Exception
+    {
+        createContent(new HashMap()).getEntries();
+        RandomAccessFile raf = new RandomAccessFile(m_index, "rw");
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 0xFF);
+        raf.close();
+        assertNull(EntryIndex.load(m_index, m_jar));
+        assertTrue(createContent(new HashMap()).hasEntry("c.txt"));
+    }
+
+    public void testIndexCanBeDisabled() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(BundleCache.CACHE_INDEX_PROP, "false");
+        JarContent content = createContent(config);
+        assertTrue(content.hasEntry("c.txt"));
+        assertNotNull(content.getEntries());
+        content.close();
+        assertFalse(m_index.exists());
+    }
+
+    public void testHeadersAreReadFromIndex() throws Exception
+    {
+        StringBuffer exports = new StringBuffer("p0");
+        for (int i = 1; exports.length() < 70000; i++)
+        {
+            exports.append(",p").append(i);
+        }
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_jar));
+        zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        zos.write(("Manifest-Version: 1.0\r\nBundle-SymbolicName: test\r\n"
+            + "Export-Package: " + exports + "\r\n\r\n").getBytes("UTF-8"));
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("c.txt"));
+        zos.closeEntry();
+        zos.close();
+
+        final int[] opened = new int[1];
+        WeakZipFileFactory factory = new WeakZipFileFactory(0)
+        {
+            public WeakZipFile create(File file) throws IOException
+            {
+                opened[0]++;
+                return super.create(file);
+            }
+        };
+        File revisionDir = new File(m_dir, "version0.0");
+        String location = "reference:file:" + m_jar.getPath();
+
+        JarRevision revision = new JarRevision(new Logger(), new HashMap(), factory,
+            revisionDir, location, true, null);
+        assertEquals("test", revision.getManifestHeader().get("bundle-symbolicname"));
+        revision.close();
+        assertEquals(1, opened[0]);
+
+        revision = new JarRevision(new Logger(), new HashMap(), factory,
+            revisionDir, location, true, null);
+        Map headers = revision.getManifestHeader();
+        assertEquals("test", headers.get("Bundle-SymbolicName"));
+        assertEquals(exports.toString(), headers.get("export-package"));
+        Content content = revision.getContent();
+        assertTrue(content.hasEntry("c.txt"));
+        assertFalse(content.hasEntry("d.txt"));
+        assertEquals(1, opened[0]);
+
+        assertNotNull(content.getEntryAsBytes("c.txt"));
+        assertEquals(2, opened[0]);
+        content.close();
+        revision.close();
+
+        File[] files = revisionDir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            files[i].delete();
+        }
+        revisionDir.delete();
+    }
+
+    private JarContent createContent(Map config)
+    {
+        return new JarContent(new Logger(), config, new WeakZipFileFactory(0),
+            this, m_dir, m_jar, null);
+    }
+
+    private void createJar(String[] names) throws IOException
+    {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_jar));
+        for (int i = 0; i < names.length; i++)
+        {
+            zos.putNextEntry(new ZipEntry(names[i]));
+            if (!names[i].endsWith("/"))
+            {
+                zos.write(names[i].getBytes("UTF-8"));
+            }
+            zos.closeEntry();
+        }
+        zos.close();
+    }
+
+    private static List<String> list(Enumeration<String> e)
+    {
+        return Collections.list(e);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+public class MappedJarContentTest extends TestCase
+{
+    private File m_dir;
+    private File m_jar;
+    private byte[] m_text;
+    private byte[] m_embedded;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = File.createTempFile("felix-mapped", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        m_text = new byte[100000];
+        for (int i = 0; i < m_text.length; i++)
+        {
+            m_text[i] = (byte) ((i % 65) + 65);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        putEntry(zos, "inner/Foo.class", m_text, false);
+        zos.close();
+        m_embedded = baos.toByteArray();
+
+        m_jar = new File(m_dir, "bundle.jar");
+        zos = new ZipOutputStream(new FileOutputStream(m_jar));
+        putEntry(zos, "dir/", new byte[0], true);
+        putEntry(zos, "dir/deflated.txt", m_text, false);
+        putEntry(zos, "dir/stored.txt", m_text, true);
+        putEntry(zos, "dir/empty.txt", new byte[0], false);
+        putEntry(zos, "lib/embedded.jar", m_embedded, true);
+        zos.close();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        deleteDir(m_dir);
+    }
+
+    public void testSameAsJarContent() throws Exception
+    {
+        WeakZipFileFactory factory = new WeakZipFileFactory(0);
+        Content expected = new JarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar, null);
+        Content mapped = new MappedJarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar);
+
+        assertEquals(list(expected.getEntries()), list(mapped.getEntries()));
+        String[] names = new String[] {
+            "dir", "dir/", "dir/deflated.txt", "dir/stored.txt",
+            "dir/empty.txt", "lib/embedded.jar", "missing.txt" };
+        for (int i = 0; i < names.length; i++)
+        {
+            assertEquals(names[i],
+                expected.hasEntry(names[i]), mapped.hasEntry(names[i]));
+        }
+
+        assertTrue(Arrays.equals(m_text, mapped.getEntryAsBytes("dir/deflated.txt")));
+        assertTrue(Arrays.equals(m_text, mapped.getEntryAsBytes("dir/stored.txt")));
+        assertEquals(0, mapped.getEntryAsBytes("dir/empty.txt").length);
+        assertNull(mapped.getEntryAsBytes("missing.txt"));
+        assertTrue(Arrays.equals(m_text, read(mapped.getEntryAsStream("dir/deflated.txt"))));
+        assertTrue(Arrays.equals(m_text, read(mapped.getEntryAsStream("dir/stored.txt"))));
+        assertNull(mapped.getEntryAsStream("missing.txt"));
+        assertEquals(expected.getEntryAsURL("dir/stored.txt"),
+            mapped.getEntryAsURL("dir/stored.txt"));
+
+        expected.close();
+        mapped.close();
+        assertFalse(mapped.hasEntry("dir/stored.txt"));
+        assertNull(mapped.getEntryAsBytes("dir/stored.txt"));
+    }
+
+    public void testEntryAsContent() throws Exception
+    {
+        Content mapped = new MappedJarContent(new Logger(), new HashMap(),
+            new WeakZipFileFactory(0), this, m_dir, m_jar);
+
+        Content self = mapped.getEntryAsContent(".");
+        assertTrue(self instanceof MappedJarContent);
+        assertTrue(Arrays.equals(m_text, self.getEntryAsBytes("dir/stored.txt")));
+        self.close();
+        // Closing the view must not close the original content.
+        assertTrue(mapped.hasEntry("dir/stored.txt"));
+
+        Content embedded = mapped.getEntryAsContent("lib/embedded.jar");
+        assertTrue(embedded instanceof MappedJarContent);
+        assertTrue(Arrays.equals(m_text, embedded.getEntryAsBytes("inner/Foo.class")));
+        embedded.close();
+
+        Content dir = mapped.getEntryAsContent("dir");
+        assertTrue(dir instanceof ContentDirectoryContent);
+        assertTrue(Arrays.equals(m_text, dir.getEntryAsBytes("stored.txt")));
+        dir.close();
+
+        assertNull(mapped.getEntryAsContent("missing.jar"));
+        mapped.close();
+    }
+
+    public void testInvalidFileIsRejected() throws Exception
+    {
+        File invalid = new File(m_dir, "invalid.jar");
+        FileOutputStream os = new FileOutputStream(invalid);
+        os.write(m_text, 0, 1000);
+        os.close();
+        try
+        {
+            new MappedJarContent(new Logger(), new HashMap(),
+                new WeakZipFileFactory(0), this, m_dir, invalid);
+            fail("Invalid JAR file should be rejected.");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public void testStreamKeepsMappingOpen() throws Exception
+    {
+        assertTrue(MappedJarContent.isSupported());
+        Content mapped = new MappedJarContent(new Logger(), new HashMap(),
+            new WeakZipFileFactory(0), this, m_dir, m_jar);
+        Content self = mapped.getEntryAsContent(".");
+        InputStream is = mapped.getEntryAsStream("dir/deflated.txt");
+        int first = is.read();
+
+        // The stream and the view still hold the mapping.
+        mapped.close();
+        assertTrue(Arrays.equals(m_text, self.getEntryAsBytes("dir/stored.txt")));
+        self.close();
+        assertNull(self.getEntryAsBytes("dir/stored.txt"));
+        byte[] rest = read(is);
+        assertEquals(m_text[0], (byte) first);
+        assertTrue(Arrays.equals(m_text, concat((byte) first, rest)));
+
+        // The stream must not be read once it released the mapping.
+        try
+        {
+            is.read();
+            fail("Closed stream should not be readable.");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public void testInvalidEntrySizeIsRejected() throws Exception
+    {
+        // Make the central directory claim more bytes than the stored
+        // entry actually has.
+        RandomAccessFile raf = new RandomAccessFile(m_jar, "rw");
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.readFully(bytes);
+        int header = lastIndexOf(bytes, "dir/stored.txt".getBytes("UTF-8")) - 46;
+        int size = m_text.length + 1000;
+        raf.seek(header + 24);
+        raf.write(new byte[] {
+            (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) });
+        raf.close();
+
+        Content mapped = new MappedJarContent(new Logger(), new HashMap(),
+            new WeakZipFileFactory(0), this, m_dir, m_jar);
+        assertTrue(mapped.hasEntry("dir/stored.txt"));
+        assertNull(mapped.getEntryAsBytes("dir/stored.txt"));
+        assertTrue(Arrays.equals(m_text, mapped.getEntryAsBytes("dir/deflated.txt")));
+        mapped.close();
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte[] pattern)
+    {
+        for (int i = bytes.length - pattern.length; i >= 0; i--)
+        {
+            int j = 0;
+            while ((j < pattern.length) && (bytes[i + j] == pattern[j]))
+            {
+                j++;
+            }
+            if (j == pattern.length)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] concat(byte first, byte[] rest)
+    {
+        byte[] bytes = new byte[rest.length + 1];
+        bytes[0] = first;
+        System.arraycopy(rest, 0, bytes, 1, rest.length);
+        return bytes;
+    }
+
+    private static void putEntry(
+        ZipOutputStream zos, String name, byte[] bytes, boolean stored)
+        throws IOException
+    {
+        ZipEntry ze = new ZipEntry(name);
+        if (stored)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ze.setMethod(ZipEntry.STORED);
+            ze.setSize(bytes.length);
+            ze.setCompressedSize(bytes.length);
+            ze.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(ze);
+        zos.write(bytes);
+        zos.closeEntry();
+    }
+
+    private static List<String> list(Enumeration<String> e)
+    {
+        return (e == null) ? Collections.<String>emptyList() : Collections.list(e);
+    }
+
+    private static byte[] read(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = is.read(buf); n >= 0; n = is.read(buf))
+        {
+            baos.write(buf, 0, n);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
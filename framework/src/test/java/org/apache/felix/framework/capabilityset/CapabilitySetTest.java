@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String[] FILTERS = new String[] {
+        "(&(pkg=foo)(version>=1.2)(!(version>=2.0)))",
+        "(&(pkg=foo)(version>=1.2.0)(version<=1.4))",
+        "(&(pkg=foo)(!(version<=1.2))(!(version>=1.4)))",
+        "(&(version>=3.0)(pkg=foo))",
+        "(&(pkg=foo)(version<=0.5))",
+        "(&(pkg=foo)(version>=1.0)(version>=1.3)(version<=3.0)(version<=1.3.5))",
+        "(&(pkg=foo)(!(version>=1.5)))",
+        "(&(pkg=bar)(version>=1.0))",
+        "(&(pkg=missing)(version>=1.0))",
+        "(&(pkg=foo)(version>=invalid))",
+        "(&(pkg=foo)(version=1.3))",
+        "(&(pkg=foo)(|(version>=2.5)(version<=0.1)))"
+    };
+
+    private List<BundleCapability> m_caps;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_caps = new ArrayList<BundleCapability>();
+        for (int major = 0; major < 4; major++)
+        {
+            for (int minor = 0; minor < 10; minor++)
+            {
+                m_caps.add(capability("foo", new Version(major, minor, 0)));
+                m_caps.add(capability("bar", new Version(major, minor, 1)));
+            }
+        }
+        // Capabilities that cannot be sorted by version.
+        m_caps.add(capability("foo", "1.3"));
+        m_caps.add(capability("foo", null));
+        m_caps.add(capability("foo", new Version[] { new Version("1.3"), new Version("5") }));
+    }
+
+    public void testRangeIndexMatchesUnindexed()
+    {
+        CapabilitySet plain = new CapabilitySet(Collections.singletonList("pkg"), true);
+        CapabilitySet ranged =
+            new CapabilitySet(Collections.singletonList("pkg"), "version", true);
+        for (BundleCapability cap : m_caps)
+        {
+            plain.addCapability(cap);
+            ranged.addCapability(cap);
+        }
+
+        for (int i = 0; i < FILTERS.length; i++)
+        {
+            SimpleFilter sf = SimpleFilter.parse(FILTERS[i]);
+            assertEquals(FILTERS[i], plain.match(sf, true), ranged.match(sf, true));
+        }
+
+        SimpleFilter sf = SimpleFilter.parse(FILTERS[0]);
+        // Versions 1.2 to 1.9 and the string "1.3".
+        assertEquals(8 + 1, ranged.match(sf, true).size());
+
+        // Removed capabilities must no longer be found.
+        for (int i = 0; i < m_caps.size(); i += 2)
+        {
+            plain.removeCapability(m_caps.get(i));
+            ranged.removeCapability(m_caps.get(i));
+        }
+        for (int i = 0; i < FILTERS.length; i++)
+        {
+            sf = SimpleFilter.parse(FILTERS[i]);
+            assertEquals(FILTERS[i], plain.match(sf, true), ranged.match(sf, true));
+        }
+    }
+
+    private static BundleCapability capability(String pkg, Object version)
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("pkg", pkg);
+        if (version != null)
+        {
+            attrs.put("version", version);
+        }
+        return new BundleCapabilityImpl(null, "test", Collections.EMPTY_MAP, attrs);
+    }
+}
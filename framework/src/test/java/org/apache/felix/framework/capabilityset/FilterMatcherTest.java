@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+public class FilterMatcherTest extends TestCase
+{
+    public void testTypes()
+    {
+        assertMatch(true, "(a=foo)", "foo");
+        assertMatch(false, "(a=foo)", "bar");
+        assertMatch(true, "(a>=1.2)", new Version("1.2.0"));
+        assertMatch(false, "(a>=1.2)", new Version("1.1.9"));
+        assertMatch(true, "(a<=2)", new Version("1.9.9.qualifier"));
+        assertMatch(false, "(a>=x.y)", new Version("1.0.0"));
+        assertMatch(true, "(a= 42 )", new Long(42));
+        assertMatch(true, "(a>=41)", new Integer(42));
+        assertMatch(false, "(a<=41)", new Short((short) 42));
+        assertMatch(false, "(a=forty-two)", new Long(42));
+        assertMatch(true, "(a=true)", Boolean.TRUE);
+        assertMatch(true, "(a=2.5)", new Double(2.5));
+        assertMatch(true, "(a=x)", new Character('x'));
+        assertMatch(true, "(a~=X)", new Character('x'));
+        assertMatch(true, "(a=custom)", new Custom("custom"));
+        assertMatch(false, "(a=other)", new Custom("custom"));
+        assertMatch(false, "(a=foo)", new Object());
+        assertMatch(true, "(a=*)", new Object());
+    }
+
+    public void testOperations()
+    {
+        assertMatch(true, "(a=f*o)", "foo");
+        assertMatch(false, "(a=f*x)", "foo");
+        assertMatch(false, "(a=4*)", new Long(42));
+        assertMatch(true, "(a~=F o O)", "foo");
+        assertMatch(true, "(|(a=bar)(a=foo))", "foo");
+        assertMatch(false, "(&(a=foo)(b=foo))", "foo");
+        assertMatch(true, "(!(a=bar))", "foo");
+        assertMatch(false, "(!(a=foo))", "foo");
+        assertMatch(false, "(b=*)", "foo");
+        assertMatch(true, "(!(b=*))", "foo");
+    }
+
+    public void testMultipleValues()
+    {
+        assertMatch(true, "(a=2)", new int[] { 1, 2, 3 });
+        assertMatch(false, "(a=4)", new long[] { 1, 2, 3 });
+        assertMatch(true, "(a=b)", new String[] { "a", "b" });
+        assertMatch(true, "(a>=2.0)", Arrays.asList(
+            new Version[] { new Version("1.0"), new Version("2.1") }));
+        assertMatch(false, "(a=c)", Collections.singleton("b"));
+    }
+
+    public void testOperandTypeChanges()
+    {
+        // The same compiled filter is used with values of different types.
+        SimpleFilter sf = SimpleFilter.parse("(a>=10)");
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(sf.getMatcher().matches(attrs(new Long(10))));
+            assertTrue(sf.getMatcher().matches(attrs(new Version("10.1"))));
+            assertFalse(sf.getMatcher().matches(attrs("1")));
+            assertTrue(sf.getMatcher().matches(attrs(new Integer(11))));
+            assertFalse(sf.getMatcher().matches(attrs(new Double(9.9))));
+        }
+        assertSame(sf.getMatcher(), sf.getMatcher());
+    }
+
+    public void testCapabilitySet()
+    {
+        CapabilitySet capSet = new CapabilitySet(Arrays.asList(new String[] { "name" }), true);
+        BundleCapability cap1 = capability("foo", new Version("1.0"));
+        BundleCapability cap2 = capability("foo", new Version("2.0"));
+        BundleCapability cap3 = capability("bar", new Version("1.5"));
+        capSet.addCapability(cap1);
+        capSet.addCapability(cap2);
+        capSet.addCapability(cap3);
+
+        SimpleFilter sf = SimpleFilter.parse(
+            "(&(name=foo)(version>=1.5)(!(version>=3.0)))");
+        assertEquals(Collections.singleton(cap2), capSet.match(sf, true));
+        assertTrue(CapabilitySet.matches(cap2, sf));
+        assertFalse(CapabilitySet.matches(cap1, sf));
+
+        sf = SimpleFilter.parse("(|(name=bar)(version<=1.0))");
+        Set<BundleCapability> expected = new HashSet<BundleCapability>();
+        expected.add(cap1);
+        expected.add(cap3);
+        assertEquals(expected, capSet.match(sf, true));
+    }
+
+    private static void assertMatch(boolean expected, String filter, Object value)
+    {
+        SimpleFilter sf = SimpleFilter.parse(filter);
+        assertEquals(filter + " " + value, expected, sf.getMatcher().matches(attrs(value)));
+        // Once more with the cached operand.
+        assertEquals(filter + " " + value, expected, sf.getMatcher().matches(attrs(value)));
+    }
+
+    private static Map<String, Object> attrs(Object value)
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("a", value);
+        return attrs;
+    }
+
+    private static BundleCapability capability(String name, Version version)
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("name", name);
+        attrs.put("version", version);
+        return new BundleCapabilityImpl(null, "test", Collections.EMPTY_MAP, attrs);
+    }
+
+    public static class Custom
+    {
+        private final String m_value;
+
+        public Custom(String value)
+        {
+            m_value = value;
+        }
+
+        public boolean equals(Object o)
+        {
+            return (o instanceof Custom) && ((Custom) o).m_value.equals(m_value);
+        }
+
+        public int hashCode()
+        {
+            return m_value.hashCode();
+        }
+    }
+}
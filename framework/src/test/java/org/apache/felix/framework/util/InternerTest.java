@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class InternerTest extends TestCase
+{
+    private static final int THREADS = 8;
+    private static final int VALUES = 1000;
+
+    public void testIntern()
+    {
+        Interner<String> interner = new Interner<String>();
+        String a = new String("org.osgi.framework");
+        String b = new String("org.osgi.framework");
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(b));
+        assertNull(interner.intern(null));
+    }
+
+    public void testConcurrentIntern() throws Exception
+    {
+        final Interner<String> interner = new Interner<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final String[][] results = new String[THREADS][VALUES];
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int idx = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < VALUES; i++)
+                        {
+                            results[idx][i] = interner.intern(new String("value" + i));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(th);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < THREADS; t++)
+        {
+            threads[t].join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int i = 0; i < VALUES; i++)
+        {
+            assertEquals("value" + i, results[0][i]);
+            for (int t = 1; t < THREADS; t++)
+            {
+                assertSame(results[0][i], results[t][i]);
+            }
+        }
+    }
+}
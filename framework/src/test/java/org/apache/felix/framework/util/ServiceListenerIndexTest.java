@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+public class ServiceListenerIndexTest extends TestCase
+{
+    public void testIndexKeys() throws Exception
+    {
+        assertNull(ServiceListenerIndex.getKey(null));
+        assertTrue(Arrays.equals(new String[] { "objectclass", "a.B" },
+            key("(objectClass=a.B)")));
+        assertTrue(Arrays.equals(new String[] { "objectclass", "a.B" },
+            key("(&(x=1)(objectClass=a.B)(y=*))")));
+        assertTrue(Arrays.equals(new String[] { "x", "1" },
+            key("(&(y>=2)(x=1))")));
+        assertNull(key("(|(objectClass=a.B)(objectClass=a.C))"));
+        assertNull(key("(objectClass=a.*)"));
+        assertNull(key("(!(objectClass=a.B))"));
+        assertNull(key("(x=*)"));
+    }
+
+    public void testCandidates() throws Exception
+    {
+        BundleContext bc1 = context();
+        BundleContext bc2 = context();
+        ListenerInfo byClass = info(bc1, "(objectClass=a.B)");
+        ListenerInfo byOtherClass = info(bc1, "(objectClass=a.C)");
+        ListenerInfo byProp = info(bc2, "(&(x=1)(y>=1))");
+        ListenerInfo unfiltered = info(bc2, null);
+        ListenerInfo unindexed = info(bc2, "(|(objectClass=a.B)(x=2))");
+        Map<BundleContext, List<ListenerInfo>> listeners =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        listeners.put(bc1, Arrays.asList(byClass, byOtherClass));
+        listeners.put(bc2, Arrays.asList(byProp, unfiltered, unindexed));
+        ServiceListenerIndex index = new ServiceListenerIndex(listeners, null);
+        assertTrue(index.isFor(listeners));
+
+        Map<BundleContext, List<ListenerInfo>> candidates = index.getCandidates(
+            event(ServiceEvent.REGISTERED, "a.B", "2"), null);
+        assertEquals(Arrays.asList(byClass), candidates.get(bc1));
+        assertEquals(Arrays.asList(unfiltered, unindexed), candidates.get(bc2));
+
+        candidates = index.getCandidates(
+            event(ServiceEvent.REGISTERED, "a.D", "1"), null);
+        assertNull(candidates.get(bc1));
+        assertEquals(Arrays.asList(byProp, unfiltered, unindexed), candidates.get(bc2));
+
+        // Listeners matching the old properties are candidates for
+        // MODIFIED events, so they can receive MODIFIED_ENDMATCH.
+        Hashtable oldProps = new Hashtable();
+        oldProps.put("X", "1");
+        candidates = index.getCandidates(
+            event(ServiceEvent.MODIFIED, "a.D", "2"), oldProps);
+        assertEquals(Arrays.asList(byProp, unfiltered, unindexed), candidates.get(bc2));
+
+        // Values that are not strings could match after type coercion.
+        candidates = index.getCandidates(
+            event(ServiceEvent.REGISTERED, "a.D", new Integer(5)), null);
+        assertEquals(Arrays.asList(byProp, unfiltered, unindexed), candidates.get(bc2));
+
+        // Keys are reused from a previous index.
+        Map<BundleContext, List<ListenerInfo>> copy =
+            new HashMap<BundleContext, List<ListenerInfo>>(listeners);
+        copy.remove(bc2);
+        index = new ServiceListenerIndex(copy, index);
+        candidates = index.getCandidates(
+            event(ServiceEvent.REGISTERED, "a.C", "1"), null);
+        assertEquals(1, candidates.size());
+        assertEquals(Arrays.asList(byOtherClass), candidates.get(bc1));
+    }
+
+    public void testFanOutWithManyListeners() throws Exception
+    {
+        BundleContext bc = context();
+        List<ListenerInfo> infos = new ArrayList<ListenerInfo>();
+        for (int i = 0; i < 5000; i++)
+        {
+            infos.add(info(bc, "(&(objectClass=svc" + i + ")(x=1))"));
+        }
+        Map<BundleContext, List<ListenerInfo>> listeners =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        listeners.put(bc, infos);
+        ServiceListenerIndex index = new ServiceListenerIndex(listeners, null);
+
+        // Only one of the listeners has its filter evaluated per event.
+        for (int i = 0; i < 5000; i += 499)
+        {
+            Map<BundleContext, List<ListenerInfo>> candidates = index.getCandidates(
+                event(ServiceEvent.REGISTERED, "svc" + i, "1"), null);
+            assertEquals(Arrays.asList(infos.get(i)), candidates.get(bc));
+        }
+    }
+
+    public void testDelivery() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        Felix felix = new Felix(params);
+        felix.init();
+        felix.start();
+        try
+        {
+            BundleContext context = felix.getBundleContext();
+            RecordingListener byClass = new RecordingListener();
+            RecordingListener byProp = new RecordingListener();
+            RecordingListener other = new RecordingListener();
+            context.addServiceListener(
+                byClass, "(objectClass=" + Runnable.class.getName() + ")");
+            context.addServiceListener(byProp, "(&(x=1)(y=*))");
+            context.addServiceListener(
+                other, "(objectClass=" + Comparable.class.getName() + ")");
+
+            Hashtable props = new Hashtable();
+            props.put("x", "1");
+            props.put("y", "1");
+            ServiceRegistration reg = context.registerService(
+                Runnable.class.getName(), new Runnable() { public void run() {} }, props);
+            props.put("x", "2");
+            reg.setProperties(props);
+            reg.unregister();
+
+            assertEquals(Arrays.asList(new Integer[] {
+                new Integer(ServiceEvent.REGISTERED), new Integer(ServiceEvent.MODIFIED),
+                new Integer(ServiceEvent.UNREGISTERING) }), byClass.m_types);
+            assertEquals(Arrays.asList(new Integer[] {
+                new Integer(ServiceEvent.REGISTERED),
+                new Integer(ServiceEvent.MODIFIED_ENDMATCH) }), byProp.m_types);
+            assertTrue(other.m_types.isEmpty());
+
+            // Changing a filter takes effect for the next event.
+            context.addServiceListener(byProp, "(x=2)");
+            context.registerService(
+                Runnable.class.getName(), new Runnable() { public void run() {} }, props);
+            assertEquals(3, byProp.m_types.size());
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(1000);
+            deleteDir(cacheDir);
+        }
+    }
+
+    private static String[] key(String filter) throws Exception
+    {
+        return ServiceListenerIndex.getKey(FrameworkUtil.createFilter(filter));
+    }
+
+    private static ListenerInfo info(BundleContext bc, String filter) throws Exception
+    {
+        return new ListenerInfo(null, bc, ServiceListener.class, new RecordingListener(),
+            (filter == null) ? null : FrameworkUtil.createFilter(filter), null, false);
+    }
+
+    private static BundleContext context()
+    {
+        return (BundleContext) Proxy.newProxyInstance(
+            ServiceListenerIndexTest.class.getClassLoader(),
+            new Class[] { BundleContext.class }, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    else if (method.getName().equals("hashCode"))
+                    {
+                        return new Integer(System.identityHashCode(proxy));
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private static ServiceEvent event(int type, String objectClass, Object x)
+    {
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put("objectclass", new String[] { objectClass });
+        props.put("x", x);
+        ServiceReference ref = (ServiceReference) Proxy.newProxyInstance(
+            ServiceListenerIndexTest.class.getClassLoader(),
+            new Class[] { ServiceReference.class }, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getProperty"))
+                    {
+                        return props.get(((String) args[0]).toLowerCase());
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        return new ServiceEvent(type, ref);
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    private static class RecordingListener implements ServiceListener
+    {
+        private final List<Integer> m_types = new ArrayList<Integer>();
+
+        public void serviceChanged(ServiceEvent event)
+        {
+            m_types.add(new Integer(event.getType()));
+        }
+    }
+}
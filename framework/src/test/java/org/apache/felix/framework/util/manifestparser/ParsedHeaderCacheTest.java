@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.StringMap;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class ParsedHeaderCacheTest extends TestCase
+{
+    private File m_file;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_file = File.createTempFile("felix-headers", ".parsed");
+        m_file.delete();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        m_file.delete();
+    }
+
+    public void testCachedHeadersMatchParsedHeaders() throws Exception
+    {
+        Map headers = headers(
+            "org.foo; version=\"[1.0,2.0)\"; resolution:=optional, org.bar",
+            "org.baz; version=1.2; uses:=\"org.foo,org.bar\"; x=\"a,b\"");
+        ManifestParser expected = parse(headers, null);
+
+        ParsedHeaderCache cache = new ParsedHeaderCache();
+        parse(headers, cache);
+        assertTrue(cache.isModified());
+        cache.save(m_file);
+        assertFalse(cache.isModified());
+
+        cache = ParsedHeaderCache.load(m_file);
+        ManifestParser actual = parse(headers, cache);
+        assertFalse(cache.isModified());
+        assertEquals(toString(expected.getCapabilities()), toString(actual.getCapabilities()));
+        assertEquals(toString(expected.getRequirements()), toString(actual.getRequirements()));
+
+        // Parsing the same revision again must not be affected by the
+        // normalization of the previous parse.
+        actual = parse(headers, cache);
+        assertEquals(toString(expected.getRequirements()), toString(actual.getRequirements()));
+    }
+
+    public void testChangedHeadersAreParsedAgain() throws Exception
+    {
+        ParsedHeaderCache cache = new ParsedHeaderCache();
+        parse(headers("org.foo", "org.bar"), cache);
+        cache.save(m_file);
+
+        cache = ParsedHeaderCache.load(m_file);
+        ManifestParser mp = parse(headers("org.foo; version=2", "org.bar"), cache);
+        assertTrue(cache.isModified());
+        BundleRequirement req = findRequirement(mp, "org.foo");
+        assertTrue(req.getDirectives().get(Constants.FILTER_DIRECTIVE).indexOf("2.0.0") > 0);
+    }
+
+    public void testTypedValuesAreCached() throws Exception
+    {
+        Map headers = headers("org.foo; version=\"[1,2)\"", "org.bar; version=1.2.3.q");
+        headers.put(Constants.PROVIDE_CAPABILITY,
+            "foo; a:Version=1.1; b:Long=42; c:Double=1.5; d:List<Version>=\"1,2\"; e=x");
+        headers.put(Constants.REQUIRE_CAPABILITY, "foo; filter:=\"(a>=1.0)\"");
+        ManifestParser expected = parse(headers, null);
+
+        ParsedHeaderCache cache = new ParsedHeaderCache();
+        parse(headers, cache);
+        cache.save(m_file);
+
+        cache = ParsedHeaderCache.load(m_file);
+        ManifestParser actual = parse(headers, cache);
+        assertFalse(cache.isModified());
+        assertEquals(toString(expected.getCapabilities()), toString(actual.getCapabilities()));
+        assertEquals(toString(expected.getRequirements()), toString(actual.getRequirements()));
+        assertSame(findCapability(expected, "org.bar").getAttributes().get(Constants.VERSION_ATTRIBUTE),
+            findCapability(actual, "org.bar").getAttributes().get(Constants.VERSION_ATTRIBUTE));
+        assertSame(findRequirement(expected, "org.foo").getAttributes().get(Constants.VERSION_ATTRIBUTE),
+            findRequirement(actual, "org.foo").getAttributes().get(Constants.VERSION_ATTRIBUTE));
+    }
+
+    public void testChangedBundleVersionIsNormalizedAgain() throws Exception
+    {
+        Map headers = headers("org.foo", "org.bar");
+        ParsedHeaderCache cache = new ParsedHeaderCache();
+        parse(headers, cache);
+        cache.save(m_file);
+
+        // Exports carry the bundle version, so they depend on it.
+        headers.put(Constants.BUNDLE_VERSION, "2.0.0");
+        cache = ParsedHeaderCache.load(m_file);
+        ManifestParser mp = parse(headers, cache);
+        assertTrue(cache.isModified());
+        assertEquals("2.0.0", findCapability(mp, "org.bar").getAttributes()
+            .get(Constants.BUNDLE_VERSION_ATTRIBUTE).toString());
+    }
+
+    public void testCorruptedCacheIsIgnored() throws Exception
+    {
+        Map headers = headers("org.foo", "org.bar");
+        ParsedHeaderCache cache = new ParsedHeaderCache();
+        parse(headers, cache);
+        cache.save(m_file);
+
+        RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.seek(20);
+        raf.write(raf.read() ^ 0xFF);
+        raf.close();
+
+        cache = ParsedHeaderCache.load(m_file);
+        parse(headers, cache);
+        assertTrue(cache.isModified());
+    }
+
+    public void testValuesAreInterned() throws Exception
+    {
+        ManifestParser mp1 = parse(headers("org.foo; version=\"[1,2)\"", "org.bar; version=1"), null);
+        ManifestParser mp2 = parse(headers("org.foo; version=\"[1,2)\"", "org.bar; version=1"), null);
+
+        BundleRequirement req1 = findRequirement(mp1, "org.foo");
+        BundleRequirement req2 = findRequirement(mp2, "org.foo");
+        assertSame(req1.getAttributes().get(Constants.VERSION_ATTRIBUTE),
+            req2.getAttributes().get(Constants.VERSION_ATTRIBUTE));
+
+        BundleCapability cap1 = findCapability(mp1, "org.bar");
+        BundleCapability cap2 = findCapability(mp2, "org.bar");
+        assertSame(cap1.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE),
+            cap2.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE));
+        assertSame(cap1.getAttributes().get(Constants.VERSION_ATTRIBUTE),
+            cap2.getAttributes().get(Constants.VERSION_ATTRIBUTE));
+    }
+
+    private static ManifestParser parse(Map headers, ParsedHeaderCache cache)
+        throws Exception
+    {
+        return new ManifestParser(new Logger(), Collections.EMPTY_MAP, null, headers, cache);
+    }
+
+    private static Map headers(String imports, String exports)
+    {
+        Map headers = new StringMap(false);
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "test.bundle");
+        headers.put(Constants.BUNDLE_VERSION, "1.0.0");
+        headers.put(Constants.IMPORT_PACKAGE, imports);
+        headers.put(Constants.EXPORT_PACKAGE, exports);
+        return headers;
+    }
+
+    private static BundleRequirement findRequirement(ManifestParser mp, String pkg)
+    {
+        for (BundleRequirement req : mp.getRequirements())
+        {
+            if (req.getDirectives().get(Constants.FILTER_DIRECTIVE).indexOf(pkg) > 0)
+            {
+                return req;
+            }
+        }
+        return null;
+    }
+
+    private static BundleCapability findCapability(ManifestParser mp, String pkg)
+    {
+        for (BundleCapability cap : mp.getCapabilities())
+        {
+            if (pkg.equals(cap.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                return cap;
+            }
+        }
+        return null;
+    }
+
+    private static String toString(List<?> list)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (Object o : list)
+        {
+            Map<String, Object> attrs;
+            Map<String, String> dirs;
+            if (o instanceof BundleCapability)
+            {
+                attrs = ((BundleCapability) o).getAttributes();
+                dirs = ((BundleCapability) o).getDirectives();
+            }
+            else
+            {
+                attrs = ((BundleRequirement) o).getAttributes();
+                dirs = ((BundleRequirement) o).getDirectives();
+            }
+            sb.append(new HashMap<String, Object>(attrs))
+                .append(new HashMap<String, String>(dirs)).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.log;
 
+import org.apache.felix.log.reader.ExtendedLogReaderService;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogReaderService;
@@ -40,9 +41,31 @@ import org.osgi.service.log.LogService;
  *       a value of 0 means that no historic log information will be maintained.
  *       The default value is 100.</dd>
  *
+ *   <dt>org.apache.felix.log.maxBytes</dt>
+ *   <dd>Determines the maximum memory size in bytes of the historic log
+ *       information, as estimated from the messages and exceptions of the
+ *       entries.  A value of -1 means the log has no maximum memory size.
+ *       The default value is -1.</dd>
+ *
  *   <dt>org.apache.felix.log.storeDebug</dt>
  *   <dd>Determines whether or not debug messages will be stored as part of
  *       the historic log information. The default value is false.</dd>
+ *
+ *   <dt>org.apache.felix.log.overflowPolicy</dt>
+ *   <dd>Determines what happens if the historic log information has reached
+ *       its maximum size: <code>overwrite</code> replaces the oldest entries,
+ *       <code>discard</code> keeps the oldest entries and does not store any
+ *       new ones.  Log listeners always receive all entries.  The default
+ *       value is overwrite.</dd>
+ *
+ *   <dt>org.apache.felix.log.evictLeastSevere</dt>
+ *   <dd>Determines whether the entries of the least severe level are removed
+ *       first if the historic log information has reached its maximum size,
+ *       so an entry never replaces an entry of a more severe level.  With the
+ *       <code>discard</code> overflow policy a new entry then still replaces
+ *       the oldest entry of a less severe level.  The historic log information
+ *       then no longer holds the most recent entries but the most severe ones.
+ *       The default value is false.</dd>
  * </dl>
  */
 public final class Activator implements BundleActivator
@@ -51,10 +74,22 @@ public final class Activator implements BundleActivator
     private static final String MAX_SIZE_PROPERTY = "org.apache.felix.log.maxSize";
     /** The default value for the maximum size property. */
     private static final int DEFAULT_MAX_SIZE = 100;
+    /** The name of the property that defines the maximum memory size of the log. */
+    private static final String MAX_BYTES_PROPERTY = "org.apache.felix.log.maxBytes";
+    /** The default value for the maximum memory size property. */
+    private static final long DEFAULT_MAX_BYTES = -1;
     /** The name of the property that defines whether debug messages are stored. */
     private static final String STORE_DEBUG_PROPERTY = "org.apache.felix.log.storeDebug";
     /** The default value for the store debug property. */
     private static final boolean DEFAULT_STORE_DEBUG = false;
+    /** The name of the property that defines the overflow policy. */
+    private static final String OVERFLOW_POLICY_PROPERTY = "org.apache.felix.log.overflowPolicy";
+    /** The default value for the overflow policy property. */
+    private static final String DEFAULT_OVERFLOW_POLICY = LogBuffer.OVERFLOW_OVERWRITE;
+    /** The name of the property that defines whether less severe entries are removed first. */
+    private static final String EVICT_LEAST_SEVERE_PROPERTY = "org.apache.felix.log.evictLeastSevere";
+    /** The default value for the evict least severe property. */
+    private static final boolean DEFAULT_EVICT_LEAST_SEVERE = false;
     /** The log. */
     private Log m_log;
 
@@ -83,6 +118,31 @@ public final class Activator implements BundleActivator
         return maxSize;
     }
 
+    /**
+     * Returns the maximum memory size for the log.
+     * @param context the bundle context (used to look up a property)
+     * @return the maximum memory size for the log in bytes
+     */
+    private static long getMaxBytes(final BundleContext context)
+    {
+        long maxBytes = DEFAULT_MAX_BYTES;
+
+        String maxBytesPropValue = context.getProperty(MAX_BYTES_PROPERTY);
+        if (maxBytesPropValue != null)
+        {
+            try
+            {
+                maxBytes = Long.parseLong(maxBytesPropValue);
+            }
+            catch (NumberFormatException e)
+            {
+                // the property value is invalid - ignore
+            }
+        }
+
+        return maxBytes;
+    }
+
     /**
      * Returns whether or not to store debug messages.
      * @param context the bundle context (used to look up a property)
@@ -101,6 +161,42 @@ public final class Activator implements BundleActivator
         return storeDebug;
     }
 
+    /**
+     * Returns the policy if the log has reached its maximum size.
+     * @param context the bundle context (used to look up a property)
+     * @return the overflow policy
+     */
+    private static String getOverflowPolicy(final BundleContext context)
+    {
+        String overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+        String overflowPolicyPropValue = context.getProperty(OVERFLOW_POLICY_PROPERTY);
+        if (LogBuffer.OVERFLOW_DISCARD.equals(overflowPolicyPropValue))
+        {
+            overflowPolicy = LogBuffer.OVERFLOW_DISCARD;
+        }
+
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns whether to remove the entries of the least severe level first.
+     * @param context the bundle context (used to look up a property)
+     * @return whether to remove the entries of the least severe level first
+     */
+    private static boolean getEvictLeastSevere(final BundleContext context)
+    {
+        boolean evictLeastSevere = DEFAULT_EVICT_LEAST_SEVERE;
+
+        String evictLeastSeverePropValue = context.getProperty(EVICT_LEAST_SEVERE_PROPERTY);
+        if (evictLeastSeverePropValue != null)
+        {
+            evictLeastSevere = Boolean.valueOf(evictLeastSeverePropValue).booleanValue();
+        }
+
+        return evictLeastSevere;
+    }
+
     /**
      * Called by the OSGi framework when the bundle is started.
      * Used to register the service implementations with the framework.
@@ -110,7 +206,9 @@ public final class Activator implements BundleActivator
     public void start(final BundleContext context) throws Exception
     {
         // create the log instance
-        m_log = new Log(getMaxSize(context), getStoreDebug(context));
+        m_log = new Log(getMaxSize(context), getMaxBytes(context),
+            getStoreDebug(context), getOverflowPolicy(context),
+            getEvictLeastSevere(context));
 
         // register the listeners
         context.addBundleListener(m_log);
@@ -121,7 +219,8 @@ public final class Activator implements BundleActivator
         context.registerService(LogService.class.getName(),
             new LogServiceFactory(m_log), null);
 
-        context.registerService(LogReaderService.class.getName(),
+        context.registerService(new String[] {LogReaderService.class.getName(),
+            ExtendedLogReaderService.class.getName()},
             new LogReaderServiceFactory(m_log), null);
     }
 
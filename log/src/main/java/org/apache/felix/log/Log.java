@@ -39,34 +39,45 @@ import org.osgi.service.log.LogService;
  */
 final class Log implements BundleListener, FrameworkListener, ServiceListener
 {
-    /** The first log entry. */
-    private LogNode m_head;
-    /** The last log entry. */
-    private LogNode m_tail;
-    /** The log size. */
-    private int m_size;
+    /** The historic log entries. */
+    private volatile LogBuffer m_buffer;
     /** The log listener thread. */
-    private LogListenerThread listenerThread;
+    private volatile LogListenerThread listenerThread;
     /** The maximum size for the log. */
     private final int m_maxSize;
+    /** The maximum memory size for the log in bytes. */
+    private final long m_maxBytes;
     /** Whether or not to store debug messages. */
     private final boolean m_storeDebug;
+    /** The policy if the log is full. */
+    private final String m_overflowPolicy;
+    /** Whether the entries of the least severe level are removed first. */
+    private final boolean m_evictLeastSevere;
 
     /**
      * Create a new instance.
      * @param maxSize the maximum size for the log
+     * @param maxBytes the maximum memory size for the log in bytes
      * @param storeDebug whether or not to store debug messages
+     * @param overflowPolicy the policy if the log is full
+     * @param evictLeastSevere whether to remove the entries of the least
+     *        severe level first if the log is full
      */
-    Log(final int maxSize, final boolean storeDebug)
+    Log(final int maxSize, final long maxBytes, final boolean storeDebug,
+        final String overflowPolicy, final boolean evictLeastSevere)
     {
         this.m_maxSize = maxSize;
+        this.m_maxBytes = maxBytes;
         this.m_storeDebug = storeDebug;
+        this.m_overflowPolicy = overflowPolicy;
+        this.m_evictLeastSevere = evictLeastSevere;
+        this.m_buffer = new LogBuffer(maxSize, maxBytes, overflowPolicy, evictLeastSevere);
     }
 
     /**
      * Close the log.
      */
-    void close()
+    synchronized void close()
     {
         if (listenerThread != null)
         {
@@ -74,62 +85,28 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
             listenerThread = null;
         }
 
-        m_head = null;
-        m_tail = null;
-        m_size = 0;
+        m_buffer = new LogBuffer(m_maxSize, m_maxBytes, m_overflowPolicy, m_evictLeastSevere);
     }
 
     /**
-     * Adds the entry to the log.
+     * Adds the entry to the log.  This method does not lock, so it can
+     * be called by any number of threads concurrently.
      * @param entry the entry to add to the log
      */
-    synchronized void addEntry(final LogEntry entry)
+    void addEntry(final LogEntryImpl entry)
     {
-        if (m_maxSize != 0)
+        // add the entry to the historic log
+        if (m_maxSize != 0
+            && (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG))
         {
-            // add the entry to the historic log
-            if (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG)
-            {
-                // create a new node for the entry
-                LogNode node = new LogNode(entry);
-
-                // add to the front of the linked list
-                node.setNextNode(m_head);
-                if (m_head != null)
-                {
-                    m_head.setPreviousNode(node);
-                }
-
-                // and store the node
-                m_head = node;
-
-                // bump the size of the list
-                ++m_size;
-
-                // if no tail node - add the node to the tail
-                if (m_tail == null)
-                {
-                    m_tail = node;
-                }
-            }
-
-            // ensure the historic log doesn't grow beyond a certain size
-            if (m_maxSize != -1)
-            {
-                if (m_size > m_maxSize)
-                {
-                    LogNode last = m_tail.getPreviousNode();
-                    last.setNextNode(null);
-                    m_tail = last;
-                    --m_size;
-                }
-            }
+            m_buffer.add(entry);
         }
 
         // notify any listeners
-        if (listenerThread != null)
+        LogListenerThread thread = listenerThread;
+        if (thread != null)
         {
-            listenerThread.addEntry(entry);
+            thread.addEntry(entry);
         }
     }
 
@@ -143,10 +120,15 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
         {
             // create a new listener thread if necessary:
             // the listener thread only runs if there are any registered listeners
-            listenerThread = new LogListenerThread();
-            listenerThread.start();
+            LogListenerThread thread = new LogListenerThread();
+            thread.addListener(listener);
+            thread.start();
+            listenerThread = thread;
+        }
+        else
+        {
+            listenerThread.addListener(listener);
         }
-        listenerThread.addListener(listener);
     }
 
     /**
@@ -172,9 +154,21 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
      * Returns an enumeration of all the entries in the log most recent first.
      * @return an enumeration of all the entries in the log most recent first
      */
-    synchronized Enumeration getEntries()
+    Enumeration<LogEntry> getEntries()
+    {
+        return m_buffer.getEntries();
+    }
+
+    /**
+     * Returns an enumeration of the matching entries in the log most recent first.
+     * @param bundleId the id of the bundle which logged the entries, -1 for all bundles
+     * @param level the least severe level of the entries
+     * @param since the earliest time of the entries in milliseconds
+     * @return an enumeration of the matching entries in the log most recent first
+     */
+    Enumeration<LogEntry> getEntries(final long bundleId, final int level, final long since)
     {
-        return new LogNodeEnumeration(m_head, m_tail);
+        return m_buffer.getEntries(bundleId, level, since);
     }
 
     /** The messages returned for the framework events. */
@@ -205,7 +199,7 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
             }
         }
 
-        LogEntry entry = new LogEntryImpl(event.getBundle(),
+        LogEntryImpl entry = new LogEntryImpl(event.getBundle(),
             null,
             (eventType == FrameworkEvent.ERROR) ? LogService.LOG_ERROR : LogService.LOG_INFO,
             message,
@@ -245,7 +239,7 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
 
         if (message != null)
         {
-            LogEntry entry = new LogEntryImpl(event.getBundle(),
+            LogEntryImpl entry = new LogEntryImpl(event.getBundle(),
                 null,
                 LogService.LOG_INFO,
                 message,
@@ -280,7 +274,7 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
             }
         }
 
-        LogEntry entry = new LogEntryImpl(event.getServiceReference().getBundle(),
+        LogEntryImpl entry = new LogEntryImpl(event.getServiceReference().getBundle(),
             event.getServiceReference(),
             (eventType == ServiceEvent.MODIFIED) ? LogService.LOG_DEBUG : LogService.LOG_INFO,
             message,
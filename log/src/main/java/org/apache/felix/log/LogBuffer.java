@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+/**
+ * The store for the historic log entries.  Entries can be added by any number
+ * of threads concurrently without blocking.
+ * <p>
+ * New entries are queued and moved into the store in batches by whichever
+ * thread gets hold of the store first.  The store keeps one partition per
+ * log level, each indexed by bundle id, so queries for a bundle or a level
+ * only look at the matching entries.
+ * <p>
+ * The store is bounded by the number of entries and by their estimated
+ * memory size.  If it is full, the oldest entry is removed, or with the
+ * <code>discard</code> overflow policy the new entry is dropped, so the store
+ * holds the most recent (or the first) entries.  Optionally the entries of
+ * the least severe level are removed first instead, so an entry never
+ * replaces a more severe one.  With the <code>discard</code> overflow policy
+ * an entry then only replaces entries of a less severe level and is dropped
+ * otherwise.
+ */
+final class LogBuffer
+{
+    /** The overflow policy replacing the oldest entries. */
+    static final String OVERFLOW_OVERWRITE = "overwrite";
+    /** The overflow policy discarding new entries. */
+    static final String OVERFLOW_DISCARD = "discard";
+
+    /** The number of queued entries which triggers moving them into the store. */
+    private static final int DRAIN_THRESHOLD = 64;
+
+    /** Orders entries by descending sequence number, the most recent first. */
+    private static final Comparator<LogEntry> MOST_RECENT_FIRST = new Comparator<LogEntry>()
+    {
+        public int compare(final LogEntry o1, final LogEntry o2)
+        {
+            long s1 = ((LogEntryImpl) o1).getSequence();
+            long s2 = ((LogEntryImpl) o2).getSequence();
+            return (s1 > s2) ? -1 : ((s1 == s2) ? 0 : 1);
+        }
+    };
+
+    /** The entries not yet moved into the store. */
+    private final ConcurrentLinkedQueue<LogEntryImpl> m_pending = new ConcurrentLinkedQueue<LogEntryImpl>();
+    /** The number of entries not yet moved into the store. */
+    private final AtomicInteger m_pendingCount = new AtomicInteger();
+    /** The lock guarding the store. */
+    private final ReentrantLock m_lock = new ReentrantLock();
+    /** The stored entries per level, the most severe level first. */
+    private final Partition[] m_partitions = new Partition[LogService.LOG_DEBUG];
+    /** The maximum number of entries, -1 for no maximum. */
+    private final int m_maxSize;
+    /** The maximum estimated size of the entries in bytes, -1 for no maximum. */
+    private final long m_maxBytes;
+    /** Whether new entries are discarded if the store is full. */
+    private final boolean m_discard;
+    /** Whether the entries of the least severe level are removed first. */
+    private final boolean m_evictLeastSevere;
+
+    /** The sequence number of the next stored entry. */
+    private long m_sequence;
+    /** The number of stored entries. */
+    private int m_size;
+    /** The estimated size of the stored entries in bytes. */
+    private long m_bytes;
+
+    /**
+     * Create a new instance.
+     * @param maxSize the maximum number of entries, -1 for no maximum
+     * @param maxBytes the maximum size of the entries in bytes, -1 for no maximum
+     * @param overflowPolicy the overflow policy
+     * @param evictLeastSevere whether to remove the entries of the least
+     *        severe level first if the store is full
+     */
+    LogBuffer(final int maxSize, final long maxBytes, final String overflowPolicy,
+        final boolean evictLeastSevere)
+    {
+        m_maxSize = maxSize;
+        m_maxBytes = maxBytes;
+        m_discard = OVERFLOW_DISCARD.equals(overflowPolicy);
+        m_evictLeastSevere = evictLeastSevere;
+        for (int i = 0; i < m_partitions.length; i++)
+        {
+            m_partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Adds the entry to the store.
+     * @param entry the entry to add
+     */
+    void add(final LogEntryImpl entry)
+    {
+        m_pending.offer(entry);
+
+        // move the queued entries into the store unless another thread
+        // is already busy with the store
+        if (m_pendingCount.incrementAndGet() >= DRAIN_THRESHOLD && m_lock.tryLock())
+        {
+            try
+            {
+                drain();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of all entries in the store, most recent first.
+     * @return an enumeration of the entries
+     */
+    Enumeration<LogEntry> getEntries()
+    {
+        return getEntries(-1, Integer.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns a snapshot of the matching entries in the store, most recent
+     * first.
+     * @param bundleId the id of the bundle which logged the entries, -1 for
+     *        all entries
+     * @param level the least severe level of the entries
+     * @param since the earliest time of the entries in milliseconds
+     * @return an enumeration of the entries
+     */
+    Enumeration<LogEntry> getEntries(final long bundleId, final int level, final long since)
+    {
+        final List<LogEntry> entries = new ArrayList<LogEntry>();
+        int partitions = 0;
+
+        m_lock.lock();
+        try
+        {
+            drain();
+
+            final int last = getPartitionIndex(level);
+            for (int i = 0; i <= last; i++)
+            {
+                EntryQueue queue = (bundleId < 0) ? m_partitions[i].m_entries
+                    : m_partitions[i].getEntries(bundleId);
+                if (queue == null || queue.size() == 0)
+                {
+                    continue;
+                }
+
+                ++partitions;
+                for (int j = queue.size() - 1; j >= 0; --j)
+                {
+                    // the entries are ordered by the time they were moved into
+                    // the store, which may differ from the time they were created
+                    LogEntryImpl entry = queue.get(j);
+                    if (entry.getTime() >= since && entry.getLevel() <= level)
+                    {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        // the entries of each partition are already ordered
+        if (partitions > 1)
+        {
+            Collections.sort(entries, MOST_RECENT_FIRST);
+        }
+        return Collections.enumeration(entries);
+    }
+
+    /**
+     * Moves the queued entries into the store.  Must be called with the
+     * lock held.
+     */
+    private void drain()
+    {
+        LogEntryImpl entry;
+        while ((entry = m_pending.poll()) != null)
+        {
+            m_pendingCount.decrementAndGet();
+            store(entry);
+        }
+    }
+
+    /**
+     * Stores the entry, removing older entries if the store is full.
+     * @param entry the entry to store
+     */
+    private void store(final LogEntryImpl entry)
+    {
+        final int index = getPartitionIndex(entry.getLevel());
+        final int size = entry.getSize();
+        if (m_maxBytes != -1 && size > m_maxBytes)
+        {
+            return;
+        }
+
+        while ((m_maxSize != -1 && m_size >= m_maxSize)
+            || (m_maxBytes != -1 && m_bytes + size > m_maxBytes))
+        {
+            final int victim = m_evictLeastSevere ? getLeastSevere(index) : getOldest();
+            if (victim < 0)
+            {
+                return;
+            }
+
+            LogEntryImpl removed = m_partitions[victim].removeOldest();
+            --m_size;
+            m_bytes -= removed.getSize();
+        }
+
+        entry.setSequence(m_sequence++);
+        m_partitions[index].add(entry);
+        ++m_size;
+        m_bytes += size;
+    }
+
+    /**
+     * Returns the partition holding the oldest entry, which is the first
+     * entry of its partition.
+     * @return the index of the partition or -1 if the new entry is to be
+     *         discarded
+     */
+    private int getOldest()
+    {
+        if (m_discard)
+        {
+            return -1;
+        }
+
+        int oldest = -1;
+        long sequence = Long.MAX_VALUE;
+        for (int i = 0; i < m_partitions.length; i++)
+        {
+            EntryQueue queue = m_partitions[i].m_entries;
+            if (queue.size() > 0 && queue.get(0).getSequence() < sequence)
+            {
+                oldest = i;
+                sequence = queue.get(0).getSequence();
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Returns the partition of the least severe level whose oldest entry
+     * a new entry may replace.
+     * @param index the partition of the new entry
+     * @return the index of the partition or -1 if the new entry is to be
+     *         discarded
+     */
+    private int getLeastSevere(final int index)
+    {
+        final int first = m_discard ? index + 1 : index;
+        int victim = m_partitions.length - 1;
+        while (victim >= first && m_partitions[victim].m_entries.size() == 0)
+        {
+            --victim;
+        }
+        return (victim < first) ? -1 : victim;
+    }
+
+    /**
+     * Returns the partition for the level.  Levels beyond the levels defined by
+     * the {@link LogService} are stored with the nearest defined level.
+     * @param level the log level
+     * @return the index of the partition
+     */
+    private int getPartitionIndex(final int level)
+    {
+        if (level <= LogService.LOG_ERROR)
+        {
+            return 0;
+        }
+        if (level >= LogService.LOG_DEBUG)
+        {
+            return m_partitions.length - 1;
+        }
+        return level - 1;
+    }
+
+    /**
+     * The entries of a level, oldest first, indexed by bundle id.
+     */
+    private static final class Partition
+    {
+        /** The entries. */
+        final EntryQueue m_entries = new EntryQueue();
+        /** The entries per bundle id, entries without a bundle use <code>null</code>. */
+        private final Map<Long, EntryQueue> m_bundles = new HashMap<Long, EntryQueue>();
+
+        /**
+         * Returns the entries of the bundle.
+         * @param bundleId the id of the bundle
+         * @return the entries or <code>null</code> if there are none
+         */
+        EntryQueue getEntries(final long bundleId)
+        {
+            return m_bundles.get(Long.valueOf(bundleId));
+        }
+
+        /**
+         * Adds the entry as the most recent entry.
+         * @param entry the entry to add
+         */
+        void add(final LogEntryImpl entry)
+        {
+            m_entries.addLast(entry);
+
+            Long key = getKey(entry);
+            EntryQueue bundleEntries = m_bundles.get(key);
+            if (bundleEntries == null)
+            {
+                bundleEntries = new EntryQueue();
+                m_bundles.put(key, bundleEntries);
+            }
+            bundleEntries.addLast(entry);
+        }
+
+        /**
+         * Removes the oldest entry, which is also the oldest entry of its
+         * bundle.
+         * @return the removed entry
+         */
+        LogEntryImpl removeOldest()
+        {
+            LogEntryImpl entry = m_entries.removeFirst();
+
+            Long key = getKey(entry);
+            EntryQueue bundleEntries = m_bundles.get(key);
+            bundleEntries.removeFirst();
+            if (bundleEntries.size() == 0)
+            {
+                m_bundles.remove(key);
+            }
+
+            return entry;
+        }
+
+        private static Long getKey(final LogEntryImpl entry)
+        {
+            Bundle bundle = entry.getBundle();
+            return (bundle == null) ? null : Long.valueOf(bundle.getBundleId());
+        }
+    }
+
+    /**
+     * A growable circular array of entries.
+     */
+    private static final class EntryQueue
+    {
+        /** The elements. */
+        private LogEntryImpl[] m_elements = new LogEntryImpl[16];
+        /** The index of the first element. */
+        private int m_head;
+        /** The number of elements. */
+        private int m_size;
+
+        int size()
+        {
+            return m_size;
+        }
+
+        LogEntryImpl get(final int index)
+        {
+            return m_elements[(m_head + index) % m_elements.length];
+        }
+
+        void addLast(final LogEntryImpl entry)
+        {
+            if (m_size == m_elements.length)
+            {
+                LogEntryImpl[] elements = new LogEntryImpl[m_size * 2];
+                for (int i = 0; i < m_size; i++)
+                {
+                    elements[i] = get(i);
+                }
+                m_elements = elements;
+                m_head = 0;
+            }
+            m_elements[(m_head + m_size) % m_elements.length] = entry;
+            ++m_size;
+        }
+
+        LogEntryImpl removeFirst()
+        {
+            LogEntryImpl entry = m_elements[m_head];
+            m_elements[m_head] = null;
+            m_head = (m_head + 1) % m_elements.length;
+            --m_size;
+            return entry;
+        }
+    }
+}
@@ -49,6 +49,18 @@ final class LogEntryImpl implements LogEntry
     private final ServiceReference m_serviceReference;
     /** The system time in milliseconds when this LogEntry object was created. */
     private final long m_time;
+    /** The estimated memory size in bytes of this LogEntry object. */
+    private final int m_size;
+    /** The sequence number of this LogEntry object in the log buffer. */
+    private long m_sequence = -1;
+
+    /** The estimated size in bytes of an entry without message and exception. */
+    private static final int ENTRY_SIZE = 96;
+    /**
+     * The estimated size in bytes of an exception without message, including
+     * a stack trace of typical depth.
+     */
+    private static final int EXCEPTION_SIZE = 2048;
 
     /**
      * Create a new instance.
@@ -70,6 +82,36 @@ final class LogEntryImpl implements LogEntry
         this.m_message = message;
         this.m_serviceReference = sr;
         this.m_time = System.currentTimeMillis();
+        this.m_size = estimateSize(message, m_exception);
+    }
+
+    /**
+     * Estimates the memory size of an entry with the specified message and
+     * exception.  Strings are counted with two bytes per character, each
+     * exception in the cause chain is counted with a fixed size as looking
+     * at the stack trace would have to fill it in.
+     * @param message the message of the entry
+     * @param exception the exception of the entry
+     * @return the estimated size in bytes
+     */
+    private static int estimateSize(final String message, final Throwable exception)
+    {
+        int size = ENTRY_SIZE;
+        if (message != null)
+        {
+            size += 2 * message.length();
+        }
+
+        Throwable t = exception;
+        while (t != null)
+        {
+            String exceptionMessage = t.getMessage();
+            size += EXCEPTION_SIZE
+                + (exceptionMessage == null ? 0 : 2 * exceptionMessage.length());
+            t = t.getCause();
+        }
+
+        return size;
     }
 
     /**
@@ -147,4 +189,31 @@ final class LogEntryImpl implements LogEntry
     {
         return m_time;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the estimated memory size of this LogEntry object.
+     * @return the estimated size in bytes
+     */
+    int getSize()
+    {
+        return m_size;
+    }
+
+    /**
+     * Returns the sequence number of this LogEntry object in the log buffer.
+     * @return the sequence number or -1 if the entry is not stored in a buffer
+     */
+    long getSequence()
+    {
+        return m_sequence;
+    }
+
+    /**
+     * Sets the sequence number of this LogEntry object in the log buffer.
+     * @param sequence the sequence number
+     */
+    void setSequence(final long sequence)
+    {
+        m_sequence = sequence;
+    }
+}
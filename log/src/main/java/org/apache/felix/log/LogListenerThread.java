@@ -21,6 +21,8 @@ package org.apache.felix.log;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
@@ -30,13 +32,24 @@ import org.osgi.service.log.LogListener;
  * any {@link LogListener} subscribers.  A subscriber can be added using the
  * {@link org.osgi.service.log.LogReaderService#addLogListener(LogListener)}
  * method.
+ * <p>
+ * Entries are handed over in a lock-free queue; the thread is only notified
+ * if it is waiting for entries.  All entries queued at a time are delivered
+ * in a single batch.
  */
 final class LogListenerThread extends Thread
 {
-    // The list of entries waiting to be delivered to the log listeners.
-    private final List m_entriesToDeliver = new ArrayList();
+    /** The maximum number of entries delivered in a single batch. */
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    // The queue of entries waiting to be delivered to the log listeners.
+    private final ConcurrentLinkedQueue m_entriesToDeliver = new ConcurrentLinkedQueue();
     // The list of listeners.
-    private final List m_listeners = new ArrayList();
+    private final List m_listeners = new CopyOnWriteArrayList();
+    // The lock used to wait for entries.
+    private final Object m_lock = new Object();
+    // Whether the thread is waiting for entries.
+    private volatile boolean m_waiting;
 
     LogListenerThread() {
         super("FelixLogListener");
@@ -48,10 +61,13 @@ final class LogListenerThread extends Thread
      */
     void addEntry(final LogEntry entry)
     {
-        synchronized (m_entriesToDeliver)
+        m_entriesToDeliver.offer(entry);
+        if (m_waiting)
         {
-            m_entriesToDeliver.add(entry);
-            m_entriesToDeliver.notifyAll();
+            synchronized (m_lock)
+            {
+                m_lock.notifyAll();
+            }
         }
     }
 
@@ -61,10 +77,7 @@ final class LogListenerThread extends Thread
      */
     void addListener(final LogListener listener)
     {
-        synchronized (m_listeners)
-        {
-            m_listeners.add(listener);
-        }
+        m_listeners.add(listener);
     }
 
     /**
@@ -73,10 +86,7 @@ final class LogListenerThread extends Thread
      */
     void removeListener(final LogListener listener)
     {
-        synchronized (m_listeners)
-        {
-            m_listeners.remove(listener);
-        }
+        m_listeners.remove(listener);
     }
 
     /**
@@ -85,10 +95,7 @@ final class LogListenerThread extends Thread
      */
     int getListenerCount()
     {
-        synchronized (m_listeners)
-        {
-            return m_listeners.size();
-        }
+        return m_listeners.size();
     }
 
     /**
@@ -96,7 +103,7 @@ final class LogListenerThread extends Thread
      */
     void shutdown()
     {
-        synchronized (m_entriesToDeliver)
+        synchronized (m_lock)
         {
             interrupt();
         }
@@ -108,16 +115,29 @@ final class LogListenerThread extends Thread
      */
     public void run()
     {
+        List entriesToDeliver = new ArrayList();
         while (!isInterrupted())
         {
-            List entriesToDeliver = new ArrayList();
-            synchronized (m_entriesToDeliver)
+            Object entry;
+            while (entriesToDeliver.size() < MAX_BATCH_SIZE
+                && (entry = m_entriesToDeliver.poll()) != null)
+            {
+                entriesToDeliver.add(entry);
+            }
+
+            if (entriesToDeliver.isEmpty())
             {
-                if (m_entriesToDeliver.isEmpty())
+                synchronized (m_lock)
                 {
+                    // the flag is set before checking the queue, so an entry
+                    // added concurrently always notifies us
+                    m_waiting = true;
                     try
                     {
-                        m_entriesToDeliver.wait();
+                        if (m_entriesToDeliver.isEmpty())
+                        {
+                            m_lock.wait();
+                        }
                     }
                     catch (InterruptedException e)
                     {
@@ -125,38 +145,29 @@ final class LogListenerThread extends Thread
                         // interrupt this thread again to stop it...
                         interrupt();
                     }
-                }
-                else 
-                {
-                    // Copy all current entries and deliver them in a single go...
-                    entriesToDeliver.addAll(m_entriesToDeliver);
-                    m_entriesToDeliver.clear();
+                    finally
+                    {
+                        m_waiting = false;
+                    }
                 }
             }
-            
-            if (!entriesToDeliver.isEmpty())
+            else
             {
-                // Take a snapshot of all current listeners and deliver all
-                // pending messages to them...
-                List listeners = new ArrayList();
-                synchronized (m_listeners) 
-                {
-                    listeners.addAll(m_listeners);
-                }
-
+                // Deliver all pending messages to the current listeners; the
+                // iterator of the listener list is a snapshot.
                 Iterator entriesIt = entriesToDeliver.iterator();
-                while (entriesIt.hasNext()) 
+                while (entriesIt.hasNext())
                 {
-                    LogEntry entry = (LogEntry) entriesIt.next();
-                    
-                    Iterator listenerIt = listeners.iterator();
+                    LogEntry logEntry = (LogEntry) entriesIt.next();
+
+                    Iterator listenerIt = m_listeners.iterator();
                     while (listenerIt.hasNext())
                     {
                         LogListener listener = (LogListener) listenerIt.next();
-                        
+
                         try
                         {
-                            listener.logged(entry);
+                            listener.logged(logEntry);
                         }
                         catch (Throwable t)
                         {
@@ -164,7 +175,8 @@ final class LogListenerThread extends Thread
                         }
                     }
                 }
+                entriesToDeliver.clear();
             }
         }
     }
-}
\ No newline at end of file
+}
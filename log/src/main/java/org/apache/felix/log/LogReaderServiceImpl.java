@@ -23,6 +23,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 
+import org.apache.felix.log.reader.ExtendedLogReaderService;
+import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
 import org.osgi.service.log.LogReaderService;
 
@@ -35,8 +37,11 @@ import org.osgi.service.log.LogReaderService;
  * developers can use to retrieve information contained in this log, and receive
  * notifications about {@link org.osgi.service.log.LogEntry} objects when they are created
  * through the {@link org.osgi.service.log.LogService}.
+ * <p>
+ * As an {@link ExtendedLogReaderService} it also allows to retrieve the entries
+ * of a bundle, a level and a time range without enumerating the whole log.
  */
-final class LogReaderServiceImpl implements LogReaderService
+final class LogReaderServiceImpl implements ExtendedLogReaderService
 {
     /** The log implementation. */
     private final Log m_log;
@@ -92,6 +97,20 @@ final class LogReaderServiceImpl implements LogReaderService
         return m_log.getEntries();
     }
 
+    /**
+     * This method retrieves the past log entries logged by a bundle at a level
+     * or a more severe level since a point in time as an enumeration with the
+     * most recent entry first.
+     * @param bundleId the id of the bundle or {@link #ALL_BUNDLES}
+     * @param level the least severe level of the entries to return
+     * @param since the earliest time of the entries to return in milliseconds
+     * @return an enumeration of the matching {@link LogEntry} objects
+     */
+    public Enumeration<LogEntry> getLog(final long bundleId, final int level, final long since)
+    {
+        return m_log.getEntries(bundleId, level, since);
+    }
+
     /**
      * Remove all log listeners registered through this service.
      */
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log.reader;
+
+import java.util.Enumeration;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogReaderService;
+
+/**
+ * Extension of the OSGi {@link LogReaderService} which allows to retrieve
+ * the past log entries of a bundle, a level and a time range.  The log is
+ * indexed by bundle and level, so the matching entries are returned without
+ * enumerating the whole log.
+ * <p>
+ * The Apache Felix log service registers its {@link LogReaderService} under
+ * this interface, too.
+ */
+public interface ExtendedLogReaderService extends LogReaderService
+{
+    /** The bundle id to retrieve the log entries of all bundles. */
+    long ALL_BUNDLES = -1;
+
+    /**
+     * This method retrieves the past log entries logged by a bundle at a level
+     * or a more severe level since a point in time as an enumeration with the
+     * most recent entry first.  For example, the warnings and errors of bundle
+     * 5 in the last minute are returned by
+     * <code>getLog(5, LogService.LOG_WARNING, System.currentTimeMillis() - 60000)</code>.
+     * @param bundleId the id of the bundle or {@link #ALL_BUNDLES}
+     * @param level the least severe level of the entries to return
+     * @param since the earliest time of the entries to return in milliseconds
+     * @return an enumeration of the matching {@link LogEntry} objects
+     */
+    Enumeration<LogEntry> getLog(long bundleId, int level, long since);
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+/**
+ * Measures the throughput of adding log entries from many threads
+ * concurrently, with and without a log listener.
+ *
+ * Usage: <code>LogBenchmark [threads] [entries per thread] [max size]</code>
+ */
+public class LogBenchmark
+{
+    public static void main(final String[] args) throws Exception
+    {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int entries = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        final int maxSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        for (int listener = 0; listener < 2; listener++)
+        {
+            // warm up
+            run(threads, entries / 10, maxSize, listener == 1);
+            final long start = System.nanoTime();
+            run(threads, entries, maxSize, listener == 1);
+            final long time = System.nanoTime() - start;
+
+            System.out.println(threads + " threads logged " + (long) threads * entries + " entries"
+                + (listener == 1 ? " with a listener: " : ": ")
+                + ((long) threads * entries * 1000000000L / time) + " entries/s");
+        }
+    }
+
+    private static void run(final int threads, final int entries, final int maxSize,
+        final boolean listener) throws Exception
+    {
+        final Log log = new Log(maxSize, -1, true, LogBuffer.OVERFLOW_OVERWRITE, false);
+        final CountDownLatch delivered = new CountDownLatch(listener ? threads * entries : 0);
+        if (listener)
+        {
+            log.addListener(new LogListener()
+            {
+                public void logged(final LogEntry entry)
+                {
+                    delivered.countDown();
+                }
+            });
+        }
+
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] producers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            producers[i] = new Thread()
+            {
+                public void run()
+                {
+                    ready.countDown();
+                    try
+                    {
+                        go.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int j = 0; j < entries; j++)
+                    {
+                        log.addEntry(new LogEntryImpl(null, null, LogService.LOG_INFO, "benchmark", null));
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        ready.await();
+        go.countDown();
+        for (int i = 0; i < threads; i++)
+        {
+            producers[i].join();
+        }
+        delivered.await();
+        log.close();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+public class LogBufferTest extends TestCase
+{
+    private static Bundle bundle(final long id)
+    {
+        return (Bundle) Proxy.newProxyInstance(LogBufferTest.class.getClassLoader(),
+            new Class[] { Bundle.class }, new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                {
+                    if ("getBundleId".equals(method.getName()))
+                    {
+                        return Long.valueOf(id);
+                    }
+                    if ("hashCode".equals(method.getName()))
+                    {
+                        return Integer.valueOf((int) id);
+                    }
+                    if ("equals".equals(method.getName()))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    return "bundle" + id;
+                }
+            });
+    }
+
+    private static LogEntryImpl entry(final Bundle bundle, final int level, final String message)
+    {
+        return new LogEntryImpl(bundle, null, level, message, null);
+    }
+
+    private static List messages(final Enumeration entries)
+    {
+        final List result = new ArrayList();
+        while (entries.hasMoreElements())
+        {
+            result.add(((LogEntry) entries.nextElement()).getMessage());
+        }
+        return result;
+    }
+
+    private static List list(final String[] messages)
+    {
+        final List result = new ArrayList();
+        for (int i = 0; i < messages.length; i++)
+        {
+            result.add(messages[i]);
+        }
+        return result;
+    }
+
+    public void testQueryByBundleAndLevel()
+    {
+        final LogBuffer buffer = new LogBuffer(-1, -1, LogBuffer.OVERFLOW_OVERWRITE, false);
+        final Bundle b1 = bundle(1);
+        final Bundle b2 = bundle(2);
+        buffer.add(entry(b1, LogService.LOG_INFO, "b1 info"));
+        buffer.add(entry(b2, LogService.LOG_ERROR, "b2 error"));
+        buffer.add(entry(b1, LogService.LOG_ERROR, "b1 error"));
+        buffer.add(entry(null, LogService.LOG_WARNING, "warning"));
+        buffer.add(entry(b1, LogService.LOG_DEBUG, "b1 debug"));
+        buffer.add(entry(b1, LogService.LOG_WARNING, "b1 warning"));
+
+        assertEquals(list(new String[] { "b1 warning", "b1 debug", "warning", "b1 error", "b2 error", "b1 info" }),
+            messages(buffer.getEntries()));
+        assertEquals(list(new String[] { "b1 warning", "b1 debug", "b1 error", "b1 info" }),
+            messages(buffer.getEntries(1, LogService.LOG_DEBUG, Long.MIN_VALUE)));
+        assertEquals(list(new String[] { "b1 warning", "b1 error" }),
+            messages(buffer.getEntries(1, LogService.LOG_WARNING, Long.MIN_VALUE)));
+        assertEquals(list(new String[] { "warning", "b1 error", "b2 error" }),
+            messages(buffer.getEntries(-1, LogService.LOG_WARNING, Long.MIN_VALUE)).subList(1, 4));
+        assertEquals(list(new String[] { "b2 error" }),
+            messages(buffer.getEntries(2, LogService.LOG_INFO, Long.MIN_VALUE)));
+        assertTrue(messages(buffer.getEntries(3, LogService.LOG_DEBUG, Long.MIN_VALUE)).isEmpty());
+    }
+
+    public void testSinceWithEntriesStoredOutOfTimeOrder() throws Exception
+    {
+        final LogBuffer buffer = new LogBuffer(-1, -1, LogBuffer.OVERFLOW_OVERWRITE, false);
+        final LogEntryImpl older = entry(null, LogService.LOG_INFO, "older");
+        Thread.sleep(20);
+        final LogEntryImpl newer = entry(null, LogService.LOG_INFO, "newer");
+        // a thread creating an entry may be overtaken by another thread
+        buffer.add(newer);
+        buffer.add(older);
+
+        assertEquals(list(new String[] { "older", "newer" }),
+            messages(buffer.getEntries(-1, LogService.LOG_INFO, older.getTime())));
+        assertEquals(list(new String[] { "newer" }),
+            messages(buffer.getEntries(-1, LogService.LOG_INFO, newer.getTime())));
+        assertTrue(messages(buffer.getEntries(-1, LogService.LOG_INFO, newer.getTime() + 1)).isEmpty());
+    }
+
+    public void testPendingEntriesAreVisible() throws Exception
+    {
+        final LogBuffer buffer = new LogBuffer(-1, -1, LogBuffer.OVERFLOW_OVERWRITE, false);
+        // less entries than needed to move them into the store on add
+        buffer.add(entry(null, LogService.LOG_INFO, "first"));
+        buffer.add(entry(null, LogService.LOG_INFO, "second"));
+        assertEquals(list(new String[] { "second", "first" }), messages(buffer.getEntries()));
+
+        // readers and writers moving entries into the store concurrently
+        final Thread[] writers = new Thread[8];
+        for (int i = 0; i < writers.length; i++)
+        {
+            writers[i] = new Thread()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 5000; j++)
+                    {
+                        buffer.add(entry(null, LogService.LOG_INFO, "entry"));
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        while (writers[0].isAlive())
+        {
+            buffer.getEntries(-1, LogService.LOG_INFO, Long.MIN_VALUE);
+        }
+        for (int i = 0; i < writers.length; i++)
+        {
+            writers[i].join();
+        }
+        assertEquals(2 + 8 * 5000, messages(buffer.getEntries()).size());
+    }
+
+    public void testOldestEntriesRemovedByDefault()
+    {
+        final LogBuffer buffer = new LogBuffer(3, -1, LogBuffer.OVERFLOW_OVERWRITE, false);
+        for (int i = 0; i < 3; i++)
+        {
+            buffer.add(entry(null, LogService.LOG_ERROR, "error" + i));
+        }
+        buffer.add(entry(null, LogService.LOG_DEBUG, "debug"));
+        buffer.add(entry(null, LogService.LOG_INFO, "info"));
+
+        // the most recent entries regardless of their level
+        assertEquals(list(new String[] { "info", "debug", "error2" }), messages(buffer.getEntries()));
+    }
+
+    public void testLeastSevereEntriesRemovedFirst()
+    {
+        final LogBuffer buffer = new LogBuffer(3, -1, LogBuffer.OVERFLOW_OVERWRITE, true);
+        buffer.add(entry(null, LogService.LOG_ERROR, "error"));
+        buffer.add(entry(null, LogService.LOG_INFO, "info"));
+        for (int i = 0; i < 5; i++)
+        {
+            buffer.add(entry(null, LogService.LOG_DEBUG, "debug" + i));
+        }
+        assertEquals(list(new String[] { "debug4", "info", "error" }), messages(buffer.getEntries()));
+
+        // an entry never replaces a more severe one
+        final LogBuffer full = new LogBuffer(2, -1, LogBuffer.OVERFLOW_OVERWRITE, true);
+        full.add(entry(null, LogService.LOG_ERROR, "error1"));
+        full.add(entry(null, LogService.LOG_ERROR, "error2"));
+        full.add(entry(null, LogService.LOG_INFO, "info"));
+        assertEquals(list(new String[] { "error2", "error1" }), messages(full.getEntries()));
+    }
+
+    public void testMaxBytes()
+    {
+        final int size = entry(null, LogService.LOG_INFO, "0123456789").getSize();
+        final LogBuffer buffer = new LogBuffer(-1, 3 * size, LogBuffer.OVERFLOW_OVERWRITE, false);
+        for (int i = 0; i < 5; i++)
+        {
+            buffer.add(entry(null, LogService.LOG_INFO, "012345678" + i));
+        }
+        assertEquals(list(new String[] { "0123456784", "0123456783", "0123456782" }),
+            messages(buffer.getEntries()));
+
+        // an entry larger than the maximum is not stored at all
+        final StringBuffer large = new StringBuffer();
+        for (int i = 0; i < 3 * size; i++)
+        {
+            large.append('x');
+        }
+        buffer.add(entry(null, LogService.LOG_ERROR, large.toString()));
+        assertEquals(3, messages(buffer.getEntries()).size());
+    }
+
+    private static Throwable createException(final int depth)
+    {
+        if (depth == 0)
+        {
+            return new IllegalStateException("message");
+        }
+        return createException(depth - 1);
+    }
+
+    public void testExceptionSizeDoesNotDependOnStackTrace()
+    {
+        final LogEntryImpl shallow = new LogEntryImpl(null, null, LogService.LOG_ERROR, "error", createException(0));
+        final LogEntryImpl deep = new LogEntryImpl(null, null, LogService.LOG_ERROR, "error", createException(100));
+        final LogEntryImpl none = new LogEntryImpl(null, null, LogService.LOG_ERROR, "error", null);
+
+        assertEquals(shallow.getSize(), deep.getSize());
+        assertTrue(shallow.getSize() > none.getSize());
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+public class LogTest extends TestCase
+{
+    private static List list(final Enumeration entries)
+    {
+        final List result = new ArrayList();
+        while (entries.hasMoreElements())
+        {
+            result.add(entries.nextElement());
+        }
+        return result;
+    }
+
+    private static LogEntryImpl entry(final int level, final String message)
+    {
+        return new LogEntryImpl(null, null, level, message, null);
+    }
+
+    private static List messages(final List entries)
+    {
+        final List result = new ArrayList();
+        for (int i = 0; i < entries.size(); i++)
+        {
+            result.add(((LogEntry) entries.get(i)).getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Adds entries named <code>thread:index</code> from several threads.
+     */
+    private static void addConcurrently(final Log log, final int threads, final int entries)
+        throws InterruptedException
+    {
+        final Thread[] producers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            final int thread = i;
+            producers[i] = new Thread()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < entries; j++)
+                    {
+                        log.addEntry(entry(LogService.LOG_INFO, thread + ":" + j));
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (int i = 0; i < threads; i++)
+        {
+            producers[i].join();
+        }
+    }
+
+    /**
+     * Asserts that the entries of each thread are in the expected order.
+     */
+    private static void assertOrderPerThread(final List messages, final int threads, final boolean ascending)
+    {
+        final int[] last = new int[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            last[i] = ascending ? -1 : Integer.MAX_VALUE;
+        }
+        for (int i = 0; i < messages.size(); i++)
+        {
+            final String message = (String) messages.get(i);
+            final int pos = message.indexOf(':');
+            final int thread = Integer.parseInt(message.substring(0, pos));
+            final int index = Integer.parseInt(message.substring(pos + 1));
+            assertTrue(message, ascending ? index > last[thread] : index < last[thread]);
+            last[thread] = index;
+        }
+    }
+
+    public void testConcurrentAdd() throws Exception
+    {
+        final Log log = new Log(100, -1, true, LogBuffer.OVERFLOW_OVERWRITE, false);
+        addConcurrently(log, 16, 10000);
+
+        final List entries = list(log.getEntries());
+        assertEquals(100, entries.size());
+        long sequence = Long.MAX_VALUE;
+        for (int i = 0; i < entries.size(); i++)
+        {
+            final long current = ((LogEntryImpl) entries.get(i)).getSequence();
+            assertTrue(current < sequence);
+            sequence = current;
+        }
+        assertOrderPerThread(messages(entries), 16, false);
+    }
+
+    public void testUnboundedConcurrentAdd() throws Exception
+    {
+        final Log log = new Log(-1, -1, true, LogBuffer.OVERFLOW_OVERWRITE, false);
+        addConcurrently(log, 8, 1000);
+
+        final List entries = list(log.getEntries());
+        assertEquals(8000, entries.size());
+        assertOrderPerThread(messages(entries), 8, false);
+    }
+
+    public void testOverwrite()
+    {
+        final Log log = new Log(3, -1, true, LogBuffer.OVERFLOW_OVERWRITE, false);
+        for (int i = 0; i < 5; i++)
+        {
+            log.addEntry(entry(LogService.LOG_INFO, "info" + i));
+        }
+        final List expected = new ArrayList();
+        expected.add("info4");
+        expected.add("info3");
+        expected.add("info2");
+        assertEquals(expected, messages(list(log.getEntries())));
+    }
+
+    public void testDiscard()
+    {
+        final Log log = new Log(3, -1, true, LogBuffer.OVERFLOW_DISCARD, false);
+        for (int i = 0; i < 5; i++)
+        {
+            log.addEntry(entry(LogService.LOG_INFO, "info" + i));
+        }
+        final List expected = new ArrayList();
+        expected.add("info2");
+        expected.add("info1");
+        expected.add("info0");
+        assertEquals(expected, messages(list(log.getEntries())));
+    }
+
+    public void testDiscardLeastSevere()
+    {
+        final Log log = new Log(3, -1, true, LogBuffer.OVERFLOW_DISCARD, true);
+        for (int i = 0; i < 5; i++)
+        {
+            log.addEntry(entry(LogService.LOG_INFO, "info" + i));
+        }
+
+        // a more severe entry still replaces the oldest less severe one
+        log.addEntry(entry(LogService.LOG_ERROR, "error"));
+        final List expected = new ArrayList();
+        expected.add("error");
+        expected.add("info2");
+        expected.add("info1");
+        assertEquals(expected, messages(list(log.getEntries())));
+    }
+
+    public void testDebugNotStored()
+    {
+        final Log log = new Log(10, -1, false, LogBuffer.OVERFLOW_OVERWRITE, false);
+        log.addEntry(entry(LogService.LOG_DEBUG, "debug"));
+        log.addEntry(entry(LogService.LOG_INFO, "info"));
+        assertEquals(1, list(log.getEntries()).size());
+    }
+
+    public void testListener() throws Exception
+    {
+        final Log log = new Log(0, -1, true, LogBuffer.OVERFLOW_OVERWRITE, false);
+        final List received = new ArrayList();
+        final LogListener listener = new LogListener()
+        {
+            public void logged(final LogEntry entry)
+            {
+                synchronized (received)
+                {
+                    received.add(entry.getMessage());
+                    received.notifyAll();
+                }
+            }
+        };
+        log.addListener(listener);
+        addConcurrently(log, 4, 5000);
+
+        synchronized (received)
+        {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (received.size() < 20000 && System.currentTimeMillis() < deadline)
+            {
+                received.wait(100);
+            }
+            assertEquals(20000, received.size());
+            assertOrderPerThread(received, 4, true);
+        }
+        // the log itself does not store anything with a maximum size of 0
+        assertEquals(0, list(log.getEntries()).size());
+        log.removeListener(listener);
+        log.close();
+    }
+}
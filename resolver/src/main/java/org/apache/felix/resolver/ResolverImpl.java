@@ -23,12 +23,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.ExecutionEnvironmentNamespace;
 import org.osgi.framework.namespace.HostNamespace;
@@ -47,6 +54,8 @@ import org.osgi.service.resolver.Resolver;
 public class ResolverImpl implements Resolver
 {
     private final Logger m_logger;
+    private final Executor m_executor;
+    private final int m_parallelism;
 
     // Note this class is not thread safe.
     // Only use in the context of a single thread.
@@ -67,10 +76,28 @@ public class ResolverImpl implements Resolver
         private Candidates m_multipleCardCandidates = null;
 
         private final Map<Capability, List<Capability>> m_packageSourcesCache = new HashMap();
+        // Holds import permutations of an enclosing parallel resolve that are
+        // not part of this session, but which avoid creating duplicate
+        // permutations; null if the session is not part of a parallel resolve.
+        private final List<Candidates> m_pendingImportPermutations;
+        // Maps import permutations created by this session to the requirement
+        // and candidate they permutate, if the permutation was only created
+        // because a pending permutation may have been unknown.
+        private final Map<Candidates, Blame> m_conditionalPermutations =
+            new IdentityHashMap<Candidates, Blame>();
+        // Set once the result of a parallel attempt is no longer needed.
+        private volatile boolean m_isCancelled = false;
 
         ResolveSession(ResolveContext resolveContext)
+        {
+            this(resolveContext, null);
+        }
+
+        ResolveSession(
+            ResolveContext resolveContext, List<Candidates> pendingImportPermutations)
         {
             m_resolveContext = resolveContext;
+            m_pendingImportPermutations = pendingImportPermutations;
         }
 
         List<Candidates> getUsesPermutations()
@@ -98,15 +125,68 @@ public class ResolverImpl implements Resolver
             return m_packageSourcesCache;
         }
 
+        List<Candidates> getPendingImportPermutations()
+        {
+            return m_pendingImportPermutations;
+        }
+
+        Map<Candidates, Blame> getConditionalPermutations()
+        {
+            return m_conditionalPermutations;
+        }
+
         ResolveContext getContext()
         {
             return m_resolveContext;
         }
+
+        void cancel()
+        {
+            m_isCancelled = true;
+        }
+
+        /**
+         * Throws a {@link CancellationException} if the session was
+         * cancelled, so a parallel attempt whose result is no longer
+         * needed stops instead of checking its permutation to the end.
+         */
+        void checkCancelled()
+        {
+            if (m_isCancelled)
+            {
+                throw new CancellationException();
+            }
+        }
     }
 
+    /**
+     * Creates a resolver that checks candidate permutations one at a time.
+     *
+     * @param logger the logger
+     */
     public ResolverImpl(Logger logger)
+    {
+        this(logger, null, 1);
+    }
+
+    /**
+     * Creates a resolver that checks up to the specified number of candidate
+     * permutations concurrently. Permutations are still chosen in the same
+     * order as by a sequential resolve, so both return the same result;
+     * permutations after the first consistent one are checked in vain. Resolve
+     * contexts passed to a parallel resolver must allow their wirings to be
+     * retrieved from multiple threads.
+     *
+     * @param logger the logger
+     * @param executor the executor used to check permutations, or
+     * <code>null</code> to resolve sequentially
+     * @param parallelism the maximum number of permutations checked at once
+     */
+    public ResolverImpl(Logger logger, Executor executor, int parallelism)
     {
         m_logger = logger;
+        m_executor = (parallelism > 1) ? executor : null;
+        m_parallelism = (m_executor != null) ? parallelism : 1;
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -213,60 +293,37 @@ public class ResolverImpl implements Resolver
                     }
                 }
 
-                do
+                if (m_executor != null)
                 {
-                    rethrow = null;
-
-                    resourcePkgMap.clear();
-                    session.getPackageSourcesCache().clear();
-                    // Null out each time a new permutation is attempted.
-                    // We only use this to store a valid permutation which is a
-                    // delta of the current permutation.
-                    session.setMultipleCardCandidates(null);
-
-                    allCandidates = (usesPermutations.size() > 0)
-                        ? usesPermutations.remove(0)
-                        : importPermutations.remove(0);
-//allCandidates.dump();
-                    // Reuse a resultCache map for checking package consistency
-                    // for all resources.
-                    Map<Resource, Object> resultCache =
-                        new HashMap<Resource, Object>(allResources.size());
-                    // Check the package space consistency for all 'root' resources.
-                    for (Resource resource : allResources)
+                    Attempt attempt = resolveInParallel(session, allResources, hostReqs);
+                    allCandidates = attempt.m_candidates;
+                    rethrow = attempt.m_rethrow;
+                    resourcePkgMap = attempt.m_resourcePkgMap;
+                    session.setMultipleCardCandidates(
+                        attempt.m_session.getMultipleCardCandidates());
+                }
+                else
+                {
+                    do
                     {
-                        Resource target = resource;
-
-                        // If we are resolving a fragment, then get its
-                        // host candidate and verify it instead.
-                        List<Requirement> hostReq = hostReqs.get(resource);
-                        if (hostReq != null)
-                        {
-                            target = allCandidates.getCandidates(hostReq.get(0))
-                                .iterator().next().getResource();
-                        }
-
-                        calculatePackageSpaces(
-                            session, allCandidates.getWrappedHost(target), allCandidates,
-                            resourcePkgMap, new HashMap(), new HashSet());
-//System.out.println("+++ PACKAGE SPACES START +++");
-//dumpResourcePkgMap(resourcePkgMap);
-//System.out.println("+++ PACKAGE SPACES END +++");
+                        resourcePkgMap.clear();
+                        session.getPackageSourcesCache().clear();
+                        // Null out each time a new permutation is attempted.
+                        // We only use this to store a valid permutation which is a
+                        // delta of the current permutation.
+                        session.setMultipleCardCandidates(null);
 
-                        try
-                        {
-                            checkPackageSpaceConsistency(
-                                session, allCandidates.getWrappedHost(target),
-                                allCandidates, resourcePkgMap, resultCache);
-                        }
-                        catch (ResolutionException ex)
-                        {
-                            rethrow = ex;
-                        }
+                        allCandidates = (usesPermutations.size() > 0)
+                            ? usesPermutations.remove(0)
+                            : importPermutations.remove(0);
+//allCandidates.dump();
+                        rethrow = checkConsistency(
+                            session, allCandidates, allResources, hostReqs,
+                            resourcePkgMap);
                     }
+                    while ((rethrow != null)
+                        && ((usesPermutations.size() > 0) || (importPermutations.size() > 0)));
                 }
-                while ((rethrow != null)
-                    && ((usesPermutations.size() > 0) || (importPermutations.size() > 0)));
 
                 // If there is a resolve exception, then determine if an
                 // optionally resolved resource is to blame (typically a fragment).
@@ -540,6 +597,219 @@ public class ResolverImpl implements Resolver
         return wireMap;
     }
 
+    /**
+     * Checks the package space consistency of all resources being resolved
+     * for a single candidate permutation. Permutations to try next are added
+     * to the session.
+     *
+     * @return <code>null</code> if the permutation is consistent, otherwise
+     * the last resolution exception
+     */
+    private ResolutionException checkConsistency(
+        ResolveSession session,
+        Candidates allCandidates,
+        Set<Resource> allResources,
+        Map<Resource, List<Requirement>> hostReqs,
+        Map<Resource, Packages> resourcePkgMap)
+    {
+        ResolutionException rethrow = null;
+
+        // Reuse a resultCache map for checking package consistency
+        // for all resources.
+        Map<Resource, Object> resultCache =
+            new HashMap<Resource, Object>(allResources.size());
+        // Check the package space consistency for all 'root' resources.
+        for (Resource resource : allResources)
+        {
+            session.checkCancelled();
+
+            Resource target = resource;
+
+            // If we are resolving a fragment, then get its
+            // host candidate and verify it instead.
+            List<Requirement> hostReq = hostReqs.get(resource);
+            if (hostReq != null)
+            {
+                target = allCandidates.getCandidates(hostReq.get(0))
+                    .iterator().next().getResource();
+            }
+
+            calculatePackageSpaces(
+                session, allCandidates.getWrappedHost(target), allCandidates,
+                resourcePkgMap, new HashMap(), new HashSet());
+//System.out.println("+++ PACKAGE SPACES START +++");
+//dumpResourcePkgMap(resourcePkgMap);
+//System.out.println("+++ PACKAGE SPACES END +++");
+
+            try
+            {
+                checkPackageSpaceConsistency(
+                    session, allCandidates.getWrappedHost(target),
+                    allCandidates, resourcePkgMap, resultCache);
+            }
+            catch (ResolutionException ex)
+            {
+                rethrow = ex;
+            }
+        }
+
+        return rethrow;
+    }
+
+    /**
+     * Checks the pending permutations of the session in batches of up to
+     * <code>m_parallelism</code> permutations, each in its own session.
+     * Results are merged in the order of a sequential resolve: the first
+     * consistent permutation wins and the permutations created by the
+     * inconsistent ones before it are queued as if they had been checked
+     * one after the other.
+     *
+     * @return the first consistent attempt or the last inconsistent one
+     */
+    private Attempt resolveInParallel(
+        ResolveSession session,
+        Set<Resource> allResources,
+        Map<Resource, List<Requirement>> hostReqs)
+    {
+        List<Candidates> usesPermutations = session.getUsesPermutations();
+        List<Candidates> importPermutations = session.getImportPermutations();
+        Attempt last = null;
+
+        while ((usesPermutations.size() > 0) || (importPermutations.size() > 0))
+        {
+            // A batch only takes permutations from one queue, since uses
+            // permutations created by a failed import permutation have
+            // priority over the remaining import permutations.
+            boolean isUses = (usesPermutations.size() > 0);
+            List<Candidates> queue = (isUses) ? usesPermutations : importPermutations;
+            List<Candidates> batch = new ArrayList<Candidates>(
+                queue.subList(0, Math.min(m_parallelism, queue.size())));
+            queue.subList(0, batch.size()).clear();
+
+            List<Attempt> attempts = new ArrayList<Attempt>();
+            List<FutureTask<Attempt>> tasks = new ArrayList<FutureTask<Attempt>>();
+            for (int i = 0; i < batch.size(); i++)
+            {
+                Attempt attempt = new Attempt(
+                    new ResolveSession(session.getContext(),
+                        getPendingImportPermutations(isUses, importPermutations, batch, i)),
+                    batch.get(i), allResources, hostReqs);
+                attempts.add(attempt);
+                tasks.add(new FutureTask<Attempt>(attempt));
+            }
+            // The current thread checks the first permutation itself, so
+            // the resolve makes progress even if the executor is busy.
+            for (int i = 1; i < tasks.size(); i++)
+            {
+                try
+                {
+                    m_executor.execute(tasks.get(i));
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    tasks.get(i).run();
+                }
+            }
+            tasks.get(0).run();
+
+            try
+            {
+                for (int i = 0; i < tasks.size(); i++)
+                {
+                    last = getAttempt(tasks.get(i));
+                    if (last.m_rethrow == null)
+                    {
+                        return last;
+                    }
+
+                    List<Candidates> pending = getPendingImportPermutations(
+                        isUses, importPermutations, batch, i);
+                    if (!isConsistent(last.m_session, pending))
+                    {
+                        // The attempt created an import permutation that
+                        // duplicates one created by an attempt before it,
+                        // so check the permutation again knowing about it.
+                        last = new Attempt(
+                            new ResolveSession(session.getContext(), pending),
+                            last.m_candidates, allResources, hostReqs).call();
+                    }
+                    usesPermutations.addAll(last.m_session.getUsesPermutations());
+                    importPermutations.addAll(last.m_session.getImportPermutations());
+
+                    if (!isUses && (usesPermutations.size() > 0))
+                    {
+                        importPermutations.addAll(0, batch.subList(i + 1, batch.size()));
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                // Attempts after the first consistent one are not needed;
+                // cancelling the task only keeps it from starting, while
+                // cancelling the session stops an attempt already running.
+                for (int i = 0; i < tasks.size(); i++)
+                {
+                    tasks.get(i).cancel(false);
+                    attempts.get(i).cancel();
+                }
+            }
+        }
+
+        return last;
+    }
+
+    private static List<Candidates> getPendingImportPermutations(
+        boolean isUses, List<Candidates> importPermutations,
+        List<Candidates> batch, int index)
+    {
+        List<Candidates> pending = new ArrayList<Candidates>(importPermutations);
+        if (!isUses)
+        {
+            pending.addAll(batch.subList(index + 1, batch.size()));
+        }
+        return pending;
+    }
+
+    private static boolean isConsistent(ResolveSession session, List<Candidates> pending)
+    {
+        for (Candidates perm : session.getImportPermutations())
+        {
+            Blame blame = session.getConditionalPermutations().get(perm);
+            if ((blame != null)
+                && isPermutated(pending, blame.m_reqs.get(0), blame.m_cap))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Attempt getAttempt(FutureTask<Attempt> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving.");
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) ex.getCause();
+            }
+            else if (ex.getCause() instanceof Error)
+            {
+                throw (Error) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause().toString());
+        }
+    }
+
     private void calculatePackageSpaces(
         ResolveSession session,
         Resource resource,
@@ -553,6 +823,7 @@ public class ResolverImpl implements Resolver
             return;
         }
         cycle.add(resource);
+        session.checkCancelled();
 
         // Make sure package space hasn't already been calculated.
         Packages resourcePkgs = resourcePkgMap.get(resource);
@@ -1096,6 +1367,7 @@ public class ResolverImpl implements Resolver
         {
             return;
         }
+        session.checkCancelled();
 
         Packages pkgs = resourcePkgMap.get(resource);
 
@@ -1367,7 +1639,7 @@ public class ResolverImpl implements Resolver
                         // with existing import decisions, we may end up trying
                         // to permutate the same import a lot of times, so we should
                         // try to check if that the case and only permutate it once.
-                        permutateIfNeeded(allCandidates, req, importPermutations);
+                        permutateIfNeeded(session, allCandidates, req);
                     }
 
                     m_logger.log(
@@ -1463,7 +1735,7 @@ public class ResolverImpl implements Resolver
     }
 
     private static void permutateIfNeeded(
-        Candidates allCandidates, Requirement req, List<Candidates> permutations)
+        ResolveSession session, Candidates allCandidates, Requirement req)
     {
         List<Capability> candidates = allCandidates.getCandidates(req);
         if ((candidates != null) && (candidates.size() > 1))
@@ -1474,22 +1746,40 @@ public class ResolverImpl implements Resolver
             // there is any permutation that contains a different
             // initial candidate for the requirement in question,
             // then it has already been permutated.
-            boolean permutated = false;
-            for (Candidates existingPerm : permutations)
+            List<Candidates> permutations = session.getImportPermutations();
+            List<Candidates> pending = session.getPendingImportPermutations();
+            if (!isPermutated(permutations, req, candidates.get(0))
+                && ((pending == null) || !isPermutated(pending, req, candidates.get(0))))
             {
-                List<Capability> existingPermCands = existingPerm.getCandidates(req);
-                if (!existingPermCands.get(0).equals(candidates.get(0)))
+                // If we haven't already permutated the existing
+                // import, do so now.
+                int count = permutations.size();
+                permutate(allCandidates, req, permutations);
+                // Remember the permutation in case the enclosing parallel
+                // resolve knows about further pending permutations.
+                if ((pending != null) && (permutations.size() > count))
                 {
-                    permutated = true;
+                    List<Requirement> reqs = new ArrayList<Requirement>(1);
+                    reqs.add(req);
+                    session.getConditionalPermutations().put(
+                        permutations.get(count), new Blame(candidates.get(0), reqs));
                 }
             }
-            // If we haven't already permutated the existing
-            // import, do so now.
-            if (!permutated)
+        }
+    }
+
+    private static boolean isPermutated(
+        List<Candidates> permutations, Requirement req, Capability cap)
+    {
+        for (Candidates existingPerm : permutations)
+        {
+            List<Capability> existingPermCands = existingPerm.getCandidates(req);
+            if (!existingPermCands.get(0).equals(cap))
             {
-                permutate(allCandidates, req, permutations);
+                return true;
             }
         }
+        return false;
     }
 
     private static void calculateExportedPackages(
@@ -2055,6 +2345,43 @@ public class ResolverImpl implements Resolver
         return cap;
     }
 
+    /**
+     * Checks a candidate permutation in its own session, so multiple
+     * permutations can be checked concurrently.
+     */
+    private class Attempt implements Callable<Attempt>
+    {
+        private final ResolveSession m_session;
+        private final Candidates m_candidates;
+        private final Set<Resource> m_allResources;
+        private final Map<Resource, List<Requirement>> m_hostReqs;
+        private final Map<Resource, Packages> m_resourcePkgMap =
+            new HashMap<Resource, Packages>();
+        private ResolutionException m_rethrow;
+
+        Attempt(
+            ResolveSession session, Candidates candidates,
+            Set<Resource> allResources, Map<Resource, List<Requirement>> hostReqs)
+        {
+            m_session = session;
+            m_candidates = candidates;
+            m_allResources = allResources;
+            m_hostReqs = hostReqs;
+        }
+
+        public Attempt call()
+        {
+            m_rethrow = checkConsistency(
+                m_session, m_candidates, m_allResources, m_hostReqs, m_resourcePkgMap);
+            return this;
+        }
+
+        void cancel()
+        {
+            m_session.cancel();
+        }
+    }
+
     private static class Packages
     {
         private final Resource m_resource;
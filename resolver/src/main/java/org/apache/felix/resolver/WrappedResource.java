@@ -51,7 +51,7 @@ class WrappedResource implements Resource
         return m_fragments;
     }
 
-    public List<Capability> getCapabilities(String namespace)
+    public synchronized List<Capability> getCapabilities(String namespace)
     {
         if (m_cachedCapabilities == null)
         {
@@ -85,7 +85,7 @@ class WrappedResource implements Resource
         return m_cachedCapabilities;
     }
 
-    public List<Requirement> getRequirements(String namespace)
+    public synchronized List<Requirement> getRequirements(String namespace)
     {
         if (m_cachedRequirements == null)
         {
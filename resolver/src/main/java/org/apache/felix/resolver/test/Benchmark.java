@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolverImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.ResolutionException;
+import org.osgi.service.resolver.Resolver;
+
+/**
+ * Compares sequential and parallel resolves of synthetic repositories with
+ * many conflicting package versions.
+ * <p>
+ * A repository consists of a chain of packages, each available in several
+ * versions. Every exporter of a package uses and imports the next package of
+ * the chain, and the candidates of all imports are shuffled, so the resolver
+ * has to try many candidate permutations until the chosen versions agree.
+ * <p>
+ * Usage: <code>Benchmark [threads] [iterations]</code>
+ */
+public class Benchmark
+{
+    // Number of packages, versions per package, root resources and seed
+    // of each synthetic repository.
+    private static final int[][] CORPUS = new int[][] {
+        { 4, 3, 1, 1 },
+        { 6, 3, 2, 2 },
+        { 7, 3, 1, 3 },
+        { 6, 4, 1, 4 },
+        { 7, 3, 2, 3 },
+        { 12, 2, 2, 5 }
+    };
+
+    public static void main(String[] args) throws ResolutionException
+    {
+        int threads = (args.length > 0)
+            ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            Resolver sequential = new ResolverImpl(new Logger(Logger.LOG_ERROR));
+            Resolver parallel =
+                new ResolverImpl(new Logger(Logger.LOG_ERROR), executor, threads);
+
+            System.out.println("packages versions roots seed: sequential ms, parallel ms ("
+                + threads + " threads)");
+            for (int i = 0; i < CORPUS.length; i++)
+            {
+                int[] params = CORPUS[i];
+                Map<Requirement, List<Capability>> candMap =
+                    new HashMap<Requirement, List<Capability>>();
+                List<Resource> mandatory = populateRepository(
+                    candMap, params[0], params[1], params[2], params[3]);
+
+                Object expected = resolve(sequential, candMap, mandatory);
+                Object actual = resolve(parallel, candMap, mandatory);
+                if (!String.valueOf(expected).equals(String.valueOf(actual)))
+                {
+                    System.err.println("DIFFERENT RESULT " + expected + " " + actual);
+                }
+
+                long seqTime = time(sequential, candMap, mandatory, iterations);
+                long parTime = time(parallel, candMap, mandatory, iterations);
+                System.out.println(params[0] + " " + params[1] + " " + params[2]
+                    + " " + params[3] + ": " + seqTime + ", " + parTime);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static long time(
+        Resolver resolver, Map<Requirement, List<Capability>> candMap,
+        List<Resource> mandatory, int iterations)
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            resolve(resolver, candMap, mandatory);
+        }
+        return (System.nanoTime() - start) / iterations / 1000000L;
+    }
+
+    static Object resolve(
+        Resolver resolver, Map<Requirement, List<Capability>> candMap,
+        List<Resource> mandatory)
+    {
+        try
+        {
+            Map<Resource, List<Wire>> wireMap = resolver.resolve(
+                new ResolveContextImpl(
+                    new HashMap<Resource, Wiring>(), candMap,
+                    mandatory, Collections.EMPTY_LIST));
+            // Compare results independent of the map order.
+            Map<String, String> result = new TreeMap<String, String>();
+            for (Map.Entry<Resource, List<Wire>> entry : wireMap.entrySet())
+            {
+                result.put(entry.getKey().toString(), entry.getValue().toString());
+            }
+            return result;
+        }
+        catch (ResolutionException ex)
+        {
+            return "FAILED";
+        }
+    }
+
+    static List<Resource> populateRepository(
+        Map<Requirement, List<Capability>> candMap,
+        int packages, int versions, int roots, long seed)
+    {
+        Random random = new Random(seed);
+
+        // Create the exporters of all package versions.
+        List<List<Capability>> exports = new ArrayList<List<Capability>>();
+        List<List<ResourceImpl>> exporters = new ArrayList<List<ResourceImpl>>();
+        for (int pkg = 0; pkg < packages; pkg++)
+        {
+            List<Capability> caps = new ArrayList<Capability>();
+            List<ResourceImpl> resources = new ArrayList<ResourceImpl>();
+            for (int v = 0; v < versions; v++)
+            {
+                ResourceImpl exporter = new ResourceImpl("p" + pkg + "-" + v);
+                PackageCapability cap = new PackageCapability(exporter, "p" + pkg);
+                cap.addAttribute(
+                    PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, new Version(v, 0, 0));
+                if (pkg < packages - 1)
+                {
+                    cap.addDirective(
+                        Namespace.CAPABILITY_USES_DIRECTIVE, "p" + (pkg + 1));
+                }
+                exporter.addCapability(cap);
+                caps.add(cap);
+                resources.add(exporter);
+            }
+            exports.add(caps);
+            exporters.add(resources);
+        }
+
+        // Every exporter imports the next package of the chain.
+        for (int pkg = 0; pkg < packages - 1; pkg++)
+        {
+            for (ResourceImpl exporter : exporters.get(pkg))
+            {
+                Requirement req = new PackageRequirement(exporter, "p" + (pkg + 1));
+                exporter.addRequirement(req);
+                candMap.put(req, shuffle(exports.get(pkg + 1), random));
+            }
+        }
+
+        // Roots import all packages.
+        List<Resource> mandatory = new ArrayList<Resource>();
+        for (int i = 0; i < roots; i++)
+        {
+            ResourceImpl root = new ResourceImpl("root" + i);
+            for (int pkg = 0; pkg < packages; pkg++)
+            {
+                Requirement req = new PackageRequirement(root, "p" + pkg);
+                root.addRequirement(req);
+                candMap.put(req, shuffle(exports.get(pkg), random));
+            }
+            mandatory.add(root);
+        }
+        return mandatory;
+    }
+
+    private static List<Capability> shuffle(List<Capability> caps, Random random)
+    {
+        List<Capability> shuffled = new ArrayList<Capability>(caps);
+        Collections.shuffle(shuffled, random);
+        return shuffled;
+    }
+}
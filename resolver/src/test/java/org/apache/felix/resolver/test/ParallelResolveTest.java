@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolverImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.resolver.Resolver;
+
+public class ParallelResolveTest extends TestCase
+{
+    private static final int THREADS = 4;
+
+    private ExecutorService m_executor;
+    private Resolver m_sequential;
+    private Resolver m_parallel;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_executor = Executors.newFixedThreadPool(THREADS);
+        m_sequential = new ResolverImpl(new Logger(Logger.LOG_ERROR));
+        m_parallel = new ResolverImpl(new Logger(Logger.LOG_ERROR), m_executor, THREADS);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_executor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testSameWiringsAsSequentialResolve() throws Exception
+    {
+        // Two roots importing a chain of three packages need many
+        // permutations until their choices agree; longer chains are
+        // resolved for a single root, which keeps the test fast.
+        int resolved = 0;
+        for (int seed = 0; seed < 40; seed++)
+        {
+            int packages = 3 + (seed % 3);
+            Map<Requirement, List<Capability>> candMap =
+                new HashMap<Requirement, List<Capability>>();
+            List<Resource> mandatory = Benchmark.populateRepository(
+                candMap, packages, 2 + (seed % 2), (packages == 3) ? 2 : 1, seed);
+
+            Object expected = Benchmark.resolve(m_sequential, candMap, mandatory);
+            Object actual = Benchmark.resolve(m_parallel, candMap, mandatory);
+            assertEquals("seed " + seed, expected, actual);
+            if (!"FAILED".equals(expected))
+            {
+                resolved++;
+            }
+        }
+        assertTrue(resolved > 0);
+    }
+
+    public void testSameFailureAsSequentialResolve() throws Exception
+    {
+        // The root imports p0 and p1, which both use p2, and p2 itself,
+        // but no exporter of p0 agrees with any exporter of p1 on the
+        // version of p2, so every permutation is inconsistent.
+        Map<Requirement, List<Capability>> candMap =
+            new HashMap<Requirement, List<Capability>>();
+        List<Capability> p2 = new ArrayList<Capability>();
+        for (int v = 0; v < 4; v++)
+        {
+            p2.add(export(new ResourceImpl("p2-" + v), "p2", v, null));
+        }
+        ResourceImpl root = new ResourceImpl("root");
+        Requirement rootReq = new PackageRequirement(root, "p2");
+        root.addRequirement(rootReq);
+        candMap.put(rootReq, p2);
+        for (int pkg = 0; pkg < 2; pkg++)
+        {
+            List<Capability> exports = new ArrayList<Capability>();
+            for (int v = 0; v < 3; v++)
+            {
+                ResourceImpl exporter = new ResourceImpl("p" + pkg + "-" + v);
+                exports.add(export(exporter, "p" + pkg, v, "p2"));
+                Requirement req = new PackageRequirement(exporter, "p2");
+                exporter.addRequirement(req);
+                candMap.put(req, (pkg == 0) ? p2.subList(0, 2) : p2.subList(2, 4));
+            }
+            Requirement req = new PackageRequirement(root, "p" + pkg);
+            root.addRequirement(req);
+            candMap.put(req, exports);
+        }
+        List<Resource> mandatory = new ArrayList<Resource>();
+        mandatory.add(root);
+
+        assertEquals("FAILED", Benchmark.resolve(m_sequential, candMap, mandatory));
+        assertEquals("FAILED", Benchmark.resolve(m_parallel, candMap, mandatory));
+    }
+
+    private static Capability export(
+        ResourceImpl exporter, String pkg, int version, String uses)
+    {
+        PackageCapability cap = new PackageCapability(exporter, pkg);
+        cap.addAttribute(
+            PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, new Version(version, 0, 0));
+        if (uses != null)
+        {
+            cap.addDirective(Namespace.CAPABILITY_USES_DIRECTIVE, uses);
+        }
+        exporter.addCapability(cap);
+        return cap;
+    }
+}